@@ -0,0 +1,361 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import edu.ycp.CreateRobot.ChargingState;
+import edu.ycp.CreateRobot.CreateMode;
+
+/**
+ * Compares SensorSnapshot's table-driven decoder with the hand-written per-packet switch it
+ * replaced (kept below as LegacySnapshot), on random group 6 frames and on a QUERY_LIST subset.
+ * Reports ns per frame for each, and how many frames the old decoder got wrong: it built 16-bit
+ * signed values from sign-extended low bytes, so DISTANCE, ANGLE, CURRENT and the requested
+ * velocities and radius were off whenever the low byte was 0x80 or above.
+ * Usage: DecoderBenchmark [frames per run] [runs]
+ *
+ * @author pjmartin
+ *
+ */
+public class DecoderBenchmark {
+	
+	public static void main(String[] args) {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		SensorRequest subset = new SensorRequest(EnumSet.of(PacketID.BUMP_AND_WHEEL, PacketID.DISTANCE,
+				PacketID.ANGLE, PacketID.CLIFF_LEFT_SIGNAL, PacketID.CLIFF_RIGHT_SIGNAL, PacketID.BATT_CHARGE));
+		for(SensorRequest request : new SensorRequest[]{SensorRequest.ALL, subset}){
+			byte[][] data = randomFrames(request, 1024);
+			System.out.println(request.getPacketCount() + " packets, " + request.getResponseSize() + " bytes per frame:");
+			for(int r = 0; r < runs; r++){
+				long start = System.nanoTime();
+				LegacySnapshot legacy = new LegacySnapshot();
+				for(int i = 0; i < frames; i++){
+					legacy = new LegacySnapshot(legacy, data[i & 1023], request, i + 1, i);
+				}
+				long legacyNanos = System.nanoTime() - start;
+				
+				start = System.nanoTime();
+				SensorSnapshot snapshot = new SensorSnapshot();
+				for(int i = 0; i < frames; i++){
+					snapshot = new SensorSnapshot(snapshot, data[i & 1023], request, i + 1, i);
+				}
+				long tableNanos = System.nanoTime() - start;
+				
+				System.out.printf("  run %d: switch %.1f ns/frame, table %.1f ns/frame (final distance: switch %.0f, table %.0f)%n", r,
+						(double) legacyNanos / frames, (double) tableNanos / frames, legacy.distance, snapshot.getDistance());
+			}
+			System.out.println("  frames decoded differently by the switch: " + countDifferences(data, request) + " of " + data.length);
+		}
+	}
+	
+	private static byte[][] randomFrames(SensorRequest request, int count) {
+		Random random = new Random(42);
+		byte[][] data = new byte[count][request.getResponseSize()];
+		for(byte[] frame : data){
+			random.nextBytes(frame);
+		}
+		return data;
+	}
+	
+	private static int countDifferences(byte[][] data, SensorRequest request) {
+		int different = 0;
+		for(int i = 0; i < data.length; i++){
+			LegacySnapshot legacy = new LegacySnapshot(new LegacySnapshot(), data[i], request, 1, 0);
+			SensorSnapshot snapshot = new SensorSnapshot(new SensorSnapshot(), data[i], request, 1, 0);
+			if(legacy.distance != snapshot.getDistance() || legacy.angle != snapshot.getAngle()
+					|| legacy.batteryCurrent != snapshot.getBatteryCurrent() || legacy.reqVelocity != snapshot.getReqVelocity()
+					|| legacy.reqRadius != snapshot.getReqRadius() || legacy.cliffLeftSignal != snapshot.getCliffLeftSignal()
+					|| legacy.batteryCharge != snapshot.getBatteryCharge() || legacy.bumpRight != snapshot.isBumpRight()){
+				different++;
+			}
+		}
+		return different;
+	}
+	
+	/**
+	 * SensorSnapshot's decoder before it was driven by the PacketID table.
+	 */
+	private static class LegacySnapshot {
+		
+		private final long sequenceNumber;
+		private final long timestamp;	// robot clock time at decode
+		private final long[] packetUpdateTimes;	// indexed by PacketID ordinal
+		private final long[] packetUpdateSequence;	// indexed by PacketID ordinal
+	
+		private boolean wheelDropLeft;
+		private boolean wheelDropRight;
+		private boolean casterDrop;
+		private boolean bumpLeft;
+		private boolean bumpRight;
+		private boolean advanceButtonPress;
+		private boolean playButtonPress;
+	
+		private ChargingState currChargeState;
+		private CreateMode oiMode;	// null until OI_MODE has been read
+	
+		private float reqVelocity;			// in mm/s
+		private float reqRadius;			// in mm
+		private float reqRightVelocity;	// in mm/s
+		private float reqLeftVelocity;		// in mm/s
+	
+		private float distance;	// distance traveled in mm since last request
+		private float angle;		// angle rotated in degrees since last request
+	
+		private boolean wall;
+		private boolean cliffLeft;
+		private boolean cliffLeftFront;
+		private boolean cliffRightFront;
+		private boolean cliffRight;
+		private boolean virtualWall;
+	
+		private float batteryVoltage;	// mV
+		private float batteryCurrent;	// mA
+		private float batteryCharge;	// in mAh
+		private short batteryTemp; // in C
+		private float batteryCapacity; // in mAh
+	
+		private int wallSignal;
+		private int cliffLeftSignal;
+		private int cliffLeftFrontSignal;
+		private int cliffRightFrontSignal;
+		private int cliffRightSignal;
+	
+		private byte cargoDIN;
+		private int cargoAIN;
+	
+		LegacySnapshot(){
+			sequenceNumber = 0;
+			timestamp = 0;
+			packetUpdateTimes = new long[PacketID.values().length];
+			packetUpdateSequence = new long[PacketID.values().length];
+		}
+	
+		LegacySnapshot(LegacySnapshot prev, byte[] freshData, SensorRequest request, long sequenceNumber, long timestamp){
+	
+			this.sequenceNumber = sequenceNumber;
+			this.timestamp = timestamp;
+			this.packetUpdateTimes = Arrays.copyOf(prev.packetUpdateTimes, prev.packetUpdateTimes.length);
+			this.packetUpdateSequence = Arrays.copyOf(prev.packetUpdateSequence, prev.packetUpdateSequence.length);
+			copyValues(prev);
+	
+			int offset = 0;
+			for(int i = 0; i < request.getPacketCount(); i++){
+				PacketID packet = request.getPacket(i);
+				decodePacket(packet, freshData, offset);
+				packetUpdateTimes[packet.ordinal()] = timestamp;
+				packetUpdateSequence[packet.ordinal()] = sequenceNumber;
+				offset += packet.getSize();
+			}
+		}
+	
+		private final void copyValues(LegacySnapshot prev){
+			this.wheelDropLeft = prev.wheelDropLeft;
+			this.wheelDropRight = prev.wheelDropRight;
+			this.casterDrop = prev.casterDrop;
+			this.bumpLeft = prev.bumpLeft;
+			this.bumpRight = prev.bumpRight;
+			this.advanceButtonPress = prev.advanceButtonPress;
+			this.playButtonPress = prev.playButtonPress;
+			this.currChargeState = prev.currChargeState;
+			this.oiMode = prev.oiMode;
+			this.reqVelocity = prev.reqVelocity;
+			this.reqRadius = prev.reqRadius;
+			this.reqRightVelocity = prev.reqRightVelocity;
+			this.reqLeftVelocity = prev.reqLeftVelocity;
+			this.distance = prev.distance;
+			this.angle = prev.angle;
+			this.wall = prev.wall;
+			this.cliffLeft = prev.cliffLeft;
+			this.cliffLeftFront = prev.cliffLeftFront;
+			this.cliffRightFront = prev.cliffRightFront;
+			this.cliffRight = prev.cliffRight;
+			this.virtualWall = prev.virtualWall;
+			this.batteryVoltage = prev.batteryVoltage;
+			this.batteryCurrent = prev.batteryCurrent;
+			this.batteryCharge = prev.batteryCharge;
+			this.batteryTemp = prev.batteryTemp;
+			this.batteryCapacity = prev.batteryCapacity;
+			this.wallSignal = prev.wallSignal;
+			this.cliffLeftSignal = prev.cliffLeftSignal;
+			this.cliffLeftFrontSignal = prev.cliffLeftFrontSignal;
+			this.cliffRightFrontSignal = prev.cliffRightFrontSignal;
+			this.cliffRightSignal = prev.cliffRightSignal;
+			this.cargoDIN = prev.cargoDIN;
+			this.cargoAIN = prev.cargoAIN;
+		}
+	
+		private final void decodePacket(PacketID packet, byte[] freshData, int i) {
+	
+			switch(packet){
+			case BUMP_AND_WHEEL:
+				// convert the bits to booleans based on location in the first byte
+				this.bumpRight = ((freshData[i] & 0x01) != 0);
+				this.bumpLeft = (( (freshData[i] >> 1) & 0x01) != 0);
+				this.wheelDropRight = (( (freshData[i] >> 2) & 0x01) != 0);
+				this.wheelDropLeft = (( (freshData[i] >> 3) & 0x01) != 0);
+				this.casterDrop = (( (freshData[i] >> 4) & 0x01) != 0);
+				break;
+	
+			// other boolean data values
+			case WALL:
+				this.wall = (freshData[i] != 0);
+				break;
+			case CLIFF_LEFT:
+				this.cliffLeft = (freshData[i] != 0);
+				break;
+			case CLIFF_FRONT_LEFT:
+				this.cliffLeftFront = (freshData[i] != 0);
+				break;
+			case CLIFF_FRONT_RIGHT:
+				this.cliffRightFront = (freshData[i] != 0);
+				break;
+			case CLIFF_RIGHT:
+				this.cliffRight = (freshData[i] != 0);
+				break;
+			case VIRTUAL_WALL:
+				this.virtualWall = (freshData[i] != 0);
+				break;
+	
+			// skipping low side driver for now
+			// unused bytes
+			// IR byte not implemented
+			case BUTTONS:
+				this.advanceButtonPress = ( ((freshData[i] >> 2) & 0x01) != 0 );
+				this.playButtonPress = ((freshData[i] & 0x01) != 0);
+				break;
+	
+			// convert the 2 bytes for distance/angle into a single int, then float
+			case DISTANCE:
+				int distanceInt = ((int) freshData[i]) << 8; // load high byte
+				distanceInt |= ((int) freshData[i+1]);
+				this.distance += (float) distanceInt; // accumulates the linear distance traveled		
+				break;
+			case ANGLE:
+				int angleInt = ((int) freshData[i]) << 8; // load high byte
+				angleInt |= ((int) freshData[i+1]);
+				this.angle += (float) angleInt; // accumulates the angle rotated
+				break;
+	
+			//set charging state
+			case CHARGING_STATE:
+				switch(freshData[i]){
+				case 0:
+					this.currChargeState = ChargingState.NOT;
+					break;
+				case 1:
+					this.currChargeState = ChargingState.RECOND;
+					break;
+				case 2:
+					this.currChargeState = ChargingState.FULL;
+					break;
+				case 3:
+					this.currChargeState = ChargingState.TRICKLE;
+					break;
+				case 4:
+					this.currChargeState = ChargingState.WAITING;
+					break;
+				case 5:
+					this.currChargeState = ChargingState.FAULT;
+					break;
+				}
+				break;
+	
+			// need to handle unsigned int here!		
+			// help from http://darksleep.com/player/JavaAndUnsignedTypes.html
+			case VOLTAGE:
+				char voltValue = bytesToChar(freshData[i], freshData[i+1]);
+				this.batteryVoltage = voltValue;
+				break;
+			case CURRENT:
+				int currentInt = ( ((int) freshData[i]) << 8 | ((int) freshData[i+1]) );
+				this.batteryCurrent = (float) currentInt;
+				break;
+			case BATT_TEMP:
+				this.batteryTemp = (short) freshData[i];
+				break;
+			case BATT_CHARGE:
+				char chargeValue = bytesToChar(freshData[i], freshData[i+1]);
+				this.batteryCharge = chargeValue;
+				break;
+			case BATT_CAP:
+				char capValue = bytesToChar(freshData[i], freshData[i+1]);
+				this.batteryCapacity = capValue;
+				break;
+	
+			// strength of the wall and cliff sensors
+			case WALL_SIGNAL:
+				this.wallSignal = bytesToChar(freshData[i], freshData[i+1]);
+				break;
+			case CLIFF_LEFT_SIGNAL:
+				this.cliffLeftSignal = bytesToChar(freshData[i], freshData[i+1]);
+				break;
+			case CLIFF_FRONT_LEFT_SIGNAL:
+				this.cliffLeftFrontSignal = bytesToChar(freshData[i], freshData[i+1]);
+				break;
+			case CLIFF_FRONT_RIGHT_SIGNAL:
+				this.cliffRightFrontSignal = bytesToChar(freshData[i], freshData[i+1]);
+				break;
+			case CLIFF_RIGHT_SIGNAL:
+				this.cliffRightSignal = bytesToChar(freshData[i], freshData[i+1]);
+				break;
+	
+			case CARGO_BAY_DIN:
+				this.cargoDIN = freshData[i];
+				break;
+			case CARGO_BAY_ANIN:
+				this.cargoAIN = bytesToChar(freshData[i], freshData[i+1]);
+				break;
+	
+			// skipping all other packets up to the requested velocity, etc.
+			case REQ_VEL:
+				this.reqVelocity = bytesToInt(freshData[i], freshData[i+1]);		
+				break;
+			case REQ_RADIUS:
+				this.reqRadius = (float) ( ((int) freshData[i]) << 8 | (int) freshData[i+1] );
+				break;
+			case REQ_RIGHT_VEL:
+				this.reqRightVelocity = bytesToInt(freshData[i], freshData[i+1]);
+				break;
+			case REQ_LEFT_VEL:
+				this.reqLeftVelocity = bytesToInt(freshData[i], freshData[i+1]);
+				break;
+			case OI_MODE:
+				// 0 - off, 1 - passive, 2 - safe, 3 - full; same order as CreateMode
+				int mode = freshData[i] & 0xFF;
+				this.oiMode = (mode < CreateMode.values().length) ? CreateMode.values()[mode] : null;
+				break;
+			default:
+				break;
+			}
+	
+		}
+	
+		private static final char bytesToChar(byte hb, byte lb){
+	
+			return (char) ((0x000000FF & ((int)hb)) << 8 | (0x000000FF & ((int)lb)));
+	
+		}
+	
+		/**
+		 * This functions simply combines two incoming bytes into a signed int value.
+		 * @param hb
+		 * @param lb
+		 * @return
+		 */
+		private static final int bytesToInt(byte hb, byte lb){
+	
+			return ((int)hb << 8) | (int)lb;
+		}
+		
+	}
+	
+}
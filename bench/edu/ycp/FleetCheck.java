@@ -0,0 +1,77 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.comm.LoopbackTransport;
+import edu.ycp.sim.Arena;
+import edu.ycp.sim.SimulatedCreate;
+
+/**
+ * Runs a CreateFleet against SimulatedCreates: every robot starts driving on the same tick, then
+ * the fleet broadcasts a stop and prints each robot's mode and distance.
+ * 
+ * Usage: FleetCheck [robots]
+ *
+ * @author pjmartin
+ *
+ */
+public class FleetCheck {
+	
+	public static void main(String[] args) throws Exception {
+		
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		CreateFleet fleet = new CreateFleet(2);
+		
+		SimulatedCreate[] sims = new SimulatedCreate[count];
+		Thread[] simThreads = new Thread[count];
+		CompletableFuture<?>[] startups = new CompletableFuture<?>[count];
+		for(int i = 0; i < count; i++){
+			sims[i] = new SimulatedCreate(new Arena(3000, 3000));
+			sims[i].setPose(500, 1500, 0);
+			LoopbackTransport host = new LoopbackTransport("sim" + i);
+			sims[i].attach(host.getPeer());
+			simThreads[i] = new Thread(sims[i], "SimulatedCreate-" + i);
+			simThreads[i].start();
+			startups[i] = fleet.connect("create" + i, host, CreateMode.FULL,
+					i % 2 == 0 ? AcquisitionMode.STREAM : AcquisitionMode.POLL, 5000);
+		}
+		CompletableFuture.allOf(startups).join();
+		System.out.println(fleet.size() + " robots running, " + Thread.activeCount() + " threads in total.");
+		
+		// every robot starts driving on the same tick
+		final CreateFleet f = fleet;
+		fleet.atNextTick(new Runnable(){
+			@Override
+			public void run() {
+				for(int i = 0; i < f.size(); i++){
+					f.getRobot("create" + i).driveDirect(200, 200);
+				}
+			}
+		});
+		Thread.sleep(1000);
+		System.out.println("Broadcast stop, worst time-to-wire " + fleet.broadcastStop() / 1000 + " us");
+		Thread.sleep(200);
+		
+		for(Map.Entry<String, SensorSnapshot> e : fleet.getSnapshots().entrySet()){
+			System.out.printf("%s: mode = %s, distance = %.0f mm%n", e.getKey(), e.getValue().getOIMode(), e.getValue().getDistance());
+		}
+		System.out.println("Fleet " + fleet.getTickScheduler() + " skipped robot ticks=" + fleet.getSkippedRobotTicks());
+		
+		fleet.shutdown();
+		for(int i = 0; i < count; i++){
+			sims[i].requestStop();
+			simThreads[i].join();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,609 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.comm.ByteRingBuffer;
+import edu.ycp.comm.ByteRingBuffer.OverflowPolicy;
+import edu.ycp.comm.LatencyHistogram;
+import edu.ycp.comm.LoopbackTransport;
+import edu.ycp.sim.Arena;
+import edu.ycp.sim.SimulatedCreate;
+
+/**
+ * Microbenchmarks of the library's hot paths. None of them needs a Create:
+ * <pre>
+ * parse-stream        group 6 STREAM frames fed to SensorDataParser in random 1-64 byte pieces
+ * parse-poll          group 6 POLL responses, cut up the same way
+ * decode-all          one group 6 frame decoded into a SensorSnapshot
+ * decode-list         one 6-packet QUERY_LIST frame decoded into a SensorSnapshot
+ * encode-drive        CreateRobot.drive(): the command is encoded and posted to the CommandMailbox
+ * encode-direct       CreateRobot.driveDirect(), the same way
+ * encode-leds         CreateRobot.toggleLEDs(), the same way
+ * handoff-throughput  stream frame sized writes into a ByteRingBuffer, drained by a thread in awaitData()
+ * handoff-latency     one 8-byte message in the ring at a time; reports the write-to-read latency
+ * </pre>
+ * Every benchmark runs in a JVM of its own (a fork) and goes through warmup iterations before
+ * the measured ones. Each row gives ops/s with its standard deviation over the measured
+ * iterations, the mean ns/op, and the bytes allocated per op by the benchmark's threads, taken
+ * from ThreadMXBean. Frames and split points come from fixed seeds, so every run does the same
+ * work. The encode benchmarks talk to a SimulatedCreate over a LoopbackTransport.
+ *
+ * Usage: HotPathBenchmark [-f forks] [-wi warmup iterations] [-i iterations] [-t ms per iteration] [name prefix...]
+ * With -f 0 everything runs in this JVM.
+ *
+ * @author pjmartin
+ *
+ */
+public class HotPathBenchmark {
+	
+	private static final long SEED = 42;
+	private static final int FRAMES = 1024;	// distinct frames each decode or parse benchmark cycles through
+	private static final int BATCH = 256;	// ops between looks at the clock
+	private static final int MAX_PIECE = 64;
+	
+	/**
+	 * One benchmark. setUp() runs once per JVM, then run() until the iterations are done.
+	 */
+	private static abstract class Bench {
+		
+		final String name;
+		final String op;
+		final List<Thread> threads = new ArrayList<Thread>();	// allocation is counted on these too
+		long blackhole;	// results end up here, so the JIT cannot drop the work
+		
+		Bench(String name, String op){
+			this.name = name;
+			this.op = op;
+		}
+		
+		void setUp() throws Exception {
+		}
+		
+		/**
+		 * @param ops - operations to perform
+		 * @return operations performed, at least ops
+		 */
+		abstract int run(int ops) throws Exception;
+		
+		void tearDown() throws Exception {
+		}
+		
+		/**
+		 * Forgets what the warmup iterations left in details().
+		 */
+		void reset(){
+		}
+		
+		/**
+		 * @return anything measured besides time and allocation, or an empty string
+		 */
+		String details(){
+			return "";
+		}
+		
+	}
+	
+	/**
+	 * Reassembles frames out of a byte stream cut into random pieces, like SensorDataParser.main()
+	 * does by hand. One op is one completed frame.
+	 */
+	private static class ParseBench extends Bench {
+		
+		private final AcquisitionMode acqMode;
+		private SensorDataParser parser;
+		private byte[] stream;
+		private int[] pieces;
+		private int piece = 0;
+		private int position = 0;
+		
+		ParseBench(String name, AcquisitionMode acqMode){
+			super(name, "frame");
+			this.acqMode = acqMode;
+		}
+		
+		@Override
+		void setUp(){
+			Random random = new Random(SEED);
+			SensorRequest request = SensorRequest.ALL;
+			int size = request.getResponseSize();
+			boolean framed = acqMode == AcquisitionMode.STREAM;
+			int frameLength = framed ? size + 4 : size;	// header, n-bytes, group ID, data, checksum
+			stream = new byte[FRAMES * frameLength];
+			byte[] data = new byte[size];
+			int pos = 0;
+			for(int f = 0; f < FRAMES; f++){
+				random.nextBytes(data);
+				if(framed){
+					int sum = SensorDataParser.STREAM_HEADER + request.getStreamLength() + InputPacket.GROUP_ALL;
+					stream[pos++] = (byte) SensorDataParser.STREAM_HEADER;
+					stream[pos++] = (byte) request.getStreamLength();
+					stream[pos++] = InputPacket.GROUP_ALL;
+					for(byte b : data){
+						stream[pos++] = b;
+						sum += b & 0xFF;
+					}
+					stream[pos++] = (byte) -sum;
+				}
+				else{
+					System.arraycopy(data, 0, stream, pos, size);
+					pos += size;
+				}
+			}
+			
+			List<Integer> lengths = new ArrayList<Integer>();
+			for(pos = 0; pos < stream.length; ){
+				int length = Math.min(stream.length - pos, random.nextInt(MAX_PIECE) + 1);
+				lengths.add(length);
+				pos += length;
+			}
+			pieces = new int[lengths.size()];
+			for(int i = 0; i < pieces.length; i++){
+				pieces[i] = lengths.get(i);
+			}
+			parser = new SensorDataParser(acqMode);
+		}
+		
+		@Override
+		int run(int ops){
+			int frames = 0;
+			while(frames < ops){
+				int off = position;
+				int len = pieces[piece];
+				while(len > 0){
+					int used = parser.parseData(stream, off, len);
+					off += used;
+					len -= used;
+					if(parser.isDataBufReady()){
+						frames++;
+						blackhole += parser.getSensorDataBuffer().get(0);
+					}
+				}
+				position = off;
+				if(++piece == pieces.length){
+					piece = 0;
+					position = 0;
+				}
+			}
+			return frames;
+		}
+		
+		@Override
+		String details(){
+			return "bad frames " + parser.getBadFrameCount();
+		}
+		
+	}
+	
+	/**
+	 * Decodes frames into snapshots, each built on the one before as in processData().
+	 */
+	private static class DecodeBench extends Bench {
+		
+		private final SensorRequest request;
+		private byte[][] frames;
+		private SensorSnapshot snapshot;
+		private long sequence = 0;
+		
+		DecodeBench(String name, SensorRequest request){
+			super(name, "frame");
+			this.request = request;
+		}
+		
+		@Override
+		void setUp(){
+			Random random = new Random(SEED);
+			frames = new byte[FRAMES][request.getResponseSize()];
+			for(byte[] frame : frames){
+				random.nextBytes(frame);
+			}
+			snapshot = new SensorSnapshot();
+		}
+		
+		@Override
+		int run(int ops){
+			SensorSnapshot s = snapshot;
+			for(int i = 0; i < ops; i++){
+				sequence++;
+				s = new SensorSnapshot(s, frames[(int) sequence & (FRAMES - 1)], request, sequence, sequence);
+			}
+			snapshot = s;
+			blackhole += s.getBatteryCharge();
+			return ops;
+		}
+		
+	}
+	
+	/**
+	 * Calls one of CreateRobot's command methods on a robot connected to a simulator. One op is one
+	 * call: range checks, encoding and the post to the CommandMailbox. The values change on every
+	 * call, so the mailbox cannot drop them as duplicates.
+	 */
+	private static abstract class CommandBench extends Bench {
+		
+		private SimulatedCreate sim;
+		private Thread simThread;
+		private CreateRobot robot;
+		private int count = 0;
+		
+		CommandBench(String name){
+			super(name, "command");
+		}
+		
+		abstract void send(CreateRobot robot, int i);
+		
+		@Override
+		void setUp() throws Exception {
+			sim = new SimulatedCreate(new Arena(3000, 3000));
+			LoopbackTransport host = new LoopbackTransport(name);
+			sim.attach(host.getPeer());
+			simThread = new Thread(sim, "sim-" + name);
+			simThread.start();
+			robot = CreateRobot.connect(host, CreateMode.SAFE, AcquisitionMode.POLL, 5000).get();
+		}
+		
+		@Override
+		int run(int ops){
+			for(int i = 0; i < ops; i++){
+				send(robot, count++);
+			}
+			return ops;
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			robot.requestStop();
+			sim.requestStop();
+			simThread.join();
+		}
+		
+		@Override
+		String details(){
+			return "superseded " + robot.getSupersededCommandCount();
+		}
+		
+	}
+	
+	/**
+	 * Writes stream frame sized pieces into a blocking ring; a consumer thread waits in awaitData()
+	 * and releases whatever is readable, like CreateRobot's data thread. One op is one piece.
+	 */
+	private static class HandoffBench extends Bench {
+		
+		private static final int PIECE = 56;	// a group 6 stream frame
+		private final byte[] data = new byte[PIECE];
+		private ByteRingBuffer ring;
+		
+		HandoffBench(){
+			super("handoff-throughput", "piece");
+		}
+		
+		@Override
+		void setUp(){
+			new Random(SEED).nextBytes(data);
+			ring = new ByteRingBuffer(ByteRingBuffer.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+			Thread consumer = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					long sum = 0;
+					try {
+						while(!Thread.currentThread().isInterrupted()){
+							ring.awaitData(10, TimeUnit.MILLISECONDS);
+							int readable;
+							while((readable = ring.contiguousReadable()) > 0){
+								sum += ring.array()[ring.getReadOffset()];
+								ring.advance(readable);
+							}
+						}
+					} catch (InterruptedException e) {
+						// done
+					}
+					blackhole += sum;
+				}
+			}, "handoff-consumer");
+			threads.add(consumer);
+			consumer.start();
+		}
+		
+		@Override
+		int run(int ops){
+			for(int i = 0; i < ops; i++){
+				ring.write(data, 0, PIECE);
+			}
+			return ops;
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			for(Thread t : threads){
+				t.interrupt();
+				t.join();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Sends one 8-byte timestamp through a ring and waits until the consumer has read it before
+	 * sending the next. The consumer records how long each one took to get across.
+	 */
+	private static class LatencyBench extends Bench {
+		
+		private final byte[] message = new byte[8];
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private ByteRingBuffer ring;
+		
+		LatencyBench(){
+			super("handoff-latency", "message");
+		}
+		
+		@Override
+		void setUp(){
+			ring = new ByteRingBuffer(ByteRingBuffer.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+			Thread consumer = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					byte[] in = new byte[8];
+					try {
+						while(!Thread.currentThread().isInterrupted()){
+							ring.awaitData(10, TimeUnit.MILLISECONDS);
+							while(ring.available() >= in.length){
+								ring.read(in, 0, in.length);
+								long sent = 0;
+								for(byte b : in){
+									sent = (sent << 8) | (b & 0xFF);
+								}
+								latency.record(System.nanoTime() - sent);
+							}
+						}
+					} catch (InterruptedException e) {
+						// done
+					}
+				}
+			}, "latency-consumer");
+			threads.add(consumer);
+			consumer.start();
+		}
+		
+		@Override
+		int run(int ops){
+			for(int i = 0; i < ops; i++){
+				long now = System.nanoTime();
+				for(int b = 7; b >= 0; b--){
+					message[b] = (byte) now;
+					now >>>= 8;
+				}
+				ring.write(message, 0, message.length);
+				while(ring.getReadCount() != ring.getWriteCount()){
+					Thread.yield();
+				}
+			}
+			return ops;
+		}
+		
+		@Override
+		void tearDown() throws Exception {
+			for(Thread t : threads){
+				t.interrupt();
+				t.join();
+			}
+		}
+		
+		@Override
+		void reset(){
+			latency.reset();
+		}
+		
+		@Override
+		String details(){
+			return "latency ns " + latency.toString(1);
+		}
+		
+	}
+	
+	private static List<Bench> benchmarks(){
+		List<Bench> list = new ArrayList<Bench>();
+		list.add(new ParseBench("parse-stream", AcquisitionMode.STREAM));
+		list.add(new ParseBench("parse-poll", AcquisitionMode.POLL));
+		list.add(new DecodeBench("decode-all", SensorRequest.ALL));
+		list.add(new DecodeBench("decode-list", new SensorRequest(EnumSet.of(PacketID.BUMP_AND_WHEEL, PacketID.DISTANCE,
+				PacketID.ANGLE, PacketID.CLIFF_LEFT_SIGNAL, PacketID.CLIFF_RIGHT_SIGNAL, PacketID.BATT_CHARGE))));
+		list.add(new CommandBench("encode-drive"){
+			@Override
+			void send(CreateRobot robot, int i){
+				robot.drive(i % 1000 - 500, 1000 + i % 1000);
+			}
+		});
+		list.add(new CommandBench("encode-direct"){
+			@Override
+			void send(CreateRobot robot, int i){
+				robot.driveDirect(i % 1000 - 500, 500 - i % 1000);
+			}
+		});
+		list.add(new CommandBench("encode-leds"){
+			@Override
+			void send(CreateRobot robot, int i){
+				robot.toggleLEDs((byte) (i & 0x0A), (byte) i, (byte) 255);
+			}
+		});
+		list.add(new HandoffBench());
+		list.add(new LatencyBench());
+		return list;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int forks = 1;
+		int warmups = 5;
+		int iterations = 5;
+		long iterationMillis = 500;
+		boolean forked = false;
+		List<String> prefixes = new ArrayList<String>();
+		for(int a = 0; a < args.length; a++){
+			if(args[a].equals("-f")){
+				forks = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("-wi")){
+				warmups = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("-i")){
+				iterations = Integer.parseInt(args[++a]);
+			}
+			else if(args[a].equals("-t")){
+				iterationMillis = Long.parseLong(args[++a]);
+			}
+			else if(args[a].equals("-forked")){
+				forked = true;
+			}
+			else{
+				prefixes.add(args[a]);
+			}
+		}
+		
+		List<Bench> selected = new ArrayList<Bench>();
+		for(Bench b : benchmarks()){
+			boolean match = prefixes.isEmpty();
+			for(String prefix : prefixes){
+				match |= b.name.startsWith(prefix);
+			}
+			if(match){
+				selected.add(b);
+			}
+		}
+		if(selected.isEmpty()){
+			System.err.println("No benchmark starts with " + prefixes + "; choose from:");
+			for(Bench b : benchmarks()){
+				System.err.println("  " + b.name);
+			}
+			return;
+		}
+		
+		if(!forked){
+			System.out.printf("%s %s, %d cores; %d warmup + %d x %d ms iterations, %s%n", System.getProperty("java.vm.name"),
+					System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(), warmups, iterations,
+					iterationMillis, forks == 0 ? "no forks" : forks + " fork(s) each");
+			System.out.printf("%-20s %-8s %14s %10s %10s %10s  %s%n", "benchmark", "op", "ops/s", "+-", "ns/op", "B/op", "");
+		}
+		for(Bench b : selected){
+			if(forks == 0 || forked){
+				measure(b, warmups, iterations, iterationMillis);
+				continue;
+			}
+			for(int f = 0; f < forks; f++){
+				fork(b.name, warmups, iterations, iterationMillis);
+			}
+		}
+	}
+	
+	/**
+	 * Runs one benchmark in a fresh JVM with this JVM's options, so that code the JIT compiled for
+	 * another benchmark cannot skew it.
+	 */
+	private static void fork(String name, int warmups, int iterations, long iterationMillis) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(HotPathBenchmark.class.getName());
+		command.add("-forked");
+		command.add("-wi");
+		command.add(String.valueOf(warmups));
+		command.add("-i");
+		command.add(String.valueOf(iterations));
+		command.add("-t");
+		command.add(String.valueOf(iterationMillis));
+		command.add(name);
+		int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+		if(exit != 0){
+			System.err.println(name + ": forked JVM exited with " + exit);
+		}
+	}
+	
+	private static void measure(Bench b, int warmups, int iterations, long iterationMillis) throws Exception {
+		b.setUp();
+		try {
+			for(int w = 0; w < warmups; w++){
+				iterate(b, iterationMillis);
+			}
+			b.reset();
+			
+			double[] rates = new double[iterations];
+			long ops = 0;
+			long nanos = 0;
+			long bytes = 0;
+			for(int i = 0; i < iterations; i++){
+				long[] result = iterate(b, iterationMillis);
+				rates[i] = result[0] * 1e9 / result[1];
+				ops += result[0];
+				nanos += result[1];
+				bytes = (bytes < 0 || result[2] < 0) ? -1 : bytes + result[2];
+			}
+			
+			double mean = 0;
+			for(double r : rates){
+				mean += r / iterations;
+			}
+			double variance = 0;
+			for(double r : rates){
+				variance += (r - mean) * (r - mean) / Math.max(1, iterations - 1);
+			}
+			System.out.printf("%-20s %-8s %14.0f %10.0f %10.1f %10s  %s%n", b.name, b.op, mean, Math.sqrt(variance),
+					(double) nanos / ops, bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops), b.details());
+		} finally {
+			b.tearDown();
+		}
+	}
+	
+	/**
+	 * @return ops, elapsed ns and bytes allocated (-1 if the JVM cannot tell) of one iteration
+	 */
+	private static long[] iterate(Bench b, long iterationMillis) throws Exception {
+		long bytes0 = allocatedBytes(b.threads);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+		long ops = 0;
+		long now;
+		do{
+			ops += b.run(BATCH);
+			now = System.nanoTime();
+		} while(now - end < 0);
+		long bytes1 = allocatedBytes(b.threads);
+		return new long[]{ops, now - start, bytes0 < 0 ? -1 : bytes1 - bytes0};
+	}
+	
+	/**
+	 * @return bytes ever allocated by the calling thread and threads, or -1 if the JVM cannot tell
+	 */
+	private static long allocatedBytes(List<Thread> threads){
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if(!(mx instanceof com.sun.management.ThreadMXBean)){
+			return -1;
+		}
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) mx;
+		if(!hotspot.isThreadAllocatedMemorySupported()){
+			return -1;
+		}
+		if(!hotspot.isThreadAllocatedMemoryEnabled()){
+			hotspot.setThreadAllocatedMemoryEnabled(true);
+		}
+		long total = hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for(Thread t : threads){
+			total += Math.max(0, hotspot.getThreadAllocatedBytes(t.getId()));
+		}
+		return total;
+	}
+	
+}
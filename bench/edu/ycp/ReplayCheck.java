@@ -0,0 +1,83 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.comm.Clock;
+import edu.ycp.comm.ExecutorFactory;
+import edu.ycp.comm.FlightRecorder;
+import edu.ycp.comm.LoopbackTransport;
+import edu.ycp.sim.Arena;
+import edu.ycp.sim.SimulatedCreate;
+
+/**
+ * Checks CreateReplay against a live session: records a robot polling a SimulatedCreate, replays
+ * the recording and compares the decoded frames. Exits with status 1 if they differ.
+ * 
+ * Usage: ReplayCheck [seconds]
+ *
+ * @author pjmartin
+ *
+ */
+public class ReplayCheck {
+	
+	/**
+	 * Records a POLL session of a robot driving a SimulatedCreate, replays it and checks that the
+	 * replay decodes every frame the live robot decoded.
+	 * @param seconds
+	 * @return true if the frame counts match and no byte was skipped
+	 */
+	private static boolean checkRecordReplay(long seconds) throws Exception {
+		File dir = Files.createTempDirectory("jcreate-replay").toFile();
+		SimulatedCreate sim = new SimulatedCreate(new Arena(3000, 3000));
+		sim.setPose(1000, 1500, 0);
+		LoopbackTransport host = new LoopbackTransport("sim");
+		sim.attach(host.getPeer());
+		Thread simThread = new Thread(sim, "SimulatedCreate");
+		simThread.start();
+		
+		// recording from before the port opens, so the startup handshake is in it too
+		FlightRecorder recorder = new FlightRecorder(dir);
+		CreateRobot live = new CreateRobot(host, CreateMode.FULL, AcquisitionMode.POLL, Clock.SYSTEM, 
+				ExecutorFactory.PLATFORM, null);
+		long liveFrames0 = live.getSnapshot().getSequenceNumber();
+		live.setFlightRecorder(recorder, 0);
+		live.start(5000).join();
+		live.driveDirect(200, 200);
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		live.requestStop();
+		Thread.sleep(500);	// lets the data task finish the frame it is on
+		long liveFrames = live.getSnapshot().getSequenceNumber() - liveFrames0;
+		recorder.close();
+		sim.requestStop();
+		simThread.join();
+		
+		CreateReplay replay = new CreateReplay(dir, 0, CreateMode.FULL, AcquisitionMode.POLL);
+		replay.replay();
+		System.out.println("Live: " + liveFrames + " frames; replay: " + replay);
+		boolean ok = replay.getFrameCount() == liveFrames && replay.getSkippedBytes() == 0;
+		System.out.println(ok ? "Replay matches the live session." : "REPLAY DOES NOT MATCH THE LIVE SESSION.");
+		for(File f : dir.listFiles()){
+			f.delete();
+		}
+		dir.delete();
+		return ok;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+		if(!checkRecordReplay(seconds)){
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,90 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.File;
+
+import edu.ycp.CreateReplay;
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.PacketID;
+
+/**
+ * Archives a FlightRecorder recording by replaying it, then reads one column back and checks the
+ * archived time range against the recording. Exits with status 1 if it falls outside.
+ * 
+ * Usage: TelemetryArchiveCheck flightDirectory archiveDirectory [channel] [POLL|STREAM]
+ *
+ * @author pjmartin
+ *
+ */
+public class TelemetryArchiveCheck {
+	
+	private static final long RANGE_TOLERANCE = 10;	// ms; segments take their own wall clock readings
+	
+	public static void main(String[] args) throws Exception {
+		File flightDir = new File(args[0]);
+		File archiveDir = new File(args[1]);
+		int channel = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		AcquisitionMode acqMode = args.length > 3 ? AcquisitionMode.valueOf(args[3]) : AcquisitionMode.POLL;
+		
+		// wall clock span of the channel's records
+		FlightLog log = new FlightLog(flightDir);
+		long firstMillis = 0;
+		long lastMillis = 0;
+		boolean empty = true;
+		while(log.next()){
+			if(log.getChannel() == channel){
+				if(empty){
+					firstMillis = log.getEpochMillis();
+					empty = false;
+				}
+				lastMillis = log.getEpochMillis();
+			}
+		}
+		if(empty){
+			System.out.println("Empty recording.");
+			return;
+		}
+		TelemetryArchive archive = new TelemetryArchive(archiveDir);
+		// the replay clock reads 0 at the channel's first record, not the recorded nanoTime
+		archive.setTimeBase(firstMillis, 0);
+		CreateReplay replay = new CreateReplay(flightDir, channel, CreateMode.FULL, acqMode);
+		replay.getRobot().setTelemetryArchive(archive, channel);
+		replay.replay();
+		archive.close();
+		System.out.printf("%d frames, %d bytes of sensor data archived in %d bytes (%.1fx smaller)%n",
+				archive.getFrameCount(), archive.getRawBytes(), archive.getBytesWritten(),
+				(double) archive.getRawBytes() / archive.getBytesWritten());
+		
+		TelemetryArchiveReader reader = new TelemetryArchiveReader(archiveDir);
+		long start = System.nanoTime();
+		TelemetryArchiveReader.Column column = reader.readColumn(channel, PacketID.CLIFF_LEFT_SIGNAL,
+				Long.MIN_VALUE, Long.MAX_VALUE);
+		long count = 0;
+		long sum = 0;
+		while(column.next()){
+			count++;
+			sum += column.getValue();
+		}
+		System.out.printf("CLIFF_LEFT_SIGNAL: %d values, mean %.1f, read %d bytes in %.2f ms%n", count,
+				count > 0 ? (double) sum / count : 0.0, reader.getBytesRead(), (System.nanoTime() - start) / 1e6);
+		
+		// every archived frame must fall inside the recording, give or take the rounding to ms
+		long[] range = reader.getTimeRange(channel);
+		reader.close();
+		if(range != null){
+			boolean inside = range[0] >= firstMillis - RANGE_TOLERANCE && range[1] <= lastMillis + RANGE_TOLERANCE;
+			System.out.printf("Archived %d..%d ms, recorded %d..%d ms: %s%n", range[0], range[1], firstMillis,
+					lastMillis, inside ? "ok" : "OUTSIDE THE RECORDING");
+			if(!inside){
+				System.exit(1);
+			}
+		}
+	}
+	
+}
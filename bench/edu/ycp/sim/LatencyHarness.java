@@ -0,0 +1,616 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.sim;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import edu.ycp.ActuatorCommand;
+import edu.ycp.BooleanSensor;
+import edu.ycp.CreateFleet;
+import edu.ycp.CreateMultiplexer;
+import edu.ycp.CreateRobot;
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.SensorEvent;
+import edu.ycp.SensorEvent.Edge;
+import edu.ycp.SensorEventDispatcher.DispatchMode;
+import edu.ycp.SensorListener;
+import edu.ycp.comm.LatencyHistogram;
+import edu.ycp.comm.LoopbackTransport;
+import edu.ycp.comm.SerialTransport;
+
+/**
+ * End-to-end latency of the full CreateRobot and CreateHardwareManager stack, measured against
+ * SimulatedCreates over loopback links for as long as asked. Every robot drives around a small
+ * room. It runs into a wall, stops from its bump listener with emergencyStop(), backs up, turns
+ * and drives on. Measured on the wall clock, per robot and merged over all robots:
+ * <pre>
+ * sense-to-notify   the simulator closing a bumper to the robot's RISING bump listener running
+ * bump-to-stop      the simulator closing a bumper to the listener's stop being handed to the port
+ * command-to-wire   driveDirect() being called to the same command being written to the port (go()
+ *                   ends in driveDirect()), so it includes the call itself
+ * request-to-frame  a POLL request being written to its response being parsed (POLL mode only)
+ * gc-pause          every collection the JVM reports, apart from ZGC and Shenandoah concurrent cycles
+ * </pre>
+ * Histograms start over after the warmup. Every report interval a line of progress is printed:
+ * frames/s, threads, heap and the p99.9 so far. At the end all distributions, GC totals,
+ * thread counts and the intervals are written as JSON. Each -gate fails the run (exit status 1)
+ * if that metric's p99.9 is over its limit.
+ *
+ * Usage: LatencyHarness [-robots n] [-seconds s] [-warmup s] [-mode POLL|STREAM]
+ *        [-runtime THREADS|FLEET|MULTIPLEXER] [-period ms] [-dispatch EXECUTOR|INLINE]
+ *        [-report s] [-out file.json] [-gate metric=ms]...
+ *
+ * @author pjmartin
+ *
+ */
+public class LatencyHarness {
+	
+	private static final String SENSE_TO_NOTIFY = "sense-to-notify";
+	private static final String BUMP_TO_STOP = "bump-to-stop";
+	private static final String COMMAND_TO_WIRE = "command-to-wire";
+	private static final String REQUEST_TO_FRAME = "request-to-frame";
+	private static final String GC_PAUSE = "gc-pause";
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99, 100 };
+	
+	private static final long DRIVER_PERIOD = 50;	// ms between commands to each robot
+	private static final long BACK_UP = 300;	// ms
+	private static final long MIN_TURN = 400;	// ms
+	
+	private enum Runner {
+		THREADS, FLEET, MULTIPLEXER;
+	}
+	
+	private final LatencyHistogram senseToNotify = new LatencyHistogram();
+	private final LatencyHistogram bumpToStop = new LatencyHistogram();
+	private final LatencyHistogram commandToWire = new LatencyHistogram();
+	private final LatencyHistogram gcPause = new LatencyHistogram();
+	private final AtomicLong gcCount = new AtomicLong();
+	private final AtomicLong gcNanos = new AtomicLong();
+	private final AtomicLong bumps = new AtomicLong();
+	private final AtomicLong commands = new AtomicLong();
+	private final AtomicLong commandsDropped = new AtomicLong();
+	private final List<Link> links = new ArrayList<Link>();
+	private final List<String> intervals = new ArrayList<String>();
+	
+	/**
+	 * A driveDirect() waiting to be seen on the wire.
+	 */
+	private static final class PendingCommand {
+		final int speeds;	// right << 16 | left & 0xFFFF
+		final long issued;	// System.nanoTime() just before driveDirect()
+		volatile long wired;
+		
+		PendingCommand(int speeds, long issued){
+			this.speeds = speeds;
+			this.issued = issued;
+		}
+	}
+	
+	/**
+	 * Sits between a robot and its loopback link and notes when the pending command goes out.
+	 */
+	private static final class WireTap implements SerialTransport {
+		
+		private final SerialTransport port;
+		final AtomicReference<PendingCommand> pending = new AtomicReference<PendingCommand>();
+		
+		WireTap(SerialTransport port){
+			this.port = port;
+		}
+		
+		@Override
+		public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			port.write(srcs, offset, length);
+			PendingCommand p = pending.get();
+			if(p == null || p.wired != 0){
+				return;
+			}
+			for(int i = offset; i < offset + length; i++){
+				byte[] cmd = srcs[i].array();
+				if(srcs[i].limit() == 5 && cmd[0] == ActuatorCommand.DRIVE_DIRECT.getOpcodeVal()
+						&& ((cmd[1] & 0xFF) << 24 | (cmd[2] & 0xFF) << 16 | (cmd[3] & 0xFF) << 8 | (cmd[4] & 0xFF)) == p.speeds){
+					p.wired = System.nanoTime();
+				}
+			}
+		}
+		
+		@Override
+		public void open(int baudRate) throws IOException {
+			port.open(baudRate);
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return port.isOpen();
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return port.available();
+		}
+		
+		@Override
+		public int read(byte[] dst, int off, int len) throws IOException {
+			return port.read(dst, off, len);
+		}
+		
+		@Override
+		public void setDataListener(DataListener listener) {
+			port.setDataListener(listener);
+		}
+		
+		@Override
+		public void close() {
+			port.close();
+		}
+		
+		@Override
+		public String getName() {
+			return port.getName();
+		}
+		
+	}
+	
+	/**
+	 * One simulator, its robot, and the robot's driving state.
+	 */
+	private final class Link implements SensorListener {
+		
+		final SimulatedCreate sim;
+		final WireTap tap;
+		CreateRobot robot;
+		boolean wasBumped = false;	// stepper thread only
+		final AtomicLong bumpedAt = new AtomicLong();	// 0: no bump waiting for the listener
+		volatile boolean stopped = false;	// the listener stopped the robot; the driver backs up
+		long phaseEnd = 0;	// driver thread only
+		int phase = 0;	// 0 forward, 1 backing up, 2 turning
+		
+		Link(int index, long seed) throws IOException {
+			Random random = new Random(seed);
+			sim = new SimulatedCreate(new Arena(1500, 1500));
+			sim.setPose(400 + random.nextInt(700), 400 + random.nextInt(700), random.nextDouble() * 2 * Math.PI);
+			LoopbackTransport host = new LoopbackTransport("link" + index);
+			sim.attach(host.getPeer());
+			tap = new WireTap(host);
+		}
+		
+		/**
+		 * Stepper thread, after every step.
+		 */
+		final void checkBumper(){
+			boolean bumped = sim.isBumped();
+			if(bumped && !wasBumped){
+				bumpedAt.compareAndSet(0, System.nanoTime());
+			}
+			wasBumped = bumped;
+		}
+		
+		@Override
+		public void sensorChanged(SensorEvent event) {
+			long notified = System.nanoTime();
+			long bumped = bumpedAt.getAndSet(0);
+			long timeToWire = robot.emergencyStop();
+			if(bumped == 0){
+				return;	// the other bumper already reported this bump
+			}
+			senseToNotify.record(notified - bumped);
+			bumpToStop.record(notified + timeToWire - bumped);
+			bumps.incrementAndGet();
+			stopped = true;
+		}
+		
+		/**
+		 * Driver thread: checks the last command, then sends the next one.
+		 */
+		final void drive(long now, Random random){
+			PendingCommand last = tap.pending.get();
+			if(last != null){
+				if(last.wired != 0){
+					commandToWire.record(last.wired - last.issued);
+				}
+				else{
+					commandsDropped.incrementAndGet();	// replaced, or purged by a stop
+				}
+			}
+			
+			if(stopped){
+				stopped = false;
+				phase = 1;
+				phaseEnd = now + TimeUnit.MILLISECONDS.toNanos(BACK_UP);
+			}
+			else if(phase != 0 && now - phaseEnd >= 0){
+				phase = (phase == 1) ? 2 : 0;
+				phaseEnd = now + TimeUnit.MILLISECONDS.toNanos(MIN_TURN + random.nextInt(600));
+			}
+			
+			// a slightly different speed every time, so no command is dropped as a duplicate
+			int jitter = random.nextInt(40);
+			int right, left;
+			if(phase == 1){
+				right = -150 - jitter;
+				left = right;
+			}
+			else if(phase == 2){
+				right = 150 + jitter;
+				left = -right;
+			}
+			else{
+				right = 250 + jitter;
+				left = right;
+			}
+			// stamped before it is published, since the write may beat driveDirect() returning
+			PendingCommand p = new PendingCommand(right << 16 | (left & 0xFFFF), System.nanoTime());
+			tap.pending.set(p);
+			robot.driveDirect(right, left);
+			commands.incrementAndGet();
+		}
+		
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int robots = 4;
+		long seconds = 60;
+		long warmup = 5;
+		AcquisitionMode acqMode = AcquisitionMode.POLL;
+		Runner runner = Runner.THREADS;
+		long period = 15;
+		DispatchMode dispatch = DispatchMode.EXECUTOR;
+		long report = 10;
+		File out = new File("latency-results.json");
+		Map<String, Double> gates = new LinkedHashMap<String, Double>();
+		for(int a = 0; a < args.length; a++){
+			String arg = args[a];
+			if(arg.equals("-robots")){
+				robots = Integer.parseInt(args[++a]);
+			}
+			else if(arg.equals("-seconds")){
+				seconds = Long.parseLong(args[++a]);
+			}
+			else if(arg.equals("-warmup")){
+				warmup = Long.parseLong(args[++a]);
+			}
+			else if(arg.equals("-mode")){
+				acqMode = AcquisitionMode.valueOf(args[++a]);
+			}
+			else if(arg.equals("-runtime")){
+				runner = Runner.valueOf(args[++a]);
+			}
+			else if(arg.equals("-period")){
+				period = Long.parseLong(args[++a]);
+			}
+			else if(arg.equals("-dispatch")){
+				dispatch = DispatchMode.valueOf(args[++a]);
+			}
+			else if(arg.equals("-report")){
+				report = Long.parseLong(args[++a]);
+			}
+			else if(arg.equals("-out")){
+				out = new File(args[++a]);
+			}
+			else if(arg.equals("-gate")){
+				String[] gate = args[++a].split("=");
+				gates.put(gate[0], Double.parseDouble(gate[1]));
+			}
+			else{
+				System.err.println("Unknown option " + arg);
+				return;
+			}
+		}
+		
+		LatencyHarness harness = new LatencyHarness();
+		boolean pass = harness.run(robots, seconds, warmup, acqMode, runner, period, dispatch, report, out, gates);
+		System.exit(pass ? 0 : 1);
+	}
+	
+	private final boolean run(int robots, long seconds, long warmup, AcquisitionMode acqMode, Runner runner, long period,
+			DispatchMode dispatch, long report, File out, Map<String, Double> gates) throws Exception {
+		
+		watchCollections();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		for(int i = 0; i < robots; i++){
+			links.add(new Link(i, i));
+		}
+		
+		// one thread steps every simulator and watches the bumpers
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Thread stepper = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				long deadline = System.nanoTime();
+				while(!stop.get()){
+					for(Link link : links){
+						link.sim.step(SimulatedCreate.STEP_NANOS);
+						link.checkBumper();
+					}
+					deadline += SimulatedCreate.STEP_NANOS;
+					long wait = deadline - System.nanoTime();
+					if(wait > 0){
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "sim-stepper");
+		stepper.start();
+		
+		CreateFleet fleet = null;
+		CreateMultiplexer mux = null;
+		if(runner == Runner.FLEET){
+			fleet = new CreateFleet(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+			fleet.setTickPeriod(period);
+		}
+		else if(runner == Runner.MULTIPLEXER){
+			mux = new CreateMultiplexer();
+		}
+		List<CompletableFuture<CreateRobot>> startups = new ArrayList<CompletableFuture<CreateRobot>>();
+		for(int i = 0; i < robots; i++){
+			WireTap tap = links.get(i).tap;
+			if(fleet != null){
+				startups.add(fleet.connect("link" + i, tap, CreateMode.SAFE, acqMode, 5000));
+			}
+			else if(mux != null){
+				startups.add(mux.connect("link" + i, tap, CreateMode.SAFE, acqMode, 5000));
+			}
+			else{
+				startups.add(CreateRobot.connect(tap, CreateMode.SAFE, acqMode, 5000));
+			}
+		}
+		for(int i = 0; i < robots; i++){
+			Link link = links.get(i);
+			link.robot = startups.get(i).join();
+			link.robot.setUpdatePeriod(period);
+			link.robot.addSensorListener(BooleanSensor.BUMP_LEFT, Edge.RISING, link, dispatch);
+			link.robot.addSensorListener(BooleanSensor.BUMP_RIGHT, Edge.RISING, link, dispatch);
+		}
+		System.out.printf("%d robots, %s, %s runtime, %d ms period, %s dispatch; %d s warmup + %d s%n", robots, acqMode,
+				runner, period, dispatch, warmup, seconds);
+		
+		// the driver sends every robot a command each DRIVER_PERIOD
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+		long nextReport = measureStart + TimeUnit.SECONDS.toNanos(report);
+		long next = start;
+		boolean measuring = false;
+		long frames0 = 0;
+		long intervalFrames = 0;
+		long intervalStart = measureStart;
+		long now;
+		while((now = System.nanoTime()) - end < 0){
+			if(!measuring && now - measureStart >= 0){
+				reset();
+				threads.resetPeakThreadCount();
+				frames0 = countFrames();
+				intervalFrames = frames0;
+				measuring = true;
+			}
+			if(measuring && now - nextReport >= 0){
+				long frames = countFrames();
+				intervalReport(now - measureStart, (frames - intervalFrames) * 1e9 / (now - intervalStart));
+				intervalFrames = frames;
+				intervalStart = now;
+				nextReport += TimeUnit.SECONDS.toNanos(report);
+			}
+			for(Link link : links){
+				link.drive(now, random);
+			}
+			next += TimeUnit.MILLISECONDS.toNanos(DRIVER_PERIOD);
+			long wait = next - System.nanoTime();
+			if(wait > 0){
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+		}
+		long frames = countFrames() - frames0;
+		long badFrames = 0;
+		LatencyHistogram requestToFrame = new LatencyHistogram();
+		for(Link link : links){
+			requestToFrame.add(link.robot.getFrameLatency());
+			badFrames += link.robot.getBadFrameCount();
+		}
+		int threadCount = threads.getThreadCount();
+		int peakThreads = threads.getPeakThreadCount();
+		
+		if(fleet != null){
+			fleet.shutdown();
+		}
+		else if(mux != null){
+			mux.shutdown();
+		}
+		else{
+			for(Link link : links){
+				link.robot.requestStop();
+			}
+		}
+		stop.set(true);
+		stepper.join();
+		
+		Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+		latencies.put(SENSE_TO_NOTIFY, senseToNotify);
+		latencies.put(BUMP_TO_STOP, bumpToStop);
+		latencies.put(COMMAND_TO_WIRE, commandToWire);
+		latencies.put(REQUEST_TO_FRAME, requestToFrame);
+		latencies.put(GC_PAUSE, gcPause);
+		
+		System.out.printf("%-18s %10s %10s %10s %10s %10s %10s  (us)%n", "", "count", "p50", "p99", "p99.9", "p99.99", "max");
+		for(Map.Entry<String, LatencyHistogram> e : latencies.entrySet()){
+			LatencyHistogram h = e.getValue();
+			System.out.printf("%-18s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), h.getCount(),
+					h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3, h.getPercentile(99.9) / 1e3,
+					h.getPercentile(99.99) / 1e3, h.getMax() / 1e3);
+		}
+		System.out.printf("%d frames (%.0f/s), %d bad, %d bumps, %d commands, %d never reached the wire, "
+				+ "%d collections (%.1f ms), %d threads (peak %d)%n", frames, frames / (double) seconds, badFrames,
+				bumps.get(), commands.get(), commandsDropped.get(), gcCount.get(), gcNanos.get() / 1e6, threadCount, peakThreads);
+		
+		boolean pass = true;
+		StringBuilder gateJson = new StringBuilder();
+		for(Map.Entry<String, Double> gate : gates.entrySet()){
+			LatencyHistogram h = latencies.get(gate.getKey());
+			if(h == null){
+				System.err.println("No metric " + gate.getKey() + " to gate on; choose from " + latencies.keySet());
+				pass = false;
+				continue;
+			}
+			double p999 = h.getPercentile(99.9) / 1e6;
+			boolean ok = p999 <= gate.getValue();
+			pass &= ok;
+			System.out.printf("gate %s p99.9 %.3f ms <= %.3f ms: %s%n", gate.getKey(), p999, gate.getValue(), ok ? "pass" : "FAIL");
+			gateJson.append(gateJson.length() == 0 ? "" : ",\n    ").append(String.format(Locale.ROOT,
+					"{\"metric\": \"%s\", \"limit_ms\": %s, \"p99.9_ms\": %.3f, \"pass\": %b}", gate.getKey(), gate.getValue(), p999, ok));
+		}
+		
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append(String.format(Locale.ROOT, "  \"config\": {\"robots\": %d, \"seconds\": %d, \"warmup_s\": %d, \"mode\": \"%s\", "
+				+ "\"runtime\": \"%s\", \"period_ms\": %d, \"dispatch\": \"%s\"},\n", robots, seconds, warmup, acqMode, runner,
+				period, dispatch));
+		json.append(String.format(Locale.ROOT, "  \"jvm\": {\"name\": \"%s\", \"version\": \"%s\", \"cores\": %d},\n",
+				System.getProperty("java.vm.name"), System.getProperty("java.version"), Runtime.getRuntime().availableProcessors()));
+		json.append("  \"latency_ns\": {\n");
+		int n = 0;
+		for(Map.Entry<String, LatencyHistogram> e : latencies.entrySet()){
+			json.append("    \"").append(e.getKey()).append("\": ").append(toJson(e.getValue()));
+			json.append(++n < latencies.size() ? ",\n" : "\n");
+		}
+		json.append("  },\n");
+		json.append(String.format(Locale.ROOT, "  \"gc\": {\"collections\": %d, \"total_ms\": %.3f},\n", gcCount.get(), gcNanos.get() / 1e6));
+		json.append(String.format(Locale.ROOT, "  \"threads\": {\"end\": %d, \"peak\": %d},\n", threadCount, peakThreads));
+		json.append(String.format(Locale.ROOT, "  \"counters\": {\"frames\": %d, \"bad_frames\": %d, \"bumps\": %d, "
+				+ "\"commands\": %d, \"commands_not_wired\": %d},\n", frames, badFrames, bumps.get(), commands.get(),
+				commandsDropped.get()));
+		json.append("  \"intervals\": [");
+		for(int i = 0; i < intervals.size(); i++){
+			json.append(i == 0 ? "\n    " : ",\n    ").append(intervals.get(i));
+		}
+		json.append(intervals.isEmpty() ? "],\n" : "\n  ],\n");
+		json.append("  \"gates\": [").append(gateJson.length() == 0 ? "" : "\n    " + gateJson + "\n  ").append("],\n");
+		json.append("  \"pass\": ").append(pass).append("\n}\n");
+		
+		Writer writer = new FileWriter(out);
+		try {
+			writer.write(json.toString());
+		} finally {
+			writer.close();
+		}
+		System.out.println("Results written to " + out);
+		return pass;
+	}
+	
+	private final void reset(){
+		senseToNotify.reset();
+		bumpToStop.reset();
+		commandToWire.reset();
+		gcPause.reset();
+		gcCount.set(0);
+		gcNanos.set(0);
+		bumps.set(0);
+		commands.set(0);
+		commandsDropped.set(0);
+		for(Link link : links){
+			link.robot.getFrameLatency().reset();
+		}
+	}
+	
+	private final long countFrames(){
+		long frames = 0;
+		for(Link link : links){
+			frames += link.robot.getSnapshot().getSequenceNumber();
+		}
+		return frames;
+	}
+	
+	/**
+	 * Prints one line of progress and keeps it for the JSON.
+	 */
+	private final void intervalReport(long elapsed, double frameRate){
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		LatencyHistogram requestToFrame = new LatencyHistogram();
+		for(Link link : links){
+			requestToFrame.add(link.robot.getFrameLatency());
+		}
+		double t = elapsed / 1e9;
+		System.out.printf("t=%.0fs %.0f frames/s, %d threads, heap %.1f MB, %d collections; p99.9 us: notify %.1f, "
+				+ "stop %.1f, wire %.1f, frame %.1f%n", t, frameRate, threads.getThreadCount(), heap / 1e6, gcCount.get(),
+				senseToNotify.getPercentile(99.9) / 1e3, bumpToStop.getPercentile(99.9) / 1e3,
+				commandToWire.getPercentile(99.9) / 1e3, requestToFrame.getPercentile(99.9) / 1e3);
+		intervals.add(String.format(Locale.ROOT, "{\"t_s\": %.1f, \"frames_per_s\": %.1f, \"threads\": %d, \"heap_used\": %d, "
+				+ "\"collections\": %d, \"p99.9_ns\": {\"%s\": %d, \"%s\": %d, \"%s\": %d, \"%s\": %d}}", t, frameRate,
+				threads.getThreadCount(), heap, gcCount.get(), SENSE_TO_NOTIFY, senseToNotify.getPercentile(99.9),
+				BUMP_TO_STOP, bumpToStop.getPercentile(99.9), COMMAND_TO_WIRE, commandToWire.getPercentile(99.9),
+				REQUEST_TO_FRAME, requestToFrame.getPercentile(99.9)));
+	}
+	
+	private static String toJson(LatencyHistogram h){
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f", h.getCount(), h.getMean()));
+		for(double p : PERCENTILES){
+			sb.append(", \"p").append(p == 100 ? "100" : String.valueOf(p).replaceAll("\\.0$", "")).append("\": ")
+				.append(h.getPercentile(p));
+		}
+		sb.append(", \"max\": ").append(h.getMax()).append('}');
+		return sb.toString();
+	}
+	
+	/**
+	 * Records the duration of every collection the JVM reports from here on. Collectors that report
+	 * whole concurrent cycles (ZGC, Shenandoah) are left out, since those do not stop the robot.
+	 */
+	private final void watchCollections(){
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			if(!(gc instanceof NotificationEmitter) || gc.getName().endsWith("Cycles")){
+				continue;
+			}
+			((NotificationEmitter) gc).addNotificationListener(new NotificationListener(){
+				@Override
+				public void handleNotification(Notification notification, Object handback) {
+					if(!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)){
+						return;
+					}
+					GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+							(CompositeData) notification.getUserData());
+					long nanos = TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration());
+					gcPause.record(nanos);
+					gcCount.incrementAndGet();
+					gcNanos.addAndGet(nanos);
+				}
+			}, null, null);
+		}
+	}
+	
+}
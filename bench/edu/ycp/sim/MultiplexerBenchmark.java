@@ -0,0 +1,177 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.sim;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.ycp.CreateFleet;
+import edu.ycp.CreateMultiplexer;
+import edu.ycp.CreateRobot;
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.comm.LoopbackTransport;
+
+/**
+ * Throughput of N simulated links under each way of running them: two threads per robot, a
+ * CreateFleet, and a CreateMultiplexer. Every robot polls group 6 at the OI's 15 ms floor, so the
+ * ideal rate is N * 66.7 frames/s. Reports decoded frames/s, the share of the ideal rate, the
+ * thread count, and the CPU time all threads spent per decoded frame.
+ *
+ * Usage: MultiplexerBenchmark [links] [seconds]
+ *
+ * @author pjmartin
+ *
+ */
+public class MultiplexerBenchmark {
+	
+	private static final long PERIOD = 15;	// ms
+	
+	private enum Runner {
+		THREADS, FLEET, MULTIPLEXER;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int links = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		System.out.printf("%d links, %d s each, %d ms period%n", links, seconds, PERIOD);
+		System.out.printf("%-12s %10s %8s %8s %14s%n", "runner", "frames/s", "ideal", "threads", "cpu us/frame");
+		for(Runner runner : Runner.values()){
+			run(runner, links, seconds);
+		}
+	}
+	
+	private static void run(Runner runner, int links, int seconds) throws Exception {
+		
+		final List<SimulatedCreate> sims = new ArrayList<SimulatedCreate>();
+		List<LoopbackTransport> hosts = new ArrayList<LoopbackTransport>();
+		for(int i = 0; i < links; i++){
+			SimulatedCreate sim = new SimulatedCreate(new Arena(3000, 3000));
+			LoopbackTransport host = new LoopbackTransport("link" + i);
+			sim.attach(host.getPeer());
+			sims.add(sim);
+			hosts.add(host);
+		}
+		
+		// one thread steps every simulator, so the simulators cost the same under each runner
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Thread stepper = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				long deadline = System.nanoTime();
+				while(!stop.get()){
+					for(SimulatedCreate sim : sims){
+						sim.step(SimulatedCreate.STEP_NANOS);
+					}
+					deadline += SimulatedCreate.STEP_NANOS;
+					long wait = deadline - System.nanoTime();
+					if(wait > 0){
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "sim-stepper");
+		stepper.start();
+		
+		CreateFleet fleet = null;
+		CreateMultiplexer mux = null;
+		List<CompletableFuture<CreateRobot>> startups = new ArrayList<CompletableFuture<CreateRobot>>();
+		if(runner == Runner.FLEET){
+			fleet = new CreateFleet(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+			fleet.setTickPeriod(PERIOD);
+		}
+		else if(runner == Runner.MULTIPLEXER){
+			mux = new CreateMultiplexer();
+		}
+		for(int i = 0; i < links; i++){
+			LoopbackTransport host = hosts.get(i);
+			if(fleet != null){
+				startups.add(fleet.connect("link" + i, host, CreateMode.SAFE, AcquisitionMode.POLL, 5000));
+			}
+			else if(mux != null){
+				startups.add(mux.connect("link" + i, host, CreateMode.SAFE, AcquisitionMode.POLL, 5000));
+			}
+			else{
+				startups.add(CreateRobot.connect(host, CreateMode.SAFE, AcquisitionMode.POLL, 5000));
+			}
+		}
+		List<CreateRobot> robots = new ArrayList<CreateRobot>();
+		for(CompletableFuture<CreateRobot> startup : startups){
+			CreateRobot robot = startup.join();
+			robot.setUpdatePeriod(PERIOD);
+			robots.add(robot);
+		}
+		
+		// let every link settle into its period before measuring
+		Thread.sleep(500);
+		long frames0 = countFrames(robots);
+		long cpu0 = totalCpuTime();
+		long t0 = System.nanoTime();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		long frames = countFrames(robots) - frames0;
+		long cpu = totalCpuTime() - cpu0;
+		double elapsed = (System.nanoTime() - t0) / 1e9;
+		int threads = Thread.activeCount();
+		
+		double rate = frames / elapsed;
+		double ideal = links * 1000.0 / PERIOD;
+		System.out.printf("%-12s %10.0f %7.1f%% %8d %14.1f%n", runner, rate, 100 * rate / ideal, threads,
+				frames > 0 ? cpu / 1000.0 / frames : 0.0);
+		if(mux != null){
+			System.out.println("             " + mux);
+		}
+		
+		if(fleet != null){
+			fleet.shutdown();
+		}
+		else if(mux != null){
+			mux.shutdown();
+		}
+		else{
+			for(CreateRobot robot : robots){
+				robot.requestStop();
+			}
+		}
+		stop.set(true);
+		stepper.join();
+		Thread.sleep(200);
+	}
+	
+	private static long countFrames(List<CreateRobot> robots){
+		long frames = 0;
+		for(CreateRobot robot : robots){
+			frames += robot.getSnapshot().getSequenceNumber();
+		}
+		return frames;
+	}
+	
+	/**
+	 * @return CPU time of every live thread, in ns
+	 */
+	private static long totalCpuTime(){
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for(long id : mx.getAllThreadIds()){
+			long t = mx.getThreadCpuTime(id);
+			if(t > 0){
+				total += t;
+			}
+		}
+		return total;
+	}
+	
+}
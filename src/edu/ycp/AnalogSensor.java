@@ -0,0 +1,62 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+/**
+ * The analog sensors of the Create that can be watched for threshold crossings.
+ * 
+ * @author pjmartin
+ *
+ */
+public enum AnalogSensor {
+
+	WALL_SIGNAL(PacketID.WALL_SIGNAL),
+	CLIFF_LEFT_SIGNAL(PacketID.CLIFF_LEFT_SIGNAL),
+	CLIFF_LEFT_FRONT_SIGNAL(PacketID.CLIFF_FRONT_LEFT_SIGNAL),
+	CLIFF_RIGHT_FRONT_SIGNAL(PacketID.CLIFF_FRONT_RIGHT_SIGNAL),
+	CLIFF_RIGHT_SIGNAL(PacketID.CLIFF_RIGHT_SIGNAL),
+	CARGO_AIN(PacketID.CARGO_BAY_ANIN),
+	BATTERY_VOLTAGE(PacketID.VOLTAGE),	// mV
+	BATTERY_CHARGE(PacketID.BATT_CHARGE);	// mAh
+	
+	private final PacketID packet;
+	
+	AnalogSensor(PacketID packet){
+		this.packet = packet;
+	}
+	
+	/**
+	 * @return the packet this sensor is decoded from
+	 */
+	public PacketID getPacket() {
+		return packet;
+	}
+	
+	public int read(SensorSnapshot s) {
+		switch(this){
+		case WALL_SIGNAL:
+			return s.getWallSignal();
+		case CLIFF_LEFT_SIGNAL:
+			return s.getCliffLeftSignal();
+		case CLIFF_LEFT_FRONT_SIGNAL:
+			return s.getCliffLeftFrontSignal();
+		case CLIFF_RIGHT_FRONT_SIGNAL:
+			return s.getCliffRightFrontSignal();
+		case CLIFF_RIGHT_SIGNAL:
+			return s.getCliffRightSignal();
+		case CARGO_AIN:
+			return s.getCargoAIN();
+		case BATTERY_VOLTAGE:
+			return (int) s.getBatteryVoltage();
+		case BATTERY_CHARGE:
+			return (int) s.getBatteryCharge();
+		default:
+			return 0;
+		}
+	}
+	
+}
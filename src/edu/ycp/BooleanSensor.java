@@ -0,0 +1,77 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+/**
+ * The on/off sensors of the Create that can be watched for rising and falling edges.
+ * 
+ * @author pjmartin
+ *
+ */
+public enum BooleanSensor {
+
+	BUMP_LEFT(PacketID.BUMP_AND_WHEEL),
+	BUMP_RIGHT(PacketID.BUMP_AND_WHEEL),
+	WHEEL_DROP_LEFT(PacketID.BUMP_AND_WHEEL),
+	WHEEL_DROP_RIGHT(PacketID.BUMP_AND_WHEEL),
+	CASTER_DROP(PacketID.BUMP_AND_WHEEL),
+	WALL(PacketID.WALL),
+	CLIFF_LEFT(PacketID.CLIFF_LEFT),
+	CLIFF_LEFT_FRONT(PacketID.CLIFF_FRONT_LEFT),
+	CLIFF_RIGHT_FRONT(PacketID.CLIFF_FRONT_RIGHT),
+	CLIFF_RIGHT(PacketID.CLIFF_RIGHT),
+	VIRTUAL_WALL(PacketID.VIRTUAL_WALL),
+	ADVANCE_BUTTON(PacketID.BUTTONS),
+	PLAY_BUTTON(PacketID.BUTTONS);
+	
+	private final PacketID packet;
+	
+	BooleanSensor(PacketID packet){
+		this.packet = packet;
+	}
+	
+	/**
+	 * @return the packet this sensor is decoded from
+	 */
+	public PacketID getPacket() {
+		return packet;
+	}
+	
+	public boolean read(SensorSnapshot s) {
+		switch(this){
+		case BUMP_LEFT:
+			return s.isBumpLeft();
+		case BUMP_RIGHT:
+			return s.isBumpRight();
+		case WHEEL_DROP_LEFT:
+			return s.isWheelDropLeft();
+		case WHEEL_DROP_RIGHT:
+			return s.isWheelDropRight();
+		case CASTER_DROP:
+			return s.isCasterDrop();
+		case WALL:
+			return s.isWall();
+		case CLIFF_LEFT:
+			return s.isCliffLeft();
+		case CLIFF_LEFT_FRONT:
+			return s.isCliffLeftFront();
+		case CLIFF_RIGHT_FRONT:
+			return s.isCliffRightFront();
+		case CLIFF_RIGHT:
+			return s.isCliffRight();
+		case VIRTUAL_WALL:
+			return s.isVirtualWall();
+		case ADVANCE_BUTTON:
+			return s.isAdvanceButtonPress();
+		case PLAY_BUTTON:
+			return s.isPlayButtonPress();
+		default:
+			return false;
+		}
+	}
+	
+}
@@ -0,0 +1,338 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.comm.Clock;
+import edu.ycp.comm.ExecutorFactory;
+import edu.ycp.comm.SerialTransport;
+import edu.ycp.comm.TickScheduler;
+import edu.ycp.comm.TickScheduler.OverrunPolicy;
+
+/**
+ * Runs many Creates on a fixed number of threads. A standalone CreateRobot keeps two threads busy
+ * for its whole life; in a fleet one ticker thread drives every robot's hardware tick from a
+ * shared TickScheduler, and a small worker pool does the ticks and parses incoming data only when
+ * there is some. All robots tick in the same period, so commands posted with atNextTick() go out
+ * to every robot on the same tick.
+ *
+ * @author pjmartin
+ *
+ */
+public class CreateFleet implements RobotRuntime {
+	
+	public static final long DEFAULT_TICK_PERIOD = 30; // ms
+	
+	private final Clock clock;
+	private final ExecutorFactory executors;
+	private final TickScheduler tickScheduler;
+	private final ExecutorService workers;
+	private final ExecutorService listenerExecutor;	// one thread for the listeners of every robot
+	private final Thread tickerThread;
+	
+	private final Map<String, CreateRobot> robots = new ConcurrentHashMap<String, CreateRobot>();
+	private final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<Member>();
+	private final ConcurrentLinkedQueue<Runnable> tickActions = new ConcurrentLinkedQueue<Runnable>();
+	
+	private final AtomicLong skippedRobotTicks = new AtomicLong();
+	private volatile boolean shutdown = false;
+	
+	/**
+	 * @param workerThreads - threads shared by every robot's ticks and data parsing
+	 */
+	public CreateFleet(int workerThreads){
+		this(workerThreads, Clock.SYSTEM);
+	}
+	
+	/**
+	 * @param workerThreads
+	 * @param clock - paces the ticker; only the ticker thread is a clock participant
+	 */
+	public CreateFleet(int workerThreads, Clock clock){
+		this(workerThreads, clock, ExecutorFactory.getDefault());
+	}
+	
+	/**
+	 * @param workerThreads
+	 * @param clock
+	 * @param executors - where the ticker, worker and listener threads come from
+	 */
+	public CreateFleet(int workerThreads, Clock clock, ExecutorFactory executors){
+		if(workerThreads < 1){
+			throw new IllegalArgumentException("A fleet needs at least one worker thread: " + workerThreads);
+		}
+		this.clock = clock;
+		this.executors = executors;
+		tickScheduler = new TickScheduler(DEFAULT_TICK_PERIOD, OverrunPolicy.SKIP, clock);
+		workers = executors.newExecutor("CreateFleet-worker", workerThreads);
+		listenerExecutor = executors.newExecutor("CreateFleet-listener", 1);
+		
+		clock.register();
+		tickerThread = executors.newThread("CreateFleet-ticker", new Runnable(){
+			@Override
+			public void run() {
+				runTicker();
+			}
+		});
+		tickerThread.setDaemon(true);
+		tickerThread.start();
+	}
+	
+	private final void runTicker(){
+		try{
+			while(!shutdown){
+				long tickStart = tickScheduler.awaitNextTick();
+				long period = TimeUnit.MILLISECONDS.toNanos(tickScheduler.getPeriod());
+				
+				// synchronized commands are posted before any robot's tick goes out
+				Runnable action;
+				while((action = tickActions.poll()) != null){
+					runAction(action);
+				}
+				
+				for(Member m : members){
+					tickMember(m, tickStart, period);
+				}
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally{
+			clock.deregister();
+			System.out.println("CreateFleet ticker stopped.");
+		}
+	}
+	
+	private final void runAction(Runnable action){
+		try{
+			action.run();
+		} catch(RuntimeException e){
+			System.err.println("CreateFleet tick action failed.");
+			e.printStackTrace();
+		}
+	}
+	
+	private final void tickMember(final Member m, final long tickStart, final long period){
+		// a robot whose last tick is still running (a slow port) skips this one instead of piling up
+		if(!m.ticking.compareAndSet(false, true)){
+			skippedRobotTicks.incrementAndGet();
+			return;
+		}
+		try{
+			workers.execute(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						m.robot.fleetTick(tickStart, period);
+					} catch(RuntimeException e){
+						System.err.println("CreateFleet tick failed for " + m.name);
+						e.printStackTrace();
+					} finally{
+						m.ticking.set(false);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e){
+			m.ticking.set(false);
+		}
+	}
+	
+	/**
+	 * Starts a robot on transport and adds it to the fleet under name. Like CreateRobot.connect(),
+	 * the future completes once the Create reports the requested mode; if it fails the robot is
+	 * already removed again.
+	 * @param name - unique within the fleet
+	 * @param transport - not yet opened
+	 * @param initMode
+	 * @param acqMode
+	 * @param timeoutMs
+	 * @return future of the running robot
+	 */
+	public final CompletableFuture<CreateRobot> connect(final String name, SerialTransport transport, CreateMode initMode,
+			AcquisitionMode acqMode, long timeoutMs){
+		if(shutdown){
+			throw new IllegalStateException("CreateFleet is shut down");
+		}
+		final CreateRobot robot = new CreateRobot(transport, initMode, acqMode, clock, executors, this);
+		if(robots.putIfAbsent(name, robot) != null){
+			throw new IllegalArgumentException("CreateFleet already has a robot named " + name);
+		}
+		robot.setListenerExecutor(listenerExecutor);
+		
+		CompletableFuture<CreateRobot> startup = robot.start(timeoutMs);
+		startup.whenComplete(new BiConsumer<CreateRobot, Throwable>(){
+			@Override
+			public void accept(CreateRobot r, Throwable failure) {
+				if(failure != null){
+					robots.remove(name, robot);
+				}
+			}
+		});
+		return startup;
+	}
+	
+	@Override
+	public final void attach(final CreateRobot robot){
+		for(Map.Entry<String, CreateRobot> e : robots.entrySet()){
+			if(e.getValue() == robot){
+				// incoming data is parsed on the workers as soon as it arrives
+				robot.dataBuffer.setDataCallback(new Runnable(){
+					@Override
+					public void run() {
+						robot.scheduleDrain();
+					}
+				});
+				members.add(new Member(e.getKey(), robot));
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public final void detach(CreateRobot robot){
+		robot.dataBuffer.setDataCallback(null);
+		for(Member m : members){
+			if(m.robot == robot){
+				members.remove(m);
+			}
+		}
+		for(Map.Entry<String, CreateRobot> e : robots.entrySet()){
+			if(e.getValue() == robot){
+				robots.remove(e.getKey(), robot);
+			}
+		}
+	}
+	
+	@Override
+	public final void execute(Runnable task){
+		try{
+			workers.execute(task);
+		} catch(RejectedExecutionException e){
+			System.err.println("CreateFleet is shut down, task dropped.");
+		}
+	}
+	
+	/**
+	 * @param name
+	 * @return the robot, or null if there is none by that name
+	 */
+	public CreateRobot getRobot(String name){
+		return robots.get(name);
+	}
+	
+	/**
+	 * @return number of robots that are running or starting
+	 */
+	public int size(){
+		return robots.size();
+	}
+	
+	/**
+	 * Runs action on the ticker thread just before the next tick is fanned out, so commands it posts
+	 * to several robots all go out on that same tick.
+	 * @param action
+	 */
+	public final void atNextTick(Runnable action){
+		tickActions.add(action);
+	}
+	
+	/**
+	 * Writes a stop to every running robot from the calling thread, without waiting for a tick.
+	 * @return worst time-to-wire over all robots, in ns
+	 */
+	public final long broadcastStop(){
+		long worst = 0;
+		for(Member m : members){
+			worst = Math.max(worst, m.robot.emergencyStop());
+		}
+		return worst;
+	}
+	
+	/**
+	 * @return the latest snapshot of every running robot, by name in the order they started
+	 */
+	public final Map<String, SensorSnapshot> getSnapshots(){
+		Map<String, SensorSnapshot> snapshots = new LinkedHashMap<String, SensorSnapshot>();
+		for(Member m : members){
+			snapshots.put(m.name, m.robot.getSnapshot());
+		}
+		return snapshots;
+	}
+	
+	/**
+	 * Stops the named robot and removes it from the fleet.
+	 * @param name
+	 * @return false if there is no robot by that name
+	 */
+	public final boolean remove(String name){
+		CreateRobot robot = robots.get(name);
+		if(robot == null){
+			return false;
+		}
+		robot.requestStop();
+		return true;
+	}
+	
+	/**
+	 * Fixes the tick period of every robot in the fleet.
+	 * @param periodMs - at least 15 ms
+	 */
+	public final void setTickPeriod(long periodMs){
+		tickScheduler.setPeriod(periodMs);
+	}
+	
+	public TickScheduler getTickScheduler(){
+		return tickScheduler;
+	}
+	
+	/**
+	 * @return robot ticks dropped because that robot's previous tick had not finished
+	 */
+	public long getSkippedRobotTicks(){
+		return skippedRobotTicks.get();
+	}
+	
+	/**
+	 * Stops every robot, then the fleet's threads.
+	 */
+	public final void shutdown(){
+		shutdown = true;
+		for(CreateRobot robot : robots.values()){
+			robot.requestStop();
+		}
+		tickerThread.interrupt();
+		workers.shutdown();
+		listenerExecutor.shutdown();
+	}
+	
+	private static class Member {
+		
+		final String name;
+		final CreateRobot robot;
+		final AtomicBoolean ticking = new AtomicBoolean(false);
+		
+		Member(String name, CreateRobot robot){
+			this.name = name;
+			this.robot = robot;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,371 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.comm.Clock;
+import edu.ycp.comm.CreateHardwareManager;
+import edu.ycp.comm.ExecutorFactory;
+import edu.ycp.comm.LatencyHistogram;
+import edu.ycp.comm.SerialTransport;
+
+/**
+ * Runs every robot link on one event loop thread. Each pass reads whatever each transport has
+ * waiting, parses it, and ticks every link whose deadline has come, so framing and command flushes
+ * for all robots happen on the one thread with no hand-offs. Every link keeps its own tick deadline
+ * at its own update period. Between passes the loop parks until the earliest deadline; transport
+ * data notifications only wake it up (the read happens on the loop), and transports that never
+ * notify, like a FileChannelTransport in polled mode, are picked up within the poll interval.
+ *
+ * Java cannot select() on a tty, so readiness comes from the transports' listeners and polling
+ * rather than from epoll.
+ *
+ * @author pjmartin
+ *
+ */
+public class CreateMultiplexer implements RobotRuntime {
+	
+	public static final long DEFAULT_POLL_INTERVAL = 2000; // us
+	
+	private final Clock clock;
+	private final ExecutorFactory executors;
+	private final Thread loopThread;
+	
+	private final Map<String, CreateRobot> robots = new ConcurrentHashMap<String, CreateRobot>();
+	private final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<Link>();
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	// wakeup handshake: a notifier sets wakePending, then unparks the loop only if it is parked
+	private volatile boolean wakePending = false;
+	private volatile boolean parked = false;
+	private volatile long pollIntervalNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_POLL_INTERVAL);
+	private volatile boolean shutdown = false;
+	
+	private final LatencyHistogram tickLateness = new LatencyHistogram();
+	private final AtomicLong passCount = new AtomicLong();
+	private final AtomicLong skippedTicks = new AtomicLong();
+	
+	private final SerialTransport.DataListener wakeListener = new SerialTransport.DataListener(){
+		@Override
+		public void dataAvailable(SerialTransport source) {
+			wakeup();
+		}
+	};
+	
+	public CreateMultiplexer(){
+		this(Clock.SYSTEM);
+	}
+	
+	/**
+	 * @param clock - paces the loop; the loop thread is a clock participant
+	 */
+	public CreateMultiplexer(Clock clock){
+		this(clock, ExecutorFactory.getDefault());
+	}
+	
+	/**
+	 * @param clock
+	 * @param executors - where the loop thread and the robots' listener threads come from
+	 */
+	public CreateMultiplexer(Clock clock, ExecutorFactory executors){
+		this.clock = clock;
+		this.executors = executors;
+		clock.register();
+		loopThread = executors.newThread("CreateMultiplexer", new Runnable(){
+			@Override
+			public void run() {
+				runLoop();
+			}
+		});
+		loopThread.setDaemon(true);
+		loopThread.start();
+	}
+	
+	private final void runLoop(){
+		try{
+			while(!shutdown){
+				// cleared before the scan, so data that arrives during the scan still wakes the next pass
+				wakePending = false;
+				
+				Runnable task;
+				while((task = tasks.poll()) != null){
+					runTask(task);
+				}
+				
+				long now = clock.nanoTime();
+				long wakeAt = now + pollIntervalNanos;
+				for(Link l : links){
+					long deadline = service(l, now);
+					if(deadline - wakeAt < 0){
+						wakeAt = deadline;
+					}
+				}
+				passCount.incrementAndGet();
+				
+				parked = true;
+				if(!wakePending && tasks.isEmpty()){
+					clock.parkUntil(this, wakeAt);
+				}
+				parked = false;
+				if(Thread.interrupted()){
+					break;
+				}
+			}
+		} finally{
+			clock.deregister();
+			System.out.println("CreateMultiplexer loop stopped.");
+		}
+	}
+	
+	/**
+	 * One link's share of a pass: read, parse, then tick if due.
+	 * @return the link's next deadline
+	 */
+	private final long service(Link l, long now){
+		try{
+			l.manager.pollTransport();
+			l.robot.drainData();
+			
+			if(now - l.nextDeadline >= 0){
+				long period = TimeUnit.MILLISECONDS.toNanos(l.manager.getUpdatePeriod());
+				tickLateness.record(now - l.nextDeadline);
+				l.manager.tick(now, period);
+				
+				l.nextDeadline += period;
+				if(now - l.nextDeadline >= 0){
+					// more than a whole period late: drop the missed ticks and stay in phase
+					long missed = (now - l.nextDeadline) / period + 1;
+					skippedTicks.addAndGet(missed);
+					l.nextDeadline += missed * period;
+				}
+			}
+		} catch(RuntimeException e){
+			System.err.println("CreateMultiplexer failed servicing " + l.name);
+			e.printStackTrace();
+		}
+		return l.nextDeadline;
+	}
+	
+	private final void runTask(Runnable task){
+		try{
+			task.run();
+		} catch(RuntimeException e){
+			System.err.println("CreateMultiplexer task failed.");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Makes the loop run a pass now instead of at its next deadline. Safe from any thread.
+	 */
+	public final void wakeup(){
+		wakePending = true;
+		if(parked){
+			clock.unpark(loopThread);
+		}
+	}
+	
+	/**
+	 * Starts a robot on transport and adds it to the loop under name. The port is opened on the
+	 * loop thread; like CreateRobot.connect(), the future completes once the Create reports the
+	 * requested mode, and if it fails the robot is already removed again.
+	 * @param name - unique within the multiplexer
+	 * @param transport - not yet opened
+	 * @param initMode
+	 * @param acqMode
+	 * @param timeoutMs
+	 * @return future of the running robot
+	 */
+	public final CompletableFuture<CreateRobot> connect(final String name, SerialTransport transport, CreateMode initMode,
+			AcquisitionMode acqMode, long timeoutMs){
+		if(shutdown){
+			throw new IllegalStateException("CreateMultiplexer is shut down");
+		}
+		final CreateRobot robot = new CreateRobot(transport, initMode, acqMode, clock, executors, this);
+		if(robots.putIfAbsent(name, robot) != null){
+			throw new IllegalArgumentException("CreateMultiplexer already has a robot named " + name);
+		}
+		// the transport's listener only wakes the loop; all reads happen on the loop thread
+		robot.getHardwareManager().setReadinessListener(wakeListener);
+		
+		CompletableFuture<CreateRobot> startup = robot.start(timeoutMs);
+		startup.whenComplete(new BiConsumer<CreateRobot, Throwable>(){
+			@Override
+			public void accept(CreateRobot r, Throwable failure) {
+				if(failure != null){
+					robots.remove(name, robot);
+				}
+			}
+		});
+		return startup;
+	}
+	
+	@Override
+	public final void execute(Runnable task){
+		tasks.add(task);
+		wakeup();
+	}
+	
+	@Override
+	public final void attach(CreateRobot robot){
+		for(Map.Entry<String, CreateRobot> e : robots.entrySet()){
+			if(e.getValue() == robot){
+				// attach() runs on the loop thread, so the first tick is in the next pass
+				links.add(new Link(e.getKey(), robot, clock.nanoTime()));
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public final void detach(CreateRobot robot){
+		for(Link l : links){
+			if(l.robot == robot){
+				links.remove(l);
+			}
+		}
+		for(Map.Entry<String, CreateRobot> e : robots.entrySet()){
+			if(e.getValue() == robot){
+				robots.remove(e.getKey(), robot);
+			}
+		}
+	}
+	
+	/**
+	 * @param name
+	 * @return the robot, or null if there is none by that name
+	 */
+	public CreateRobot getRobot(String name){
+		return robots.get(name);
+	}
+	
+	/**
+	 * @return number of robots that are running or starting
+	 */
+	public int size(){
+		return robots.size();
+	}
+	
+	/**
+	 * Writes a stop to every running robot from the calling thread, without waiting for the loop.
+	 * @return worst time-to-wire over all robots, in ns
+	 */
+	public final long broadcastStop(){
+		long worst = 0;
+		for(Link l : links){
+			worst = Math.max(worst, l.robot.emergencyStop());
+		}
+		return worst;
+	}
+	
+	/**
+	 * @return the latest snapshot of every running robot, by name in the order they started
+	 */
+	public final Map<String, SensorSnapshot> getSnapshots(){
+		Map<String, SensorSnapshot> snapshots = new LinkedHashMap<String, SensorSnapshot>();
+		for(Link l : links){
+			snapshots.put(l.name, l.robot.getSnapshot());
+		}
+		return snapshots;
+	}
+	
+	/**
+	 * Stops the named robot and removes it from the loop.
+	 * @param name
+	 * @return false if there is no robot by that name
+	 */
+	public final boolean remove(String name){
+		CreateRobot robot = robots.get(name);
+		if(robot == null){
+			return false;
+		}
+		robot.requestStop();
+		return true;
+	}
+	
+	/**
+	 * Sets how long the loop may park when no deadline comes sooner. Only transports that never
+	 * notify depend on it.
+	 * @param micros
+	 */
+	public final void setPollInterval(long micros){
+		if(micros <= 0){
+			throw new IllegalArgumentException("Poll interval must be positive: " + micros);
+		}
+		pollIntervalNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+	}
+	
+	public long getPollInterval(){
+		return TimeUnit.NANOSECONDS.toMicros(pollIntervalNanos);
+	}
+	
+	/**
+	 * @return histogram of how late each link tick ran relative to its deadline, in ns
+	 */
+	public LatencyHistogram getTickLateness(){
+		return tickLateness;
+	}
+	
+	/**
+	 * @return number of passes the loop has made over the links
+	 */
+	public long getPassCount(){
+		return passCount.get();
+	}
+	
+	/**
+	 * @return link ticks dropped because the loop fell a whole period behind
+	 */
+	public long getSkippedTicks(){
+		return skippedTicks.get();
+	}
+	
+	/**
+	 * Stops every robot, then the loop thread.
+	 */
+	public final void shutdown(){
+		shutdown = true;
+		for(CreateRobot robot : robots.values()){
+			robot.requestStop();
+		}
+		loopThread.interrupt();
+	}
+	
+	@Override
+	public String toString(){
+		return "links=" + links.size() + " passes=" + getPassCount() + " skipped=" + getSkippedTicks()
+				+ " lateness(us)[" + tickLateness.toString(1000) + "]";
+	}
+	
+	private static class Link {
+		
+		final String name;
+		final CreateRobot robot;
+		final CreateHardwareManager manager;
+		long nextDeadline;	// loop thread only
+		
+		Link(String name, CreateRobot robot, long firstDeadline){
+			this.name = name;
+			this.robot = robot;
+			this.manager = robot.getHardwareManager();
+			this.nextDeadline = firstDeadline;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,476 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.SensorEvent.Edge;
+import edu.ycp.comm.Clock;
+import edu.ycp.comm.CreateHardwareManager;
+import edu.ycp.comm.ExecutorFactory;
+import edu.ycp.comm.FlightLog;
+import edu.ycp.comm.FlightRecorder;
+import edu.ycp.comm.LatencyHistogram;
+import edu.ycp.comm.SerialTransport;
+import edu.ycp.comm.VirtualClock;
+
+/**
+ * Plays a FlightRecorder recording back through a CreateRobot that has no port and no threads of
+ * its own. The recorded received bytes go through SensorDataParser.parseData(), processData() and
+ * every registered listener, exactly as they did live; the recorded poll and stream commands tell
+ * the parser what each response holds. The robot's clock is a VirtualClock that follows the
+ * recorded timestamps, so the same recording decodes the same way every time.
+ *
+ * Commands the robot sends during the replay (from listeners or other code reacting to the replayed
+ * sensor data) are captured instead of written, and the actuator commands among them are matched
+ * in order against the ones in the recording.
+ *
+ * Listeners added with DispatchMode.EXECUTOR run on the replay thread. The replay runs at the
+ * recorded pace (REAL_TIME), scaled by setSpeed(), or as fast as possible.
+ *
+ * @author pjmartin
+ *
+ */
+public class CreateReplay implements RobotRuntime {
+	
+	public static final double REAL_TIME = 1;
+	public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+	
+	private final File directory;
+	private final int channel;
+	private final VirtualClock replayClock = new VirtualClock();
+	private final CaptureTransport capture = new CaptureTransport();
+	private final CreateRobot robot;
+	private final CreateHardwareManager hardwareManager;
+	private double speed = AS_FAST_AS_POSSIBLE;
+	private boolean replayed = false;
+	
+	// results of replay()
+	private long recordCount;
+	private long byteCount;
+	private long frameCount;
+	private long skippedBytes;
+	private long elapsedNanos;
+	private final List<byte[]> originalCommands = new ArrayList<byte[]>();
+	private final List<Long> originalTimes = new ArrayList<Long>();
+	private int matchedCommands;
+	private int missingCommands;
+	private int extraCommands;
+	private String firstExtra;
+	private final LatencyHistogram commandSkew = new LatencyHistogram();
+	
+	/**
+	 * @param directory - a FlightRecorder directory
+	 * @param channel - the robot to replay, as passed to setFlightRecorder()
+	 * @param initMode - the mode the recorded robot was started in
+	 * @param acqMode - the acquisition mode it was recorded in
+	 */
+	public CreateReplay(File directory, int channel, CreateMode initMode, AcquisitionMode acqMode){
+		this.directory = directory;
+		this.channel = channel;
+		robot = new CreateRobot(capture, initMode, acqMode, replayClock, ExecutorFactory.PLATFORM, this);
+		hardwareManager = robot.getHardwareManager();
+		robot.setListenerExecutor(new DirectExecutor());
+		
+		// opens the capture transport; a year is as good as no startup timeout
+		robot.start(TimeUnit.DAYS.toMillis(365));
+		if(acqMode == AcquisitionMode.STREAM){
+			// a recording started after the stream command still decodes with the default packets
+			ByteBuffer stream = SensorRequest.ALL.generateStreamCommand();
+			hardwareManager.replayCommand(stream.array(), 0, stream.limit());
+		}
+		capture.commands.clear();
+		capture.times.clear();
+	}
+	
+	/**
+	 * @return the robot the recording is played through; add listeners before calling replay()
+	 */
+	public CreateRobot getRobot(){
+		return robot;
+	}
+	
+	/**
+	 * Hands the parsed frames to sink instead of decoding them into snapshots; listeners then see
+	 * nothing.
+	 * @param sink
+	 */
+	final void setFrameSink(FrameSink sink){
+		robot.frameSink = sink;
+	}
+	
+	/**
+	 * @param speed - recorded seconds per real second, e.g. REAL_TIME or AS_FAST_AS_POSSIBLE
+	 */
+	public final void setSpeed(double speed){
+		if(!(speed > 0)){
+			throw new IllegalArgumentException("Replay speed must be positive: " + speed);
+		}
+		this.speed = speed;
+	}
+	
+	/**
+	 * Plays the whole recording, then compares the commands. Blocks until done; a CreateReplay
+	 * plays its recording only once.
+	 * @return this, for the results
+	 * @throws IOException
+	 */
+	public final CreateReplay replay() throws IOException {
+		if(replayed){
+			throw new IllegalStateException("Recording in " + directory + " has already been replayed");
+		}
+		replayed = true;
+		FlightLog log = new FlightLog(directory);
+		ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		long firstTimestamp = 0;
+		long lastTimestamp = 0;
+		boolean first = true;
+		long frames0 = robot.getSnapshot().getSequenceNumber();
+		long skipped0 = robot.dataParser.getSkippedByteCount();
+		long start = System.nanoTime();
+		
+		while(log.next()){
+			if(log.getChannel() != channel){
+				continue;
+			}
+			long ts = log.getTimestamp();
+			if(first){
+				firstTimestamp = ts;
+				lastTimestamp = ts;
+				first = false;
+			}
+			pace(start, ts - firstTimestamp);
+			if(ts > lastTimestamp){
+				replayClock.advance(ts - lastTimestamp);
+				lastTimestamp = ts;
+			}
+			recordCount++;
+			
+			if(log.isReceived()){
+				byteCount += log.getLength();
+				robot.dataBuffer.write(log.getPayload(), 0, log.getLength());
+				robot.drainData();
+			}
+			else{
+				// a command longer than one record comes in pieces
+				pending.write(log.getPayload(), 0, log.getLength());
+				if(log.isContinued()){
+					continue;
+				}
+				byte[] cmd = pending.toByteArray();
+				pending.reset();
+				hardwareManager.replayCommand(cmd, 0, cmd.length);
+				if(isActuatorCommand(cmd)){
+					originalCommands.add(cmd);
+					originalTimes.add(ts - firstTimestamp);
+				}
+			}
+			// whatever the replayed code posted goes out now
+			hardwareManager.flushCommands();
+		}
+		robot.drainData();
+		hardwareManager.flushCommands();
+		
+		elapsedNanos = System.nanoTime() - start;
+		frameCount = robot.getSnapshot().getSequenceNumber() - frames0;
+		skippedBytes = robot.dataParser.getSkippedByteCount() - skipped0;
+		if(skippedBytes > 0){
+			// in POLL mode these arrived with no request pending: their frames are lost to the replay
+			System.err.println("CreateReplay: " + skippedBytes + " received bytes of " + directory 
+					+ " did not belong to any request and were skipped.");
+		}
+		compareCommands();
+		return this;
+	}
+	
+	private final void pace(long start, long recordedOffset){
+		if(Double.isInfinite(speed)){
+			return;
+		}
+		long due = start + (long) (recordedOffset / speed);
+		try {
+			Clock.SYSTEM.sleepUntil(due);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private final void compareCommands(){
+		List<byte[]> replayed = new ArrayList<byte[]>();
+		List<Long> replayedTimes = new ArrayList<Long>();
+		for(int i = 0; i < capture.commands.size(); i++){
+			if(isActuatorCommand(capture.commands.get(i))){
+				replayed.add(capture.commands.get(i));
+				replayedTimes.add(capture.times.get(i));
+			}
+		}
+		
+		// greedy alignment: a replayed command matches the next equal recorded one, and the recorded
+		// commands it skips were sent by code that is not part of the replay (e.g. main())
+		int next = 0;
+		for(int i = 0; i < replayed.size(); i++){
+			int j = next;
+			while(j < originalCommands.size() && !Arrays.equals(originalCommands.get(j), replayed.get(i))){
+				j++;
+			}
+			if(j < originalCommands.size()){
+				matchedCommands++;
+				missingCommands += j - next;
+				commandSkew.record(Math.abs(replayedTimes.get(i) - originalTimes.get(j)));
+				next = j + 1;
+			}
+			else{
+				extraCommands++;
+				if(firstExtra == null){
+					firstExtra = "replayed " + toHex(replayed.get(i)) + " at " + replayedTimes.get(i) / 1000000
+							+ " ms" + (next < originalCommands.size() ? ", next recorded " + toHex(originalCommands.get(next))
+							+ " at " + originalTimes.get(next) / 1000000 + " ms" : "");
+				}
+			}
+		}
+		missingCommands += originalCommands.size() - next;
+	}
+	
+	private static final boolean isActuatorCommand(byte[] cmd){
+		for(ActuatorCommand c : ActuatorCommand.values()){
+			if(cmd.length > 0 && cmd[0] == c.getOpcodeVal()){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static final String toHex(byte[] bytes){
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < bytes.length; i++){
+			sb.append(String.format(i == 0 ? "%02x" : " %02x", bytes[i]));
+		}
+		return sb.append("]").toString();
+	}
+	
+	@Override
+	public void execute(Runnable task){
+		task.run();
+	}
+	
+	@Override
+	public void attach(CreateRobot robot){
+		// the replay drives the robot itself
+	}
+	
+	@Override
+	public void detach(CreateRobot robot){
+	}
+	
+	public long getRecordCount(){
+		return recordCount;
+	}
+	
+	public long getByteCount(){
+		return byteCount;
+	}
+	
+	/**
+	 * @return frames decoded by the last replay()
+	 */
+	public long getFrameCount(){
+		return frameCount;
+	}
+	
+	/**
+	 * @return bytes the parser skipped in the last replay(): in POLL mode, bytes recorded with no
+	 * request pending, whose frames the replay could not decode
+	 */
+	public long getSkippedBytes(){
+		return skippedBytes;
+	}
+	
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+	
+	public double getFramesPerSecond(){
+		return elapsedNanos > 0 ? frameCount * 1e9 / elapsedNanos : 0;
+	}
+	
+	/**
+	 * @return replayed actuator commands found, in order, in the recording
+	 */
+	public int getMatchedCommands(){
+		return matchedCommands;
+	}
+	
+	/**
+	 * @return recorded actuator commands the replay did not send, e.g. ones sent by main() rather than
+	 * by a listener
+	 */
+	public int getMissingCommands(){
+		return missingCommands;
+	}
+	
+	/**
+	 * @return actuator commands the replay sent that the recording does not have at that point
+	 */
+	public int getExtraCommands(){
+		return extraCommands;
+	}
+	
+	/**
+	 * @return description of the first extra command, or null
+	 */
+	public String getFirstExtra(){
+		return firstExtra;
+	}
+	
+	/**
+	 * @return how far (in recorded time, ns) each matched command was from its original
+	 */
+	public LatencyHistogram getCommandSkew(){
+		return commandSkew;
+	}
+	
+	@Override
+	public String toString(){
+		return String.format("%d records, %d bytes, %d frames in %.1f ms (%.0f frames/s, %d bad, %d timeouts, "
+				+ "%d bytes skipped); commands: %d matched, %d missing, %d extra",
+				recordCount, byteCount, frameCount, elapsedNanos / 1e6, getFramesPerSecond(),
+				robot.dataParser.getBadFrameCount(), robot.dataParser.getTimeoutCount(), skippedBytes,
+				matchedCommands, missingCommands, extraCommands)
+				+ (firstExtra != null ? "; first extra " + firstExtra : "");
+	}
+	
+	/**
+	 * Keeps every command the replayed robot writes, with the replay clock's time.
+	 */
+	private class CaptureTransport implements SerialTransport {
+		
+		final List<byte[]> commands = new ArrayList<byte[]>();
+		final List<Long> times = new ArrayList<Long>();	// replay clock, which starts at the first record
+		
+		@Override
+		public void open(int baudRate) throws IOException {
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return 0;
+		}
+		
+		@Override
+		public int read(byte[] dst, int off, int len) throws IOException {
+			return 0;
+		}
+		
+		@Override
+		public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long now = replayClock.nanoTime();
+			for(int i = offset; i < offset + length; i++){
+				commands.add(Arrays.copyOf(srcs[i].array(), srcs[i].limit()));
+				times.add(now);
+			}
+		}
+		
+		@Override
+		public void setDataListener(DataListener listener) {
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+		@Override
+		public String getName() {
+			return "replay of " + directory;
+		}
+		
+	}
+	
+	/**
+	 * Runs every task on the calling thread, so EXECUTOR listeners run in step with the replay.
+	 */
+	private static class DirectExecutor extends AbstractExecutorService {
+		
+		private volatile boolean shutdown = false;
+		
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+		
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+		
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return new ArrayList<Runnable>();
+		}
+		
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+		
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+		
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return shutdown;
+		}
+		
+	}
+	
+	/**
+	 * Replays a recording as fast as possible and reports decode throughput.
+	 * Usage: CreateReplay directory [channel] [POLL|STREAM] [speed]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0){
+			System.out.println("Usage: CreateReplay directory [channel] [POLL|STREAM] [speed]");
+			return;
+		}
+		File dir = new File(args[0]);
+		int channel = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		AcquisitionMode acqMode = args.length > 2 ? AcquisitionMode.valueOf(args[2]) : AcquisitionMode.POLL;
+		
+		CreateReplay replay = new CreateReplay(dir, channel, CreateMode.FULL, acqMode);
+		if(args.length > 3){
+			replay.setSpeed(Double.parseDouble(args[3]));
+		}
+		final AtomicInteger bumps = new AtomicInteger();
+		replay.getRobot().addSensorListener(BooleanSensor.BUMP_RIGHT, Edge.RISING, new SensorListener(){
+			@Override
+			public void sensorChanged(SensorEvent event) {
+				bumps.incrementAndGet();
+			}
+		});
+		System.out.println(replay.replay());
+		System.out.println(bumps.get() + " right bumps replayed.");
+	}
+	
+}
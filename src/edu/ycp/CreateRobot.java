@@ -6,16 +6,36 @@
 
 package edu.ycp;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Vector;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 
+import edu.ycp.SensorEvent.Edge;
+import edu.ycp.SensorEventDispatcher.DispatchMode;
+import edu.ycp.comm.ByteRingBuffer;
+import edu.ycp.comm.ByteRingBuffer.OverflowPolicy;
+import edu.ycp.comm.Clock;
+import edu.ycp.comm.CommandMailbox;
 import edu.ycp.comm.CreateHardwareManager;
+import edu.ycp.comm.ExecutorFactory;
+import edu.ycp.comm.FlightRecorder;
+import edu.ycp.comm.LatencyHistogram;
+import edu.ycp.comm.LinkMetrics;
+import edu.ycp.comm.RxtxTransport;
+import edu.ycp.comm.SerialTransport;
+import edu.ycp.comm.TelemetryArchive;
+import edu.ycp.comm.TickScheduler;
 
 /**
  * Main class for interacting with the Create robot using the OI specification.
@@ -25,67 +45,47 @@ import edu.ycp.comm.CreateHardwareManager;
  */
 public class CreateRobot {
 	
-	private CreateMode currCreateMode;
+	private volatile CreateMode currCreateMode;	// null until the Create has reported its mode
 	private final int MIN_UPDATE_PERIOD = 30;	//note, OI docs say 15 ms - I use 30 ms just in case
 	
 	private final int MAX_CREATE_VEL = 500; // mm/s
 	private final int MAX_CREATE_RAD = 2000; // mm
 	
-	private final float WHEELBASE = 266.7f; // in mm; 10.5 inches measured
+	public static final float WHEELBASE = 266.7f; // in mm; 10.5 inches measured
 	private final float WHEEL_RADIUS = 38.1f; // in mm; 1.5 inches measured
 		
 	private final CreateHardwareManager hardwareManager;
-	final BlockingQueue<ByteBuffer> dataQueue;
-	final BlockingQueue<ByteBuffer> commandQueue;
+	final ByteRingBuffer dataBuffer;
+	final CommandMailbox commandMailbox;
 	final SensorDataParser dataParser;
 	
-	private volatile boolean robotStopRequested;	
+	private final AtomicBoolean stopRequested = new AtomicBoolean(false);
 	
-	private final ExecutorService executor; // executor service for the data and command Q management
-	private final Vector<Future<?>> tasks;	
+	private final ExecutorService executor; // the hardware and data tasks; null under a runtime
+	private final CopyOnWriteArrayList<Future<?>> tasks;	
+	private final Runnable dataRunner;
+	private final Runnable hardwareRunner;
+	private final Runnable drainTask;
+	private final AtomicInteger drainRequests = new AtomicInteger();
+	private final RobotRuntime runtime;	// null when the robot runs on its own threads
+	private final Clock clock;	// every timed wait of the robot's threads goes through this
 	
-	/*
-	 * Private, volatile data members for outside access.
-	 */
-	private volatile boolean wheelDropLeft;
-	private volatile boolean wheelDropRight;
-	private volatile boolean casterDrop;
-	private volatile boolean bumpLeft;
-	private volatile boolean bumpRight;
-	private volatile boolean advanceButtonPress;
-	private volatile boolean playButtonPress;
-	
-	private volatile ChargingState currChargeState;
-	
-	private volatile float reqVelocity;			// in mm/s
-	private volatile float reqRadius;			// in mm
-	private volatile float reqRightVelocity;	// in mm/s
-	private volatile float reqLeftVelocity;		// in mm/s
-	
-	private volatile float distance;	// distance traveled in mm since last request
-	private volatile float angle;		// angle rotated in degrees since last request
+	// completes once the Create reports the requested mode
+	private final CompletableFuture<CreateRobot> startup = new CompletableFuture<CreateRobot>();
+	private static final long DEFAULT_STARTUP_TIMEOUT = 5000;	// ms
+	private volatile long startupDeadline;	// clock time
 	
-	private volatile boolean wall;
-	private volatile boolean cliffLeft;
-	private volatile boolean cliffLeftFront;
-	private volatile boolean cliffRightFront;
-	private volatile boolean cliffRight;
-	private volatile boolean virtualWall;
-	
-	private volatile float batteryVoltage;	// mV
-	private volatile float batteryCurrent;	// mA
-	private volatile float batteryCharge;	// in mAh
-	private volatile short batteryTemp; // in C
-	private volatile float batteryCapacity; // in mAh
-	
-	private volatile int wallSignal;
-	private volatile int cliffLeftSignal;
-	private volatile int cliffLeftFrontSignal;
-	private volatile int cliffRightFrontSignal;
-	private volatile int cliffRightSignal;
-	
-	private volatile byte cargoDIN;
-	private volatile int cargoAIN;
+	// the latest decoded frame; the only sensor state readers ever touch
+	private volatile SensorSnapshot snapshot = new SensorSnapshot();
+	private long frameCount = 0;	// data thread only
+	private final LinkMetrics metrics;
+	private final SensorEventDispatcher eventDispatcher;
+	private volatile FlightRecorder flightRecorder;	// null: nothing is recorded
+	private volatile int recorderChannel;
+	private volatile boolean verbose = false;
+	private volatile TelemetryArchive telemetryArchive;	// null: nothing is archived
+	private volatile int archiveChannel;
+	volatile FrameSink frameSink;	// null: frames go to processData()
 	
 	public enum CreateMode {
 		OFF, PASSIVE, SAFE, FULL;
@@ -95,185 +95,613 @@ public class CreateRobot {
 		NOT, RECOND, FULL, TRICKLE, WAITING, FAULT;
 	}
 	
+	/**
+	 * POLL requests group 6 once per update period; STREAM has the Create push group 6 every 15 ms.
+	 */
+	public enum AcquisitionMode {
+		POLL, STREAM;
+	}
+	
 	/**
 	 * Creates a robot at serialPortName that updates local sensor data at the period of updatePeriod
 	 * (in ms) with the robot operating in desired initMode. This class is the main interface to the underlying iRobot
-	 * Create.
+	 * Create. Blocks until the Create reports the requested mode; use connect() to start up without blocking.
 	 * 
 	 * @param serialPortName
 	 * @param updatePeriod
 	 * @param initMode
 	 */
 	public CreateRobot(String serialPortName, CreateMode initMode){
+		this(serialPortName, initMode, AcquisitionMode.POLL);
+	}
+	
+	/**
+	 * Creates a robot at serialPortName operating in initMode, acquiring its sensor data with acqMode.
+	 * Blocks until the Create reports the requested mode.
+	 * 
+	 * @param serialPortName
+	 * @param initMode
+	 * @param acqMode
+	 * @throws IllegalStateException if the port cannot be opened or the Create does not answer in time
+	 */
+	public CreateRobot(String serialPortName, CreateMode initMode, AcquisitionMode acqMode){
+		this(new RxtxTransport(serialPortName), initMode, acqMode);
+	}
+	
+	/**
+	 * Creates a robot on the far end of transport, e.g. a simulator behind a LoopbackTransport.
+	 * Blocks until the Create reports the requested mode.
+	 * 
+	 * @param transport - not yet opened
+	 * @param initMode
+	 * @param acqMode
+	 * @throws IllegalStateException if the transport cannot be opened or the Create does not answer in time
+	 */
+	public CreateRobot(SerialTransport transport, CreateMode initMode, AcquisitionMode acqMode){
+		this(transport, initMode, acqMode, Clock.SYSTEM, ExecutorFactory.getDefault(), null);
+		try {
+			start(DEFAULT_STARTUP_TIMEOUT).join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("CreateRobot on " + transport.getName() + " failed to start", e.getCause());
+		}
+	}
+	
+	/**
+	 * Starts a robot at serialPortName without blocking the caller. The future completes once the
+	 * Create reports initMode (SAFE for anything other than FULL) in its OI_MODE packet, and completes
+	 * exceptionally if the port cannot be opened or the Create has not answered within timeoutMs; in
+	 * that case the robot's threads are already shut down.
+	 * 
+	 * @param serialPortName
+	 * @param initMode
+	 * @param acqMode
+	 * @param timeoutMs
+	 * @return future of the running robot
+	 */
+	public static CompletableFuture<CreateRobot> connect(String serialPortName, CreateMode initMode, 
+			AcquisitionMode acqMode, long timeoutMs){
+		return connect(new RxtxTransport(serialPortName), initMode, acqMode, timeoutMs);
+	}
+	
+	/**
+	 * As connect(String, ...), over any transport.
+	 * 
+	 * @param transport - not yet opened
+	 * @param initMode
+	 * @param acqMode
+	 * @param timeoutMs
+	 * @return future of the running robot
+	 */
+	public static CompletableFuture<CreateRobot> connect(SerialTransport transport, CreateMode initMode, 
+			AcquisitionMode acqMode, long timeoutMs){
+		return connect(transport, initMode, acqMode, timeoutMs, Clock.SYSTEM);
+	}
+	
+	/**
+	 * As connect(SerialTransport, ...), with every timed wait of the robot (hardware tick, data
+	 * wait and timeoutMs itself) measured on clock. With a VirtualClock the robot's two threads are
+	 * registered participants from here until requestStop().
+	 * 
+	 * @param transport - not yet opened
+	 * @param initMode
+	 * @param acqMode
+	 * @param timeoutMs
+	 * @param clock
+	 * @return future of the running robot
+	 */
+	public static CompletableFuture<CreateRobot> connect(SerialTransport transport, CreateMode initMode, 
+			AcquisitionMode acqMode, long timeoutMs, Clock clock){
+		return connect(transport, initMode, acqMode, timeoutMs, clock, ExecutorFactory.getDefault());
+	}
+	
+	/**
+	 * As connect(SerialTransport, ..., Clock), with the robot's two tasks and its default listener
+	 * thread made by executors, e.g. ExecutorFactory.virtualThreads().
+	 * 
+	 * @param transport - not yet opened
+	 * @param initMode
+	 * @param acqMode
+	 * @param timeoutMs
+	 * @param clock
+	 * @param executors
+	 * @return future of the running robot
+	 */
+	public static CompletableFuture<CreateRobot> connect(SerialTransport transport, CreateMode initMode, 
+			AcquisitionMode acqMode, long timeoutMs, Clock clock, ExecutorFactory executors){
+		return new CreateRobot(transport, initMode, acqMode, clock, executors, null).start(timeoutMs);
+	}
+	
+	/**
+	 * Builds everything but touches neither the port nor any thread; see start(). A robot with a
+	 * runtime has no threads of its own: the runtime ticks it and parses its data on shared threads.
+	 */
+	CreateRobot(SerialTransport transport, CreateMode initMode, AcquisitionMode acqMode, final Clock clock, 
+			ExecutorFactory executors, RobotRuntime runtime){
 
-		dataQueue = new LinkedBlockingQueue<ByteBuffer>();
-		commandQueue = new LinkedBlockingQueue<ByteBuffer>();
-		
-		hardwareManager = new CreateHardwareManager(serialPortName, initMode, dataQueue, commandQueue);
-		// We need to block here until the serial port is online.
-		while(!hardwareManager.isInitialized());
-		
-		// TODO: implement mode initialization
-		currCreateMode = initMode;
+		this.clock = clock;
+		this.runtime = runtime;
+		dataBuffer = new ByteRingBuffer(ByteRingBuffer.DEFAULT_CAPACITY, OverflowPolicy.DROP_NEWEST, clock);
+		commandMailbox = new CommandMailbox(clock);
 		
-		dataParser = new SensorDataParser();
+		hardwareManager = new CreateHardwareManager(transport, initMode, acqMode, dataBuffer, commandMailbox, clock);
 		
-		executor = Executors.newFixedThreadPool(3);
+		dataParser = new SensorDataParser(acqMode);
+		dataParser.setRequestLog(hardwareManager.getRequestLog());
+		metrics = hardwareManager.getMetrics();
+		metrics.setParseFailureSource(new LongSupplier(){
+
+			@Override
+			public long getAsLong() {
+				return dataParser.getBadFrameCount();
+			}
+			
+		});
 		
-		robotStopRequested = false;		
+		// one thread ticks the hardware, one parses what comes back
+		executor = (runtime == null) ? executors.newExecutor("CreateRobot-" + transport.getName(), 2) : null;
+		eventDispatcher = new SensorEventDispatcher(executors);
 		
-		Runnable dataRunner = new Runnable(){
+		dataRunner = new Runnable(){
 
 			@Override
 			public void run() {
-				// take from the data Q - blocks if there is no command
-				while(!Thread.currentThread().isInterrupted()){
-					try{
-						ByteBuffer incomingBuf = dataQueue.take();
-						
-						// parse the sensor data
-						dataParser.parseData(incomingBuf);
-						if(dataParser.isDataBufReady()){
-							// get it and populate the local variables!
-							int lengthOfData = dataParser.getSensorDataBuffer().array().length;
-							byte[] freshData = new byte[lengthOfData];			
-							System.arraycopy(dataParser.getSensorDataBuffer().array(), 0, freshData, 0, lengthOfData);
-							processData(freshData);
-							
+				// parse straight out of the receive ring - blocks if there is no data
+				try{
+					while(!Thread.currentThread().isInterrupted()){
+						try{
+							dataBuffer.awaitData(MIN_UPDATE_PERIOD, TimeUnit.MILLISECONDS);
+							drainData();
+						} catch(InterruptedException e){
+							Thread.currentThread().interrupt();
 						}
-					} catch(InterruptedException e){
-						Thread.currentThread().interrupt();
-						System.err.println(Thread.currentThread().getName() + ": Data task stopped.");
 					}
+					System.err.println(Thread.currentThread().getName() + ": Data task stopped.");
+				} finally{
+					clock.deregister();
 				}
 			}
 			
 		};
-
-		Runnable createRunner = new Runnable(){
+		
+		hardwareRunner = new Runnable(){
 
 			@Override
 			public void run() {
-				
-				while(!robotStopRequested){
-					try {
-						Thread.sleep(MIN_UPDATE_PERIOD);
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-					}
-				}
-				hardwareManager.requestStop();
-				for(Future<?> currTask : tasks){
-					currTask.cancel(true);
+				try{
+					hardwareManager.run();
+				} finally{
+					clock.deregister();
 				}
-				executor.shutdown();
-				System.out.println(Thread.currentThread().getName() + ": CreateRobot stopped.");
-				
 			}
 			
 		};
 		
-		tasks = new Vector<Future<?>>();
-		tasks.add(this.executor.submit(hardwareManager));
-		tasks.add(this.executor.submit(dataRunner));
-		tasks.add(this.executor.submit(createRunner));
+		// a CreateFleet runs this whenever data arrives or a tick passes; at most one copy runs at a time
+		drainTask = new Runnable(){
+
+			@Override
+			public void run() {
+				int requests;
+				do{
+					requests = drainRequests.get();
+					drainData();
+				} while(drainRequests.addAndGet(-requests) != 0);
+			}
+			
+		};
 		
+		tasks = new CopyOnWriteArrayList<Future<?>>();
 	}
-
-	public final void requestStop() {		
-		robotStopRequested = true;
-		System.out.println(Thread.currentThread() + " requesting stop...");
+	
+	/**
+	 * Parses everything in the receive ring without blocking, expires overdue poll responses and
+	 * enforces the startup timeout. Only ever runs on one thread at a time.
+	 */
+	final void drainData(){
+		long now = clock.nanoTime();
+		dataParser.checkTimeout(now);
+		if(!startup.isDone() && now - startupDeadline >= 0){
+			startup.completeExceptionally(new TimeoutException("no OI mode reply from " + hardwareManager.getTransport().getName()));
+			return;
+		}
+		if(dataBuffer.available() == 0){
+			return;
+		}
+		dataParser.setSensorRequest(hardwareManager.getActiveRequest());
+		
+		// one read may hold the end of one frame and the start of the next
+		int readable;
+		while((readable = dataBuffer.contiguousReadable()) > 0){
+			int used = dataParser.parseData(dataBuffer.array(), dataBuffer.getReadOffset(), readable);
+			FlightRecorder recorder = flightRecorder;
+			if(recorder != null){
+				recorder.record(now, recorderChannel, FlightRecorder.RX, dataBuffer.array(), dataBuffer.getReadOffset(), used);
+			}
+			dataBuffer.advance(used);
+			if(dataParser.isDataBufReady()){
+				long requested = dataParser.getFrameRequestTime();
+				long parsed = clock.nanoTime();
+				metrics.recordFrame(parsed, dataParser.getFrameRequest().getResponseSize(), 
+						(requested != SensorDataParser.NO_REQUEST_TIME) ? parsed - requested : -1);
+				FrameSink sink = frameSink;
+				if(sink != null){
+					sink.frame(now, dataParser.getSensorDataBuffer().array(), dataParser.getFrameRequest());
+				}
+				else{
+					// populate the local variables straight from the parser's buffer
+					processData(dataParser.getSensorDataBuffer().array(), dataParser.getFrameRequest());
+				}
+			}
+		}
 	}
-
-	private final void processData(byte[] freshData) {
-
-		// convert the bits to booleans based on location in the first byte
-		this.bumpRight = ((freshData[0] & 0x01) != 0);
-		this.bumpLeft = (( (freshData[0] >> 1) & 0x01) != 0);
-		this.wheelDropRight = (( (freshData[0] >> 2) & 0x01) != 0);
-		this.wheelDropLeft = (( (freshData[0] >> 3) & 0x01) != 0);
-		this.casterDrop = (( (freshData[0] >> 4) & 0x01) != 0);
-		
-		// other boolean data values - bytes 1->6
-		this.wall = (freshData[1] != 0);
-		this.cliffLeft = (freshData[2] != 0);
-		this.cliffLeftFront = (freshData[3] != 0);
-		this.cliffRightFront = (freshData[4] != 0);
-		this.cliffRight = (freshData[5] != 0);
-		this.virtualWall = (freshData[6] != 0);
-		
-		// skipping low side driver for now...byte index 7
-		// bytes 8and 9 unused		
-		// IR byte not implemented...byte index 10
-		// buttons- byte 11
-		this.advanceButtonPress = ( ((freshData[11] >> 2) & 0x01) != 0 );
-		this.playButtonPress = ((freshData[11] & 0x01) != 0);
-		
-		// convert the 2 bytes for distance/angle into a single int, then float
-		int distanceInt = ((int) freshData[12]) << 8; // load high byte
-		distanceInt |= ((int) freshData[13]);
-		this.distance += (float) distanceInt; // accumulates the linear distance traveled		
-		
-		int angleInt = ((int) freshData[14]) << 8; // load high byte
-		angleInt |= ((int) freshData[15]);
-		this.angle += (float) angleInt; // accumulates the angle rotated
-
-		//set charging state
-		switch(freshData[16]){
-		case 0:
-			this.currChargeState = ChargingState.NOT;
-			break;
-		case 1:
-			this.currChargeState = ChargingState.RECOND;
-			break;
-		case 2:
-			this.currChargeState = ChargingState.FULL;
-			break;
-		case 3:
-			this.currChargeState = ChargingState.TRICKLE;
-			break;
-		case 4:
-			this.currChargeState = ChargingState.WAITING;
-			break;
-		case 5:
-			this.currChargeState = ChargingState.FAULT;
-			break;
+	
+	/**
+	 * Queues drainTask on the runtime's threads unless it is already queued or running.
+	 */
+	final void scheduleDrain(){
+		if(drainRequests.getAndIncrement() == 0){
+			runtime.execute(drainTask);
 		}
+	}
+	
+	/**
+	 * One CreateFleet tick: the hardware manager's tick, then a data drain so timeouts are checked
+	 * even when nothing arrives.
+	 * @param tickStart
+	 * @param tickPeriodNanos
+	 */
+	final void fleetTick(long tickStart, long tickPeriodNanos){
+		hardwareManager.tick(tickStart, tickPeriodNanos);
+		scheduleDrain();
+	}
+	
+	final CreateHardwareManager getHardwareManager(){
+		return hardwareManager;
+	}
+	
+	/**
+	 * Opens the port, then starts the hardware and data tasks (or hands the robot to its runtime).
+	 * The mode handshake finishes in processData().
+	 * @param timeoutMs
+	 * @return startup future
+	 */
+	final CompletableFuture<CreateRobot> start(long timeoutMs){
 		
-		// need to handle unsigned int here!		
-		// help from http://darksleep.com/player/JavaAndUnsignedTypes.html
-		char voltValue = bytesToChar(freshData[17], freshData[18]);
-		this.batteryVoltage = voltValue;
+		// the data side enforces the startup timeout, on the robot's clock
+		startupDeadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
 		
-		int currentInt = ( ((int) freshData[19]) << 8 | ((int) freshData[20]) );
-		this.batteryCurrent = (float) currentInt;
+		startup.whenComplete(new BiConsumer<CreateRobot, Throwable>(){
+			@Override
+			public void accept(CreateRobot robot, Throwable failure) {
+				if(failure != null){
+					System.err.println("CreateRobot failed to start: " + failure);
+					requestStop();
+				}
+			}
+		});
 		
-		this.batteryTemp = (short) freshData[21];
+		if(runtime != null){
+			runtime.execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						hardwareManager.open();
+					} catch (IOException e) {
+						startup.completeExceptionally(e);
+						return;
+					}
+					runtime.attach(CreateRobot.this);
+					if(stopRequested.get()){
+						// requestStop() ran while the port was opening
+						runtime.detach(CreateRobot.this);
+						hardwareManager.close();
+					}
+				}
+			});
+			return startup;
+		}
 		
-		char chargeValue = bytesToChar(freshData[22], freshData[23]);
-		this.batteryCharge = chargeValue;
+		// both tasks take part from now on, so the clock cannot run ahead while the port opens
+		clock.register();
+		clock.register();
 		
-		char capValue = bytesToChar(freshData[24], freshData[25]);
-		this.batteryCapacity = capValue;
+		CompletableFuture.runAsync(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					hardwareManager.open();
+				} catch (IOException e) {
+					clock.deregister();
+					clock.deregister();
+					startup.completeExceptionally(e);
+					return;
+				}
+				if(stopRequested.get()){
+					clock.deregister();
+					clock.deregister();
+					return;
+				}
+				tasks.add(executor.submit(hardwareRunner));
+				tasks.add(executor.submit(dataRunner));
+			}
+		}, executor);
+		
+		return startup;
+	}
+
+	/**
+	 * Stops the robot and releases its threads and port, right away on the calling thread. Calling
+	 * it again does nothing.
+	 */
+	public final void requestStop() {
+		if(!stopRequested.compareAndSet(false, true)){
+			return;
+		}
+		System.out.println(Thread.currentThread() + " requesting stop...");
+		
+		hardwareManager.requestStop();
+		eventDispatcher.shutdown();
+		if(runtime != null){
+			runtime.detach(this);
+			hardwareManager.close();
+		}
+		else{
+			// interrupting the tasks ends them; the hardware task closes the port on its way out
+			for(Future<?> currTask : tasks){
+				currTask.cancel(true);
+			}
+			executor.shutdown();
+		}
+		if(!startup.isDone()){
+			startup.completeExceptionally(new IllegalStateException("CreateRobot stopped before it started"));
+		}
+		System.out.println(Thread.currentThread().getName() + ": CreateRobot stopped.");
+	}
+	
+	public boolean isStopRequested() {
+		return stopRequested.get();
+	}
+	
+	/**
+	 * Stops the wheels immediately. Unlike drive(0, 0), the stop is written to the Create from the
+	 * calling thread instead of waiting for the next tick, and any drive or driveDirect command
+	 * that has not gone out yet is thrown away. The robot keeps running; the next drive command
+	 * moves it again.
+	 * @return time from the call until the stop was handed to the serial port, in ns
+	 */
+	public final long emergencyStop() {
+		return hardwareManager.emergencyStop();
+	}
+	
+	/**
+	 * @return worst emergencyStop() time-to-wire so far, in ns
+	 */
+	public long getMaxStopLatency() {
+		return hardwareManager.getMaxStopLatency();
+	}
+	
+	/**
+	 * Pauses the sensor stream (STREAM mode only). Sensor values keep their last received state.
+	 */
+	public final void pauseSensorStream() {
+		hardwareManager.pauseStream();
+	}
+	
+	/**
+	 * Resumes a paused sensor stream (STREAM mode only).
+	 */
+	public final void resumeSensorStream() {
+		hardwareManager.resumeStream();
+	}
+	
+	public AcquisitionMode getAcquisitionMode() {
+		return hardwareManager.getAcquisitionMode();
+	}
+	
+	/**
+	 * Restricts sensor acquisition to the given packets; getters for packets outside the set keep
+	 * their last value. A small set shortens every response on the wire, which lets the hardware
+	 * manager poll at the OI's 15 ms floor. Passing every PacketID goes back to group 6.
+	 * @param packets
+	 */
+	public final void setSensorPackets(Set<PacketID> packets) {
+		hardwareManager.setSensorRequest(new SensorRequest(packets));
+	}
+	
+	public Set<PacketID> getSensorPackets() {
+		return hardwareManager.getSensorRequest().getPackets();
+	}
+	
+	/**
+	 * Sets how often packet is refreshed in POLL mode. Fast, safety-critical packets should stay at 0
+	 * (every tick); slowly changing ones like the battery packets can be polled far less often.
+	 * @param packet
+	 * @param periodMs
+	 */
+	public final void setSensorPeriod(PacketID packet, long periodMs) {
+		hardwareManager.getSensorScheduler().setPeriod(packet, periodMs);
+	}
+	
+	public long getSensorPeriod(PacketID packet) {
+		return hardwareManager.getSensorScheduler().getPeriod(packet);
+	}
+	
+	/**
+	 * @param packet
+	 * @return robot clock time at which packet was last decoded, or 0 if it never has been
+	 */
+	public long getLastUpdateTime(PacketID packet) {
+		return snapshot.getLastUpdateTime(packet);
+	}
+	
+	/**
+	 * Calls listener from the dispatch thread whenever sensor changes in the direction of edge.
+	 * @param sensor
+	 * @param edge
+	 * @param listener
+	 */
+	public final void addSensorListener(BooleanSensor sensor, Edge edge, SensorListener listener) {
+		eventDispatcher.addListener(sensor, edge, listener, DispatchMode.EXECUTOR);
+	}
+	
+	/**
+	 * Calls listener whenever sensor changes in the direction of edge. INLINE listeners run on the 
+	 * data thread as soon as the frame is decoded and must return quickly.
+	 * @param sensor
+	 * @param edge
+	 * @param listener
+	 * @param mode
+	 */
+	public final void addSensorListener(BooleanSensor sensor, Edge edge, SensorListener listener, DispatchMode mode) {
+		eventDispatcher.addListener(sensor, edge, listener, mode);
+	}
+	
+	/**
+	 * Calls listener when sensor rises to threshold (RISING) or falls below threshold - hysteresis
+	 * (FALLING).
+	 * @param sensor
+	 * @param threshold
+	 * @param hysteresis
+	 * @param edge
+	 * @param listener
+	 * @param mode
+	 */
+	public final void addThresholdListener(AnalogSensor sensor, int threshold, int hysteresis, Edge edge, 
+			SensorListener listener, DispatchMode mode) {
+		eventDispatcher.addListener(sensor, threshold, hysteresis, edge, listener, mode);
+	}
+	
+	public final void removeSensorListener(SensorListener listener) {
+		eventDispatcher.removeListener(listener);
+	}
+	
+	/**
+	 * Records every byte received and every command sent from now on. One recorder can be shared
+	 * by several robots, each with its own channel.
+	 * @param recorder - null to stop recording
+	 * @param channel
+	 */
+	public final void setFlightRecorder(FlightRecorder recorder, int channel) {
+		recorderChannel = channel;
+		flightRecorder = recorder;
+		hardwareManager.setFlightRecorder(recorder, channel);
+	}
+	
+	public FlightRecorder getFlightRecorder() {
+		return flightRecorder;
+	}
+	
+	/**
+	 * Archives every decoded frame from now on. One archive can be shared by several robots, each
+	 * with its own channel.
+	 * @param archive - null to stop archiving
+	 * @param channel
+	 */
+	public final void setTelemetryArchive(TelemetryArchive archive, int channel) {
+		archiveChannel = channel;
+		telemetryArchive = archive;
+	}
+	
+	public TelemetryArchive getTelemetryArchive() {
+		return telemetryArchive;
+	}
+	
+	/**
+	 * Replaces the single thread EXECUTOR listeners run on by default.
+	 * @param executor
+	 */
+	public final void setListenerExecutor(ExecutorService executor) {
+		eventDispatcher.setDispatchExecutor(executor);
+	}
+	
+	/**
+	 * @return number of commands replaced by a newer command with the same opcode before they
+	 * reached the Create
+	 */
+	public long getSupersededCommandCount() {
+		return commandMailbox.getSupersededCount();
+	}
+	
+	/**
+	 * Fixes the hardware loop period instead of letting it follow the sensor request.
+	 * @param periodMs - at least 15 ms
+	 */
+	public final void setUpdatePeriod(long periodMs) {
+		hardwareManager.setUpdatePeriod(periodMs);
+	}
+	
+	/**
+	 * Prints the wheel speeds of every go() and every command the hardware manager writes. Off by
+	 * default: PrintStream locks, which would pin a virtual thread on the command path.
+	 * @param verbose
+	 */
+	public final void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+		hardwareManager.setVerbose(verbose);
+	}
+	
+	/**
+	 * @return the hardware loop's scheduler: period, jitter and missed deadline statistics
+	 */
+	public TickScheduler getTickScheduler() {
+		return hardwareManager.getTickScheduler();
+	}
+	
+	/**
+	 * @return time from each POLL request being written to the port to its response being parsed,
+	 * in ns; empty in STREAM mode
+	 */
+	public LatencyHistogram getFrameLatency() {
+		return metrics.getFrameLatency();
+	}
+	
+	/**
+	 * @return counters and timings of the serial link: bytes, frames, parse failures, queue depths,
+	 * command age and write time. Also registered over JMX while the robot is connected.
+	 */
+	public LinkMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return number of sensor frames rejected by the parser since startup
+	 */
+	public long getBadFrameCount() {
+		return dataParser.getBadFrameCount();
+	}
+
+	/**
+	 * Decodes one response into a new snapshot and publishes it. freshData holds the packets of
+	 * request back to back, in request order.
+	 * @param freshData
+	 * @param request
+	 */
+	private final void processData(byte[] freshData, SensorRequest request) {
 		
-		// strength of the wall and cliff sensors
-		this.wallSignal = bytesToChar(freshData[26], freshData[27]);
-		this.cliffLeftSignal = bytesToChar(freshData[28], freshData[29]);
-		this.cliffLeftFrontSignal = bytesToChar(freshData[30], freshData[31]);
-		this.cliffRightFrontSignal = bytesToChar(freshData[32], freshData[33]);
-		this.cliffRightSignal = bytesToChar(freshData[34], freshData[35]);
+		frameCount++;
+		SensorSnapshot prev = snapshot;
+		SensorSnapshot next = new SensorSnapshot(prev, freshData, request, frameCount, clock.nanoTime());
+		snapshot = next;
 		
-		this.cargoDIN = freshData[36];
-		this.cargoAIN = bytesToChar(freshData[37], freshData[38]);
+		TelemetryArchive archive = telemetryArchive;
+		if(archive != null){
+			archive.append(archiveChannel, next.getTimestamp(), freshData, request);
+		}
 		
-		// skipping all other bytes up to the requested velocity, etc.
-		this.reqVelocity = bytesToInt(freshData[44], freshData[45]);		
-		this.reqRadius = (float) ( ((int) freshData[46]) << 8 | (int) freshData[47] );
-		this.reqRightVelocity = bytesToInt(freshData[48], freshData[49]);
-		this.reqLeftVelocity = bytesToInt(freshData[50], freshData[51]);
+		if(next.isUpdated(PacketID.OI_MODE)){
+			currCreateMode = next.getOIMode();
+			if(!startup.isDone() && currCreateMode == hardwareManager.getTargetMode()){
+				hardwareManager.confirmMode();
+				startup.complete(this);
+			}
+		}
+		eventDispatcher.dispatch(prev, next);
 		
 	}
 
+	/**
+	 * @return the mode the Create last reported, or null before the first report
+	 */
 	public CreateMode getCurrCreateMode() {
 		
 		return currCreateMode;
@@ -289,11 +717,13 @@ public class CreateRobot {
 	 */
 	public final void go(float v, float omega){
 		
-		float rightSpeed = (2*v + omega*this.WHEELBASE)/2;
+		float rightSpeed = (2*v + omega*WHEELBASE)/2;
 
-		float leftSpeed = (2*v - omega*this.WHEELBASE)/2;
+		float leftSpeed = (2*v - omega*WHEELBASE)/2;
 		
-		System.err.println("Right speed: " + (int)rightSpeed + ", Left speed: " + (int)leftSpeed);
+		if(verbose){
+			System.err.println("Right speed: " + (int)rightSpeed + ", Left speed: " + (int)leftSpeed);
+		}
 		
 		this.driveDirect(rightSpeed, leftSpeed);
 
@@ -426,156 +856,142 @@ public class CreateRobot {
 	
 	//NOTE: songs not currently planned for implementation
 	
+	/**
+	 * @return the latest decoded sensor frame. Values read from one snapshot always come from the
+	 * same frame, unlike a series of calls to the individual getters below.
+	 */
+	public SensorSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
 	public float getReqVelocity() {
-		return reqVelocity;
+		return snapshot.getReqVelocity();
 	}
 
 	public ChargingState getCurrChargeState() {
-		return currChargeState;
+		return snapshot.getCurrChargeState();
 	}
 
 	public boolean isAdvanceButtonPress() {
-		return advanceButtonPress;
+		return snapshot.isAdvanceButtonPress();
 	}
 
 	public boolean isPlayButtonPress() {
-		return playButtonPress;
+		return snapshot.isPlayButtonPress();
 	}
 
 	public boolean isWheelDropLeft() {
-		return wheelDropLeft;
+		return snapshot.isWheelDropLeft();
 	}
 
 	public boolean isWheelDropRight() {
-		return wheelDropRight;
+		return snapshot.isWheelDropRight();
 	}
 
 	public boolean isCasterDrop() {
-		return casterDrop;
+		return snapshot.isCasterDrop();
 	}
 
 	public boolean isBumpLeft() {
-		return bumpLeft;
+		return snapshot.isBumpLeft();
 	}
 
 	public boolean isBumpRight() {
-		return bumpRight;
+		return snapshot.isBumpRight();
 	}
 
 	public float getReqRadius() {
-		return reqRadius;
+		return snapshot.getReqRadius();
 	}
 
 	public float getReqRightVelocity() {
-		return reqRightVelocity;
+		return snapshot.getReqRightVelocity();
 	}
 
 	public float getReqLeftVelocity() {
-		return reqLeftVelocity;
+		return snapshot.getReqLeftVelocity();
 	}
 
 	public float getDistance() {
-		return distance;
+		return snapshot.getDistance();
 	}
 
 	public float getAngle() {
-		return angle;
+		return snapshot.getAngle();
 	}
 
 	public boolean isWall() {
-		return wall;
+		return snapshot.isWall();
 	}
 
 	public boolean isCliffLeft() {
-		return cliffLeft;
+		return snapshot.isCliffLeft();
 	}
 
 	public boolean isCliffLeftFront() {
-		return cliffLeftFront;
+		return snapshot.isCliffLeftFront();
 	}
 
 	public boolean isCliffRightFront() {
-		return cliffRightFront;
+		return snapshot.isCliffRightFront();
 	}
 
 	public boolean isCliffRight() {
-		return cliffRight;
+		return snapshot.isCliffRight();
 	}
 
 	public boolean isVirtualWall() {
-		return virtualWall;
+		return snapshot.isVirtualWall();
 	}
 
 	public float getBatteryVoltage() {
-		return batteryVoltage;
+		return snapshot.getBatteryVoltage();
 	}
 
 	public float getBatteryCurrent() {
-		return batteryCurrent;
+		return snapshot.getBatteryCurrent();
 	}
 
 	public float getBatteryCharge() {
-		return batteryCharge;
+		return snapshot.getBatteryCharge();
 	}
 
 	public short getBatteryTemp() {
-		return batteryTemp;
+		return snapshot.getBatteryTemp();
 	}
 
 	public float getBatteryCapacity() {
-		return batteryCapacity;
+		return snapshot.getBatteryCapacity();
 	}
 
 	public int getWallSignal() {
-		return wallSignal;
+		return snapshot.getWallSignal();
 	}
 
 	public int getCliffLeftSignal() {
-		return cliffLeftSignal;
+		return snapshot.getCliffLeftSignal();
 	}
 
 	public int getCliffLeftFrontSignal() {
-		return cliffLeftFrontSignal;
+		return snapshot.getCliffLeftFrontSignal();
 	}
 
 	public int getCliffRightFrontSignal() {
-		return cliffRightFrontSignal;
+		return snapshot.getCliffRightFrontSignal();
 	}
 
 	public int getCliffRightSignal() {
-		return cliffRightSignal;
+		return snapshot.getCliffRightSignal();
 	}
 
 	public byte getCargoDIN() {
-		return cargoDIN;
+		return snapshot.getCargoDIN();
 	}
 
 	public int getCargoAIN() {
-		return cargoAIN;
+		return snapshot.getCargoAIN();
 	}
 
-	/**
-	 * This function effectively creates an unsigned integer. Promotes both input
-	 * bytes to ints and then chops off the top bytes.
-	 * @return
-	 */
-	private final char bytesToChar(byte hb, byte lb){
-		
-		return (char) ((0x000000FF & ((int)hb)) << 8 | (0x000000FF & ((int)lb)));
-		
-	}
-	
-	/**
-	 * This functions simply combines two incoming bytes into a signed int value.
-	 * @param hb
-	 * @param lb
-	 * @return
-	 */
-	private final int bytesToInt(byte hb, byte lb){
-		
-		return (int) ((int)hb << 8) | (int)lb;
-	}
-	
 	public static void main(String[] args){
 		
 		System.out.println("Start a new CreateRobot:");
@@ -587,23 +1003,20 @@ public class CreateRobot {
 		byte intensity = 0x7F;
 
 		
-		while(execCount < 8){
-			
-			if(robot.isBumpRight()){
-				System.out.println("Bumped right side!");
-			}
-			if(robot.isBumpLeft()){
-				System.out.println("Bumped left side!");
-			}
-			if(robot.wheelDropRight){
-				System.out.println("Wheel dropped right side!");
-			}
-			if(robot.wheelDropLeft){
-				System.out.println("Wheel dropped left side!");
-			}
-			if(robot.casterDrop){
-				System.out.println("Caster dropped!");
+		// report bumps and drops as they happen instead of polling for them
+		SensorListener reporter = new SensorListener(){
+			@Override
+			public void sensorChanged(SensorEvent event) {
+				System.out.println("Sensor event: " + event);
 			}
+		};
+		robot.addSensorListener(BooleanSensor.BUMP_RIGHT, Edge.RISING, reporter);
+		robot.addSensorListener(BooleanSensor.BUMP_LEFT, Edge.RISING, reporter);
+		robot.addSensorListener(BooleanSensor.WHEEL_DROP_RIGHT, Edge.RISING, reporter);
+		robot.addSensorListener(BooleanSensor.WHEEL_DROP_LEFT, Edge.RISING, reporter);
+		robot.addSensorListener(BooleanSensor.CASTER_DROP, Edge.RISING, reporter);
+		
+		while(execCount < 8){
 			
 //			System.out.println("Charging state: " + robot.getCurrChargeState());
 //			System.out.println("Battery voltage: " + robot.getBatteryVoltage() + " mV");
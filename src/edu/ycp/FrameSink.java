@@ -0,0 +1,25 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+/**
+ * Takes a robot's parsed frames in place of processData(), e.g. so an offline decoder can build
+ * the snapshots itself on other threads.
+ *
+ * @author pjmartin
+ *
+ */
+interface FrameSink {
+	
+	/**
+	 * @param timestamp - Clock.nanoTime() of the robot when the frame was parsed
+	 * @param frame - the packets of request back to back, in request order; reused after this returns
+	 * @param request
+	 */
+	void frame(long timestamp, byte[] frame, SensorRequest request);
+	
+}
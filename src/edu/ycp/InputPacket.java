@@ -0,0 +1,54 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Generates the sensor input commands (SENSORS, STREAM and PAUSE_RESUME_STREAM) from the OI
+ * specification.
+ * 
+ * @author pjmartin
+ *
+ */
+public class InputPacket {
+
+	public static final byte GROUP_ALL = 6; // packet group 6 = packets 7 through 42
+	
+	public static ByteBuffer generateSensorsCommand(byte packetID){
+		ByteBuffer outBuf = ByteBuffer.allocate(2);
+		outBuf.put(InputCommand.SENSORS.getOpcodeVal());
+		outBuf.put(packetID);
+		return outBuf;
+	}
+	
+	/**
+	 * Asks the Create to stream the listed packets back every 15 ms.
+	 * @param packetIDs
+	 * @return
+	 */
+	public static ByteBuffer generateStreamCommand(byte... packetIDs){
+		ByteBuffer outBuf = ByteBuffer.allocate(2 + packetIDs.length);
+		outBuf.put(InputCommand.STREAM.getOpcodeVal());
+		outBuf.put((byte) packetIDs.length);
+		outBuf.put(packetIDs);
+		return outBuf;
+	}
+	
+	/**
+	 * Pauses (resume = false) or resumes (resume = true) a stream started by the STREAM command.
+	 * @param resume
+	 * @return
+	 */
+	public static ByteBuffer generatePauseResumeCommand(boolean resume){
+		ByteBuffer outBuf = ByteBuffer.allocate(2);
+		outBuf.put(InputCommand.PAUSE_RESUME_STREAM.getOpcodeVal());
+		outBuf.put(resume ? (byte) 1 : (byte) 0);
+		return outBuf;
+	}
+	
+}
@@ -9,61 +9,120 @@ package edu.ycp;
 
 /**
  * This enum organizes the possible packet IDs that the iRobot
- * create could return.
+ * create could return, with what it takes to decode each one: its size, whether the value is
+ * signed, and the scale from the raw value to the units SensorSnapshot reports (mm, degrees,
+ * mV, mA, mAh, C, mm/s). Every value is big endian.
  * 
  * @author pjmartin
  *
  */
 public enum PacketID {
 
-	BUMP_AND_WHEEL((byte) 7),
-	WALL((byte) 8),
-	CLIFF_LEFT((byte) 9),
-	CLIFF_FRONT_LEFT((byte) 10),
-	CLIFF_FRONT_RIGHT((byte) 11),
-	CLIFF_RIGHT((byte) 12),
-	VIRTUAL_WALL((byte) 13),
-	DRIVER_OVERCURRENTS((byte) 14),
-	UNUSED_BYTE1((byte) 15),
-	UNUSED_BYTE2((byte) 16),
-	IR_BYTE((byte) 17),
-	BUTTONS((byte) 18),
-	DISTANCE((byte) 19),
-	ANGLE((byte) 20),
-	CHARGING_STATE((byte) 21),
-	VOLTAGE((byte) 22),
-	CURRENT((byte) 23),
-	BATT_TEMP((byte) 24),
-	BATT_CHARGE((byte) 25),
-	BATT_CAP((byte) 26),
-	WALL_SIGNAL((byte) 27),
-	CLIFF_LEFT_SIGNAL((byte) 28),
-	CLIFF_FRONT_LEFT_SIGNAL((byte) 29),
-	CLIFF_FRONT_RIGHT_SIGNAL((byte) 30),
-	CLIFF_RIGHT_SIGNAL((byte) 31),
-	CARGO_BAY_DIN((byte) 32),
-	CARGO_BAY_ANIN((byte) 33),
-	CHARGE_SRC_AVAIL((byte) 34),
-	OI_MODE((byte) 35),
-	SONG_NUM((byte) 36),
-	SONG_PLAYING((byte) 37),
-	NUM_STREAM_PKTS((byte) 38),
-	REQ_VEL((byte) 39),
-	REQ_RADIUS((byte) 40),
-	REQ_RIGHT_VEL((byte) 41),
-	REQ_LEFT_VEL((byte) 42)
+	BUMP_AND_WHEEL((byte) 7, 1),
+	WALL((byte) 8, 1),
+	CLIFF_LEFT((byte) 9, 1),
+	CLIFF_FRONT_LEFT((byte) 10, 1),
+	CLIFF_FRONT_RIGHT((byte) 11, 1),
+	CLIFF_RIGHT((byte) 12, 1),
+	VIRTUAL_WALL((byte) 13, 1),
+	DRIVER_OVERCURRENTS((byte) 14, 1),
+	UNUSED_BYTE1((byte) 15, 1),
+	UNUSED_BYTE2((byte) 16, 1),
+	IR_BYTE((byte) 17, 1),
+	BUTTONS((byte) 18, 1),
+	DISTANCE((byte) 19, 2, true),
+	ANGLE((byte) 20, 2, true),
+	CHARGING_STATE((byte) 21, 1),
+	VOLTAGE((byte) 22, 2),
+	CURRENT((byte) 23, 2, true),
+	BATT_TEMP((byte) 24, 1, true),
+	BATT_CHARGE((byte) 25, 2),
+	BATT_CAP((byte) 26, 2),
+	WALL_SIGNAL((byte) 27, 2),
+	CLIFF_LEFT_SIGNAL((byte) 28, 2),
+	CLIFF_FRONT_LEFT_SIGNAL((byte) 29, 2),
+	CLIFF_FRONT_RIGHT_SIGNAL((byte) 30, 2),
+	CLIFF_RIGHT_SIGNAL((byte) 31, 2),
+	CARGO_BAY_DIN((byte) 32, 1),
+	CARGO_BAY_ANIN((byte) 33, 2),
+	CHARGE_SRC_AVAIL((byte) 34, 1),
+	OI_MODE((byte) 35, 1),
+	SONG_NUM((byte) 36, 1),
+	SONG_PLAYING((byte) 37, 1),
+	NUM_STREAM_PKTS((byte) 38, 1),
+	REQ_VEL((byte) 39, 2, true),
+	REQ_RADIUS((byte) 40, 2, true),
+	REQ_RIGHT_VEL((byte) 41, 2, true),
+	REQ_LEFT_VEL((byte) 42, 2, true)
 	;
 	
 	private final byte packetID;
+	private final int size;	// in bytes, as returned by the Create
+	private final boolean signed;
+	private final float scale;
 	
-	PacketID(byte id){
+	PacketID(byte id, int size){
+		this(id, size, false);
+	}
+	
+	PacketID(byte id, int size, boolean signed){
+		this(id, size, signed, 1f);
+	}
+	
+	PacketID(byte id, int size, boolean signed, float scale){
 		this.packetID = id;
+		this.size = size;
+		this.signed = signed;
+		this.scale = scale;
 	}
 
 	public byte getPacketID() {
 		return packetID;
 	}
+
+	public int getSize() {
+		return size;
+	}
 	
+	/**
+	 * @return true if the raw value is two's complement
+	 */
+	public boolean isSigned() {
+		return signed;
+	}
+	
+	/**
+	 * @return units per raw count
+	 */
+	public float getScale() {
+		return scale;
+	}
 	
+	/**
+	 * Reads this packet's raw value.
+	 * @param src
+	 * @param offset - where the packet's first (high) byte is
+	 * @return the value, sign extended if the packet is signed
+	 */
+	public final int read(byte[] src, int offset) {
+		if(size == 1){
+			return signed ? src[offset] : src[offset] & 0xFF;
+		}
+		int v = (src[offset] << 8) | (src[offset + 1] & 0xFF);
+		return signed ? v : v & 0xFFFF;
+	}
+	
+	/**
+	 * @param id
+	 * @return the PacketID with the given OI packet number, or null if it is not a single packet ID
+	 */
+	public static PacketID fromPacketID(int id) {
+		int index = id - BUMP_AND_WHEEL.packetID;
+		PacketID[] all = values();
+		if(index < 0 || index >= all.length){
+			return null;
+		}
+		return all[index];
+	}
 	
 }
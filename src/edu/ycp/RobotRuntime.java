@@ -0,0 +1,36 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+/**
+ * Shared threads that run many CreateRobots in place of each robot's own hardware and data
+ * threads, e.g. a CreateFleet or a CreateMultiplexer.
+ *
+ * @author pjmartin
+ *
+ */
+interface RobotRuntime {
+	
+	/**
+	 * Runs task on one of the runtime's threads.
+	 * @param task
+	 */
+	void execute(Runnable task);
+	
+	/**
+	 * Starts ticking robot and reading its data; called once its port is open.
+	 * @param robot
+	 */
+	void attach(CreateRobot robot);
+	
+	/**
+	 * Stops ticking robot; called from its requestStop().
+	 * @param robot
+	 */
+	void detach(CreateRobot robot);
+	
+}
@@ -7,9 +7,25 @@
 package edu.ycp;
 
 import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.comm.RequestLog;
 
 /**
- * Class that parses incoming ByteBuffers from the CreateHardwareManager.
+ * Class that parses incoming ByteBuffers from the CreateHardwareManager. In POLL mode the
+ * incoming bytes are the raw answer to a SENSORS or QUERY_LIST request. In STREAM mode they are
+ * stream frames: [19][n-bytes][packet ID][data]...[packet ID][data][checksum]. Either way the 
+ * layout comes from the SensorRequest the parser was given, and the data bytes (packet IDs
+ * stripped) end up in the sensor data buffer in request order.
+ * 
+ * The parser never assumes the byte stream stays aligned. In STREAM mode a frame with a bad
+ * length, packet ID or checksum is rejected and its bytes are rescanned for the next header,
+ * so a dropped or extra byte costs at most the frame it landed in. In POLL mode, given a 
+ * RequestLog, every response is tied to the request that caused it: bytes that arrive before
+ * any request are skipped, a new request abandons an unfinished response, and a response that
+ * does not complete within the response timeout is dropped.
  * @author pjmartin
  *
  */
@@ -20,57 +36,376 @@ public class SensorDataParser {
 	private boolean isDataBufReady;
 	private int bufferIndex;
 	
+	private final AcquisitionMode acqMode;
+	private volatile SensorRequest pendingRequest;
+	private SensorRequest frameRequest;	// request the current frame is parsed against
+	private int frameSize;
+	private int packetIndex;
+	private int packetBytesLeft;
+	private int checksum;
+	
+	// stream resync: raw bytes of the frame in progress, and bytes waiting to be rescanned
+	private final byte[] rawFrame = new byte[MAX_STREAM_FRAME];
+	private int rawCount;
+	private final byte[] rescan = new byte[2 * MAX_STREAM_FRAME];
+	private int rescanPos;
+	private int rescanLen;
+	
+	// poll correlation
+	private RequestLog requestLog;
+	private boolean awaitingResponse;
+	private long requestSentTime;
+	private long streamPosition;	// total bytes consumed
+	private long responseTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RESPONSE_TIMEOUT);
+	private long frameRequestTime = NO_REQUEST_TIME;
+	
+	private long badFrameCount;
+	private long skippedByteCount;
+	private long timeoutCount;
+	
 	private final int FULL_DATA_SIZE = 52; // bytes
 	
+	public static final int STREAM_HEADER = 19;
+	private static final int MAX_STREAM_FRAME = 2 + 255 + 1; // header, n-bytes, payload, checksum
+	public static final long DEFAULT_RESPONSE_TIMEOUT = 50; // ms
+	public static final long NO_REQUEST_TIME = Long.MIN_VALUE;
+	
 	private enum ParserState {
-		INIT, PARTIAL, COMPLETE;
+		INIT, HEADER, LENGTH, PARTIAL, CHECKSUM, COMPLETE;
 	}
 	
 	public SensorDataParser(){
+		this(AcquisitionMode.POLL);
+	}
+	
+	public SensorDataParser(AcquisitionMode mode){
+		acqMode = mode;
 		currState = ParserState.INIT;
 		sensorDataBuffer = ByteBuffer.allocate(FULL_DATA_SIZE);
 		isDataBufReady = false;
 		bufferIndex = 0;
+		badFrameCount = 0;
+		pendingRequest = SensorRequest.ALL;
+		frameRequest = pendingRequest;
+		frameSize = frameRequest.getResponseSize();
+		awaitingResponse = false;
+		streamPosition = 0;
+	}
+	
+	/**
+	 * Sets the layout used for the next frame. A frame already in progress keeps the layout
+	 * it was started with. In POLL mode with a RequestLog the log decides the layout instead.
+	 * @param request
+	 */
+	public final void setSensorRequest(SensorRequest request){
+		pendingRequest = request;
+	}
+	
+	/**
+	 * Ties POLL mode responses to the requests recorded in log. The log's stream offsets must count
+	 * the same bytes this parser consumes, starting from zero.
+	 * @param log
+	 */
+	public final void setRequestLog(RequestLog log){
+		requestLog = log;
+	}
+	
+	public final void setResponseTimeout(long timeoutMs){
+		responseTimeout = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
 	}
 	
+	/**
+	 * Consumes bytes from inBuf until a full frame has been assembled or inBuf is empty. Bytes
+	 * after a completed frame are left in inBuf, so callers should keep calling until 
+	 * inBuf.hasRemaining() is false. inBuf must be backed by an array.
+	 * @param inBuf
+	 */
 	public final void parseData(ByteBuffer inBuf){
+		int used = parseData(inBuf.array(), inBuf.arrayOffset() + inBuf.position(), inBuf.remaining());
+		inBuf.position(inBuf.position() + used);
+	}
+	
+	/**
+	 * Consumes bytes from src until a full frame has been assembled or len bytes have been used.
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @return the number of bytes consumed
+	 */
+	public final int parseData(byte[] src, int off, int len){
 		
 		if(currState == ParserState.INIT){
 			// set the state to Partial to enable parsing
 			isDataBufReady = false;
-			sensorDataBuffer.clear();
-			currState = ParserState.PARTIAL;
+			bufferIndex = 0;
+			if(acqMode == AcquisitionMode.STREAM){
+				currState = ParserState.HEADER;
+			}
+			else{
+				if(requestLog == null){
+					latchRequest(pendingRequest);
+					awaitingResponse = true;
+				}
+				currState = ParserState.PARTIAL;
+			}
 		}
 		
-		if(currState == ParserState.PARTIAL){
-			// parse
-			for(byte b : inBuf.array()){
-				if(bufferIndex < this.FULL_DATA_SIZE){
-					sensorDataBuffer.put(bufferIndex, b);
-					bufferIndex++;
+		int used;
+		if(acqMode == AcquisitionMode.STREAM){
+			used = parseStream(src, off, len);
+		}
+		else{
+			used = parsePoll(src, off, len);
+		}
+		streamPosition += used;
+		
+		if(currState == ParserState.COMPLETE){
+			isDataBufReady = true;
+			currState = ParserState.INIT;
+		}
+		
+		return used;
+	}
+	
+	private final int parsePoll(byte[] src, int off, int len){
+		
+		int pos = off;
+		int end = off + len;
+		while(pos < end && currState != ParserState.COMPLETE){
+			
+			long position = streamPosition + (pos - off);
+			long limit = end - pos;
+			if(requestLog != null){
+				// a request sent before this byte arrived starts a new response
+				long boundary = requestLog.peekOffset();
+				if(position >= boundary){
+					startResponse();
+					continue;
 				}
+				limit = Math.min(limit, boundary - position);
 			}
-			if(bufferIndex > (this.FULL_DATA_SIZE - 1)){
+			
+			if(!awaitingResponse){
+				// nothing was asked for; these bytes cannot belong to a response
+				skippedByteCount += limit;
+				pos += (int) limit;
+				continue;
+			}
+			
+			// parse
+			int toCopy = (int) Math.min(limit, frameSize - bufferIndex);
+			System.arraycopy(src, pos, sensorDataBuffer.array(), bufferIndex, toCopy);
+			pos += toCopy;
+			bufferIndex += toCopy;
+			if(bufferIndex > (frameSize - 1)){
+				awaitingResponse = false;
+				frameRequestTime = (requestLog != null) ? requestSentTime : NO_REQUEST_TIME;
 				currState = ParserState.COMPLETE;
-				bufferIndex = 0;
 			}
 		}
+		return pos - off;
+	}
+	
+	/**
+	 * Moves on to the oldest logged request, abandoning whatever was left of the previous response.
+	 */
+	private final void startResponse(){
+		if(awaitingResponse && bufferIndex > 0){
+			badFrameCount++;
+		}
+		latchRequest(requestLog.peekRequest());
+		requestSentTime = requestLog.peekSentTime();
+		requestLog.pop();
+		bufferIndex = 0;
+		awaitingResponse = true;
+	}
+	
+	/**
+	 * Drops a POLL response that has not completed within the response timeout, so a lost byte
+	 * cannot hold the parser hostage until the next request. Call this periodically.
+	 * @param now - Clock.nanoTime() of the robot
+	 */
+	public final void checkTimeout(long now){
+		if(acqMode == AcquisitionMode.POLL && requestLog != null && awaitingResponse 
+				&& now - requestSentTime > responseTimeout){
+			timeoutCount++;
+			if(bufferIndex > 0){
+				badFrameCount++;
+			}
+			awaitingResponse = false;
+			bufferIndex = 0;
+		}
+	}
+	
+	private final int parseStream(byte[] src, int off, int len){
+		int pos = off;
+		int end = off + len;
+		while(currState != ParserState.COMPLETE){
+			if(rescanPos < rescanLen){
+				parseStreamByte(rescan[rescanPos++]);
+			}
+			else if(pos < end){
+				parseStreamByte(src[pos++]);
+			}
+			else{
+				break;
+			}
+		}
+		return pos - off;
+	}
+	
+	private final void latchRequest(SensorRequest request){
+		frameRequest = request;
+		frameSize = frameRequest.getResponseSize();
+	}
+	
+	/**
+	 * Steps the stream frame state machine by one byte.
+	 * @param b
+	 */
+	private final void parseStreamByte(byte b){
 		
-		if(currState == ParserState.COMPLETE){
-			isDataBufReady = true;
-			currState = ParserState.INIT;
+		int val = b & 0xFF;
+		
+		if(currState == ParserState.HEADER){
+			if(val == STREAM_HEADER){
+				latchRequest(pendingRequest);
+				checksum = val;
+				rawCount = 0;
+				rawFrame[rawCount++] = b;
+				currState = ParserState.LENGTH;
+			}
+			else{
+				skippedByteCount++;
+			}
+			return;
+		}
+		
+		rawFrame[rawCount++] = b;
+		checksum += val;
+		
+		switch(currState){
+		case LENGTH:
+			bufferIndex = 0;
+			packetIndex = 0;
+			packetBytesLeft = 0;
+			if(val == frameRequest.getStreamLength()){
+				currState = ParserState.PARTIAL;
+			}
+			else{
+				rejectFrame();
+			}
+			break;
+		case PARTIAL:
+			if(packetBytesLeft == 0){
+				// expecting a packet ID
+				if(frameRequest.isAllPackets()){
+					if(val != InputPacket.GROUP_ALL){
+						rejectFrame();
+						break;
+					}
+					packetBytesLeft = frameSize;
+				}
+				else{
+					PacketID expected = frameRequest.getPacket(packetIndex);
+					if(val != expected.getPacketID()){
+						rejectFrame();
+						break;
+					}
+					packetBytesLeft = expected.getSize();
+				}
+				packetIndex++;
+			}
+			else{
+				sensorDataBuffer.put(bufferIndex, b);
+				bufferIndex++;
+				packetBytesLeft--;
+				if(bufferIndex == frameSize){
+					currState = ParserState.CHECKSUM;
+				}
+			}
+			break;
+		case CHECKSUM:
+			if((checksum & 0xFF) == 0){
+				currState = ParserState.COMPLETE;
+			}
+			else{
+				rejectFrame();
+			}
+			break;
+		default:
+			break;
 		}
+	}
+	
+	/**
+	 * Throws away the frame in progress and queues everything after its header byte to be scanned
+	 * again, since the real header may be hiding inside a frame we locked onto by mistake.
+	 */
+	private final void rejectFrame(){
+		badFrameCount++;
 		
+		int keep = rescanLen - rescanPos;
+		int again = rawCount - 1;
+		System.arraycopy(rescan, rescanPos, rescan, again, keep);
+		System.arraycopy(rawFrame, 1, rescan, 0, again);
+		rescanPos = 0;
+		rescanLen = again + keep;
+		
+		rawCount = 0;
+		bufferIndex = 0;
+		currState = ParserState.HEADER;
 	}
 
 	public final boolean isDataBufReady() {
 		return isDataBufReady;
 	}
 
+	/**
+	 * @return the data of the last completed frame; only the first getFrameRequest().getResponseSize()
+	 * bytes are valid
+	 */
 	public final ByteBuffer getSensorDataBuffer() {
 		return sensorDataBuffer;
 	}
 	
+	/**
+	 * @return the request the last completed frame was parsed against
+	 */
+	public final SensorRequest getFrameRequest() {
+		return frameRequest;
+	}
+	
+	/**
+	 * @return when the request of the last completed frame was sent, as logged in the RequestLog; 
+	 * NO_REQUEST_TIME in STREAM mode or without a RequestLog
+	 */
+	public final long getFrameRequestTime() {
+		return frameRequestTime;
+	}
+	
+	/**
+	 * @return number of frames discarded: bad length, packet ID or checksum in STREAM mode, 
+	 * abandoned or timed out responses in POLL mode
+	 */
+	public final long getBadFrameCount() {
+		return badFrameCount;
+	}
+	
+	/**
+	 * @return number of bytes skipped while looking for the start of a frame
+	 */
+	public final long getSkippedByteCount() {
+		return skippedByteCount;
+	}
+	
+	/**
+	 * @return number of POLL requests whose response did not complete within the response timeout
+	 */
+	public final long getTimeoutCount() {
+		return timeoutCount;
+	}
+	
 	public static void main(String[] args){
 		SensorDataParser sdp = new SensorDataParser();
 		
@@ -82,10 +417,10 @@ public class SensorDataParser {
 			System.out.print(" " + size1 + " and " + size2 + "\n");
 
 			ByteBuffer buf1 = ByteBuffer.allocate(size1);
-			buf1.put((byte) 1);
+			buf1.put(0, (byte) 1);
 			buf1.put(size1-1, (byte) 9);
 			ByteBuffer buf2 = ByteBuffer.allocate(size2);
-			buf2.put((byte) 2);
+			buf2.put(0, (byte) 2);
 			buf2.put(size2-1, (byte) 9);
 			
 			sdp.parseData(buf1);
@@ -105,6 +440,87 @@ public class SensorDataParser {
 		
 		}
 		
+		// stream frames, with noise, a dropped byte and an extra byte, split at random points
+		SensorDataParser streamParser = new SensorDataParser(AcquisitionMode.STREAM);
+		ByteBuffer streamBuf = ByteBuffer.allocate(6 * 60);
+		for(int i = 0; i < 6; i++){
+			streamBuf.put((byte) 0x55);	// noise
+			int sum = STREAM_HEADER + 53 + InputPacket.GROUP_ALL;
+			streamBuf.put((byte) STREAM_HEADER);
+			streamBuf.put((byte) 53);
+			streamBuf.put(InputPacket.GROUP_ALL);
+			for(int j = 0; j < 52; j++){
+				if(i == 1 && j == 20){
+					continue;	// dropped byte
+				}
+				streamBuf.put((byte) (i + j));
+				sum += (i + j);
+				if(i == 3 && j == 30){
+					streamBuf.put((byte) STREAM_HEADER);	// extra byte that looks like a header
+				}
+			}
+			streamBuf.put((byte) -sum);
+		}
+		streamBuf.flip();
+		int frameCount = 0;
+		while(streamBuf.hasRemaining()){
+			int split = Math.min(streamBuf.remaining(), (int) Math.floor(Math.random()*30)+1);
+			ByteBuffer chunk = streamBuf.slice();
+			chunk.limit(split);
+			streamBuf.position(streamBuf.position() + split);
+			while(chunk.hasRemaining()){
+				streamParser.parseData(chunk);
+				if(streamParser.isDataBufReady()){
+					frameCount++;
+				}
+			}
+		}
+		System.out.println("Stream frames decoded: " + frameCount + " (expected 4), bad frames: " + streamParser.getBadFrameCount());
+		
+		// poll responses tied to their requests: the first response loses a byte
+		SensorDataParser pollParser = new SensorDataParser(AcquisitionMode.POLL);
+		RequestLog log = new RequestLog();
+		pollParser.setRequestLog(log);
+		SensorRequest bumps = new SensorRequest(EnumSet.of(PacketID.BUMP_AND_WHEEL, PacketID.DISTANCE));
+		byte[] noise = { 7, 7 };
+		byte[] shortResponse = { 1, 0 };
+		byte[] response = { 2, 0, 10 };
+		int pollFrames = 0;
+		long received = 0;
+		for(byte[] bytes : new byte[][] { noise, shortResponse, response }){
+			if(bytes != noise){
+				log.record(bumps, received, System.nanoTime());
+			}
+			received += bytes.length;
+			ByteBuffer pollBuf = ByteBuffer.wrap(bytes);
+			while(pollBuf.hasRemaining()){
+				pollParser.parseData(pollBuf);
+				if(pollParser.isDataBufReady()){
+					pollFrames++;
+					System.out.println("Poll frame: bumps " + pollParser.getSensorDataBuffer().get(0) + " (expected 2)");
+				}
+			}
+		}
+		System.out.println("Poll frames decoded: " + pollFrames + " (expected 1), bad frames: " + pollParser.getBadFrameCount()
+				+ ", skipped bytes: " + pollParser.getSkippedByteCount());
+		
+		// query list stream: bumps + left wheel velocity
+		SensorRequest subset = new SensorRequest(EnumSet.of(PacketID.BUMP_AND_WHEEL, PacketID.REQ_LEFT_VEL));
+		streamParser.setSensorRequest(subset);
+		byte[] frame = { STREAM_HEADER, 5, 7, 3, 42, 1, (byte) 0xF4, 0 };
+		int sum = 0;
+		for(byte b : frame){
+			sum += b & 0xFF;
+		}
+		frame[frame.length - 1] = (byte) -sum;
+		ByteBuffer listBuf = ByteBuffer.wrap(frame);
+		while(listBuf.hasRemaining()){
+			streamParser.parseData(listBuf);
+			if(streamParser.isDataBufReady()){
+				ByteBuffer data = streamParser.getSensorDataBuffer();
+				System.out.println("Query list frame: bumps " + data.get(0) + ", left vel " + data.getShort(1) + " (expected 3, 500)");
+			}
+		}
 			
 	}
 	
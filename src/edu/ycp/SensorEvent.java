@@ -0,0 +1,83 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+/**
+ * A rising or falling edge of a BooleanSensor, or an AnalogSensor crossing a threshold. Exactly
+ * one of getBooleanSensor() and getAnalogSensor() is non-null.
+ * 
+ * @author pjmartin
+ *
+ */
+public class SensorEvent {
+
+	public enum Edge {
+		RISING, FALLING, BOTH;
+		
+		final boolean matches(boolean rising){
+			return this == BOTH || (this == RISING) == rising;
+		}
+	}
+	
+	private final BooleanSensor booleanSensor;
+	private final AnalogSensor analogSensor;
+	private final Edge edge;	// RISING or FALLING, never BOTH
+	private final int value;
+	private final SensorSnapshot snapshot;
+	
+	SensorEvent(BooleanSensor sensor, boolean rising, SensorSnapshot snapshot){
+		this.booleanSensor = sensor;
+		this.analogSensor = null;
+		this.edge = rising ? Edge.RISING : Edge.FALLING;
+		this.value = rising ? 1 : 0;
+		this.snapshot = snapshot;
+	}
+	
+	SensorEvent(AnalogSensor sensor, boolean rising, int value, SensorSnapshot snapshot){
+		this.booleanSensor = null;
+		this.analogSensor = sensor;
+		this.edge = rising ? Edge.RISING : Edge.FALLING;
+		this.value = value;
+		this.snapshot = snapshot;
+	}
+
+	public BooleanSensor getBooleanSensor() {
+		return booleanSensor;
+	}
+
+	public AnalogSensor getAnalogSensor() {
+		return analogSensor;
+	}
+
+	/**
+	 * @return RISING when the sensor turned on or went above its threshold, FALLING otherwise
+	 */
+	public Edge getEdge() {
+		return edge;
+	}
+
+	/**
+	 * @return 1 or 0 for a BooleanSensor, the new reading for an AnalogSensor
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the frame in which the edge was seen
+	 */
+	public SensorSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	@Override
+	public String toString() {
+		return (booleanSensor != null ? booleanSensor : analogSensor) + " " + edge + " (" + value 
+				+ ") at frame " + snapshot.getSequenceNumber();
+	}
+	
+}
@@ -0,0 +1,246 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.ycp.SensorEvent.Edge;
+import edu.ycp.comm.ExecutorFactory;
+
+/**
+ * Compares each new snapshot against the previous one and fires the registered listeners on
+ * edges and threshold crossings. It is driven by the data thread right after a frame has been
+ * decoded, so an INLINE listener runs one frame after the event at the latest. EXECUTOR 
+ * listeners are handed to a single dispatch thread, which keeps them in order and keeps slow
+ * listener code off the decode path.
+ * 
+ * @author pjmartin
+ *
+ */
+public class SensorEventDispatcher {
+
+	public enum DispatchMode {
+		INLINE, EXECUTOR;
+	}
+	
+	private final CopyOnWriteArrayList<Registration> registrations;
+	private volatile ExecutorService dispatchExecutor;
+	private final ReentrantLock executorLock = new ReentrantLock();
+	private boolean ownsExecutor;	// guarded by executorLock
+	private boolean shutDown;	// guarded by executorLock
+	
+	private final ExecutorFactory executors;	// makes the default dispatch thread
+	
+	public SensorEventDispatcher(){
+		this(ExecutorFactory.getDefault());
+	}
+	
+	/**
+	 * @param executors - where the default dispatch thread comes from
+	 */
+	public SensorEventDispatcher(ExecutorFactory executors){
+		this.executors = executors;
+		registrations = new CopyOnWriteArrayList<Registration>();
+		dispatchExecutor = null;
+		ownsExecutor = false;
+		shutDown = false;
+	}
+	
+	public final void addListener(BooleanSensor sensor, Edge edge, SensorListener listener, DispatchMode mode){
+		registrations.add(new Registration(sensor, null, 0, 0, edge, listener, mode));
+	}
+	
+	/**
+	 * The listener fires with RISING when sensor reaches threshold and with FALLING when it drops 
+	 * below threshold - hysteresis, so a noisy reading does not chatter around the threshold.
+	 */
+	public final void addListener(AnalogSensor sensor, int threshold, int hysteresis, Edge edge, 
+			SensorListener listener, DispatchMode mode){
+		if(hysteresis < 0){
+			throw new IllegalArgumentException("Hysteresis must not be negative: " + hysteresis);
+		}
+		registrations.add(new Registration(null, sensor, threshold, hysteresis, edge, listener, mode));
+	}
+	
+	/**
+	 * Removes every registration of listener.
+	 * @param listener
+	 */
+	public final void removeListener(SensorListener listener){
+		for(Registration r : registrations){
+			if(r.listener == listener){
+				registrations.remove(r);
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the default single dispatch thread. The caller keeps ownership of executor.
+	 * @param executor
+	 */
+	public final void setDispatchExecutor(ExecutorService executor){
+		executorLock.lock();
+		try{
+			ExecutorService old = dispatchExecutor;
+			dispatchExecutor = executor;
+			if(old != null && ownsExecutor){
+				old.shutdown();
+			}
+			ownsExecutor = false;
+		} finally{
+			executorLock.unlock();
+		}
+	}
+	
+	/**
+	 * Fires every listener whose edge or threshold crossing happened between prev and next.
+	 * Data thread only.
+	 * @param prev
+	 * @param next
+	 */
+	final void dispatch(SensorSnapshot prev, SensorSnapshot next){
+		for(Registration r : registrations){
+			SensorEvent event = r.check(prev, next);
+			if(event != null){
+				fire(r, event);
+			}
+		}
+	}
+	
+	private final void fire(final Registration r, final SensorEvent event){
+		if(r.mode == DispatchMode.INLINE){
+			notifyListener(r.listener, event);
+			return;
+		}
+		ExecutorService executor = getExecutor();
+		if(executor == null){
+			System.err.println("Sensor event dropped, dispatcher is shut down: " + event);
+			return;
+		}
+		try{
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					notifyListener(r.listener, event);
+				}
+			});
+		} catch(RejectedExecutionException e){
+			System.err.println("Sensor event dropped, dispatch executor is shut down: " + event);
+		}
+	}
+	
+	private final void notifyListener(SensorListener listener, SensorEvent event){
+		try{
+			listener.sensorChanged(event);
+		} catch(RuntimeException e){
+			// a broken listener must not stop the decode loop or the other listeners
+			System.err.println("Sensor listener failed on " + event);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return the dispatch executor, starting the default one on first use, or null after shutdown()
+	 */
+	private final ExecutorService getExecutor(){
+		ExecutorService executor = dispatchExecutor;
+		if(executor != null){
+			return executor;
+		}
+		executorLock.lock();
+		try{
+			if(dispatchExecutor == null && !shutDown){
+				dispatchExecutor = executors.newExecutor("SensorEvents", 1);
+				ownsExecutor = true;
+			}
+			return dispatchExecutor;
+		} finally{
+			executorLock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the default dispatch thread, if it was ever started, and keeps a later event from
+	 * starting a new one.
+	 */
+	public final void shutdown(){
+		executorLock.lock();
+		try{
+			shutDown = true;
+			ExecutorService executor = dispatchExecutor;
+			if(executor != null && ownsExecutor){
+				executor.shutdown();
+			}
+		} finally{
+			executorLock.unlock();
+		}
+	}
+	
+	private static class Registration {
+		
+		final BooleanSensor booleanSensor;
+		final AnalogSensor analogSensor;
+		final int threshold;
+		final int hysteresis;
+		final Edge edge;
+		final SensorListener listener;
+		final DispatchMode mode;
+		
+		// analog state, data thread only: 0 = no reading yet, 1 = above, -1 = below
+		int analogState;
+		
+		Registration(BooleanSensor booleanSensor, AnalogSensor analogSensor, int threshold, int hysteresis,
+				Edge edge, SensorListener listener, DispatchMode mode){
+			this.booleanSensor = booleanSensor;
+			this.analogSensor = analogSensor;
+			this.threshold = threshold;
+			this.hysteresis = hysteresis;
+			this.edge = edge;
+			this.listener = listener;
+			this.mode = mode;
+			this.analogState = 0;
+		}
+		
+		SensorEvent check(SensorSnapshot prev, SensorSnapshot next){
+			
+			if(booleanSensor != null){
+				if(!next.isUpdated(booleanSensor.getPacket())){
+					return null;
+				}
+				boolean before = booleanSensor.read(prev);
+				boolean after = booleanSensor.read(next);
+				if(before != after && edge.matches(after)){
+					return new SensorEvent(booleanSensor, after, next);
+				}
+				return null;
+			}
+			
+			if(!next.isUpdated(analogSensor.getPacket())){
+				return null;
+			}
+			int value = analogSensor.read(next);
+			if(analogState == 0){
+				// the first reading only arms the registration
+				analogState = (value >= threshold) ? 1 : -1;
+				return null;
+			}
+			if(analogState < 0 && value >= threshold){
+				analogState = 1;
+				return edge.matches(true) ? new SensorEvent(analogSensor, true, value, next) : null;
+			}
+			if(analogState > 0 && value < threshold - hysteresis){
+				analogState = -1;
+				return edge.matches(false) ? new SensorEvent(analogSensor, false, value, next) : null;
+			}
+			return null;
+		}
+	}
+	
+}
@@ -0,0 +1,19 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+/**
+ * Callback for sensor edges and threshold crossings registered with CreateRobot.
+ * 
+ * @author pjmartin
+ *
+ */
+public interface SensorListener {
+
+	void sensorChanged(SensorEvent event);
+	
+}
@@ -0,0 +1,243 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * An immutable, ordered list of sensor packets to acquire from the Create. Packets are always kept
+ * in packet ID order, which is also the order the Create returns them in. The full list is sent
+ * as a group 6 request; anything smaller is sent as a QUERY_LIST (or a STREAM list).
+ * 
+ * @author pjmartin
+ *
+ */
+public class SensorRequest {
+
+	public static final SensorRequest ALL = new SensorRequest(EnumSet.allOf(PacketID.class));
+	
+	private final Set<PacketID> packetSet;
+	private final PacketID[] packets;
+	private final int[] offsets;	// offset of each packet in the response, indexed by PacketID ordinal
+	private final int responseSize;
+	private final boolean allPackets;
+	private final ByteBuffer pollCommand;
+	
+	public SensorRequest(Set<PacketID> packetIDs){
+		
+		if(packetIDs.isEmpty()){
+			throw new IllegalArgumentException("A sensor request needs at least one packet.");
+		}
+		
+		EnumSet<PacketID> sorted = EnumSet.copyOf(packetIDs);
+		packetSet = Collections.unmodifiableSet(sorted);
+		packets = sorted.toArray(new PacketID[sorted.size()]);
+		allPackets = (packets.length == PacketID.values().length);
+		
+		offsets = new int[PacketID.values().length];
+		Arrays.fill(offsets, -1);
+		int offset = 0;
+		for(PacketID p : packets){
+			offsets[p.ordinal()] = offset;
+			offset += p.getSize();
+		}
+		responseSize = offset;
+		pollCommand = buildPollCommand();
+	}
+	
+	/**
+	 * Decodes a SENSORS, QUERY_LIST or STREAM command, e.g. one read back from a FlightRecorder.
+	 * @param cmd
+	 * @param off
+	 * @param len
+	 * @return the request the command asks for, or null if it is not one of those commands or asks
+	 * for no known packet
+	 */
+	public static SensorRequest fromCommand(byte[] cmd, int off, int len){
+		if(len < 2){
+			return null;
+		}
+		byte opcode = cmd[off];
+		int first;
+		int count;
+		if(opcode == InputCommand.SENSORS.getOpcodeVal()){
+			first = off + 1;
+			count = 1;
+		}
+		else if(opcode == InputCommand.QUERY_LIST.getOpcodeVal() || opcode == InputCommand.STREAM.getOpcodeVal()){
+			first = off + 2;
+			count = Math.min(cmd[off + 1] & 0xFF, len - 2);
+		}
+		else{
+			return null;
+		}
+		
+		EnumSet<PacketID> packetIDs = EnumSet.noneOf(PacketID.class);
+		for(int i = first; i < first + count; i++){
+			int id = cmd[i] & 0xFF;
+			if(id == InputPacket.GROUP_ALL){
+				return ALL;
+			}
+			if(id == 0){
+				addRange(packetIDs, 7, 26);
+			}
+			else if(id < GROUP_FIRST.length){
+				addRange(packetIDs, GROUP_FIRST[id], GROUP_LAST[id]);
+			}
+			else if(PacketID.fromPacketID(id) != null){
+				packetIDs.add(PacketID.fromPacketID(id));
+			}
+		}
+		return packetIDs.isEmpty() ? null : new SensorRequest(packetIDs);
+	}
+	
+	private static void addRange(EnumSet<PacketID> packetIDs, int firstID, int lastID){
+		for(int id = firstID; id <= lastID; id++){
+			packetIDs.add(PacketID.fromPacketID(id));
+		}
+	}
+	
+	/**
+	 * @return a SENSORS group 6 request for the full list, otherwise a QUERY_LIST request. The
+	 * buffer is shared, so it must not be modified.
+	 */
+	public final ByteBuffer generatePollCommand(){
+		return pollCommand;
+	}
+	
+	private final ByteBuffer buildPollCommand(){
+		if(allPackets){
+			return InputPacket.generateSensorsCommand(InputPacket.GROUP_ALL);
+		}
+		
+		// whole OI groups 1-5 are asked for by their group ID, which is one byte instead of several
+		byte[] ids = new byte[packets.length];
+		int count = 0;
+		int i = 0;
+		while(i < packets.length){
+			int group = groupStartingAt(i);
+			if(group > 0){
+				ids[count++] = (byte) group;
+				i += GROUP_LAST[group] - GROUP_FIRST[group] + 1;
+			}
+			else{
+				ids[count++] = packets[i].getPacketID();
+				i++;
+			}
+		}
+		
+		ByteBuffer outBuf = ByteBuffer.allocate(2 + count);
+		outBuf.put(InputCommand.QUERY_LIST.getOpcodeVal());
+		outBuf.put((byte) count);
+		outBuf.put(ids, 0, count);
+		return outBuf;
+	}
+	
+	// packet ID ranges of the OI sensor groups 1 through 5 (index 0 unused)
+	private static final int[] GROUP_FIRST = { 0, 7, 17, 21, 27, 35 };
+	private static final int[] GROUP_LAST = { 0, 16, 20, 26, 34, 42 };
+	
+	/**
+	 * @param index
+	 * @return the group whose packets all appear in packets starting at index, or 0 if none does
+	 */
+	private final int groupStartingAt(int index){
+		int id = packets[index].getPacketID();
+		for(int group = 1; group < GROUP_FIRST.length; group++){
+			if(GROUP_FIRST[group] == id){
+				int groupSize = GROUP_LAST[group] - GROUP_FIRST[group] + 1;
+				if(index + groupSize <= packets.length && packets[index + groupSize - 1].getPacketID() == GROUP_LAST[group]){
+					return group;
+				}
+			}
+		}
+		return 0;
+	}
+	
+	public final ByteBuffer generateStreamCommand(){
+		if(allPackets){
+			return InputPacket.generateStreamCommand(InputPacket.GROUP_ALL);
+		}
+		return InputPacket.generateStreamCommand(getPacketIDBytes());
+	}
+	
+	private final byte[] getPacketIDBytes(){
+		byte[] ids = new byte[packets.length];
+		for(int i = 0; i < packets.length; i++){
+			ids[i] = packets[i].getPacketID();
+		}
+		return ids;
+	}
+	
+	/**
+	 * @return number of data bytes in the response, without any stream framing
+	 */
+	public final int getResponseSize() {
+		return responseSize;
+	}
+	
+	/**
+	 * @return the n-bytes value of a stream frame carrying this request: data plus one ID byte per packet
+	 */
+	public final int getStreamLength() {
+		return responseSize + (allPackets ? 1 : packets.length);
+	}
+	
+	/**
+	 * @return true if this is the full group 6 list
+	 */
+	public final boolean isAllPackets() {
+		return allPackets;
+	}
+	
+	public final int getPacketCount() {
+		return packets.length;
+	}
+	
+	public final PacketID getPacket(int index) {
+		return packets[index];
+	}
+	
+	public final Set<PacketID> getPackets() {
+		return packetSet;
+	}
+	
+	public final boolean contains(PacketID p) {
+		return offsets[p.ordinal()] >= 0;
+	}
+	
+	/**
+	 * @param p
+	 * @return offset of p in the response data, or -1 if p is not part of this request
+	 */
+	public final int getOffset(PacketID p) {
+		return offsets[p.ordinal()];
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof SensorRequest)){
+			return false;
+		}
+		return packetSet.equals(((SensorRequest) obj).packetSet);
+	}
+	
+	@Override
+	public int hashCode() {
+		return packetSet.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return "SensorRequest" + packetSet;
+	}
+	
+}
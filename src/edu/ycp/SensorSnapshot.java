@@ -0,0 +1,290 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.Arrays;
+
+import edu.ycp.CreateRobot.ChargingState;
+import edu.ycp.CreateRobot.CreateMode;
+
+/**
+ * An immutable view of the Create's sensors as of one decoded frame. Each frame produces a new
+ * snapshot that starts as a copy of the previous one (so packets that were not part of the frame
+ * keep their last value) and is then published through a single volatile reference, so every
+ * value read from one snapshot comes from the same frame.
+ * 
+ * Decoding is driven by the PacketID table: every packet of the request is read straight out of
+ * the parser's buffer with PacketID.read() into one int slot per packet, sign extended where the
+ * OI says the value is signed. The getters interpret the slots. The new snapshot itself (about
+ * 0.8 KB) is the one allocation a frame makes; in return a snapshot can be held as long as
+ * anyone likes and getSnapshot() stays a single volatile read.
+ * 
+ * @author pjmartin
+ *
+ */
+public class SensorSnapshot {
+
+	private static final PacketID[] PACKETS = PacketID.values();
+	private static final ChargingState[] CHARGING_STATES = ChargingState.values();
+	private static final CreateMode[] MODES = CreateMode.values();
+	
+	private final long sequenceNumber;
+	private final long timestamp;	// robot clock time at decode
+	private final long[] packetUpdateTimes;	// indexed by PacketID ordinal
+	private final long[] packetUpdateSequence;	// indexed by PacketID ordinal
+	private final int[] raw;	// last raw value of every packet, indexed by PacketID ordinal
+	
+	private float distance;	// distance traveled in mm since startup
+	private float angle;		// angle rotated in degrees since startup
+	private ChargingState currChargeState;	// null until a valid charging state has been read
+	
+	/**
+	 * The snapshot before any data has been received.
+	 */
+	SensorSnapshot(){
+		sequenceNumber = 0;
+		timestamp = 0;
+		packetUpdateTimes = new long[PACKETS.length];
+		packetUpdateSequence = new long[PACKETS.length];
+		raw = new int[PACKETS.length];
+	}
+	
+	/**
+	 * Decodes one frame on top of prev. freshData holds the packets of request back to back, in
+	 * request order.
+	 * @param prev
+	 * @param freshData
+	 * @param request
+	 * @param sequenceNumber
+	 * @param timestamp
+	 */
+	SensorSnapshot(SensorSnapshot prev, byte[] freshData, SensorRequest request, long sequenceNumber, long timestamp){
+		
+		this.sequenceNumber = sequenceNumber;
+		this.timestamp = timestamp;
+		this.packetUpdateTimes = Arrays.copyOf(prev.packetUpdateTimes, prev.packetUpdateTimes.length);
+		this.packetUpdateSequence = Arrays.copyOf(prev.packetUpdateSequence, prev.packetUpdateSequence.length);
+		this.raw = Arrays.copyOf(prev.raw, prev.raw.length);
+		this.distance = prev.distance;
+		this.angle = prev.angle;
+		this.currChargeState = prev.currChargeState;
+		
+		int offset = 0;
+		for(int i = 0; i < request.getPacketCount(); i++){
+			PacketID packet = request.getPacket(i);
+			int index = packet.ordinal();
+			int value = packet.read(freshData, offset);
+			raw[index] = value;
+			packetUpdateTimes[index] = timestamp;
+			packetUpdateSequence[index] = sequenceNumber;
+			offset += packet.getSize();
+			
+			switch(packet){
+			case DISTANCE:
+				this.distance += value * packet.getScale();	// accumulates the linear distance traveled
+				break;
+			case ANGLE:
+				this.angle += value * packet.getScale();	// accumulates the angle rotated
+				break;
+			case CHARGING_STATE:
+				if(value < CHARGING_STATES.length){
+					this.currChargeState = CHARGING_STATES[value];
+				}
+				break;
+			default:
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * @param packet
+	 * @return the packet's last value as sent by the Create, sign extended for signed packets
+	 */
+	public int getRaw(PacketID packet) {
+		return raw[packet.ordinal()];
+	}
+	
+	private final float scaled(PacketID packet) {
+		return raw[packet.ordinal()] * packet.getScale();
+	}
+	
+	private final boolean bit(PacketID packet, int bit) {
+		return ((raw[packet.ordinal()] >> bit) & 0x01) != 0;
+	}
+
+	/**
+	 * @return number of frames decoded before and including this one; 0 before any data arrived
+	 */
+	public long getSequenceNumber() {
+		return sequenceNumber;
+	}
+	
+	/**
+	 * @return robot clock time (Clock.nanoTime()) at which this frame was decoded
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * @param packet
+	 * @return robot clock time at which packet was last decoded, or 0 if it never has been
+	 */
+	public long getLastUpdateTime(PacketID packet) {
+		return packetUpdateTimes[packet.ordinal()];
+	}
+	
+	/**
+	 * @param packet
+	 * @return true if packet was part of this frame
+	 */
+	public boolean isUpdated(PacketID packet) {
+		return sequenceNumber != 0 && packetUpdateSequence[packet.ordinal()] == sequenceNumber;
+	}
+	
+	public float getReqVelocity() {
+		return scaled(PacketID.REQ_VEL);
+	}
+
+	public ChargingState getCurrChargeState() {
+		return currChargeState;
+	}
+	
+	/**
+	 * @return the Open Interface mode last reported by the Create, or null if it has not been read
+	 */
+	public CreateMode getOIMode() {
+		// 0 - off, 1 - passive, 2 - safe, 3 - full; same order as CreateMode
+		int mode = raw[PacketID.OI_MODE.ordinal()];
+		if(packetUpdateSequence[PacketID.OI_MODE.ordinal()] == 0 || mode >= MODES.length){
+			return null;
+		}
+		return MODES[mode];
+	}
+
+	public boolean isAdvanceButtonPress() {
+		return bit(PacketID.BUTTONS, 2);
+	}
+
+	public boolean isPlayButtonPress() {
+		return bit(PacketID.BUTTONS, 0);
+	}
+
+	public boolean isWheelDropLeft() {
+		return bit(PacketID.BUMP_AND_WHEEL, 3);
+	}
+
+	public boolean isWheelDropRight() {
+		return bit(PacketID.BUMP_AND_WHEEL, 2);
+	}
+
+	public boolean isCasterDrop() {
+		return bit(PacketID.BUMP_AND_WHEEL, 4);
+	}
+
+	public boolean isBumpLeft() {
+		return bit(PacketID.BUMP_AND_WHEEL, 1);
+	}
+
+	public boolean isBumpRight() {
+		return bit(PacketID.BUMP_AND_WHEEL, 0);
+	}
+
+	public float getReqRadius() {
+		return scaled(PacketID.REQ_RADIUS);
+	}
+
+	public float getReqRightVelocity() {
+		return scaled(PacketID.REQ_RIGHT_VEL);
+	}
+
+	public float getReqLeftVelocity() {
+		return scaled(PacketID.REQ_LEFT_VEL);
+	}
+
+	public float getDistance() {
+		return distance;
+	}
+
+	public float getAngle() {
+		return angle;
+	}
+
+	public boolean isWall() {
+		return raw[PacketID.WALL.ordinal()] != 0;
+	}
+
+	public boolean isCliffLeft() {
+		return raw[PacketID.CLIFF_LEFT.ordinal()] != 0;
+	}
+
+	public boolean isCliffLeftFront() {
+		return raw[PacketID.CLIFF_FRONT_LEFT.ordinal()] != 0;
+	}
+
+	public boolean isCliffRightFront() {
+		return raw[PacketID.CLIFF_FRONT_RIGHT.ordinal()] != 0;
+	}
+
+	public boolean isCliffRight() {
+		return raw[PacketID.CLIFF_RIGHT.ordinal()] != 0;
+	}
+
+	public boolean isVirtualWall() {
+		return raw[PacketID.VIRTUAL_WALL.ordinal()] != 0;
+	}
+
+	public float getBatteryVoltage() {
+		return scaled(PacketID.VOLTAGE);
+	}
+
+	public float getBatteryCurrent() {
+		return scaled(PacketID.CURRENT);
+	}
+
+	public float getBatteryCharge() {
+		return scaled(PacketID.BATT_CHARGE);
+	}
+
+	public short getBatteryTemp() {
+		return (short) raw[PacketID.BATT_TEMP.ordinal()];
+	}
+
+	public float getBatteryCapacity() {
+		return scaled(PacketID.BATT_CAP);
+	}
+
+	public int getWallSignal() {
+		return raw[PacketID.WALL_SIGNAL.ordinal()];
+	}
+
+	public int getCliffLeftSignal() {
+		return raw[PacketID.CLIFF_LEFT_SIGNAL.ordinal()];
+	}
+
+	public int getCliffLeftFrontSignal() {
+		return raw[PacketID.CLIFF_FRONT_LEFT_SIGNAL.ordinal()];
+	}
+
+	public int getCliffRightFrontSignal() {
+		return raw[PacketID.CLIFF_FRONT_RIGHT_SIGNAL.ordinal()];
+	}
+
+	public int getCliffRightSignal() {
+		return raw[PacketID.CLIFF_RIGHT_SIGNAL.ordinal()];
+	}
+
+	public byte getCargoDIN() {
+		return (byte) raw[PacketID.CARGO_BAY_DIN.ordinal()];
+	}
+
+	public int getCargoAIN() {
+		return raw[PacketID.CARGO_BAY_ANIN.ordinal()];
+	}
+	
+}
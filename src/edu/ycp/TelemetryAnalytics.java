@@ -0,0 +1,309 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+
+/**
+ * Offline analytics over FlightRecorder sessions on a fork/join pool. Every session is a task of
+ * its own. It replays the session's bytes through the library's parser (see CreateReplay) and cuts
+ * the parsed frames into chunks of consecutive frames; each chunk is forked as it fills, so the
+ * snapshot decoding and aggregation of one session already runs on several cores while the rest
+ * of it is still being parsed. The chunk reports are joined in order with TelemetryReport.append(),
+ * which makes the result independent of the chunk size and of the number of threads: identical to
+ * decoding every session sequentially.
+ *
+ * @author pjmartin
+ *
+ */
+public class TelemetryAnalytics {
+	
+	public static final int DEFAULT_CHUNK_FRAMES = 4096;	// ~2 min of group 6 at 33 Hz
+	// a chunk decodes from the empty snapshot, whose float odometry sums stay exact this long
+	public static final int MAX_CHUNK_FRAMES = 65536;
+	
+	private final ForkJoinPool pool;
+	private volatile int chunkFrames = DEFAULT_CHUNK_FRAMES;
+	
+	/**
+	 * Uses every core.
+	 */
+	public TelemetryAnalytics(){
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param parallelism - number of worker threads; 1 decodes sequentially
+	 */
+	public TelemetryAnalytics(int parallelism){
+		pool = new ForkJoinPool(parallelism);
+	}
+	
+	/**
+	 * @param frames - frames per chunk, 1 to MAX_CHUNK_FRAMES
+	 */
+	public final void setChunkFrames(int frames){
+		if(frames < 1 || frames > MAX_CHUNK_FRAMES){
+			throw new IllegalArgumentException("Chunk size must be 1 to " + MAX_CHUNK_FRAMES + " frames: " + frames);
+		}
+		chunkFrames = frames;
+	}
+	
+	/**
+	 * Analyzes every session; blocks until done. A session that cannot be read gets a report with
+	 * getError() set instead of failing the others.
+	 * @param sessions
+	 * @return one report per session, in the same order
+	 */
+	public final List<TelemetryReport> analyze(List<Session> sessions){
+		return pool.invoke(new SessionsTask(sessions));
+	}
+	
+	/**
+	 * @param reports
+	 * @return the counts and statistics of all reports added up
+	 */
+	public static TelemetryReport total(List<TelemetryReport> reports){
+		TelemetryReport total = new TelemetryReport();
+		for(TelemetryReport r : reports){
+			total.combine(r);
+		}
+		return total;
+	}
+	
+	public final void shutdown(){
+		pool.shutdown();
+	}
+	
+	/**
+	 * One robot's channel in one FlightRecorder directory.
+	 */
+	public static final class Session {
+		
+		private final File directory;
+		private final int channel;
+		private final AcquisitionMode acqMode;
+		
+		/**
+		 * @param directory
+		 * @param channel - as passed to setFlightRecorder()
+		 * @param acqMode - the acquisition mode the robot was recorded in
+		 */
+		public Session(File directory, int channel, AcquisitionMode acqMode){
+			this.directory = directory;
+			this.channel = channel;
+			this.acqMode = acqMode;
+		}
+		
+		public File getDirectory(){
+			return directory;
+		}
+		
+		public int getChannel(){
+			return channel;
+		}
+		
+		@Override
+		public String toString(){
+			return directory + " ch" + channel;
+		}
+		
+	}
+	
+	private class SessionsTask extends RecursiveTask<List<TelemetryReport>> {
+		
+		private static final long serialVersionUID = 1L;
+		private final List<Session> sessions;
+		
+		SessionsTask(List<Session> sessions){
+			this.sessions = sessions;
+		}
+		
+		@Override
+		protected List<TelemetryReport> compute(){
+			List<SessionTask> tasks = new ArrayList<SessionTask>();
+			for(Session s : sessions){
+				SessionTask t = new SessionTask(s, chunkFrames);
+				t.fork();
+				tasks.add(t);
+			}
+			List<TelemetryReport> reports = new ArrayList<TelemetryReport>();
+			for(SessionTask t : tasks){
+				reports.add(t.join());
+			}
+			return reports;
+		}
+		
+	}
+	
+	/**
+	 * Parses one session and forks its chunks.
+	 */
+	private static class SessionTask extends RecursiveTask<TelemetryReport> implements FrameSink {
+		
+		private static final long serialVersionUID = 1L;
+		private final Session session;
+		private final int chunkFrames;
+		private final List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+		private FrameChunk current;
+		private long framesParsed = 0;
+		
+		SessionTask(Session session, int chunkFrames){
+			this.session = session;
+			this.chunkFrames = chunkFrames;
+		}
+		
+		@Override
+		protected TelemetryReport compute(){
+			String error = null;
+			current = new FrameChunk(chunkFrames, 0);
+			CreateReplay replay = new CreateReplay(session.directory, session.channel, CreateMode.FULL, session.acqMode);
+			replay.setFrameSink(this);
+			try {
+				// the replayed robot has no threads or port, so there is nothing to stop afterwards
+				replay.replay();
+			} catch (IOException e) {
+				System.err.println("TelemetryAnalytics cannot read " + session + ": " + e.getMessage());
+				error = e.getMessage();
+			}
+			forkChunk();
+			
+			TelemetryReport report = new TelemetryReport();
+			for(ChunkTask c : chunks){
+				report.append(c.join());
+			}
+			report.finishSession();
+			report.setError(error);
+			return report;
+		}
+		
+		@Override
+		public void frame(long timestamp, byte[] frame, SensorRequest request){
+			current.add(timestamp, frame, request);
+			framesParsed++;
+			if(current.count == chunkFrames){
+				forkChunk();
+				current = new FrameChunk(chunkFrames, framesParsed);
+			}
+		}
+		
+		private final void forkChunk(){
+			if(current.count > 0){
+				ChunkTask t = new ChunkTask(current);
+				t.fork();
+				chunks.add(t);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Decodes one chunk into snapshots, the way processData() does, and aggregates them.
+	 */
+	private static class ChunkTask extends RecursiveTask<TelemetryReport> {
+		
+		private static final long serialVersionUID = 1L;
+		private final FrameChunk chunk;
+		
+		ChunkTask(FrameChunk chunk){
+			this.chunk = chunk;
+		}
+		
+		@Override
+		protected TelemetryReport compute(){
+			TelemetryReport report = new TelemetryReport();
+			byte[] frame = new byte[SensorRequest.ALL.getResponseSize()];
+			SensorSnapshot prev = new SensorSnapshot();
+			for(int i = 0; i < chunk.count; i++){
+				SensorRequest request = chunk.requests[i];
+				System.arraycopy(chunk.data, chunk.offsets[i], frame, 0, request.getResponseSize());
+				SensorSnapshot next = new SensorSnapshot(prev, frame, request, chunk.firstFrame + i + 1, chunk.timestamps[i]);
+				report.addFrame(prev, next);
+				prev = next;
+			}
+			return report;
+		}
+		
+	}
+	
+	/**
+	 * Consecutive parsed frames of one session.
+	 */
+	private static class FrameChunk {
+		
+		final long firstFrame;	// frames of the session before this chunk
+		final long[] timestamps;
+		final SensorRequest[] requests;
+		final int[] offsets;
+		final byte[] data;
+		int count = 0;
+		int length = 0;
+		
+		FrameChunk(int frames, long firstFrame){
+			this.firstFrame = firstFrame;
+			timestamps = new long[frames];
+			requests = new SensorRequest[frames];
+			offsets = new int[frames];
+			data = new byte[frames * SensorRequest.ALL.getResponseSize()];
+		}
+		
+		final void add(long timestamp, byte[] frame, SensorRequest request){
+			int size = request.getResponseSize();
+			timestamps[count] = timestamp;
+			requests[count] = request;
+			offsets[count] = length;
+			System.arraycopy(frame, 0, data, length, size);
+			length += size;
+			count++;
+		}
+		
+	}
+	
+	/**
+	 * Analyzes the sessions of one or more FlightRecorder directories with every core, checks the
+	 * result against a sequential run and prints the reports.
+	 * Usage: TelemetryAnalytics POLL|STREAM channel directory...
+	 */
+	public static void main(String[] args) throws Exception {
+		AcquisitionMode acqMode = AcquisitionMode.valueOf(args[0]);
+		int channel = Integer.parseInt(args[1]);
+		List<Session> sessions = new ArrayList<Session>();
+		for(int i = 2; i < args.length; i++){
+			sessions.add(new Session(new File(args[i]), channel, acqMode));
+		}
+		
+		TelemetryAnalytics sequential = new TelemetryAnalytics(1);
+		sequential.setChunkFrames(MAX_CHUNK_FRAMES);
+		long start = System.nanoTime();
+		List<TelemetryReport> expected = sequential.analyze(sessions);
+		long sequentialNanos = System.nanoTime() - start;
+		sequential.shutdown();
+		
+		TelemetryAnalytics parallel = new TelemetryAnalytics();
+		start = System.nanoTime();
+		List<TelemetryReport> reports = parallel.analyze(sessions);
+		long parallelNanos = System.nanoTime() - start;
+		parallel.shutdown();
+		
+		for(int i = 0; i < sessions.size(); i++){
+			System.out.println(sessions.get(i) + ": " + reports.get(i));
+		}
+		System.out.println("Total: " + total(reports));
+		System.out.printf("sequential %.0f ms, %d threads %.0f ms, results %s%n", sequentialNanos / 1e6,
+				Runtime.getRuntime().availableProcessors(), parallelNanos / 1e6,
+				reports.equals(expected) ? "identical" : "DIFFERENT");
+	}
+	
+}
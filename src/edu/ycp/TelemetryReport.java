@@ -0,0 +1,606 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates of one stretch of decoded frames, built by TelemetryAnalytics: distance driven, bump
+ * counts, cliff signal statistics, the battery discharge curve and the odometry segments (runs of
+ * frames in which the wheels moved or were asked to). Reports of consecutive stretches of one
+ * session are joined with append(), which stitches bump edges and segments across the boundary,
+ * so any split of a session gives the same report as decoding it in one piece. Reports of
+ * different sessions are added up with combine(); the total keeps counts and statistics, not
+ * curves or segments.
+ *
+ * Timestamps are the recording's Clock.nanoTime() values.
+ *
+ * @author pjmartin
+ *
+ */
+public class TelemetryReport {
+	
+	public static final long DISCHARGE_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+	public static final int HISTOGRAM_BINS = 64;
+	public static final int HISTOGRAM_BIN_WIDTH = 64;	// cliff signals are 0..4095
+	
+	private static final AnalogSensor[] CLIFF_SIGNALS = {AnalogSensor.CLIFF_LEFT_SIGNAL,
+		AnalogSensor.CLIFF_LEFT_FRONT_SIGNAL, AnalogSensor.CLIFF_RIGHT_FRONT_SIGNAL, AnalogSensor.CLIFF_RIGHT_SIGNAL};
+	private static final int BUMP_RIGHT = 1;
+	private static final int BUMP_LEFT = 2;
+	
+	private int sessions = 0;
+	private long frames = 0;
+	private long firstTimestamp = 0;
+	private long lastTimestamp = 0;
+	private long combinedDuration = -1;	// ns; -1 unless combine() was used
+	
+	private long distance = 0;	// mm, signed
+	private long travel = 0;	// mm, both directions counted
+	private long angle = 0;		// degrees, signed
+	
+	private long bumpsLeft = 0;
+	private long bumpsRight = 0;
+	private int firstBumps = -1;	// bump bits of the first frame with BUMP_AND_WHEEL, -1 before one
+	private int lastBumps = -1;
+	private boolean startResolved = false;	// firstBumps already counted against "not pressed"
+	
+	private final SignalStats[] cliffStats = new SignalStats[CLIFF_SIGNALS.length];
+	
+	private final TreeMap<Long, DischargePoint> discharge = new TreeMap<Long, DischargePoint>();	// by interval
+	
+	private final List<OdometrySegment> segments = new ArrayList<OdometrySegment>();
+	private boolean leadingOpen = false;	// the first segment starts at the first frame
+	private boolean trailingOpen = false;	// the last segment ends at the last frame
+	
+	private String error;
+	
+	TelemetryReport(){
+		for(int i = 0; i < cliffStats.length; i++){
+			cliffStats[i] = new SignalStats(CLIFF_SIGNALS[i]);
+		}
+	}
+	
+	/**
+	 * Adds the frame that turned prev into next. The first frame of a stretch comes with the empty
+	 * snapshot as prev.
+	 * @param prev
+	 * @param next
+	 */
+	final void addFrame(SensorSnapshot prev, SensorSnapshot next){
+		long ts = next.getTimestamp();
+		if(frames == 0){
+			firstTimestamp = ts;
+		}
+		lastTimestamp = ts;
+		frames++;
+		
+		boolean moved = false;
+		if(next.isUpdated(PacketID.DISTANCE) || next.isUpdated(PacketID.ANGLE)){
+			// the snapshot accumulates whole mm and degrees; a stretch is kept short enough that the
+			// float sums stay exact
+			long d = (long) (next.getDistance() - prev.getDistance());
+			long a = (long) (next.getAngle() - prev.getAngle());
+			distance += d;
+			travel += Math.abs(d);
+			angle += a;
+			moved = d != 0 || a != 0;
+			if(moved || isDriving(next)){
+				addMovement(ts, d, a);
+				moved = true;
+			}
+		}
+		if(!moved && trailingOpen){
+			trailingOpen = false;
+		}
+		
+		if(next.isUpdated(PacketID.BUMP_AND_WHEEL)){
+			int bumps = (next.isBumpRight() ? BUMP_RIGHT : 0) | (next.isBumpLeft() ? BUMP_LEFT : 0);
+			if(lastBumps < 0){
+				firstBumps = bumps;
+			}
+			else{
+				countEdges(lastBumps, bumps);
+			}
+			lastBumps = bumps;
+		}
+		
+		for(SignalStats s : cliffStats){
+			if(next.isUpdated(s.sensor.getPacket())){
+				s.add(s.sensor.read(next));
+			}
+		}
+		
+		if(next.isUpdated(PacketID.BATT_CHARGE)){
+			discharge.put(Math.floorDiv(ts, DISCHARGE_INTERVAL), new DischargePoint(ts, next.getBatteryCharge(),
+					next.getBatteryVoltage(), next.getBatteryCurrent()));
+		}
+	}
+	
+	/**
+	 * @return true if the Create reports a nonzero requested wheel velocity; at 15 ms per frame the
+	 * odometry of a slow turn rounds to zero in many frames
+	 */
+	private static final boolean isDriving(SensorSnapshot s){
+		if(s.isUpdated(PacketID.REQ_RIGHT_VEL) && s.isUpdated(PacketID.REQ_LEFT_VEL)){
+			return s.getReqRightVelocity() != 0 || s.getReqLeftVelocity() != 0;
+		}
+		return s.isUpdated(PacketID.REQ_VEL) && s.getReqVelocity() != 0;
+	}
+	
+	private final void addMovement(long ts, long d, long a){
+		if(trailingOpen){
+			segments.get(segments.size() - 1).extend(ts, d, a);
+			return;
+		}
+		if(frames == 1){
+			leadingOpen = true;
+		}
+		segments.add(new OdometrySegment(ts, d, a));
+		trailingOpen = true;
+	}
+	
+	private final void countEdges(int before, int after){
+		int rising = after & ~before;
+		if((rising & BUMP_RIGHT) != 0){
+			bumpsRight++;
+		}
+		if((rising & BUMP_LEFT) != 0){
+			bumpsLeft++;
+		}
+	}
+	
+	/**
+	 * Joins the report of the stretch that directly follows this one in the same session.
+	 * @param next
+	 */
+	final void append(TelemetryReport next){
+		if(next.frames == 0){
+			return;
+		}
+		if(frames == 0){
+			firstTimestamp = next.firstTimestamp;
+			leadingOpen = next.leadingOpen;
+		}
+		lastTimestamp = next.lastTimestamp;
+		frames += next.frames;
+		distance += next.distance;
+		travel += next.travel;
+		angle += next.angle;
+		
+		bumpsLeft += next.bumpsLeft;
+		bumpsRight += next.bumpsRight;
+		if(next.firstBumps >= 0){
+			if(lastBumps >= 0){
+				countEdges(lastBumps, next.firstBumps);
+			}
+			else{
+				firstBumps = next.firstBumps;
+			}
+			lastBumps = next.lastBumps;
+		}
+		
+		for(int i = 0; i < cliffStats.length; i++){
+			cliffStats[i].merge(next.cliffStats[i]);
+		}
+		discharge.putAll(next.discharge);	// the later sample of a shared interval wins
+		
+		int from = 0;
+		if(trailingOpen && next.leadingOpen){
+			segments.get(segments.size() - 1).merge(next.segments.get(0));
+			from = 1;
+		}
+		for(int i = from; i < next.segments.size(); i++){
+			segments.add(next.segments.get(i).copy());
+		}
+		trailingOpen = next.trailingOpen;
+	}
+	
+	/**
+	 * Closes a whole session: its first frame counts as a press for any bumper already pressed,
+	 * as it does for a robot's listeners.
+	 */
+	final void finishSession(){
+		if(!startResolved && firstBumps >= 0){
+			countEdges(0, firstBumps);
+		}
+		startResolved = true;
+		sessions = 1;
+	}
+	
+	/**
+	 * Adds the counts and statistics of a report of another session.
+	 * @param other
+	 */
+	final void combine(TelemetryReport other){
+		if(other.frames > 0 && (frames == 0 || other.firstTimestamp < firstTimestamp)){
+			firstTimestamp = other.firstTimestamp;
+		}
+		if(other.frames > 0 && (frames == 0 || other.lastTimestamp > lastTimestamp)){
+			lastTimestamp = other.lastTimestamp;
+		}
+		combinedDuration = Math.max(0, combinedDuration) + other.getDuration();
+		sessions += other.sessions;
+		frames += other.frames;
+		distance += other.distance;
+		travel += other.travel;
+		angle += other.angle;
+		bumpsLeft += other.bumpsLeft;
+		bumpsRight += other.bumpsRight;
+		for(int i = 0; i < cliffStats.length; i++){
+			cliffStats[i].merge(other.cliffStats[i]);
+		}
+	}
+	
+	final void setError(String error){
+		this.error = error;
+	}
+	
+	/**
+	 * @return why the session could not be read completely, or null
+	 */
+	public String getError(){
+		return error;
+	}
+	
+	/**
+	 * @return sessions added up in this report
+	 */
+	public int getSessionCount(){
+		return sessions;
+	}
+	
+	public long getFrameCount(){
+		return frames;
+	}
+	
+	public long getFirstTimestamp(){
+		return firstTimestamp;
+	}
+	
+	public long getLastTimestamp(){
+		return lastTimestamp;
+	}
+	
+	/**
+	 * @return ns from the first frame to the last, or the sum of that over the combined sessions
+	 */
+	public long getDuration(){
+		return combinedDuration >= 0 ? combinedDuration : lastTimestamp - firstTimestamp;
+	}
+	
+	/**
+	 * @return net distance driven in mm, backwards counted negative
+	 */
+	public long getDistance(){
+		return distance;
+	}
+	
+	/**
+	 * @return total distance driven in mm in either direction
+	 */
+	public long getTravel(){
+		return travel;
+	}
+	
+	/**
+	 * @return net angle turned in degrees
+	 */
+	public long getAngle(){
+		return angle;
+	}
+	
+	public long getBumpsLeft(){
+		return bumpsLeft;
+	}
+	
+	public long getBumpsRight(){
+		return bumpsRight;
+	}
+	
+	/**
+	 * @return bumps per hour of recording
+	 */
+	public double getBumpRate(){
+		long span = getDuration();
+		return span > 0 ? (bumpsLeft + bumpsRight) * (double) TimeUnit.HOURS.toNanos(1) / span : 0;
+	}
+	
+	/**
+	 * @param sensor - one of the four cliff signals
+	 * @return statistics of its values
+	 */
+	public SignalStats getCliffSignalStats(AnalogSensor sensor){
+		for(SignalStats s : cliffStats){
+			if(s.sensor == sensor){
+				return s;
+			}
+		}
+		throw new IllegalArgumentException(sensor + " is not a cliff signal");
+	}
+	
+	/**
+	 * @return the last battery sample of every DISCHARGE_INTERVAL, in time order
+	 */
+	public List<DischargePoint> getDischargeCurve(){
+		return Collections.unmodifiableList(new ArrayList<DischargePoint>(discharge.values()));
+	}
+	
+	public List<OdometrySegment> getOdometrySegments(){
+		return Collections.unmodifiableList(segments);
+	}
+	
+	@Override
+	public boolean equals(Object obj){
+		if(!(obj instanceof TelemetryReport)){
+			return false;
+		}
+		TelemetryReport r = (TelemetryReport) obj;
+		if(sessions != r.sessions || frames != r.frames || firstTimestamp != r.firstTimestamp
+				|| lastTimestamp != r.lastTimestamp || distance != r.distance || travel != r.travel
+				|| combinedDuration != r.combinedDuration || angle != r.angle || bumpsLeft != r.bumpsLeft || bumpsRight != r.bumpsRight){
+			return false;
+		}
+		if(!Arrays.equals(cliffStats, r.cliffStats) || discharge.size() != r.discharge.size()
+				|| !segments.equals(r.segments)){
+			return false;
+		}
+		for(Map.Entry<Long, DischargePoint> e : discharge.entrySet()){
+			if(!e.getValue().equals(r.discharge.get(e.getKey()))){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public int hashCode(){
+		return (int) (frames * 31 + distance * 17 + bumpsLeft + bumpsRight);
+	}
+	
+	@Override
+	public String toString(){
+		SignalStats cl = cliffStats[0];
+		return String.format("%d frames over %.1f min: %d mm driven (%d mm net), %d deg, %d segments, "
+				+ "bumps %d left %d right (%.1f/h), cliff left %.0f +/- %.0f, %d discharge points",
+				frames, getDuration() / 6e10, travel, distance, angle, segments.size(),
+				bumpsLeft, bumpsRight, getBumpRate(), cl.getMean(), cl.getStandardDeviation(), discharge.size())
+				+ (error != null ? " (error: " + error + ")" : "");
+	}
+	
+	/**
+	 * Count, range, mean, deviation and histogram of one analog signal.
+	 */
+	public static final class SignalStats {
+		
+		private final AnalogSensor sensor;
+		private long count = 0;
+		private int min = Integer.MAX_VALUE;
+		private int max = Integer.MIN_VALUE;
+		private long sum = 0;
+		private long sumOfSquares = 0;
+		private final long[] histogram = new long[HISTOGRAM_BINS];
+		
+		SignalStats(AnalogSensor sensor){
+			this.sensor = sensor;
+		}
+		
+		final void add(int value){
+			count++;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+			sumOfSquares += (long) value * value;
+			histogram[Math.max(0, Math.min(HISTOGRAM_BINS - 1, value / HISTOGRAM_BIN_WIDTH))]++;
+		}
+		
+		final void merge(SignalStats other){
+			count += other.count;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			sum += other.sum;
+			sumOfSquares += other.sumOfSquares;
+			for(int i = 0; i < HISTOGRAM_BINS; i++){
+				histogram[i] += other.histogram[i];
+			}
+		}
+		
+		public AnalogSensor getSensor(){
+			return sensor;
+		}
+		
+		public long getCount(){
+			return count;
+		}
+		
+		public int getMin(){
+			return min;
+		}
+		
+		public int getMax(){
+			return max;
+		}
+		
+		public double getMean(){
+			return count > 0 ? (double) sum / count : 0;
+		}
+		
+		public double getStandardDeviation(){
+			if(count == 0){
+				return 0;
+			}
+			double mean = getMean();
+			return Math.sqrt(Math.max(0, (double) sumOfSquares / count - mean * mean));
+		}
+		
+		/**
+		 * @return counts of values in HISTOGRAM_BIN_WIDTH wide bins; the last bin also holds anything above
+		 */
+		public long[] getHistogram(){
+			return histogram.clone();
+		}
+		
+		@Override
+		public boolean equals(Object obj){
+			if(!(obj instanceof SignalStats)){
+				return false;
+			}
+			SignalStats s = (SignalStats) obj;
+			return sensor == s.sensor && count == s.count && min == s.min && max == s.max && sum == s.sum
+					&& sumOfSquares == s.sumOfSquares && Arrays.equals(histogram, s.histogram);
+		}
+		
+		@Override
+		public int hashCode(){
+			return (int) (count * 31 + sum);
+		}
+		
+	}
+	
+	/**
+	 * One battery sample.
+	 */
+	public static final class DischargePoint {
+		
+		private final long timestamp;
+		private final float charge;		// mAh
+		private final float voltage;	// mV
+		private final float current;	// mA
+		
+		DischargePoint(long timestamp, float charge, float voltage, float current){
+			this.timestamp = timestamp;
+			this.charge = charge;
+			this.voltage = voltage;
+			this.current = current;
+		}
+		
+		public long getTimestamp(){
+			return timestamp;
+		}
+		
+		public float getCharge(){
+			return charge;
+		}
+		
+		public float getVoltage(){
+			return voltage;
+		}
+		
+		public float getCurrent(){
+			return current;
+		}
+		
+		@Override
+		public boolean equals(Object obj){
+			if(!(obj instanceof DischargePoint)){
+				return false;
+			}
+			DischargePoint p = (DischargePoint) obj;
+			return timestamp == p.timestamp && charge == p.charge && voltage == p.voltage && current == p.current;
+		}
+		
+		@Override
+		public int hashCode(){
+			return (int) timestamp;
+		}
+		
+	}
+	
+	/**
+	 * A run of consecutive frames in which the Create reported movement or a drive request.
+	 */
+	public static final class OdometrySegment {
+		
+		private long startTime;
+		private long endTime;
+		private long frames;
+		private long distance;	// mm
+		private long angle;		// degrees
+		
+		OdometrySegment(long ts, long distance, long angle){
+			this.startTime = ts;
+			this.endTime = ts;
+			this.frames = 1;
+			this.distance = distance;
+			this.angle = angle;
+		}
+		
+		private OdometrySegment(OdometrySegment s){
+			startTime = s.startTime;
+			endTime = s.endTime;
+			frames = s.frames;
+			distance = s.distance;
+			angle = s.angle;
+		}
+		
+		final void extend(long ts, long d, long a){
+			endTime = ts;
+			frames++;
+			distance += d;
+			angle += a;
+		}
+		
+		final void merge(OdometrySegment next){
+			endTime = next.endTime;
+			frames += next.frames;
+			distance += next.distance;
+			angle += next.angle;
+		}
+		
+		final OdometrySegment copy(){
+			return new OdometrySegment(this);
+		}
+		
+		public long getStartTime(){
+			return startTime;
+		}
+		
+		public long getEndTime(){
+			return endTime;
+		}
+		
+		public long getFrameCount(){
+			return frames;
+		}
+		
+		public long getDistance(){
+			return distance;
+		}
+		
+		public long getAngle(){
+			return angle;
+		}
+		
+		@Override
+		public boolean equals(Object obj){
+			if(!(obj instanceof OdometrySegment)){
+				return false;
+			}
+			OdometrySegment s = (OdometrySegment) obj;
+			return startTime == s.startTime && endTime == s.endTime && frames == s.frames
+					&& distance == s.distance && angle == s.angle;
+		}
+		
+		@Override
+		public int hashCode(){
+			return (int) startTime;
+		}
+		
+		@Override
+		public String toString(){
+			return String.format("%.1f s: %d mm, %d deg", (endTime - startTime) / 1e9, distance, angle);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,351 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer byte ring buffer between the serial port and the sensor data
+ * parser. The producer reads straight from the port into the backing array and the consumer
+ * parses straight out of it, so the receive path does not allocate. Capacity is fixed; what
+ * happens when the consumer falls behind is decided by the OverflowPolicy.
+ * 
+ * @author pjmartin
+ *
+ */
+public class ByteRingBuffer {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	public enum OverflowPolicy {
+		DROP_NEWEST,	// incoming bytes that do not fit are read and thrown away (and counted)
+		BLOCK;			// the producer waits for the consumer to free up space
+	}
+	
+	private final byte[] buffer;
+	private final int mask;
+	private final OverflowPolicy overflowPolicy;
+	
+	private volatile long writeIndex;	// total bytes ever written; producer only
+	private volatile long readIndex;	// total bytes ever read; consumer only
+	private volatile Thread waitingConsumer;
+	private volatile Thread waitingProducer;	// BLOCK only
+	private final Clock clock;	// times awaitData() and the BLOCK backoff
+	private volatile Runnable dataCallback;
+	
+	private final byte[] discardBuffer = new byte[256];
+	private final AtomicLong overflowCount = new AtomicLong();
+	
+	private final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	
+	public ByteRingBuffer(){
+		this(DEFAULT_CAPACITY, OverflowPolicy.DROP_NEWEST);
+	}
+	
+	/**
+	 * @param capacity - must be a power of two
+	 * @param policy
+	 */
+	public ByteRingBuffer(int capacity, OverflowPolicy policy){
+		this(capacity, policy, Clock.SYSTEM);
+	}
+	
+	/**
+	 * @param capacity - must be a power of two
+	 * @param policy
+	 * @param clock - time source for awaitData() timeouts and the BLOCK backoff
+	 */
+	public ByteRingBuffer(int capacity, OverflowPolicy policy, Clock clock){
+		if(capacity <= 0 || Integer.bitCount(capacity) != 1){
+			throw new IllegalArgumentException("Ring buffer capacity must be a power of two: " + capacity);
+		}
+		buffer = new byte[capacity];
+		mask = capacity - 1;
+		overflowPolicy = policy;
+		this.clock = clock;
+		writeIndex = 0;
+		readIndex = 0;
+	}
+	
+	/*
+	 * Producer side.
+	 */
+	
+	/**
+	 * Reads len bytes from in straight into the ring.
+	 * @param in
+	 * @param len
+	 * @return number of bytes stored; anything short of len was dropped by DROP_NEWEST or hit end of stream
+	 * @throws IOException
+	 */
+	public final int write(InputStream in, int len) throws IOException {
+		int stored = 0;
+		int consumed = 0;
+		long tail = writeIndex;
+		while(consumed < len){
+			int free = buffer.length - (int) (tail - readIndex);
+			if(free == 0){
+				if(overflowPolicy == OverflowPolicy.BLOCK && !Thread.currentThread().isInterrupted()){
+					writeIndex = tail;
+					awaitSpace(tail);
+					continue;
+				}
+				int n = in.read(discardBuffer, 0, Math.min(discardBuffer.length, len - consumed));
+				if(n <= 0){
+					break;
+				}
+				overflowCount.addAndGet(n);
+				consumed += n;
+				continue;
+			}
+			int idx = (int) (tail & mask);
+			int chunk = Math.min(Math.min(free, len - consumed), buffer.length - idx);
+			int n = in.read(buffer, idx, chunk);
+			if(n <= 0){
+				break;
+			}
+			tail += n;
+			stored += n;
+			consumed += n;
+		}
+		writeIndex = tail;
+		signalConsumer();
+		return stored;
+	}
+	
+	/**
+	 * Reads everything src has waiting straight into the ring.
+	 * @param src
+	 * @return number of bytes stored; bytes dropped by DROP_NEWEST are counted as overflow
+	 * @throws IOException
+	 */
+	public final int write(SerialTransport src) throws IOException {
+		int stored = 0;
+		long tail = writeIndex;
+		while(true){
+			int free = buffer.length - (int) (tail - readIndex);
+			if(free == 0){
+				if(overflowPolicy == OverflowPolicy.BLOCK && !Thread.currentThread().isInterrupted()){
+					writeIndex = tail;
+					awaitSpace(tail);
+					continue;
+				}
+				int n = src.read(discardBuffer, 0, discardBuffer.length);
+				if(n <= 0){
+					break;
+				}
+				overflowCount.addAndGet(n);
+				continue;
+			}
+			int idx = (int) (tail & mask);
+			int n = src.read(buffer, idx, Math.min(free, buffer.length - idx));
+			if(n <= 0){
+				break;
+			}
+			tail += n;
+			stored += n;
+		}
+		writeIndex = tail;
+		signalConsumer();
+		return stored;
+	}
+	
+	/**
+	 * BLOCK with the ring full: wakes the consumer and waits until it releases bytes, or at most
+	 * BLOCK_PARK_NANOS on the clock.
+	 * @param tail - writeIndex
+	 */
+	private final void awaitSpace(long tail) {
+		waitingProducer = Thread.currentThread();
+		try{
+			signalConsumer();
+			if(tail - readIndex == buffer.length){
+				clock.parkUntil(this, clock.nanoTime() + BLOCK_PARK_NANOS);
+			}
+		} finally{
+			waitingProducer = null;
+		}
+	}
+	
+	/**
+	 * Copies len bytes of src into the ring.
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @return number of bytes stored
+	 */
+	public final int write(byte[] src, int off, int len) {
+		int stored = 0;
+		long tail = writeIndex;
+		while(stored < len){
+			int free = buffer.length - (int) (tail - readIndex);
+			if(free == 0){
+				if(overflowPolicy == OverflowPolicy.BLOCK && !Thread.currentThread().isInterrupted()){
+					writeIndex = tail;
+					awaitSpace(tail);
+					continue;
+				}
+				overflowCount.addAndGet(len - stored);
+				break;
+			}
+			int idx = (int) (tail & mask);
+			int chunk = Math.min(Math.min(free, len - stored), buffer.length - idx);
+			System.arraycopy(src, off + stored, buffer, idx, chunk);
+			tail += chunk;
+			stored += chunk;
+		}
+		writeIndex = tail;
+		signalConsumer();
+		return stored;
+	}
+	
+	private final void signalConsumer(){
+		Thread waiter = waitingConsumer;
+		if(waiter != null){
+			clock.unpark(waiter);
+		}
+		Runnable callback = dataCallback;
+		if(callback != null){
+			callback.run();
+		}
+	}
+	
+	/**
+	 * For consumers that do not block in awaitData(): callback runs on the producer's thread after
+	 * every write, so it should only hand the work off.
+	 * @param callback - null to remove
+	 */
+	public final void setDataCallback(Runnable callback) {
+		this.dataCallback = callback;
+	}
+	
+	/*
+	 * Consumer side.
+	 */
+	
+	/**
+	 * Blocks until data is available or timeout runs out.
+	 * @param timeout
+	 * @param unit
+	 * @return true if data is available
+	 * @throws InterruptedException
+	 */
+	public final boolean awaitData(long timeout, TimeUnit unit) throws InterruptedException {
+		if(available() > 0){
+			return true;
+		}
+		long deadline = clock.nanoTime() + unit.toNanos(timeout);
+		waitingConsumer = Thread.currentThread();
+		try{
+			while(available() == 0){
+				if(clock.nanoTime() >= deadline){
+					return false;
+				}
+				clock.parkUntil(this, deadline);
+				if(Thread.interrupted()){
+					throw new InterruptedException();
+				}
+			}
+			return true;
+		} finally{
+			waitingConsumer = null;
+		}
+	}
+	
+	public final int available() {
+		return (int) (writeIndex - readIndex);
+	}
+	
+	/**
+	 * @return the backing array; readable bytes start at getReadOffset()
+	 */
+	public final byte[] array() {
+		return buffer;
+	}
+	
+	public final int getReadOffset() {
+		return (int) (readIndex & mask);
+	}
+	
+	/**
+	 * @return number of readable bytes from getReadOffset() up to the wrap point
+	 */
+	public final int contiguousReadable() {
+		int idx = (int) (readIndex & mask);
+		return Math.min(available(), buffer.length - idx);
+	}
+	
+	/**
+	 * Copies up to len readable bytes into dst and releases them.
+	 * @param dst
+	 * @param off
+	 * @param len
+	 * @return number of bytes copied
+	 */
+	public final int read(byte[] dst, int off, int len) {
+		int copied = 0;
+		while(copied < len){
+			int chunk = Math.min(contiguousReadable(), len - copied);
+			if(chunk == 0){
+				break;
+			}
+			System.arraycopy(buffer, getReadOffset(), dst, off + copied, chunk);
+			advance(chunk);
+			copied += chunk;
+		}
+		return copied;
+	}
+	
+	/**
+	 * Releases n bytes back to the producer.
+	 * @param n
+	 */
+	public final void advance(int n) {
+		readIndex = readIndex + n;
+		Thread producer = waitingProducer;
+		if(producer != null){
+			clock.unpark(producer);
+		}
+	}
+	
+	/*
+	 * Statistics.
+	 */
+	
+	public final int getCapacity() {
+		return buffer.length;
+	}
+	
+	/**
+	 * @return total bytes ever written into the ring
+	 */
+	public final long getWriteCount() {
+		return writeIndex;
+	}
+	
+	/**
+	 * @return total bytes ever consumed from the ring
+	 */
+	public final long getReadCount() {
+		return readIndex;
+	}
+	
+	/**
+	 * @return number of bytes dropped because the ring was full
+	 */
+	public final long getOverflowCount() {
+		return overflowCount.get();
+	}
+	
+	public final OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+}
@@ -0,0 +1,96 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The time source behind every timed wait in jcreate: the hardware tick, the data task's wait
+ * for bytes, the stop watcher and the simulator. SYSTEM is the wall clock; a VirtualClock lets a
+ * test run hours of robot time in seconds.
+ * 
+ * Threads that wait through a clock should register() before they start and deregister() when
+ * they finish, so a VirtualClock knows when everyone is idle. Both are no-ops on SYSTEM.
+ * 
+ * @author pjmartin
+ *
+ */
+public abstract class Clock {
+
+	public static final Clock SYSTEM = new SystemClock();
+	
+	/**
+	 * @return current time in ns; only differences are meaningful
+	 */
+	public abstract long nanoTime();
+	
+	/**
+	 * Blocks the calling thread until nanoTime() reaches deadline, unpark() is called for it or it
+	 * is interrupted. Like LockSupport.parkNanos() it may also return early for no reason, so
+	 * callers re-check their condition.
+	 * @param blocker
+	 * @param deadline
+	 */
+	public abstract void parkUntil(Object blocker, long deadline);
+	
+	/**
+	 * Wakes thread from parkUntil(), or makes its next parkUntil() return at once.
+	 * @param thread
+	 */
+	public abstract void unpark(Thread thread);
+	
+	public void register() {
+	}
+	
+	public void deregister() {
+	}
+	
+	/**
+	 * @param deadline
+	 * @throws InterruptedException
+	 */
+	public final void sleepUntil(long deadline) throws InterruptedException {
+		while(nanoTime() < deadline){
+			parkUntil(this, deadline);
+			if(Thread.interrupted()){
+				throw new InterruptedException();
+			}
+		}
+	}
+	
+	public final void sleep(long duration, TimeUnit unit) throws InterruptedException {
+		sleepUntil(nanoTime() + unit.toNanos(duration));
+	}
+	
+	private static final class SystemClock extends Clock {
+		
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+		
+		@Override
+		public void parkUntil(Object blocker, long deadline) {
+			long wait = deadline - System.nanoTime();
+			if(wait > 0){
+				LockSupport.parkNanos(blocker, wait);
+			}
+		}
+		
+		@Override
+		public void unpark(Thread thread) {
+			LockSupport.unpark(thread);
+		}
+		
+		@Override
+		public String toString() {
+			return "SystemClock";
+		}
+	}
+	
+}
@@ -0,0 +1,220 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.Arrays;
+
+/**
+ * Encodes one column of a TelemetryArchive block: a list of long values, each stored as the
+ * difference from the one before. Whichever of two forms is smaller is kept:
+ * <pre>
+ * RUNS       varints; (zigzag(delta) << 1) for a change, (count << 1 | 1) for count repeats
+ * 1..56      every zigzag(delta) bit-packed at that many bits, low bits first
+ * </pre>
+ * Slowly changing values (battery, buttons, charging state) collapse into a few runs; noisy ones
+ * (cliff signals) cost a few bits per frame.
+ *
+ * @author pjmartin
+ *
+ */
+final class ColumnCodec {
+	
+	static final byte RUNS = 0;
+	static final int MAX_PACKED_WIDTH = 56;
+	
+	private ColumnCodec(){
+	}
+	
+	/**
+	 * Appends values[0..n), delta coded starting from base.
+	 * @param values
+	 * @param n
+	 * @param base
+	 * @param out
+	 */
+	static void encodeValues(long[] values, int n, long base, Output out){
+		long prev = base;
+		long bits = 0;
+		for(int i = 0; i < n; i++){
+			bits |= zigzag(values[i] - prev);
+			prev = values[i];
+		}
+		int width = 64 - Long.numberOfLeadingZeros(bits);
+		
+		int start = out.length();
+		out.putByte(RUNS);
+		int run = 0;
+		prev = base;
+		for(int i = 0; i < n; i++){
+			long delta = values[i] - prev;
+			prev = values[i];
+			if(delta == 0){
+				run++;
+				continue;
+			}
+			if(run > 0){
+				out.putVarLong(((long) run << 1) | 1);
+				run = 0;
+			}
+			out.putVarLong(zigzag(delta) << 1);
+		}
+		if(run > 0){
+			out.putVarLong(((long) run << 1) | 1);
+		}
+		
+		if(width == 0 || width > MAX_PACKED_WIDTH || 1 + ((long) n * width + 7) / 8 >= out.length() - start){
+			return;
+		}
+		out.setLength(start);
+		out.putByte((byte) width);
+		long acc = 0;
+		int accBits = 0;
+		prev = base;
+		for(int i = 0; i < n; i++){
+			acc |= zigzag(values[i] - prev) << accBits;
+			prev = values[i];
+			accBits += width;
+			while(accBits >= 8){
+				out.putByte((byte) acc);
+				acc >>>= 8;
+				accBits -= 8;
+			}
+		}
+		if(accBits > 0){
+			out.putByte((byte) acc);
+		}
+	}
+	
+	/**
+	 * Reads n values written by encodeValues() with the same base.
+	 * @param in
+	 * @param values - at least n long
+	 * @param n
+	 * @param base
+	 */
+	static void decodeValues(Input in, long[] values, int n, long base){
+		int mode = in.getByte();
+		long prev = base;
+		if(mode == RUNS){
+			int i = 0;
+			while(i < n){
+				long token = in.getVarLong();
+				if((token & 1) != 0){
+					int end = i + (int) (token >>> 1);
+					Arrays.fill(values, i, end, prev);
+					i = end;
+				}
+				else{
+					prev += unzigzag(token >>> 1);
+					values[i++] = prev;
+				}
+			}
+			return;
+		}
+		
+		int width = mode;
+		long mask = width == 64 ? -1L : (1L << width) - 1;
+		long acc = 0;
+		int accBits = 0;
+		for(int i = 0; i < n; i++){
+			while(accBits < width){
+				acc |= (long) (in.getByte() & 0xFF) << accBits;
+				accBits += 8;
+			}
+			prev += unzigzag(acc & mask);
+			values[i] = prev;
+			acc >>>= width;
+			accBits -= width;
+		}
+	}
+	
+	static long zigzag(long v){
+		return (v << 1) ^ (v >> 63);
+	}
+	
+	static long unzigzag(long z){
+		return (z >>> 1) ^ -(z & 1);
+	}
+	
+	/**
+	 * A growable byte array.
+	 */
+	static final class Output {
+		
+		private byte[] buf;
+		private int length = 0;
+		
+		Output(int capacity){
+			buf = new byte[capacity];
+		}
+		
+		final void putByte(int b){
+			if(length == buf.length){
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			buf[length++] = (byte) b;
+		}
+		
+		final void putVarLong(long v){
+			while((v & ~0x7FL) != 0){
+				putByte((int) (v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			putByte((int) v);
+		}
+		
+		final int length(){
+			return length;
+		}
+		
+		final void setLength(int length){
+			this.length = length;
+		}
+		
+		final byte[] array(){
+			return buf;
+		}
+		
+	}
+	
+	/**
+	 * Reads from a byte array.
+	 */
+	static final class Input {
+		
+		private final byte[] buf;
+		private int position;
+		
+		Input(byte[] buf, int position){
+			this.buf = buf;
+			this.position = position;
+		}
+		
+		final byte getByte(){
+			return buf[position++];
+		}
+		
+		final long getVarLong(){
+			long v = 0;
+			int shift = 0;
+			while(true){
+				byte b = buf[position++];
+				v |= (long) (b & 0x7F) << shift;
+				if(b >= 0){
+					return v;
+				}
+				shift += 7;
+			}
+		}
+		
+		final int position(){
+			return position;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,257 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.ycp.InputCommand;
+import edu.ycp.ModePacket.ModeCommand;
+import edu.ycp.StartCommand;
+
+/**
+ * Latest-wins mailbox for commands headed to the Create. There is one slot per opcode, so a new
+ * DRIVE_DIRECT replaces a DRIVE_DIRECT that has not gone out yet instead of queueing behind it,
+ * and a command identical to the one the Create already has is dropped. The hardware thread
+ * drains all dirty slots once per tick, in the order they were first dirtied, so what reaches
+ * the Create always reflects the caller's current intent rather than a backlog.
+ * 
+ * @author pjmartin
+ *
+ */
+public class CommandMailbox {
+
+	private final int SLOTS = 256;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ByteBuffer[] pending = new ByteBuffer[SLOTS];	// indexed by unsigned opcode
+	private final byte[][] lastSent = new byte[SLOTS][];
+	private final int[] dirtyOrder = new int[SLOTS];
+	private int dirtyCount = 0;
+	private final long[] offerTime = new long[SLOTS];	// clock time each pending command was posted
+	private final Clock clock;
+	
+	private final AtomicLong offeredCount = new AtomicLong();
+	private final AtomicLong supersededCount = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong flushedCount = new AtomicLong();
+	
+	public CommandMailbox(){
+		this(Clock.SYSTEM);
+	}
+	
+	/**
+	 * @param clock - stamps each command as it is posted, so its age can be measured when it goes out
+	 */
+	public CommandMailbox(Clock clock){
+		this.clock = clock;
+	}
+	
+	/**
+	 * Posts cmd to the slot of its opcode (its first byte).
+	 * @param cmd
+	 */
+	public final void offer(ByteBuffer cmd){
+		int slot = cmd.array()[0] & 0xFF;
+		offeredCount.incrementAndGet();
+		long now = clock.nanoTime();
+		
+		lock.lock();
+		try{
+			ByteBuffer old = pending[slot];
+			if(old != null){
+				supersededCount.incrementAndGet();
+				if(Arrays.equals(cmd.array(), lastSent[slot])){
+					// back to what the Create already has; nothing left to send
+					pending[slot] = null;
+					removeDirty(slot);
+				}
+				else{
+					pending[slot] = cmd;
+					offerTime[slot] = now;
+				}
+				return;
+			}
+			if(Arrays.equals(cmd.array(), lastSent[slot])){
+				duplicateCount.incrementAndGet();
+				return;
+			}
+			pending[slot] = cmd;
+			offerTime[slot] = now;
+			dirtyOrder[dirtyCount++] = slot;
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves every pending command into out, oldest slot first, and clears the slots. Hardware
+	 * thread only. Nothing counts as sent until the caller reports it with recordSent.
+	 * @param out - must hold at least 256 entries
+	 * @return number of commands placed in out
+	 */
+	public final int drain(ByteBuffer[] out){
+		return drain(out, null);
+	}
+	
+	/**
+	 * As drain(out), also placing the clock time each command was posted in offerTimes.
+	 * @param out - must hold at least 256 entries
+	 * @param offerTimes - null, or at least 256 entries
+	 * @return number of commands placed in out
+	 */
+	public final int drain(ByteBuffer[] out, long[] offerTimes){
+		lock.lock();
+		try{
+			int n = dirtyCount;
+			for(int i = 0; i < n; i++){
+				int slot = dirtyOrder[i];
+				ByteBuffer cmd = pending[slot];
+				out[i] = cmd;
+				if(offerTimes != null){
+					offerTimes[i] = offerTime[slot];
+				}
+				pending[slot] = null;
+			}
+			dirtyCount = 0;
+			flushedCount.addAndGet(n);
+			return n;
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops the pending command for opcode, if any, and forgets what was last sent for it, since
+	 * whoever purges is about to change the Create's state behind the mailbox's back.
+	 * @param opcode
+	 * @return true if a command was dropped
+	 */
+	public final boolean purge(byte opcode){
+		int slot = opcode & 0xFF;
+		lock.lock();
+		try{
+			lastSent[slot] = null;
+			if(pending[slot] == null){
+				return false;
+			}
+			pending[slot] = null;
+			removeDirty(slot);
+			supersededCount.incrementAndGet();
+			return true;
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Records that the first count commands of cmds went out on the wire.
+	 * @param cmds
+	 * @param count
+	 */
+	public final void recordSent(ByteBuffer[] cmds, int count){
+		lock.lock();
+		try{
+			for(int i = 0; i < count; i++){
+				markSent(cmds[i].array()[0] & 0xFF, cmds[i].array());
+			}
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Records that cmd went out on the wire.
+	 * @param cmd
+	 */
+	public final void recordSent(ByteBuffer cmd){
+		lock.lock();
+		try{
+			markSent(cmd.array()[0] & 0xFF, cmd.array());
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Forgets what was last sent, so the next command in every slot goes out even if it repeats
+	 * the previous one.
+	 */
+	public final void invalidate(){
+		lock.lock();
+		try{
+			Arrays.fill(lastSent, null);
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	private final void markSent(int slot, byte[] cmd){
+		if(isModeChange(slot)){
+			// START and the mode commands reset the Create's actuators, so nothing sent before counts
+			Arrays.fill(lastSent, null);
+		}
+		else if(slot == (InputCommand.STREAM.getOpcodeVal() & 0xFF)){
+			// STREAM restarts the stream, so a pause sent before it no longer holds
+			lastSent[InputCommand.PAUSE_RESUME_STREAM.getOpcodeVal() & 0xFF] = null;
+		}
+		lastSent[slot] = cmd;
+	}
+	
+	private final boolean isModeChange(int slot){
+		return slot == (StartCommand.START.getOpcodeVal() & 0xFF)
+				|| slot == (ModeCommand.SAFE.getOpcodeVal() & 0xFF)
+				|| slot == (ModeCommand.FULL.getOpcodeVal() & 0xFF);
+	}
+	
+	private final void removeDirty(int slot){
+		for(int i = 0; i < dirtyCount; i++){
+			if(dirtyOrder[i] == slot){
+				System.arraycopy(dirtyOrder, i + 1, dirtyOrder, i, dirtyCount - i - 1);
+				dirtyCount--;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return number of commands waiting for the next tick
+	 */
+	public final int getPendingCount(){
+		lock.lock();
+		try{
+			return dirtyCount;
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	public final long getOfferedCount(){
+		return offeredCount.get();
+	}
+	
+	/**
+	 * @return number of commands replaced by a newer command for the same opcode before they were sent
+	 */
+	public final long getSupersededCount(){
+		return supersededCount.get();
+	}
+	
+	/**
+	 * @return number of commands dropped because the Create already had them
+	 */
+	public final long getDuplicateCount(){
+		return duplicateCount.get();
+	}
+	
+	public final long getFlushedCount(){
+		return flushedCount.get();
+	}
+	
+}
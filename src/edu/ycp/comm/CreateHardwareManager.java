@@ -8,147 +8,246 @@ package edu.ycp.comm;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.Enumeration;
-import java.util.TooManyListenersException;
-import java.util.Vector;
-import java.util.concurrent.BlockingQueue;
+import java.util.EnumSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.ycp.ActuatorCommand;
+import edu.ycp.CreateRobot.AcquisitionMode;
 import edu.ycp.CreateRobot.CreateMode;
 import edu.ycp.InputCommand;
+import edu.ycp.InputPacket;
+import edu.ycp.PacketID;
+import edu.ycp.SensorRequest;
+import edu.ycp.comm.TickScheduler.OverrunPolicy;
 import edu.ycp.ModePacket;
 import edu.ycp.ModePacket.ModeCommand;
-
-import gnu.io.*;
+import edu.ycp.StartCommand;
 
 /**
  * This class manages the serial connection to the iRobot Create robot. It runs within a thread and communicates
- * with the CreateRobot class via two BlockingQueue objects.
+ * with the CreateRobot class through a ByteRingBuffer (sensor data) and a CommandMailbox (commands). The
+ * bytes themselves go through a SerialTransport, RXTX by default.
  * @author pjmartin
  *
  */
-public class CreateHardwareManager implements SerialPortEventListener, Runnable {
+public class CreateHardwareManager implements SerialTransport.DataListener, Runnable {
 
-	private final String serialPortName;
+	private final SerialTransport transport;
 	private final int baudRate = 57600; // fixed for the Create; no need to set different speeds
-	private SerialPort serialPort;
-	private InputStream serialInStream;
-	private OutputStream serialOutStream;
+	private final ByteBuffer[] singleWrite = new ByteBuffer[1];	// guarded by writeLock
 
-	// setting the update rate to always be 30 ms internally
+	// 30 ms for group 6; short query lists that fit comfortably in 15 ms drop to the OI floor
 	private final long UPDATE_PERIOD = 30;
+	private final long MIN_UPDATE_PERIOD = TickScheduler.MIN_PERIOD;
+	private final Clock clock;
+	private final TickScheduler tickScheduler;
+	private volatile boolean autoUpdatePeriod = true;	// false once the user picks a period
+	private volatile boolean verbose = false;
+	
+	private final ByteRingBuffer returnBuffer;
+	private final CommandMailbox commandMailbox;
+	private final ByteBuffer[] flushBuffer = new ByteBuffer[256];	// hardware thread only
+	private final long[] flushOfferTimes = new long[256];		// hardware thread only
+	private final LinkMetrics metrics;
+	
+	// every write to the port goes through this lock; emergencyStop() writes from the caller's thread
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private long stopEpoch = 0;	// guarded by writeLock
+	private volatile long lastStopLatency = 0;
+	private volatile long maxStopLatency = 0;
+	private static final ByteBuffer STOP_COMMAND = ByteBuffer.wrap(new byte[] { ActuatorCommand.DRIVE.getOpcodeVal(), 0, 0, 0, 0 });
 	
-	private final BlockingQueue<ByteBuffer> returnQueue;
-	private final BlockingQueue<ByteBuffer> commandQueue;
+	private volatile boolean initialized = false;
+	private volatile SerialTransport.DataListener readinessListener;	// null: read on the notifying thread
+	private volatile FlightRecorder flightRecorder;	// null: nothing is recorded
+	private volatile int recorderChannel;
 	
-	private boolean initialized = false;
+	// startup handshake: ask for OI_MODE every tick, repeat the mode command now and then
+	private final CreateMode targetMode;
+	private volatile boolean modeConfirmed;
+	private volatile boolean acquisitionStarted = false;
+	private int startupTicks = 0;				// hardware thread only
+	private final int MODE_RETRY_TICKS = 10;
+	private static final SensorRequest MODE_REQUEST = new SensorRequest(EnumSet.of(PacketID.OI_MODE));
 	
 	private volatile boolean stopRequested;
 //	private Thread mainThread;
 	
-	public CreateHardwareManager(String portName, CreateMode desMode, BlockingQueue<ByteBuffer> retQueue, BlockingQueue<ByteBuffer> commandQueue){
+	private final AcquisitionMode acqMode;
+	private volatile boolean streamPaused;	// as of the last stream command written
+	private volatile SensorRequest sensorRequest;	// what the user selected
+	private volatile SensorRequest activeRequest;	// what was last sent to the Create
+	private ByteBuffer pendingStreamCommand;	// posted STREAM command not yet written; guarded by writeLock
+	private SensorRequest pendingStreamRequest;	// its request; guarded by writeLock
+	private final SensorScheduler sensorScheduler;
+	private final RequestLog requestLog;
+	
+	public CreateHardwareManager(String portName, CreateMode desMode, ByteRingBuffer retBuffer, CommandMailbox commandMailbox){
+		this(portName, desMode, AcquisitionMode.POLL, retBuffer, commandMailbox);
+	}
+	
+	public CreateHardwareManager(String portName, CreateMode desMode, AcquisitionMode acqMode, 
+			ByteRingBuffer retBuffer, CommandMailbox commandMailbox){
+		this(new RxtxTransport(portName), desMode, acqMode, retBuffer, commandMailbox);
+	}
+	
+	/**
+	 * @param transport - not yet opened; open() opens it
+	 * @param desMode
+	 * @param acqMode
+	 * @param retBuffer
+	 * @param commandMailbox
+	 */
+	public CreateHardwareManager(SerialTransport transport, CreateMode desMode, AcquisitionMode acqMode, 
+			ByteRingBuffer retBuffer, CommandMailbox commandMailbox){
+		this(transport, desMode, acqMode, retBuffer, commandMailbox, Clock.SYSTEM);
+	}
+	
+	/**
+	 * @param transport - not yet opened; open() opens it
+	 * @param desMode
+	 * @param acqMode
+	 * @param retBuffer
+	 * @param commandMailbox
+	 * @param clock - time source for the tick and the request log
+	 */
+	public CreateHardwareManager(SerialTransport transport, CreateMode desMode, AcquisitionMode acqMode, 
+			ByteRingBuffer retBuffer, CommandMailbox commandMailbox, Clock clock){
 		
-		this.serialPortName = portName;
+		this.transport = transport;
+		this.clock = clock;
+		this.tickScheduler = new TickScheduler(UPDATE_PERIOD, OverrunPolicy.SKIP, clock);
+		this.acqMode = acqMode;
+		this.streamPaused = false;
+		this.sensorRequest = SensorRequest.ALL;
+		this.activeRequest = MODE_REQUEST;
+		this.sensorScheduler = new SensorScheduler();
+		this.requestLog = new RequestLog();
 		
-		this.returnQueue = retQueue;
-		this.commandQueue = commandQueue;
+		this.returnBuffer = retBuffer;
+		this.commandMailbox = commandMailbox;
+		this.metrics = new LinkMetrics(transport.getName(), clock, retBuffer, commandMailbox, tickScheduler);
 		
-		CommPortIdentifier portId;
-		try {
-			Enumeration portEnum = CommPortIdentifier.getPortIdentifiers();
-			Vector<String> commPortList = new Vector<String>();
-			
-			while(portEnum.hasMoreElements()){
-	            CommPortIdentifier commPortId = (CommPortIdentifier) portEnum.nextElement();
-	            if(commPortId.getPortType() == CommPortIdentifier.PORT_SERIAL)
-	            {
-	            	commPortList.add(commPortId.getName());
-	            }
-	        }
-	        
-			if(commPortList.contains(serialPortName)){
-				System.out.println("Connecting to: " + serialPortName);
-			}
-			
-			portId = CommPortIdentifier.getPortIdentifier(serialPortName);
-			
-			serialPort = (SerialPort) portId.open("CreateHardwareManager", baudRate);
-			serialPort.setSerialPortParams(baudRate, SerialPort.DATABITS_8, 
-					SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-			
-			// setup the event listening system for getting serial port data
-			serialPort.addEventListener(this);
-			serialPort.notifyOnDataAvailable(true);
-			
-			serialOutStream = serialPort.getOutputStream();
-			serialInStream = serialPort.getInputStream();
-			
-			// put robot into desired mode by creating mode packet
-			ByteBuffer startBuf = ByteBuffer.allocate(1);
-			startBuf.put(edu.ycp.StartCommand.START.getOpcodeVal());
-			writeBuffer(startBuf);
-			try {
-				Thread.sleep(30);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			if(desMode == CreateMode.FULL){
-				writeBuffer(ModePacket.generateCommand(ModeCommand.FULL));
-			}
-			else{
-				writeBuffer(ModePacket.generateCommand(ModeCommand.SAFE));
-			}
-			
-			stopRequested = false;	
+		this.targetMode = (desMode == CreateMode.FULL) ? CreateMode.FULL : CreateMode.SAFE;
+		this.modeConfirmed = false;
+		this.stopRequested = false;
+	}
+	
+	/**
+	 * Opens the transport and sends START and the mode command. Does not wait for the Create:
+	 * the hardware loop keeps asking for the OI mode until confirmMode() is called.
+	 * @throws IOException if the transport cannot be opened
+	 */
+	public final void open() throws IOException {
+		
+		transport.setDataListener(this);
+		transport.open(baudRate);
+		
+		initialized = true;
+		metrics.register();
+		
+		// put robot into desired mode; the loop confirms it by reading OI_MODE instead of sleeping
+		writeBuffer(ByteBuffer.wrap(new byte[] { StartCommand.START.getOpcodeVal() }));
+		writeBuffer(generateModeCommand());
+	}
+	
+	private final ByteBuffer generateModeCommand(){
+		if(targetMode == CreateMode.FULL){
+			return ModePacket.generateCommand(ModeCommand.FULL);
+		}
+		return ModePacket.generateCommand(ModeCommand.SAFE);
+	}
+	
+	/**
+	 * @return the mode the Create should report once startup is complete (FULL or SAFE)
+	 */
+	public CreateMode getTargetMode() {
+		return targetMode;
+	}
+	
+	/**
+	 * Called once an OI_MODE reading matches getTargetMode(); ends the startup handshake and starts
+	 * normal sensor acquisition.
+	 */
+	public final void confirmMode() {
+		modeConfirmed = true;
+	}
+	
+	public boolean isModeConfirmed() {
+		return modeConfirmed;
+	}
+	
+	public SerialTransport getTransport() {
+		return transport;
+	}
+	
+	public Clock getClock() {
+		return clock;
+	}
+	
+	/**
+	 * @return this link's counters and timings; also on JMX while the port is open
+	 */
+	public LinkMetrics getMetrics() {
+		return metrics;
+	}
 
-			initialized = true;
-					
-		} catch (NoSuchPortException e) {
-			e.printStackTrace();
-		} catch (PortInUseException e) {
-			e.printStackTrace();
-		} catch (UnsupportedCommOperationException e) {
-			e.printStackTrace();
+	/**
+	 * Records every command written from now on.
+	 * @param recorder - null to stop recording
+	 * @param channel - tells this robot's records apart in a shared recorder
+	 */
+	public final void setFlightRecorder(FlightRecorder recorder, int channel) {
+		this.recorderChannel = channel;
+		this.flightRecorder = recorder;
+	}
+	
+	/**
+	 * Hands the transport's data notifications to listener instead of reading on the notifying
+	 * thread; the owner of listener then reads with pollTransport(). Set it before open().
+	 * @param listener
+	 */
+	public final void setReadinessListener(SerialTransport.DataListener listener) {
+		this.readinessListener = listener;
+	}
+	
+	/**
+	 * Moves whatever the transport has waiting into the return ring without blocking. Only for a
+	 * manager with a readiness listener, and only from one thread.
+	 * @return number of bytes stored
+	 */
+	public final int pollTransport() {
+		if(!initialized){
+			return 0;
+		}
+		try {
+			long start = System.nanoTime();
+			int n = this.returnBuffer.write(transport);
+			metrics.recordRead(start, n);
+			return n;
 		} catch (IOException e) {
+			System.err.println("Error reading from " + transport.getName() + ".");
 			e.printStackTrace();
-		} catch (TooManyListenersException e) {
-			e.printStackTrace();
+			return 0;
 		}
 	}
 
 	@Override
-	public final void serialEvent(SerialPortEvent arg0) {
-		
-		switch(arg0.getEventType()){
-		
-		case SerialPortEvent.DATA_AVAILABLE:
-			
-			try {
-				
-				int sizeOfInput = serialInStream.available();
-				
-				// read data if it exists
-				if(sizeOfInput > 0){
-					ByteBuffer inByteBuf = ByteBuffer.allocate(sizeOfInput);
-					serialInStream.read(inByteBuf.array());
-					// place into return queue
-					this.returnQueue.put(inByteBuf);
-				}
-
-			} catch (IOException e) {
-				System.err.println("Error reading from serial port stream.");
-				e.printStackTrace();
-			} catch (InterruptedException e) {
-				System.err.println(Thread.currentThread().getName() + " Error: interrupted during return queue put.");
-			}
-
-			break;
-		default:
-			System.err.println("Unhandled serial event.");
-			break;
+	public final void dataAvailable(SerialTransport source) {
+		SerialTransport.DataListener readiness = readinessListener;
+		if(readiness != null){
+			readiness.dataAvailable(source);
+			return;
+		}
+		try {
+			// read straight into the return ring
+			long start = System.nanoTime();
+			metrics.recordRead(start, this.returnBuffer.write(source));
+		} catch (IOException e) {
+			System.err.println("Error reading from " + source.getName() + ".");
+			e.printStackTrace();
 		}
-		
 	}
 	
 	/**
@@ -156,30 +255,230 @@ public class CreateHardwareManager implements SerialPortEventListener, Runnable
 	 * @param bb
 	 */
 	private final void writeBuffer(ByteBuffer bb) {
+		writeBuffer(bb, null);
+	}
+	
+	/**
+	 * Transmits a ByteBuffer out the serial port. The request log entry and the flight record are
+	 * made before the write, under the write lock, so no byte of the response can precede them.
+	 * @param bb
+	 * @param pollRequest - the request bb polls for, logged in the RequestLog; null for none
+	 */
+	private final void writeBuffer(ByteBuffer bb, SensorRequest pollRequest) {
+		if(!initialized){
+			return;	// port not open yet (or failed to open)
+		}
+		writeLock.lock();
 		try {
-			this.serialOutStream.write(bb.array());
-			
+			long now = clock.nanoTime();
+			if(pollRequest != null){
+				requestLog.record(pollRequest, returnBuffer.getWriteCount(), now);
+			}
+			FlightRecorder recorder = flightRecorder;
+			if(recorder != null){
+				recorder.recordCommand(now, recorderChannel, bb);
+			}
+			transmit(bb);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes bb to the port and nothing else. Called with the write lock held.
+	 * @param bb
+	 * @return false if the write failed
+	 */
+	private final boolean transmit(ByteBuffer bb) {
+		try {
+			singleWrite[0] = bb;
+			long start = System.nanoTime();
+			transport.write(singleWrite, 0, 1);
+			metrics.recordWrite(start, bb.limit(), 1);
+			commandWritten(bb);
+			return true;
 		} catch (IOException e) {
 			System.err.println("Error writing byte array to serial port!");
 			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes the commands drained from the mailbox as one transmission, leaving out motion
+	 * commands if an emergency stop went out since they were drained.
+	 * @param cmds
+	 * @param offerTimes - when each command was posted; kept in step with cmds
+	 * @param count
+	 * @param epoch - stopEpoch at drain time
+	 * @return number of commands written, now at the front of cmds
+	 */
+	private final int writeCommands(ByteBuffer[] cmds, long[] offerTimes, int count, long epoch) {
+		if(!initialized || count == 0){
+			return 0;
+		}
+		writeLock.lock();
+		try {
+			int kept = count;
+			if(epoch != stopEpoch){
+				kept = 0;
+				for(int i = 0; i < count; i++){
+					if(!isMotionCommand(cmds[i])){
+						offerTimes[kept] = offerTimes[i];
+						cmds[kept++] = cmds[i];
+					}
+				}
+			}
+			// recorded before the write, so the recording never shows a reply ahead of its command
+			FlightRecorder recorder = flightRecorder;
+			if(recorder != null){
+				long now = clock.nanoTime();
+				for(int i = 0; i < kept; i++){
+					recorder.recordCommand(now, recorderChannel, cmds[i]);
+				}
+			}
+			
+			long start = System.nanoTime();
+			transport.write(cmds, 0, kept);
+			int bytes = 0;
+			for(int i = 0; i < kept; i++){
+				bytes += cmds[i].limit();
+			}
+			metrics.recordWrite(start, bytes, kept);
+			// only what was written, and under writeLock so it can't land after a stop's purge
+			commandMailbox.recordSent(cmds, kept);
+			for(int i = 0; i < kept; i++){
+				commandWritten(cmds[i]);
+			}
+			return kept;
+		} catch (IOException e) {
+			System.err.println("Error writing commands to " + transport.getName() + "!");
+			e.printStackTrace();
+			return 0;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Notes a command that has just been written. Called with the write lock held.
+	 * @param cmd
+	 */
+	private final void commandWritten(ByteBuffer cmd){
+		byte opcode = cmd.array()[0];
+		if(opcode == InputCommand.STREAM.getOpcodeVal()){
+			streamPaused = false;
+		}
+		else if(opcode == InputCommand.PAUSE_RESUME_STREAM.getOpcodeVal()){
+			streamPaused = cmd.array()[1] == 0;
+		}
+		if(cmd == pendingStreamCommand){
+			// the Create only switches streams now; until here the old frames keep coming
+			activeRequest = pendingStreamRequest;
+			pendingStreamCommand = null;
+			pendingStreamRequest = null;
 		}
 	}
 	
-	private final void disconnectSerial(){
-		if(this.initialized){
-			this.serialPort.close();
+	/**
+	 * Makes request the active request once cmd, its STREAM command, has been written.
+	 * @param cmd
+	 * @param request
+	 */
+	private final void expectStream(ByteBuffer cmd, SensorRequest request){
+		writeLock.lock();
+		try {
+			pendingStreamCommand = cmd;
+			pendingStreamRequest = request;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	private static final boolean isMotionCommand(ByteBuffer bb){
+		byte opcode = bb.array()[0];
+		return opcode == ActuatorCommand.DRIVE.getOpcodeVal() || opcode == ActuatorCommand.DRIVE_DIRECT.getOpcodeVal();
+	}
+	
+	/**
+	 * Stops the wheels right now from the caller's thread: pending motion commands are purged from
+	 * the mailbox, any motion command the hardware thread has already drained is dropped, and a
+	 * zero DRIVE is written to the port without waiting for the next tick. The stop is flight
+	 * recorded after the write, outside the write lock, so the recorder can never hold it up.
+	 * @return nanoseconds from the call to the stop command being handed to the port
+	 */
+	public final long emergencyStop(){
+		long start = System.nanoTime();
+		
+		long timeToWire;
+		boolean written = false;
+		long wiredAt = 0;
+		writeLock.lock();
+		try {
+			stopEpoch++;
+			// under writeLock, so no flush can mark a motion command sent after the purge forgets it
+			commandMailbox.purge(ActuatorCommand.DRIVE.getOpcodeVal());
+			commandMailbox.purge(ActuatorCommand.DRIVE_DIRECT.getOpcodeVal());
+			if(initialized){
+				written = transmit(STOP_COMMAND);
+				wiredAt = clock.nanoTime();
+			}
+			timeToWire = System.nanoTime() - start;
+			lastStopLatency = timeToWire;
+			if(timeToWire > maxStopLatency){
+				maxStopLatency = timeToWire;
+			}
+			if(written){
+				commandMailbox.recordSent(STOP_COMMAND);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		FlightRecorder recorder = flightRecorder;
+		if(written && recorder != null){
+			recorder.recordCommand(wiredAt, recorderChannel, STOP_COMMAND);
+		}
+		
+		return timeToWire;
+	}
+	
+	/**
+	 * @return time-to-wire of the last emergencyStop(), in ns
+	 */
+	public long getLastStopLatency() {
+		return lastStopLatency;
+	}
+	
+	/**
+	 * @return worst time-to-wire of any emergencyStop() so far, in ns
+	 */
+	public long getMaxStopLatency() {
+		return maxStopLatency;
+	}
+	
+	/**
+	 * Closes the transport; nothing is written after this.
+	 */
+	public final void close(){
+		writeLock.lock();
+		try {
+			if(this.initialized){
+				this.initialized = false;
+				this.transport.close();
+				metrics.unregister();
+			}
+		} finally {
+			writeLock.unlock();
 		}
 	}
 	
 	public final void requestStop(){
+		// quiet the sensor stream first so the port is not still flooded after we close it
+		if(acqMode == AcquisitionMode.STREAM){
+			writeBuffer(InputPacket.generatePauseResumeCommand(false));
+		}
 		// send a motor stop before killing the threads
-		ByteBuffer stopBuf = ByteBuffer.allocate(5);
-		stopBuf.put(ActuatorCommand.DRIVE.getOpcodeVal());
-		stopBuf.put((byte)0);
-		stopBuf.put((byte)0);
-		stopBuf.put((byte)0);
-		stopBuf.put((byte)0);
-		writeBuffer(stopBuf);
+		emergencyStop();
 
 		stopRequested = true;
 //		if(mainThread != null){
@@ -190,57 +489,265 @@ public class CreateHardwareManager implements SerialPortEventListener, Runnable
 	public boolean isInitialized() {
 		return initialized;
 	}
+	
+	public AcquisitionMode getAcquisitionMode() {
+		return acqMode;
+	}
+	
+	/**
+	 * Asks the Create to stop pushing stream frames. Only meaningful in STREAM mode. The mailbox
+	 * drops the command if the stream is already paused.
+	 */
+	public final void pauseStream(){
+		if(acqMode == AcquisitionMode.STREAM){
+			sendCommand(InputPacket.generatePauseResumeCommand(false));
+		}
+	}
+	
+	/**
+	 * Resumes a paused sensor stream. Only meaningful in STREAM mode.
+	 */
+	public final void resumeStream(){
+		if(acqMode == AcquisitionMode.STREAM){
+			sendCommand(InputPacket.generatePauseResumeCommand(true));
+		}
+	}
+	
+	/**
+	 * @return true if the last stream command written paused the stream; a STREAM command, as
+	 * sent by setSensorRequest(), restarts it
+	 */
+	public boolean isStreamPaused() {
+		return streamPaused;
+	}
+	
+	/**
+	 * Changes the packets acquired from the Create. In POLL mode the next tick sends the new
+	 * QUERY_LIST; in STREAM mode the stream is restarted with the new list, and the new request
+	 * becomes active once its STREAM command is written.
+	 * @param request
+	 */
+	public final void setSensorRequest(SensorRequest request){
+		if(acqMode == AcquisitionMode.STREAM){
+			sensorRequest = request;
+			if(acquisitionStarted){
+				ByteBuffer cmd = request.generateStreamCommand();
+				expectStream(cmd, request);
+				sendCommand(cmd);
+			}
+		}
+		else{
+			if(autoUpdatePeriod){
+				tickScheduler.setPeriod(computeUpdatePeriod(request));
+			}
+			sensorRequest = request;
+		}
+	}
+	
+	public SensorRequest getSensorRequest() {
+		return sensorRequest;
+	}
+	
+	/**
+	 * @return the request whose response is currently expected from the Create. In POLL mode this
+	 * is the subset of getSensorRequest() that the SensorScheduler found due on the last tick.
+	 */
+	public SensorRequest getActiveRequest() {
+		return activeRequest;
+	}
+	
+	/**
+	 * Per-packet polling periods; only used in POLL mode since a stream always carries its full list.
+	 * @return
+	 */
+	public SensorScheduler getSensorScheduler() {
+		return sensorScheduler;
+	}
+	
+	/**
+	 * Every POLL request sent, along with the number of bytes received before it went out.
+	 * @return
+	 */
+	public RequestLog getRequestLog() {
+		return requestLog;
+	}
+	
+	public long getUpdatePeriod() {
+		return tickScheduler.getPeriod();
+	}
+	
+	/**
+	 * Fixes the tick period, overriding the period picked from the sensor request.
+	 * @param periodMs - at least 15 ms
+	 */
+	public final void setUpdatePeriod(long periodMs) {
+		tickScheduler.setPeriod(periodMs);
+		autoUpdatePeriod = false;
+	}
+	
+	/**
+	 * @return the deadline scheduler driving the hardware loop, with its period and jitter statistics
+	 */
+	public TickScheduler getTickScheduler() {
+		return tickScheduler;
+	}
+	
+	/**
+	 * Prints every command written to the port. Off by default: console output inside the loop
+	 * is a jitter source in its own right.
+	 * @param verbose
+	 */
+	public final void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * Picks the 15 ms floor when the request and its response take no more than half of it on
+	 * the wire (10 bits per byte), otherwise the conservative 30 ms.
+	 * @param request
+	 * @return
+	 */
+	private final long computeUpdatePeriod(SensorRequest request){
+		int wireBytes = request.generatePollCommand().capacity() + request.getResponseSize();
+		double wireTimeMs = wireBytes * 10 * 1000.0 / baudRate;
+		if(2 * wireTimeMs <= MIN_UPDATE_PERIOD){
+			return MIN_UPDATE_PERIOD;
+		}
+		return UPDATE_PERIOD;
+	}
+
+	/**
+	 * One startup tick: ask for OI_MODE, and every so often repeat the mode command in case the
+	 * Create was not ready for it.
+	 */
+	private final void startupTick(){
+		if(startupTicks > 0 && startupTicks % MODE_RETRY_TICKS == 0){
+			writeBuffer(generateModeCommand());
+		}
+		startupTicks++;
+		
+		activeRequest = MODE_REQUEST;
+		if(acqMode == AcquisitionMode.STREAM){
+			if(startupTicks == 1){
+				writeBuffer(MODE_REQUEST.generateStreamCommand());
+			}
+		}
+		else{
+			writeBuffer(MODE_REQUEST.generatePollCommand(), MODE_REQUEST);
+		}
+	}
 
 	@Override
 	public final void run() {
 		
-		while(!stopRequested){
-			try {
+		try {
+			while(!stopRequested){
+				// sleeps until the next absolute deadline
+				long tickStart = tickScheduler.awaitNextTick();
+				tick(tickStart, TimeUnit.MILLISECONDS.toNanos(tickScheduler.getPeriod()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close();
+			System.out.println("CreateHardwareManager stopped.");
+		}
+		
+	}
+	
+	/**
+	 * One tick of work: the startup handshake or the due sensor request, then every command posted
+	 * since the last tick. run() calls this on its own schedule; a CreateFleet calls it directly
+	 * instead of running this manager on a thread of its own.
+	 * @param tickStart - Clock.nanoTime() of the tick
+	 * @param tickPeriodNanos - time until the next tick
+	 */
+	public final void tick(long tickStart, long tickPeriodNanos) {
+		if(stopRequested){
+			return;
+		}
+		
+		if(!modeConfirmed){
+			startupTick();
+		}
+		else if(!acquisitionStarted){
+			acquisitionStarted = true;
+			if(acqMode == AcquisitionMode.STREAM){
+				// the Create pushes the selected packets every 15 ms from here on
+				SensorRequest request = sensorRequest;
+				ByteBuffer cmd = request.generateStreamCommand();
+				expectStream(cmd, request);
+				writeBuffer(cmd);
+			}
+		}
 
-				ByteBuffer dataPullBB = ByteBuffer.allocate(2);
-				dataPullBB.put(InputCommand.SENSORS.getOpcodeVal());
-				dataPullBB.put((byte) 6);	// request all data from Create
-				writeBuffer(dataPullBB);
+		if(modeConfirmed && acqMode == AcquisitionMode.POLL){
+			SensorRequest dueRequest = sensorScheduler.nextRequest(sensorRequest, tickStart, tickPeriodNanos);
+			if(dueRequest != null){
+				activeRequest = dueRequest;
+				writeBuffer(dueRequest.generatePollCommand(), dueRequest);	// group 6 or the due query list
+			}
+		}
 
-				// grab the most recent command to the Create from the commandQueue
-				long queueBlockStart = System.currentTimeMillis();
-				ByteBuffer cmdBB = commandQueue.poll(UPDATE_PERIOD, TimeUnit.MILLISECONDS);
-				long queueBlockEnd = System.currentTimeMillis();
-				if(cmdBB != null){
-					System.out.print(Thread.currentThread().getName() + ": Command received! \n[");
-					for(byte b : cmdBB.array()){
-						System.out.print(b + " ");
-					}
-					System.out.println("]");
-					writeBuffer(cmdBB);
-				}
-								
-				// compute sleep time
-				long queueTotalTime = queueBlockEnd - queueBlockStart;
-//				System.out.println("Queue blocking time = " + queueTotalTime);
-				if((this.UPDATE_PERIOD - queueTotalTime) < 0){
-					Thread.sleep(this.UPDATE_PERIOD);
-				}
-				else{
-					Thread.sleep(this.UPDATE_PERIOD - queueTotalTime);
+		flushCommands();
+		metrics.recordTick(tickStart, clock.nanoTime(), tickPeriodNanos);
+	}
+	
+	/**
+	 * Writes the newest command of every opcode posted since the last flush. tick() ends with this;
+	 * a replay calls it on its own.
+	 */
+	public final void flushCommands() {
+		long start = System.nanoTime();
+		long epoch = currentStopEpoch();
+		int cmdCount = commandMailbox.drain(flushBuffer, flushOfferTimes);
+		if(verbose){
+			for(int i = 0; i < cmdCount; i++){
+				System.out.print(Thread.currentThread().getName() + ": Command received! \n[");
+				for(byte b : flushBuffer[i].array()){
+					System.out.print(b + " ");
 				}
-								
-			} catch (InterruptedException e) {
-				this.disconnectSerial();
-				Thread.currentThread().interrupt();
-				System.out.println("CreateHardwareManager stopped.");
+				System.out.println("]");
 			}
 		}
-		
+		int written = writeCommands(flushBuffer, flushOfferTimes, cmdCount, epoch);
+		metrics.recordFlush(start, cmdCount, written, flushOfferTimes, clock.nanoTime());
+		for(int i = 0; i < cmdCount; i++){
+			flushBuffer[i] = null;
+		}
+	}
+	
+	/**
+	 * For replaying a recording: takes a recorded command as if this manager had just written it,
+	 * without writing anything. A poll request is logged against the return ring like a live one,
+	 * and a poll or stream request becomes the active request.
+	 * @param cmd
+	 * @param off
+	 * @param len
+	 */
+	public final void replayCommand(byte[] cmd, int off, int len) {
+		SensorRequest request = SensorRequest.fromCommand(cmd, off, len);
+		if(request == null){
+			return;
+		}
+		activeRequest = request;
+		if(cmd[off] != InputCommand.STREAM.getOpcodeVal()){
+			requestLog.record(request, returnBuffer.getWriteCount(), clock.nanoTime());
+		}
+	}
+	
+	private final long currentStopEpoch(){
+		writeLock.lock();
+		try {
+			return stopEpoch;
+		} finally {
+			writeLock.unlock();
+		}
 	}
 	
 	public final void sendCommand(ByteBuffer inCommand) {
 		if(initialized){
-			try {
-				this.commandQueue.put(inCommand);
-			} catch (InterruptedException e) {
-				System.err.println(Thread.currentThread().getName() + " interrupted during sendCommand()");
-			}
+			this.commandMailbox.offer(inCommand);
 		}
 		else{
 			System.out.println("Wait! " + CreateHardwareManager.class.getCanonicalName() + " not ready.");
@@ -0,0 +1,244 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where jcreate gets its threads: the robot's hardware and data tasks, the fleet and multiplexer
+ * loops, and the default listener thread. PLATFORM uses ordinary threads. VIRTUAL uses JDK 21+
+ * virtual threads, looked up by reflection so the library still builds and runs on older JDKs;
+ * there it falls back to PLATFORM with a warning. getDefault() is PLATFORM unless the system
+ * property jcreate.threads is set to "virtual".
+ *
+ * Every blocking wait in the library parks through a Clock or a ReentrantLock rather than inside
+ * a synchronized block, so virtual threads unmount while they wait instead of pinning a carrier.
+ *
+ * @author pjmartin
+ *
+ */
+public abstract class ExecutorFactory {
+	
+	public static final String THREADS_PROPERTY = "jcreate.threads";
+	
+	public static final ExecutorFactory PLATFORM = new PlatformExecutorFactory();
+	
+	private static volatile ExecutorFactory virtualFactory;	// looked up on first use
+	private static volatile ExecutorFactory defaultFactory;
+	
+	/**
+	 * @param name - prefix of the thread names
+	 * @return factory for threads of this kind
+	 */
+	public abstract ThreadFactory newThreadFactory(String name);
+	
+	/**
+	 * @param name - prefix of the thread names
+	 * @return an executor that starts a new thread for every task; cheap with virtual threads, for
+	 * e.g. one blocking behavior per robot
+	 */
+	public abstract ExecutorService newPerTaskExecutor(String name);
+	
+	public abstract boolean isVirtual();
+	
+	/**
+	 * @param name - prefix of the thread names
+	 * @param threads - at most this many tasks run at once; 1 keeps tasks in submission order
+	 * @return executor backed by threads of this kind
+	 */
+	public ExecutorService newExecutor(String name, int threads) {
+		return Executors.newFixedThreadPool(threads, newThreadFactory(name));
+	}
+	
+	/**
+	 * @param name
+	 * @param task
+	 * @return an unstarted thread
+	 */
+	public final Thread newThread(String name, Runnable task) {
+		return newThreadFactory(name).newThread(task);
+	}
+	
+	/**
+	 * @return VIRTUAL if this JDK has virtual threads, otherwise PLATFORM
+	 */
+	public static ExecutorFactory virtualThreads() {
+		ExecutorFactory f = virtualFactory;
+		if(f == null){
+			f = VirtualExecutorFactory.lookup();
+			if(f == null){
+				System.err.println("Virtual threads need JDK 21 or later; running on platform threads.");
+				f = PLATFORM;
+			}
+			virtualFactory = f;
+		}
+		return f;
+	}
+	
+	public static boolean isVirtualThreadSupported() {
+		return virtualThreads().isVirtual();
+	}
+	
+	/**
+	 * @return the factory robots, fleets and multiplexers use unless they are given one
+	 */
+	public static ExecutorFactory getDefault() {
+		ExecutorFactory f = defaultFactory;
+		if(f == null){
+			f = "virtual".equalsIgnoreCase(System.getProperty(THREADS_PROPERTY)) ? virtualThreads() : PLATFORM;
+			defaultFactory = f;
+		}
+		return f;
+	}
+	
+	/**
+	 * Changes the default for everything created from now on.
+	 * @param factory
+	 */
+	public static void setDefault(ExecutorFactory factory) {
+		if(factory == null){
+			throw new IllegalArgumentException("ExecutorFactory must not be null");
+		}
+		defaultFactory = factory;
+	}
+	
+	private static class PlatformExecutorFactory extends ExecutorFactory {
+		
+		@Override
+		public ThreadFactory newThreadFactory(final String name) {
+			final AtomicInteger count = new AtomicInteger();
+			return new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, name + "-" + count.incrementAndGet());
+				}
+			};
+		}
+		
+		@Override
+		public ExecutorService newPerTaskExecutor(String name) {
+			return Executors.newCachedThreadPool(newThreadFactory(name));
+		}
+		
+		@Override
+		public boolean isVirtual() {
+			return false;
+		}
+		
+		@Override
+		public String toString() {
+			return "PLATFORM";
+		}
+		
+	}
+	
+	/**
+	 * Thread.ofVirtual().name(name, 1).factory() and Executors.newThreadPerTaskExecutor(), called by
+	 * reflection.
+	 */
+	private static class VirtualExecutorFactory extends ExecutorFactory {
+		
+		private final Method ofVirtual;
+		private final Method builderName;
+		private final Method builderFactory;
+		private final Method newThreadPerTaskExecutor;
+		
+		private VirtualExecutorFactory() throws ReflectiveOperationException {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builder.getMethod("name", String.class, long.class);
+			builderFactory = builder.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		}
+		
+		static ExecutorFactory lookup() {
+			try {
+				VirtualExecutorFactory f = new VirtualExecutorFactory();
+				// JDK 19 and 20 have the API only as a preview feature; this throws there unless it is enabled
+				f.newThreadFactory("probe").newThread(new Runnable(){
+					@Override
+					public void run() {
+					}
+				});
+				return f;
+			} catch (ReflectiveOperationException e) {
+				return null;
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+		
+		@Override
+		public ThreadFactory newThreadFactory(String name) {
+			try {
+				Object b = builderName.invoke(ofVirtual.invoke(null), name + "-", 1L);
+				return (ThreadFactory) builderFactory.invoke(b);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Cannot create virtual threads", e);
+			}
+		}
+		
+		@Override
+		public ExecutorService newPerTaskExecutor(String name) {
+			try {
+				return (ExecutorService) newThreadPerTaskExecutor.invoke(null, newThreadFactory(name));
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Cannot create virtual threads", e);
+			}
+		}
+		
+		@Override
+		public boolean isVirtual() {
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return "VIRTUAL";
+		}
+		
+	}
+	
+	/**
+	 * Runs many blocking tasks at once on the default factory and reports how long they took and
+	 * how many threads the JVM ended up with.
+	 */
+	public static void main(String[] args) throws Exception {
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		ExecutorFactory factory = getDefault();
+		System.out.println("ExecutorFactory " + factory + ", virtual threads supported: " + isVirtualThreadSupported());
+		
+		ExecutorService executor = factory.newPerTaskExecutor("behavior");
+		final AtomicInteger done = new AtomicInteger();
+		long start = System.nanoTime();
+		for(int i = 0; i < tasks; i++){
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						// stands in for a behavior that waits on its robot
+						Clock.SYSTEM.sleep(100, TimeUnit.MILLISECONDS);
+						done.incrementAndGet();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		int platformThreads = Thread.activeCount();
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		System.out.printf("%d tasks of 100 ms in %d ms, %d platform threads while running%n", done.get(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), platformThreads);
+	}
+	
+}
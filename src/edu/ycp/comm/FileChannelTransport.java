@@ -0,0 +1,218 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SerialTransport over a character device opened as a FileChannel, with no native library. On
+ * Linux this works for a real adapter (/dev/ttyUSB0) and for either side of a pseudo-terminal
+ * pair, e.g. one made with
+ * <pre>socat -d -d pty,raw,echo=0 pty,raw,echo=0</pre>
+ * so a simulated robot can run in another process. Java cannot set terminal attributes itself;
+ * if configureTerminal is set, open() runs stty to put the line in raw mode at the baud rate.
+ * 
+ * A daemon thread blocks in read() and moves everything it gets into a receive ring. In polled
+ * mode there is no reader thread: the line is set to return from read() at once (stty min 0 time 0)
+ * and read() reads the device directly, so one thread can service many ports by polling them.
+ * 
+ * @author pjmartin
+ *
+ */
+public class FileChannelTransport implements SerialTransport {
+
+	private final String path;
+	private final boolean configureTerminal;
+	private volatile boolean polled = false;
+	private final ByteRingBuffer receiveBuffer = new ByteRingBuffer();
+	private volatile DataListener listener;
+	private volatile FileChannel channel;
+	private Thread readerThread;
+	
+	private ByteBuffer writeScratch = ByteBuffer.allocateDirect(256);	// guarded by the caller's write lock
+	private ByteBuffer readWrapper = ByteBuffer.allocate(0);	// polled mode; the reading thread only
+	
+	public FileChannelTransport(String path){
+		this(path, true);
+	}
+	
+	/**
+	 * @param path - device or pty to open
+	 * @param configureTerminal - run stty on path when opening
+	 */
+	public FileChannelTransport(String path, boolean configureTerminal){
+		this.path = path;
+		this.configureTerminal = configureTerminal;
+	}
+	
+	/**
+	 * Reads the device directly from read() instead of on a reader thread. The line must return
+	 * from read() when there is no data, which open() arranges if configureTerminal is set. No
+	 * DataListener is ever called in this mode. Set it before open().
+	 * @param polled
+	 */
+	public final void setPolled(boolean polled){
+		this.polled = polled;
+	}
+	
+	public boolean isPolled(){
+		return polled;
+	}
+	
+	@Override
+	public final void open(int baudRate) throws IOException {
+		if(configureTerminal){
+			configureTerminal(baudRate);
+		}
+		channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(polled){
+			return;
+		}
+		
+		readerThread = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "FileChannelTransport-" + path);
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+	
+	private final void configureTerminal(int baudRate) throws IOException {
+		ProcessBuilder builder = polled
+				// min 0 time 0: read() returns whatever is there, possibly nothing, instead of waiting
+				? new ProcessBuilder("stty", "-F", path, Integer.toString(baudRate), 
+						"raw", "-echo", "cs8", "-cstopb", "-parenb", "min", "0", "time", "0")
+				: new ProcessBuilder("stty", "-F", path, Integer.toString(baudRate), 
+						"raw", "-echo", "cs8", "-cstopb", "-parenb");
+		Process stty = builder.redirectErrorStream(true).start();
+		try {
+			if(stty.waitFor() != 0){
+				throw new IOException("stty failed on " + path);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while configuring " + path, e);
+		}
+	}
+	
+	private final void readLoop(){
+		ByteBuffer readBuffer = ByteBuffer.allocate(512);
+		try {
+			while(channel != null){
+				readBuffer.clear();
+				int n = channel.read(readBuffer);
+				if(n < 0){
+					break;
+				}
+				receiveBuffer.write(readBuffer.array(), 0, n);
+				DataListener l = listener;
+				if(l != null && n > 0){
+					l.dataAvailable(this);
+				}
+			}
+		} catch (AsynchronousCloseException e) {
+			// close() was called
+		} catch (IOException e) {
+			System.err.println("Error reading from " + path);
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel != null;
+	}
+
+	/**
+	 * @return bytes waiting in the receive ring; always 0 in polled mode, where the only way to
+	 * find out is to read()
+	 */
+	@Override
+	public int available() throws IOException {
+		return receiveBuffer.available();
+	}
+
+	@Override
+	public int read(byte[] dst, int off, int len) throws IOException {
+		if(!polled){
+			return receiveBuffer.read(dst, off, len);
+		}
+		FileChannel ch = channel;
+		if(ch == null){
+			return 0;
+		}
+		// callers read into the same ring array every time, so the wrapper is almost always reused
+		if(readWrapper.array() != dst){
+			readWrapper = ByteBuffer.wrap(dst);
+		}
+		readWrapper.limit(off + len).position(off);
+		int n = ch.read(readWrapper);
+		return Math.max(n, 0);
+	}
+
+	@Override
+	public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		FileChannel ch = channel;
+		if(ch == null){
+			throw new IOException(path + " is not open");
+		}
+		int total = 0;
+		for(int i = offset; i < offset + length; i++){
+			total += srcs[i].limit();
+		}
+		if(total > writeScratch.capacity()){
+			writeScratch = ByteBuffer.allocateDirect(Integer.highestOneBit(total) << 1);
+		}
+		// one write() for the whole tick instead of one per command
+		writeScratch.clear();
+		for(int i = offset; i < offset + length; i++){
+			ByteBuffer bb = srcs[i];
+			writeScratch.put(bb.array(), bb.arrayOffset(), bb.limit());
+		}
+		writeScratch.flip();
+		try {
+			while(writeScratch.hasRemaining()){
+				ch.write(writeScratch);
+			}
+		} catch (ClosedByInterruptException e) {
+			channel = null;
+			throw e;
+		}
+	}
+
+	@Override
+	public void setDataListener(DataListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void close() {
+		FileChannel ch = channel;
+		channel = null;
+		if(ch != null){
+			try {
+				ch.close();
+			} catch (IOException e) {
+				System.err.println("Error closing " + path);
+			}
+		}
+	}
+
+	@Override
+	public String getName() {
+		return path;
+	}
+	
+}
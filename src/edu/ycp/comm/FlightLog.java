@@ -0,0 +1,188 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a FlightRecorder directory back, oldest record first, one record at a time. next() moves
+ * the getters to the next record and reuses the same payload array, so reading does not allocate
+ * either. A payload split over several records comes back as those records; see
+ * isContinued().
+ *
+ * @author pjmartin
+ *
+ */
+public class FlightLog {
+	
+	private final File[] segments;
+	private int segmentIndex = -1;
+	private MappedByteBuffer segment;
+	private int position;
+	
+	// the current record
+	private long timestamp;
+	private int channel;
+	private byte direction;
+	private byte flags;
+	private int length;
+	private final byte[] payload = new byte[FlightRecorder.PAYLOAD_SIZE];
+	
+	// header of the current segment
+	private long segmentEpochMillis;
+	private long segmentNanoTime;
+	
+	/**
+	 * @param directory - as passed to FlightRecorder
+	 * @throws IOException if there is no recording in directory
+	 */
+	public FlightLog(File directory) throws IOException {
+		segments = FlightRecorder.listSegments(directory);
+		if(segments.length == 0){
+			throw new IOException("No flight recorder segments in " + directory);
+		}
+	}
+	
+	/**
+	 * Moves to the next record.
+	 * @return false at the end of the recording
+	 * @throws IOException if a segment is not a flight recorder segment
+	 */
+	public final boolean next() throws IOException {
+		while(true){
+			if(segment != null && position + FlightRecorder.RECORD_SIZE <= segment.limit()){
+				byte dir = segment.get(position + 10);
+				if(dir != 0){
+					timestamp = segment.getLong(position);
+					channel = segment.getShort(position + 8) & 0xFFFF;
+					direction = dir;
+					flags = segment.get(position + 11);
+					length = segment.getShort(position + 12) & 0xFFFF;
+					segment.position(position + FlightRecorder.HEADER_SIZE);
+					segment.get(payload, 0, length);
+					position += FlightRecorder.RECORD_SIZE;
+					return true;
+				}
+			}
+			if(!openSegment(segmentIndex + 1)){
+				return false;
+			}
+		}
+	}
+	
+	private final boolean openSegment(int index) throws IOException {
+		segment = null;
+		segmentIndex = index;
+		if(index >= segments.length){
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(segments[index], "r");
+		try {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		segment.order(ByteOrder.LITTLE_ENDIAN);
+		if(segment.limit() < FlightRecorder.RECORD_SIZE || segment.getInt(0) != FlightRecorder.MAGIC){
+			throw new IOException(segments[index] + " is not a flight recorder segment");
+		}
+		if(segment.getInt(4) != FlightRecorder.VERSION || segment.getInt(8) != FlightRecorder.RECORD_SIZE){
+			throw new IOException(segments[index] + " has an unsupported format version");
+		}
+		segmentEpochMillis = segment.getLong(24);
+		segmentNanoTime = segment.getLong(32);
+		position = FlightRecorder.RECORD_SIZE;
+		return true;
+	}
+	
+	/**
+	 * @return Clock.nanoTime() at which the current record was written
+	 */
+	public final long getTimestamp() {
+		return timestamp;
+	}
+	
+	public final int getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * @return FlightRecorder.RX or FlightRecorder.TX
+	 */
+	public final byte getDirection() {
+		return direction;
+	}
+	
+	/**
+	 * @return the current record's bytes, valid up to getLength() until the next call to next()
+	 */
+	public final byte[] getPayload() {
+		return payload;
+	}
+	
+	public final int getLength() {
+		return length;
+	}
+	
+	public final boolean isReceived() {
+		return direction == FlightRecorder.RX;
+	}
+	
+	public final boolean isContinued() {
+		return (flags & FlightRecorder.CONTINUED) != 0;
+	}
+	
+	/**
+	 * @return wall clock time of the current record in ms, if it was recorded on Clock.SYSTEM
+	 */
+	public final long getEpochMillis() {
+		return segmentEpochMillis + (timestamp - segmentNanoTime) / 1000000;
+	}
+	
+	/**
+	 * @return the segment file the current record came from
+	 */
+	public final File getSegment() {
+		return segmentIndex < segments.length ? segments[segmentIndex] : null;
+	}
+	
+	/**
+	 * Prints every record in a recording.
+	 * Usage: FlightLog directory
+	 */
+	public static void main(String[] args) throws Exception {
+		FlightLog log = new FlightLog(new File(args[0]));
+		long first = -1;
+		long rx = 0;
+		long tx = 0;
+		StringBuilder sb = new StringBuilder();
+		while(log.next()){
+			if(first < 0){
+				first = log.getTimestamp();
+			}
+			sb.setLength(0);
+			for(int i = 0; i < log.getLength(); i++){
+				sb.append(String.format("%02x ", log.getPayload()[i]));
+			}
+			System.out.printf("%12.3f ms ch%d %s %s%s%n", (log.getTimestamp() - first) / 1e6, log.getChannel(),
+					log.isReceived() ? "RX" : "TX", sb, log.isContinued() ? "..." : "");
+			if(log.isReceived()){
+				rx += log.getLength();
+			}
+			else{
+				tx += log.getLength();
+			}
+		}
+		System.out.println(rx + " bytes received, " + tx + " bytes sent.");
+	}
+	
+}
@@ -0,0 +1,460 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.ycp.SensorRequest;
+
+/**
+ * Always-on binary recorder for everything that crosses the serial port: the received bytes as the
+ * data task parses them and every command as it is written. Records are appended to memory-mapped
+ * segment files of a fixed size; when one fills up the next is started, and the oldest are deleted
+ * once the total goes over the retention size.
+ *
+ * Every record is RECORD_SIZE bytes:
+ * <pre>
+ * 0  long  timestamp (Clock.nanoTime() of the writer)
+ * 8  short channel (which robot, when several share a recorder)
+ * 10 byte  direction (RX or TX)
+ * 11 byte  flags (CONTINUED: the payload goes on in the next record of this channel)
+ * 12 short payload length, 1..PAYLOAD_SIZE
+ * 14 short reserved
+ * 16       payload
+ * </pre>
+ * A record with direction 0 marks the end of a segment. Each segment starts with one header slot
+ * holding MAGIC, the format version, the segment number and a wall clock/nanoTime pair taken when
+ * the segment was started. All values are little endian.
+ *
+ * Appending takes an uncontended lock and copies into the mapped segment; it never allocates, never
+ * touches the file system and never waits. A housekeeping thread does the slow parts in the
+ * background: it creates and maps the next segment ahead of time, then forces the full one to disk
+ * and deletes the old ones, so a roll over only swaps buffers. If the next segment is not ready
+ * yet, records are dropped and counted until it is. Use FlightLog to read a recording back.
+ *
+ * @author pjmartin
+ *
+ */
+public class FlightRecorder {
+	
+	public static final int MAGIC = 0x5246434A;	// "JCFR"
+	public static final int VERSION = 1;
+	public static final int RECORD_SIZE = 128;
+	public static final int HEADER_SIZE = 16;
+	public static final int PAYLOAD_SIZE = RECORD_SIZE - HEADER_SIZE;
+	
+	public static final byte RX = 1;	// received from the Create
+	public static final byte TX = 2;	// written to the Create
+	public static final byte CONTINUED = 1;
+	
+	public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;		// 16 MB, ~130k records
+	public static final long DEFAULT_RETENTION = 256L << 20;		// 256 MB
+	static final String SEGMENT_PREFIX = "flight-";
+	static final String SEGMENT_SUFFIX = ".jcfr";
+	
+	private final File directory;
+	private final int segmentSize;
+	private final long retention;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private MappedByteBuffer segment;	// guarded by lock
+	private long segmentNumber;			// guarded by lock
+	private int position;				// guarded by lock
+	private MappedByteBuffer nextSegment;	// guarded by lock; segmentNumber + 1, once prepared
+	private boolean preparing = false;		// guarded by lock; a prepareSegment() is queued or running
+	private volatile boolean closed = false;
+	private final ThreadPoolExecutor housekeeper;	// one thread, ends when idle
+	
+	private long recordCount = 0;		// guarded by lock
+	private long droppedCount = 0;		// guarded by lock
+	private long unpreparedCount = 0;	// guarded by lock
+	
+	public FlightRecorder(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_RETENTION);
+	}
+	
+	/**
+	 * @param directory - created if missing; numbering continues after any segments already there
+	 * @param segmentSize - bytes per segment file, a multiple of RECORD_SIZE
+	 * @param retention - oldest segments are deleted once all of them together take more than this
+	 * @throws IOException
+	 */
+	public FlightRecorder(File directory, long segmentSize, long retention) throws IOException {
+		if(segmentSize < 2 * RECORD_SIZE || segmentSize % RECORD_SIZE != 0 || segmentSize > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Segment size must be a multiple of " + RECORD_SIZE + " up to 2 GB: " + segmentSize);
+		}
+		if(retention < segmentSize){
+			throw new IllegalArgumentException("Retention must hold at least one segment: " + retention);
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Cannot create " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = (int) segmentSize;
+		this.retention = retention;
+		
+		File[] existing = listSegments(directory);
+		segmentNumber = existing.length == 0 ? 0 : segmentNumberOf(existing[existing.length - 1]);
+		housekeeper = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				ExecutorFactory.getDefault().newThreadFactory("FlightRecorder"));
+		housekeeper.allowCoreThreadTimeOut(true);
+		
+		lock.lock();
+		try {
+			startSegment();
+			housekeep(null, segmentNumber);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Appends len bytes of src as one or more records. Never waits for the housekeeping thread; if
+	 * the current segment is full and the next one is not ready, the rest is dropped.
+	 * @param timestamp - Clock.nanoTime() of the caller
+	 * @param channel
+	 * @param direction - RX or TX
+	 * @param src
+	 * @param off
+	 * @param len
+	 */
+	public final void record(long timestamp, int channel, byte direction, byte[] src, int off, int len) {
+		lock.lock();
+		try {
+			if(closed){
+				return;
+			}
+			while(len > 0){
+				int chunk = Math.min(len, PAYLOAD_SIZE);
+				if(position == segmentSize && !rollOver()){
+					droppedCount++;
+					return;
+				}
+				MappedByteBuffer seg = segment;
+				int p = position;
+				seg.putLong(p, timestamp);
+				seg.putShort(p + 8, (short) channel);
+				seg.put(p + 10, direction);
+				seg.put(p + 11, len > chunk ? CONTINUED : 0);
+				seg.putShort(p + 12, (short) chunk);
+				seg.putShort(p + 14, (short) 0);
+				seg.position(p + HEADER_SIZE);
+				seg.put(src, off, chunk);
+				position = p + RECORD_SIZE;
+				recordCount++;
+				off += chunk;
+				len -= chunk;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Records bytes 0 to limit() of a command buffer, the way the transports write them.
+	 * @param timestamp
+	 * @param channel
+	 * @param command
+	 */
+	public final void recordCommand(long timestamp, int channel, ByteBuffer command) {
+		record(timestamp, channel, TX, command.array(), command.arrayOffset(), command.limit());
+	}
+	
+	/**
+	 * Writes dirty pages of the current segment to disk.
+	 */
+	public final void flush() {
+		lock.lock();
+		try {
+			if(segment != null){
+				segment.force();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Flushes and stops recording; later records are ignored. Waits for the housekeeping thread
+	 * and deletes the segment it prepared, if that was never started.
+	 */
+	public final void close() {
+		long last;
+		lock.lock();
+		try {
+			if(closed){
+				return;
+			}
+			closed = true;
+			segment.force();
+			segment = null;
+			nextSegment = null;
+			last = segmentNumber;
+		} finally {
+			lock.unlock();
+		}
+		housekeeper.shutdown();
+		try {
+			housekeeper.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		new File(directory, segmentName(last + 1)).delete();
+	}
+	
+	/**
+	 * Moves on to the segment the housekeeper prepared. Called with the lock held.
+	 * @return false if it is not ready yet
+	 */
+	private final boolean rollOver() {
+		if(nextSegment == null){
+			// only the housekeeper creates segments, so the two never race for the same file
+			unpreparedCount++;
+			if(!preparing){
+				housekeep(null, segmentNumber);	// the last attempt failed; try again
+			}
+			return false;
+		}
+		MappedByteBuffer full = segment;
+		segment = nextSegment;
+		nextSegment = null;
+		segmentNumber++;
+		segment.putLong(24, System.currentTimeMillis());
+		segment.putLong(32, System.nanoTime());
+		position = RECORD_SIZE;
+		housekeep(full, segmentNumber);
+		return true;
+	}
+	
+	/**
+	 * Called with the lock held.
+	 */
+	private final void startSegment() throws IOException {
+		segmentNumber++;
+		segment = createSegment(segmentNumber);
+		position = RECORD_SIZE;
+	}
+	
+	/**
+	 * Hands the slow part of a roll over to the housekeeping thread. Called with the lock held.
+	 * @param full - the segment just filled, to be forced to disk; null for none
+	 * @param current - number of the segment now being written
+	 */
+	private final void housekeep(final MappedByteBuffer full, final long current) {
+		try {
+			housekeeper.execute(new Runnable(){
+				@Override
+				public void run() {
+					// the next segment first, so the appender is not left without one during the force
+					prepareSegment(current + 1);
+					if(full != null){
+						full.force();
+					}
+					enforceRetention(current);
+				}
+			});
+			preparing = true;
+		} catch (RejectedExecutionException e) {
+			// closed
+		}
+	}
+	
+	/**
+	 * Housekeeping thread: creates segment number so the next roll over finds it ready. Only this
+	 * thread sets nextSegment, so the check before creating the file cannot go stale.
+	 * @param number
+	 */
+	private final void prepareSegment(long number) {
+		MappedByteBuffer prepared = null;
+		try {
+			lock.lock();
+			try {
+				if(closed || segmentNumber + 1 != number || nextSegment != null){
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+			try {
+				prepared = createSegment(number);
+			} catch (IOException e) {
+				System.err.println("FlightRecorder cannot prepare a new segment in " + directory);
+				e.printStackTrace();
+			}
+		} finally {
+			lock.lock();
+			try {
+				if(prepared != null && !closed){
+					nextSegment = prepared;
+				}
+				preparing = false;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Creates and maps a segment file with its header and an empty first record, so a segment that
+	 * is never started reads as empty. Housekeeping thread, except for the first segment.
+	 * @param number
+	 * @return the mapped segment
+	 * @throws IOException
+	 */
+	private final MappedByteBuffer createSegment(long number) throws IOException {
+		File file = new File(directory, segmentName(number));
+		MappedByteBuffer seg;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			seg = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			raf.close();	// the mapping stays valid
+		}
+		seg.order(ByteOrder.LITTLE_ENDIAN);
+		seg.putInt(0, MAGIC);
+		seg.putInt(4, VERSION);
+		seg.putInt(8, RECORD_SIZE);
+		seg.putLong(16, number);
+		seg.putLong(24, System.currentTimeMillis());
+		seg.putLong(32, System.nanoTime());
+		// touch every page now, so the appender never takes the page fault
+		for(int p = RECORD_SIZE; p < segmentSize; p += 4096){
+			seg.put(p, (byte) 0);
+		}
+		return seg;
+	}
+	
+	/**
+	 * Housekeeping thread: deletes the oldest segments while they take more than the retention size.
+	 * @param current - segments from this number on are never deleted
+	 */
+	private final void enforceRetention(long current) {
+		File[] segments = listSegments(directory);
+		long total = (long) segments.length * segmentSize;
+		for(int i = 0; i < segments.length && total > retention; i++){
+			if(segmentNumberOf(segments[i]) < current && segments[i].delete()){
+				total -= segmentSize;
+			}
+		}
+	}
+	
+	static final String segmentName(long number) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+	}
+	
+	static final long segmentNumberOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+	
+	/**
+	 * @param directory
+	 * @return the segment files in directory, oldest first
+	 */
+	static final File[] listSegments(File directory) {
+		File[] all = directory.listFiles();
+		if(all == null){
+			return new File[0];
+		}
+		List<File> segments = new ArrayList<File>();
+		for(File f : all){
+			String name = f.getName();
+			if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)){
+				segments.add(f);
+			}
+		}
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted);	// zero-padded numbers sort by name
+		return sorted;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * @return records appended so far
+	 */
+	public long getRecordCount() {
+		lock.lock();
+		try {
+			return recordCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return times a full segment found the next one not yet prepared; its records were dropped
+	 */
+	public long getUnpreparedRollOverCount() {
+		lock.lock();
+		try {
+			return unpreparedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return records lost because the next segment was not ready
+	 */
+	public long getDroppedCount() {
+		lock.lock();
+		try {
+			return droppedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Times the append path with group 6 sized records.
+	 * Usage: FlightRecorder [directory] [records]
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir") + "/jcreate-flight");
+		int records = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+		
+		FlightRecorder recorder = new FlightRecorder(dir, 16L << 20, 64L << 20);
+		byte[] frame = new byte[SensorRequest.ALL.getResponseSize()];
+		LatencyHistogram appendTime = new LatencyHistogram();
+		for(int i = 0; i < 3; i++){
+			appendTime.reset();
+			long start = System.nanoTime();
+			for(int r = 0; r < records; r++){
+				frame[0] = (byte) r;
+				long t0 = System.nanoTime();
+				recorder.record(t0, 0, (r & 1) == 0 ? RX : TX, frame, 0, frame.length);
+				appendTime.record(System.nanoTime() - t0);
+			}
+			long elapsed = System.nanoTime() - start;
+			// the worst appends are the roll overs, which the mean hides
+			System.out.printf("run %d: %d records in %d ms, %.0f ns/record, append p99.9 %d ns, max %d ns%n", i, 
+					records, elapsed / 1000000, (double) elapsed / records, appendTime.getPercentile(99.9), appendTime.getMax());
+		}
+		recorder.close();
+		System.out.println(listSegments(dir).length + " segments kept in " + dir + ", " 
+				+ recorder.getDroppedCount() + " records dropped waiting for a segment.");
+	}
+	
+}
@@ -0,0 +1,145 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values (typically nanoseconds). Buckets are log-linear:
+ * every power of two is split into 64 sub-buckets, so a reported percentile is within about 1.6%
+ * of the true value over the whole range. Recording is a couple of atomic adds and never allocates.
+ * 
+ * @author pjmartin
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalSum = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+	
+	public final void record(long value){
+		if(value < 0){
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		totalCount.incrementAndGet();
+		totalSum.addAndGet(value);
+		long max = maxValue.get();
+		while(value > max && !maxValue.compareAndSet(max, value)){
+			max = maxValue.get();
+		}
+	}
+	
+	private static final int bucketOf(long value){
+		if(value < SUB_BUCKETS){
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;	// >= 0
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * @param bucket
+	 * @return the largest value that falls in bucket
+	 */
+	private static final long highestValueIn(int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+	
+	/**
+	 * @param percentile - 0 to 100
+	 * @return the value at or below which percentile percent of the recorded values fall
+	 */
+	public final long getPercentile(double percentile){
+		long count = totalCount.get();
+		if(count == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0);
+		if(rank < 1){
+			rank = 1;
+		}
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += counts.get(i);
+			if(seen >= rank){
+				return Math.min(highestValueIn(i), maxValue.get());
+			}
+		}
+		return maxValue.get();
+	}
+	
+	public final long getMax(){
+		return maxValue.get();
+	}
+	
+	public final long getCount(){
+		return totalCount.get();
+	}
+	
+	public final double getMean(){
+		long count = totalCount.get();
+		return count == 0 ? 0 : (double) totalSum.get() / count;
+	}
+	
+	/**
+	 * Adds everything recorded in other to this histogram.
+	 * @param other
+	 */
+	public final void add(LatencyHistogram other){
+		for(int i = 0; i < BUCKETS; i++){
+			long c = other.counts.get(i);
+			if(c != 0){
+				counts.addAndGet(i, c);
+			}
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		totalSum.addAndGet(other.totalSum.get());
+		long otherMax = other.maxValue.get();
+		long max = maxValue.get();
+		while(otherMax > max && !maxValue.compareAndSet(max, otherMax)){
+			max = maxValue.get();
+		}
+	}
+	
+	public final void reset(){
+		for(int i = 0; i < BUCKETS; i++){
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		totalSum.set(0);
+		maxValue.set(0);
+	}
+	
+	/**
+	 * @param unitDivisor - e.g. 1000 to print ns values in us
+	 * @return "count=.. p50=.. p99=.. max=.." in the given unit
+	 */
+	public final String toString(long unitDivisor){
+		return "count=" + getCount() + " p50=" + getPercentile(50) / unitDivisor + " p99=" 
+				+ getPercentile(99) / unitDivisor + " max=" + getMax() / unitDivisor;
+	}
+	
+	@Override
+	public String toString(){
+		return toString(1);
+	}
+	
+}
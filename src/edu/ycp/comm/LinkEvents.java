@@ -0,0 +1,124 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR events of a Create link, committed by LinkMetrics. They cost next to nothing unless a
+ * recording has them enabled, e.g. java -XX:StartFlightRecording:filename=link.jfr, and they
+ * carry no stack traces. The times measured are fields of the event; the event itself is
+ * committed as soon as the operation is over.
+ *
+ * @author pjmartin
+ *
+ */
+public final class LinkEvents {
+	
+	private LinkEvents(){
+	}
+	
+	@Name("edu.ycp.SerialRead")
+	@Label("Serial Read")
+	@Category({"jcreate", "Serial Link"})
+	@Description("Bytes moved from the port into the receive ring")
+	@StackTrace(false)
+	static final class SerialRead extends Event {
+		
+		@Label("Link")
+		String link;
+		
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+		
+		@Label("Read Time")
+		@Timespan
+		long readTime;
+		
+	}
+	
+	@Name("edu.ycp.SerialWrite")
+	@Label("Serial Write")
+	@Category({"jcreate", "Serial Link"})
+	@Description("One transmission handed to the port")
+	@StackTrace(false)
+	static final class SerialWrite extends Event {
+		
+		@Label("Link")
+		String link;
+		
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+		
+		@Label("Commands")
+		int commands;
+		
+		@Label("Write Time")
+		@Timespan
+		long writeTime;
+		
+	}
+	
+	@Name("edu.ycp.FrameComplete")
+	@Label("Frame Complete")
+	@Category({"jcreate", "Serial Link"})
+	@Description("A sensor frame parsed out of the receive ring")
+	@StackTrace(false)
+	static final class FrameComplete extends Event {
+		
+		@Label("Link")
+		String link;
+		
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+		
+		@Label("Request Latency")
+		@Description("From the POLL request being written to its response being parsed; -1 in STREAM mode")
+		@Timespan
+		long requestLatency;
+		
+	}
+	
+	@Name("edu.ycp.CommandFlush")
+	@Label("Command Flush")
+	@Category({"jcreate", "Serial Link"})
+	@Description("The commands posted since the last tick, drained from the mailbox and written")
+	@StackTrace(false)
+	static final class CommandFlush extends Event {
+		
+		@Label("Link")
+		String link;
+		
+		@Label("Drained")
+		int drained;
+		
+		@Label("Written")
+		@Description("Drained commands less motion commands overtaken by an emergency stop")
+		int written;
+		
+		@Label("Oldest Age")
+		@Description("Time the oldest written command spent in the mailbox")
+		@Timespan
+		long oldestAge;
+		
+		@Label("Flush Time")
+		@Timespan
+		long flushTime;
+		
+	}
+	
+}
@@ -0,0 +1,458 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.EventType;
+
+/**
+ * Counters and time distributions of one Create link: bytes and calls each way, how long the
+ * port takes to read and write, frames parsed and rejected, how long commands wait in the
+ * mailbox, and how long ticks take. The hardware manager and the robot record into it as they
+ * go. Recording is a few atomic adds and never allocates or locks, so it is always on; a JFR
+ * event object is only created while a recording has its type enabled.
+ *
+ * The hardware manager registers it as an MXBean when the port opens and unregisters it when
+ * the port closes. Every read, write, parsed frame and command flush is also a JFR event (see
+ * LinkEvents), so a spike on the link can be lined up with GC and thread activity in the same
+ * recording. I/O times are taken from System.nanoTime(); timestamps and ages from the robot's Clock.
+ *
+ * @author pjmartin
+ *
+ */
+public class LinkMetrics implements LinkMetricsMXBean {
+	
+	private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+	
+	// checked before each event is created; isEnabled() follows recordings as they start and stop
+	private static final EventType SERIAL_READ = EventType.getEventType(LinkEvents.SerialRead.class);
+	private static final EventType SERIAL_WRITE = EventType.getEventType(LinkEvents.SerialWrite.class);
+	private static final EventType COMMAND_FLUSH = EventType.getEventType(LinkEvents.CommandFlush.class);
+	private static final EventType FRAME_COMPLETE = EventType.getEventType(LinkEvents.FrameComplete.class);
+	
+	private final String name;
+	private final Clock clock;
+	private final ByteRingBuffer receiveRing;
+	private final CommandMailbox mailbox;
+	private final TickScheduler tickScheduler;
+	private volatile LongSupplier parseFailures;
+	private ObjectName objectName;	// null while not registered
+	
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong readCount = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong writeCount = new AtomicLong();
+	private final AtomicLong commandsWritten = new AtomicLong();
+	private final AtomicLong frameCount = new AtomicLong();
+	private final AtomicLong tickOverruns = new AtomicLong();
+	
+	private final LatencyHistogram readTime = new LatencyHistogram();
+	private final LatencyHistogram writeTime = new LatencyHistogram();
+	private final LatencyHistogram commandAge = new LatencyHistogram();
+	private final LatencyHistogram frameLatency = new LatencyHistogram();
+	private final LatencyHistogram tickTime = new LatencyHistogram();
+	
+	// frame rate; written by the data thread only
+	private long rateWindowStart;
+	private long rateWindowFrames = 0;
+	private volatile double framesPerSecond = 0;
+	private volatile long lastFrameTime;
+	
+	/**
+	 * @param name - the port's name
+	 * @param clock
+	 * @param receiveRing
+	 * @param mailbox
+	 * @param tickScheduler
+	 */
+	public LinkMetrics(String name, Clock clock, ByteRingBuffer receiveRing, CommandMailbox mailbox, TickScheduler tickScheduler){
+		this.name = name;
+		this.clock = clock;
+		this.receiveRing = receiveRing;
+		this.mailbox = mailbox;
+		this.tickScheduler = tickScheduler;
+		rateWindowStart = clock.nanoTime();
+		lastFrameTime = rateWindowStart;
+	}
+	
+	/**
+	 * @param source - counts the frames the parser rejected; read only when asked for
+	 */
+	public final void setParseFailureSource(LongSupplier source){
+		parseFailures = source;
+	}
+	
+	/*
+	 * Recording.
+	 */
+	
+	/**
+	 * @param startNanos - System.nanoTime() before the read
+	 * @param bytes - bytes stored in the receive ring
+	 */
+	public final void recordRead(long startNanos, int bytes){
+		if(bytes <= 0){
+			return;
+		}
+		long nanos = System.nanoTime() - startNanos;
+		readCount.incrementAndGet();
+		bytesIn.addAndGet(bytes);
+		readTime.record(nanos);
+		
+		if(SERIAL_READ.isEnabled()){
+			LinkEvents.SerialRead event = new LinkEvents.SerialRead();
+			event.link = name;
+			event.bytes = bytes;
+			event.readTime = nanos;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @param startNanos - System.nanoTime() before the write
+	 * @param bytes
+	 * @param commands - buffers in the transmission
+	 */
+	public final void recordWrite(long startNanos, int bytes, int commands){
+		long nanos = System.nanoTime() - startNanos;
+		writeCount.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+		writeTime.record(nanos);
+		
+		if(SERIAL_WRITE.isEnabled()){
+			LinkEvents.SerialWrite event = new LinkEvents.SerialWrite();
+			event.link = name;
+			event.bytes = bytes;
+			event.commands = commands;
+			event.writeTime = nanos;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @param startNanos - System.nanoTime() before the mailbox was drained
+	 * @param drained - commands taken from the mailbox
+	 * @param written - commands written; their offer times are offerTimes[0..written)
+	 * @param offerTimes - Clock.nanoTime() at which each command was posted
+	 * @param now - Clock.nanoTime() after the write
+	 */
+	public final void recordFlush(long startNanos, int drained, int written, long[] offerTimes, long now){
+		if(drained == 0){
+			return;
+		}
+		long oldest = 0;
+		for(int i = 0; i < written; i++){
+			long age = now - offerTimes[i];
+			commandAge.record(age);
+			oldest = Math.max(oldest, age);
+		}
+		commandsWritten.addAndGet(written);
+		
+		if(COMMAND_FLUSH.isEnabled()){
+			LinkEvents.CommandFlush event = new LinkEvents.CommandFlush();
+			event.link = name;
+			event.drained = drained;
+			event.written = written;
+			event.oldestAge = oldest;
+			event.flushTime = System.nanoTime() - startNanos;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Data thread only.
+	 * @param now - Clock.nanoTime() the frame was parsed
+	 * @param bytes - data bytes of the frame
+	 * @param requestLatency - time since its POLL request was written, or -1 for a stream frame
+	 */
+	public final void recordFrame(long now, int bytes, long requestLatency){
+		frameCount.incrementAndGet();
+		if(requestLatency >= 0){
+			frameLatency.record(requestLatency);
+		}
+		rateWindowFrames++;
+		if(now - rateWindowStart >= RATE_WINDOW){
+			framesPerSecond = rateWindowFrames * 1e9 / (now - rateWindowStart);
+			rateWindowStart = now;
+			rateWindowFrames = 0;
+		}
+		lastFrameTime = now;
+		
+		if(FRAME_COMPLETE.isEnabled()){
+			LinkEvents.FrameComplete event = new LinkEvents.FrameComplete();
+			event.link = name;
+			event.bytes = bytes;
+			event.requestLatency = requestLatency;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @param tickStart - Clock.nanoTime() the tick started
+	 * @param tickEnd - Clock.nanoTime() its work was done
+	 * @param periodNanos
+	 */
+	public final void recordTick(long tickStart, long tickEnd, long periodNanos){
+		long nanos = tickEnd - tickStart;
+		tickTime.record(nanos);
+		if(nanos > periodNanos){
+			tickOverruns.incrementAndGet();
+		}
+	}
+	
+	/*
+	 * Registration.
+	 */
+	
+	/**
+	 * Registers this as an MXBean with the platform MBean server. A second link with the same
+	 * port name gets an instance number. Failing to register is reported, never thrown.
+	 */
+	public final synchronized void register(){
+		if(objectName != null){
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			String base = "edu.ycp:type=CreateLink,name=" + ObjectName.quote(name);
+			for(int instance = 1; objectName == null; instance++){
+				ObjectName candidate = new ObjectName(instance == 1 ? base : base + ",instance=" + instance);
+				try {
+					server.registerMBean(this, candidate);
+					objectName = candidate;
+				} catch (InstanceAlreadyExistsException e) {
+					// taken by another link on a port of the same name
+				}
+			}
+		} catch (Exception e) {
+			System.err.println("LinkMetrics cannot register " + name + " with JMX: " + e);
+		}
+	}
+	
+	public final synchronized void unregister(){
+		if(objectName == null){
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			System.err.println("LinkMetrics cannot unregister " + objectName + ": " + e);
+		}
+		objectName = null;
+	}
+	
+	/**
+	 * @return the name this is registered under, or null
+	 */
+	public final synchronized ObjectName getObjectName(){
+		return objectName;
+	}
+	
+	/*
+	 * Reading.
+	 */
+	
+	/**
+	 * @return time from each POLL request being written to its response being parsed, in ns
+	 */
+	public final LatencyHistogram getFrameLatency(){
+		return frameLatency;
+	}
+	
+	/**
+	 * @return time from each command being posted to it being written, in ns
+	 */
+	public final LatencyHistogram getCommandAge(){
+		return commandAge;
+	}
+	
+	/**
+	 * @return time each write to the port took, in ns
+	 */
+	public final LatencyHistogram getWriteTime(){
+		return writeTime;
+	}
+	
+	/**
+	 * @return time each read from the port took, in ns
+	 */
+	public final LatencyHistogram getReadTime(){
+		return readTime;
+	}
+	
+	/**
+	 * @return time each tick's work took, in ns
+	 */
+	public final LatencyHistogram getTickTime(){
+		return tickTime;
+	}
+	
+	@Override
+	public String getLinkName() {
+		return name;
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	@Override
+	public long getReadCount() {
+		return readCount.get();
+	}
+	
+	@Override
+	public long getWriteCount() {
+		return writeCount.get();
+	}
+	
+	@Override
+	public long getFrameCount() {
+		return frameCount.get();
+	}
+	
+	@Override
+	public double getFramesPerSecond() {
+		if(clock.nanoTime() - lastFrameTime > 2 * RATE_WINDOW){
+			return 0;
+		}
+		return framesPerSecond;
+	}
+	
+	@Override
+	public long getParseFailures() {
+		LongSupplier source = parseFailures;
+		return source == null ? 0 : source.getAsLong();
+	}
+	
+	@Override
+	public int getReceiveQueueDepth() {
+		return receiveRing.available();
+	}
+	
+	@Override
+	public long getReceiveOverflowBytes() {
+		return receiveRing.getOverflowCount();
+	}
+	
+	@Override
+	public int getCommandQueueDepth() {
+		return mailbox.getPendingCount();
+	}
+	
+	@Override
+	public long getCommandsWritten() {
+		return commandsWritten.get();
+	}
+	
+	@Override
+	public long getSupersededCommands() {
+		return mailbox.getSupersededCount();
+	}
+	
+	@Override
+	public long getTickOverruns() {
+		return tickOverruns.get();
+	}
+	
+	@Override
+	public long getMissedDeadlines() {
+		return tickScheduler.getMissedDeadlineCount();
+	}
+	
+	@Override
+	public long getReadTimeP99() {
+		return readTime.getPercentile(99);
+	}
+	
+	@Override
+	public long getWriteTimeP50() {
+		return writeTime.getPercentile(50);
+	}
+	
+	@Override
+	public long getWriteTimeP99() {
+		return writeTime.getPercentile(99);
+	}
+	
+	@Override
+	public long getWriteTimeMax() {
+		return writeTime.getMax();
+	}
+	
+	@Override
+	public long getCommandAgeP50() {
+		return commandAge.getPercentile(50);
+	}
+	
+	@Override
+	public long getCommandAgeP99() {
+		return commandAge.getPercentile(99);
+	}
+	
+	@Override
+	public long getCommandAgeMax() {
+		return commandAge.getMax();
+	}
+	
+	@Override
+	public long getFrameLatencyP50() {
+		return frameLatency.getPercentile(50);
+	}
+	
+	@Override
+	public long getFrameLatencyP99() {
+		return frameLatency.getPercentile(99);
+	}
+	
+	@Override
+	public long getFrameLatencyMax() {
+		return frameLatency.getMax();
+	}
+	
+	@Override
+	public long getTickTimeP99() {
+		return tickTime.getPercentile(99);
+	}
+	
+	@Override
+	public long getTickTimeMax() {
+		return tickTime.getMax();
+	}
+	
+	@Override
+	public void resetHistograms() {
+		readTime.reset();
+		writeTime.reset();
+		commandAge.reset();
+		frameLatency.reset();
+		tickTime.reset();
+	}
+	
+	@Override
+	public String toString(){
+		return name + ": in=" + getBytesIn() + "B out=" + getBytesOut() + "B frames=" + getFrameCount() + " ("
+				+ String.format("%.1f", getFramesPerSecond()) + "/s) parseFailures=" + getParseFailures() + " overruns="
+				+ getTickOverruns() + " write(us)[" + writeTime.toString(1000) + "] commandAge(us)["
+				+ commandAge.toString(1000) + "] frameLatency(us)[" + frameLatency.toString(1000) + "]";
+	}
+	
+}
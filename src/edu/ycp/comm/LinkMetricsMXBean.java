@@ -0,0 +1,101 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+/**
+ * What LinkMetrics shows over JMX, under edu.ycp:type=CreateLink,name=[port]. Times are in ns.
+ * Counters run from startup; the time distributions run from startup or the last resetHistograms().
+ *
+ * @author pjmartin
+ *
+ */
+public interface LinkMetricsMXBean {
+	
+	public String getLinkName();
+	
+	public long getBytesIn();
+	
+	public long getBytesOut();
+	
+	public long getReadCount();
+	
+	public long getWriteCount();
+	
+	public long getFrameCount();
+	
+	/**
+	 * @return frames parsed per second over the last second; 0 once frames stop arriving
+	 */
+	public double getFramesPerSecond();
+	
+	/**
+	 * @return frames the parser rejected or abandoned
+	 */
+	public long getParseFailures();
+	
+	/**
+	 * @return bytes received but not parsed yet
+	 */
+	public int getReceiveQueueDepth();
+	
+	/**
+	 * @return received bytes thrown away because the receive ring was full
+	 */
+	public long getReceiveOverflowBytes();
+	
+	/**
+	 * @return commands waiting in the mailbox for the next tick
+	 */
+	public int getCommandQueueDepth();
+	
+	public long getCommandsWritten();
+	
+	public long getSupersededCommands();
+	
+	/**
+	 * @return ticks whose work took longer than the tick period
+	 */
+	public long getTickOverruns();
+	
+	/**
+	 * @return ticks that started after their deadline had passed (own hardware thread only)
+	 */
+	public long getMissedDeadlines();
+	
+	public long getReadTimeP99();
+	
+	public long getWriteTimeP50();
+	
+	public long getWriteTimeP99();
+	
+	public long getWriteTimeMax();
+	
+	/**
+	 * @return time from a command being posted to it being written, 50th percentile
+	 */
+	public long getCommandAgeP50();
+	
+	public long getCommandAgeP99();
+	
+	public long getCommandAgeMax();
+	
+	/**
+	 * @return time from a POLL request being written to its response being parsed, 50th percentile
+	 */
+	public long getFrameLatencyP50();
+	
+	public long getFrameLatencyP99();
+	
+	public long getFrameLatencyMax();
+	
+	public long getTickTimeP99();
+	
+	public long getTickTimeMax();
+	
+	public void resetHistograms();
+	
+}
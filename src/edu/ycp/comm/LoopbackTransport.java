@@ -0,0 +1,147 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One end of an in-process byte pipe. Construct the host end, hand it to CreateHardwareManager and
+ * put a simulated robot on getPeer(). Bytes written on one end land in the other end's receive
+ * ring and its DataListener is called on the writer's thread, the same way RXTX calls its
+ * listener from its own event thread. A full receive ring drops the newest bytes, like a UART
+ * overrun; see getOverflowCount().
+ * 
+ * @author pjmartin
+ *
+ */
+public class LoopbackTransport implements SerialTransport {
+
+	private final String name;
+	private final LoopbackTransport peer;
+	private final ByteRingBuffer receiveBuffer;
+	private final ReentrantLock writeLock = new ReentrantLock();	// keeps the peer's ring single-producer
+	private volatile DataListener listener;
+	private volatile boolean open;
+	
+	public LoopbackTransport(String name){
+		this(name, ByteRingBuffer.DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param name
+	 * @param capacity - receive ring size of each end; must be a power of two
+	 */
+	public LoopbackTransport(String name, int capacity){
+		this.name = name;
+		this.receiveBuffer = new ByteRingBuffer(capacity, ByteRingBuffer.OverflowPolicy.DROP_NEWEST);
+		this.peer = new LoopbackTransport(this, capacity);
+		this.open = false;
+	}
+	
+	private LoopbackTransport(LoopbackTransport peer, int capacity){
+		this.name = peer.name + " (peer)";
+		this.receiveBuffer = new ByteRingBuffer(capacity, ByteRingBuffer.OverflowPolicy.DROP_NEWEST);
+		this.peer = peer;
+		this.open = false;
+	}
+	
+	/**
+	 * @return the other end of the pipe
+	 */
+	public LoopbackTransport getPeer() {
+		return peer;
+	}
+	
+	@Override
+	public void open(int baudRate) throws IOException {
+		open = true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return receiveBuffer.available();
+	}
+
+	@Override
+	public int read(byte[] dst, int off, int len) throws IOException {
+		return receiveBuffer.read(dst, off, len);
+	}
+
+	@Override
+	public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if(!open){
+			throw new IOException(name + " is not open");
+		}
+		writeLock.lock();
+		try {
+			for(int i = offset; i < offset + length; i++){
+				ByteBuffer bb = srcs[i];
+				peer.receiveBuffer.write(bb.array(), bb.arrayOffset(), bb.limit());
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		peer.fireDataAvailable();
+	}
+	
+	/**
+	 * Convenience for the simulated side: writes len bytes of src as one transmission.
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(byte[] src, int off, int len) throws IOException {
+		if(!open){
+			throw new IOException(name + " is not open");
+		}
+		writeLock.lock();
+		try {
+			peer.receiveBuffer.write(src, off, len);
+		} finally {
+			writeLock.unlock();
+		}
+		peer.fireDataAvailable();
+	}
+	
+	private final void fireDataAvailable(){
+		DataListener l = listener;
+		if(l != null && open){
+			l.dataAvailable(this);
+		}
+	}
+
+	@Override
+	public void setDataListener(DataListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return bytes dropped because this end's receive ring was full
+	 */
+	public long getOverflowCount() {
+		return receiveBuffer.getOverflowCount();
+	}
+	
+}
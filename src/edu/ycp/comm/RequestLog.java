@@ -0,0 +1,97 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.ycp.SensorRequest;
+
+/**
+ * Single-producer/single-consumer log of the sensor requests sent to the Create in POLL mode.
+ * Each entry remembers how many bytes had been received when the request went out; no byte
+ * before that offset can belong to the request's response. The SensorDataParser uses this to
+ * tie every response to its request instead of assuming the byte stream stays aligned.
+ * 
+ * @author pjmartin
+ *
+ */
+public class RequestLog {
+
+	private final int CAPACITY = 64;
+	private final int MASK = CAPACITY - 1;
+	
+	private final SensorRequest[] requests = new SensorRequest[CAPACITY];
+	private final long[] offsets = new long[CAPACITY];
+	private final long[] sentTimes = new long[CAPACITY];
+	
+	private volatile long head = 0;	// consumer
+	private volatile long tail = 0;	// producer
+	
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	/**
+	 * Records a request about to be written to the Create. Producer (hardware thread) only.
+	 * @param request
+	 * @param streamOffset - number of bytes received so far
+	 * @param sentNanos - Clock.nanoTime() of the write
+	 * @return false if the consumer is so far behind that the log is full
+	 */
+	public final boolean record(SensorRequest request, long streamOffset, long sentNanos){
+		long t = tail;
+		if(t - head == CAPACITY){
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		int idx = (int) (t & MASK);
+		requests[idx] = request;
+		offsets[idx] = streamOffset;
+		sentTimes[idx] = sentNanos;
+		tail = t + 1;
+		return true;
+	}
+	
+	/*
+	 * Consumer side; the parser peeks at the oldest entry and pops it once the stream reaches it.
+	 */
+	
+	public final boolean isEmpty(){
+		return head == tail;
+	}
+	
+	/**
+	 * @return stream offset of the oldest entry, or Long.MAX_VALUE if the log is empty
+	 */
+	public final long peekOffset(){
+		long h = head;
+		if(h == tail){
+			return Long.MAX_VALUE;
+		}
+		return offsets[(int) (h & MASK)];
+	}
+	
+	public final SensorRequest peekRequest(){
+		return requests[(int) (head & MASK)];
+	}
+	
+	public final long peekSentTime(){
+		return sentTimes[(int) (head & MASK)];
+	}
+	
+	public final void pop(){
+		long h = head;
+		requests[(int) (h & MASK)] = null;
+		head = h + 1;
+	}
+	
+	/**
+	 * @return number of requests that could not be recorded because the log was full
+	 */
+	public final long getDroppedCount(){
+		return droppedCount.get();
+	}
+	
+}
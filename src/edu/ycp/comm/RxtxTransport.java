@@ -0,0 +1,162 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.TooManyListenersException;
+import java.util.Vector;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import gnu.io.UnsupportedCommOperationException;
+
+/**
+ * SerialTransport over an RXTX serial port. Needs the RXTX native library and a real port.
+ * 
+ * @author pjmartin
+ *
+ */
+public class RxtxTransport implements SerialTransport, SerialPortEventListener {
+
+	private final String portName;
+	private SerialPort serialPort;
+	private InputStream serialInStream;
+	private OutputStream serialOutStream;
+	private volatile DataListener listener;
+	
+	// gathered writes are copied here so they leave in one write() call
+	private byte[] writeScratch = new byte[64];
+	
+	public RxtxTransport(String portName){
+		this.portName = portName;
+	}
+	
+	@Override
+	public final void open(int baudRate) throws IOException {
+		try {
+			// the port name is known, so go straight to it instead of enumerating every port
+			CommPortIdentifier portId = CommPortIdentifier.getPortIdentifier(portName);
+			
+			serialPort = (SerialPort) portId.open("CreateHardwareManager", baudRate);
+			serialPort.setSerialPortParams(baudRate, SerialPort.DATABITS_8, 
+					SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			
+			// setup the event listening system for getting serial port data
+			serialPort.addEventListener(this);
+			serialPort.notifyOnDataAvailable(true);
+			
+			serialOutStream = serialPort.getOutputStream();
+			serialInStream = serialPort.getInputStream();
+			
+		} catch (NoSuchPortException e) {
+			throw new IOException("No such serial port: " + portName + ", available: " + listSerialPorts(), e);
+		} catch (PortInUseException e) {
+			throw new IOException("Serial port in use: " + portName, e);
+		} catch (UnsupportedCommOperationException e) {
+			close();
+			throw new IOException("Serial port " + portName + " does not support " + baudRate + " 8N1", e);
+		} catch (TooManyListenersException e) {
+			close();
+			throw new IOException("Serial port " + portName + " already has a listener", e);
+		}
+	}
+	
+	private static final String listSerialPorts(){
+		Vector<String> commPortList = new Vector<String>();
+		Enumeration<?> portEnum = CommPortIdentifier.getPortIdentifiers();
+		while(portEnum.hasMoreElements()){
+            CommPortIdentifier commPortId = (CommPortIdentifier) portEnum.nextElement();
+            if(commPortId.getPortType() == CommPortIdentifier.PORT_SERIAL)
+            {
+            	commPortList.add(commPortId.getName());
+            }
+        }
+		return commPortList.toString();
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return serialPort != null;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return serialInStream.available();
+	}
+
+	@Override
+	public int read(byte[] dst, int off, int len) throws IOException {
+		int n = Math.min(len, serialInStream.available());
+		if(n <= 0){
+			return 0;
+		}
+		return serialInStream.read(dst, off, n);
+	}
+
+	@Override
+	public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		int total = 0;
+		for(int i = offset; i < offset + length; i++){
+			total += srcs[i].limit();
+		}
+		if(total > writeScratch.length){
+			writeScratch = new byte[Integer.highestOneBit(total) << 1];
+		}
+		int pos = 0;
+		for(int i = offset; i < offset + length; i++){
+			ByteBuffer bb = srcs[i];
+			System.arraycopy(bb.array(), bb.arrayOffset(), writeScratch, pos, bb.limit());
+			pos += bb.limit();
+		}
+		serialOutStream.write(writeScratch, 0, total);
+	}
+
+	@Override
+	public void setDataListener(DataListener listener) {
+		this.listener = listener;
+	}
+	
+	@Override
+	public final void serialEvent(SerialPortEvent arg0) {
+		
+		switch(arg0.getEventType()){
+		
+		case SerialPortEvent.DATA_AVAILABLE:
+			DataListener l = listener;
+			if(l != null){
+				l.dataAvailable(this);
+			}
+			break;
+		default:
+			System.err.println("Unhandled serial event.");
+			break;
+		}
+		
+	}
+
+	@Override
+	public void close() {
+		if(serialPort != null){
+			serialPort.close();
+			serialPort = null;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return portName;
+	}
+	
+}
@@ -0,0 +1,125 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.ycp.PacketID;
+import edu.ycp.SensorRequest;
+
+/**
+ * Decides which packets are due on each POLL tick. Every PacketID has its own polling period
+ * (0 = every tick); the packets that are due are folded into one request. Battery and charging
+ * packets default to once a second since they change over minutes, not milliseconds.
+ * 
+ * @author pjmartin
+ *
+ */
+public class SensorScheduler {
+
+	public static final long DEFAULT_SLOW_PERIOD = 1000; // ms
+	
+	private final AtomicLongArray periods;	// in ns, indexed by PacketID ordinal
+	private final long[] lastPolled;		// in ns, hardware thread only
+	
+	// small cache so the handful of repeating tick patterns do not build a new request every tick
+	private final int CACHE_SIZE = 16;
+	private final long[] cacheKeys = new long[CACHE_SIZE];
+	private final SensorRequest[] cacheRequests = new SensorRequest[CACHE_SIZE];
+	private int cacheNext = 0;
+	
+	private final int ALL_COST = SensorRequest.ALL.generatePollCommand().capacity() + SensorRequest.ALL.getResponseSize();
+	
+	public SensorScheduler(){
+		PacketID[] all = PacketID.values();
+		periods = new AtomicLongArray(all.length);
+		lastPolled = new long[all.length];
+		// every packet starts out overdue
+		Arrays.fill(lastPolled, System.nanoTime() - Long.MAX_VALUE / 2);
+		
+		for(PacketID p : EnumSet.of(PacketID.CHARGING_STATE, PacketID.VOLTAGE, PacketID.CURRENT, PacketID.BATT_TEMP, 
+				PacketID.BATT_CHARGE, PacketID.BATT_CAP, PacketID.CHARGE_SRC_AVAIL)){
+			setPeriod(p, DEFAULT_SLOW_PERIOD);
+		}
+	}
+	
+	/**
+	 * @param packet
+	 * @param periodMs - how often packet should be refreshed; 0 polls it every tick
+	 */
+	public final void setPeriod(PacketID packet, long periodMs){
+		if(periodMs < 0){
+			throw new IllegalArgumentException("Polling period must not be negative: " + periodMs);
+		}
+		periods.set(packet.ordinal(), TimeUnit.MILLISECONDS.toNanos(periodMs));
+	}
+	
+	public final long getPeriod(PacketID packet){
+		return TimeUnit.NANOSECONDS.toMillis(periods.get(packet.ordinal()));
+	}
+	
+	/**
+	 * Builds the request for this tick from the packets of selected that are due. Only called
+	 * from the hardware thread.
+	 * @param selected - the packets the user asked for
+	 * @param now - Clock.nanoTime() of this tick
+	 * @param tickPeriod - length of a tick in ns; a packet half a tick early counts as due
+	 * @return the request to send, or null if nothing is due
+	 */
+	final SensorRequest nextRequest(SensorRequest selected, long now, long tickPeriod){
+		
+		long dueMask = 0;
+		for(int i = 0; i < selected.getPacketCount(); i++){
+			int idx = selected.getPacket(i).ordinal();
+			if(now - lastPolled[idx] >= periods.get(idx) - tickPeriod / 2){
+				dueMask |= (1L << idx);
+			}
+		}
+		
+		if(dueMask == 0){
+			return null;
+		}
+		
+		SensorRequest request = lookup(dueMask);
+		
+		// a long query list can cost more on the wire than just asking for group 6
+		if(selected.isAllPackets() && 
+				request.generatePollCommand().capacity() + request.getResponseSize() >= ALL_COST){
+			request = SensorRequest.ALL;
+		}
+		
+		for(int i = 0; i < request.getPacketCount(); i++){
+			lastPolled[request.getPacket(i).ordinal()] = now;
+		}
+		return request;
+	}
+	
+	private final SensorRequest lookup(long mask){
+		for(int i = 0; i < CACHE_SIZE; i++){
+			if(cacheRequests[i] != null && cacheKeys[i] == mask){
+				return cacheRequests[i];
+			}
+		}
+		
+		EnumSet<PacketID> packets = EnumSet.noneOf(PacketID.class);
+		for(PacketID p : PacketID.values()){
+			if((mask & (1L << p.ordinal())) != 0){
+				packets.add(p);
+			}
+		}
+		SensorRequest request = packets.size() == PacketID.values().length ? SensorRequest.ALL : new SensorRequest(packets);
+		
+		cacheKeys[cacheNext] = mask;
+		cacheRequests[cacheNext] = request;
+		cacheNext = (cacheNext + 1) % CACHE_SIZE;
+		return request;
+	}
+	
+}
@@ -0,0 +1,76 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte pipe between CreateHardwareManager and a Create. RxtxTransport talks to a real serial
+ * port; LoopbackTransport and FileChannelTransport let a simulated robot sit on the other end so
+ * the whole stack can run without hardware.
+ * 
+ * Readiness can be driven either way: a DataListener is called whenever bytes arrive, or the
+ * owner can poll available().
+ * 
+ * @author pjmartin
+ *
+ */
+public interface SerialTransport {
+
+	/**
+	 * Called from the transport's receive thread whenever new bytes can be read.
+	 */
+	public interface DataListener {
+		public void dataAvailable(SerialTransport source);
+	}
+	
+	/**
+	 * @param baudRate - ignored by transports that are not a real UART
+	 * @throws IOException if the transport cannot be opened
+	 */
+	public void open(int baudRate) throws IOException;
+	
+	public boolean isOpen();
+	
+	/**
+	 * @return number of bytes that read() can return without blocking
+	 * @throws IOException
+	 */
+	public int available() throws IOException;
+	
+	/**
+	 * Copies up to len received bytes into dst. Never blocks.
+	 * @param dst
+	 * @param off
+	 * @param len
+	 * @return number of bytes copied, 0 if nothing is waiting
+	 * @throws IOException
+	 */
+	public int read(byte[] dst, int off, int len) throws IOException;
+	
+	/**
+	 * Writes srcs[offset] to srcs[offset+length-1] as one transmission. Each buffer is sent from
+	 * index 0 up to its limit, whatever its position, since commands are built with put() and
+	 * handed over unflipped; buffers are not modified, so cached commands can be written again.
+	 * @param srcs
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer[] srcs, int offset, int length) throws IOException;
+	
+	public void setDataListener(DataListener listener);
+	
+	public void close();
+	
+	/**
+	 * @return port name or other description of the far end
+	 */
+	public String getName();
+	
+}
@@ -0,0 +1,565 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.ycp.PacketID;
+import edu.ycp.SensorRequest;
+
+/**
+ * Long term storage for decoded sensor frames, column by column. Each robot (channel) collects
+ * BLOCK_FRAMES frames in memory; the block is then written with one column per PacketID plus a
+ * timestamp column, each delta coded by ColumnCodec, so values that barely change take almost no
+ * space. Blocks are appended to segment files of about segmentSize bytes, and every block gets a
+ * fixed size entry in the segment's index file (channel, first and last timestamp, position): the
+ * sparse time index TelemetryArchiveReader seeks with. Segments older than the retention time are
+ * deleted when a new one is started.
+ *
+ * append() only fills the channel's block in memory. A full block is swapped for a spare one and
+ * handed to a writer thread, which encodes and writes it, starts new segments and deletes old ones,
+ * so robots sharing an archive never wait on the file system or on each other's writes.
+ *
+ * Timestamps are stored as wall clock milliseconds, converted from the robot's Clock through the
+ * time base (by default the system clock at construction); ms is plenty for frames 15 ms apart and
+ * keeps the timestamp column small. Frames still in memory are lost if the process dies; the
+ * FlightRecorder is the precise, crash-safe record, this is the compact one.
+ *
+ * Segment file: MAGIC, VERSION, creation time (ms), then blocks. A block is
+ * <pre>
+ * 0  int  BLOCK_MAGIC
+ * 4  int  channel
+ * 8  int  frame count
+ * 12 int  column count (the timestamp column and every packet present in the block)
+ * 16 long first timestamp (ms)
+ * 24 long last timestamp (ms)
+ * 32      column directory: per column int packet ID (0 for timestamps), int offset, int length
+ *         column data, offsets from the start of the block
+ * </pre>
+ * A packet column starts with the runs of frames that have and do not have the packet (varints,
+ * first run present), followed by the values of the frames that have it. Values are the packet's
+ * bytes as sent, big endian, sign extended for signed packets. The timestamp column holds the
+ * intervals between frames, so a steady update rate codes to runs of repeats. Index file: MAGIC,
+ * VERSION, creation time, then one INDEX_ENTRY_SIZE entry per block. All values are little endian.
+ *
+ * @author pjmartin
+ *
+ */
+public class TelemetryArchive {
+	
+	public static final int MAGIC = 0x4154434A;			// "JCTA"
+	public static final int BLOCK_MAGIC = 0x4254434A;		// "JCTB"
+	public static final int VERSION = 1;
+	public static final int FILE_HEADER_SIZE = 16;
+	public static final int BLOCK_HEADER_SIZE = 32;
+	public static final int DIRECTORY_ENTRY_SIZE = 12;
+	public static final int INDEX_ENTRY_SIZE = 40;
+	
+	public static final int BLOCK_FRAMES = 2048;					// ~1 min of group 6 at 33 Hz
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;		// 64 MB
+	public static final long DEFAULT_RETENTION = TimeUnit.DAYS.toMillis(30);
+	static final String SEGMENT_PREFIX = "telemetry-";
+	static final String SEGMENT_SUFFIX = ".jcta";
+	static final String INDEX_SUFFIX = ".jcti";
+	
+	private static final PacketID[] PACKETS = PacketID.values();
+	static final int PACKET_COUNT = PACKETS.length;
+	
+	private final File directory;
+	private final long segmentSize;
+	private final long retention;	// ms
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<Integer, Block> blocks = new HashMap<Integer, Block>();	// guarded by lock
+	private final ArrayDeque<Block> spares = new ArrayDeque<Block>();	// written blocks; guarded by lock
+	private boolean closed = false;		// guarded by lock
+	private final ThreadPoolExecutor writer;	// one thread, ends when idle
+	
+	private final ReentrantLock fileLock = new ReentrantLock();	// held by the writer around each block
+	private FileChannel segment;		// guarded by fileLock
+	private FileChannel index;			// guarded by fileLock
+	private long segmentNumber;			// guarded by fileLock
+	
+	// clock time to wall clock time
+	private volatile long baseEpochMillis = System.currentTimeMillis();
+	private volatile long baseNanos = System.nanoTime();
+	
+	private long frameCount = 0;		// guarded by lock
+	private long rawBytes = 0;			// guarded by lock
+	private long bytesWritten = 0;		// guarded by fileLock
+	
+	// encoding scratch, guarded by fileLock
+	private final long[] scratch = new long[BLOCK_FRAMES];
+	private final ColumnCodec.Output columnData = new ColumnCodec.Output(64 * 1024);
+	private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE
+			+ (PACKETS.length + 1) * DIRECTORY_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	
+	public TelemetryArchive(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_RETENTION);
+	}
+	
+	/**
+	 * @param directory - created if missing; numbering continues after any segments already there
+	 * @param segmentSize - a new segment is started once the current one is this big
+	 * @param retention - segments last written more than this many ms ago are deleted
+	 * @throws IOException
+	 */
+	public TelemetryArchive(File directory, long segmentSize, long retention) throws IOException {
+		if(segmentSize <= 0 || retention <= 0){
+			throw new IllegalArgumentException("Segment size and retention must be positive.");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Cannot create " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.retention = retention;
+		
+		File[] existing = listSegments(directory);
+		segmentNumber = existing.length == 0 ? 0 : segmentNumberOf(existing[existing.length - 1]);
+		startSegment();
+		writer = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				ExecutorFactory.getDefault().newThreadFactory("TelemetryArchive"));
+		writer.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Sets which wall clock time a Clock.nanoTime() value stands for, e.g. when archiving a replay
+	 * whose clock follows a recording.
+	 * @param epochMillis
+	 * @param nanoTime
+	 */
+	public final void setTimeBase(long epochMillis, long nanoTime) {
+		baseNanos = nanoTime;
+		baseEpochMillis = epochMillis;
+	}
+	
+	/**
+	 * Adds one decoded frame. Never touches the file system.
+	 * @param channel - which robot
+	 * @param nanoTime - Clock.nanoTime() of the robot when the frame was decoded
+	 * @param frame - the packets of request back to back, in request order
+	 * @param request
+	 */
+	public final void append(int channel, long nanoTime, byte[] frame, SensorRequest request) {
+		long millis = baseEpochMillis + Math.floorDiv(nanoTime - baseNanos, 1000000L);
+		lock.lock();
+		try {
+			if(closed){
+				return;
+			}
+			Block block = blocks.get(channel);
+			if(block == null){
+				block = new Block(channel);
+				blocks.put(channel, block);
+			}
+			int f = block.count;
+			block.timestamps[f] = millis;
+			int offset = 0;
+			for(int i = 0; i < request.getPacketCount(); i++){
+				PacketID p = request.getPacket(i);
+				block.values[p.ordinal()][f] = p.read(frame, offset);
+				block.present[p.ordinal()][f] = true;
+				offset += p.getSize();
+			}
+			block.count = f + 1;
+			frameCount++;
+			rawBytes += request.getResponseSize();
+			if(block.count == BLOCK_FRAMES){
+				handOff(block);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes every partly filled block and forces the files to disk, so everything appended so far
+	 * can be read back. Waits for the writer thread.
+	 * @throws IOException
+	 */
+	public final void flush() throws IOException {
+		lock.lock();
+		try {
+			if(closed){
+				return;
+			}
+			handOffPartialBlocks();
+		} finally {
+			lock.unlock();
+		}
+		Future<?> forced;
+		try {
+			forced = writer.submit(new Runnable(){
+				@Override
+				public void run() {
+					fileLock.lock();
+					try {
+						segment.force(false);
+						index.force(false);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					} finally {
+						fileLock.unlock();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return;	// closed meanwhile, which forces the files itself
+		}
+		try {
+			forced.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof UncheckedIOException){
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw new IOException("Cannot flush " + directory, e.getCause());
+		}
+	}
+	
+	/**
+	 * Writes every partly filled block and stops archiving; later frames are ignored. Waits for
+	 * the writer thread.
+	 * @throws IOException
+	 */
+	public final void close() throws IOException {
+		lock.lock();
+		try {
+			if(closed){
+				return;
+			}
+			handOffPartialBlocks();
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fileLock.lock();
+		try {
+			segment.force(false);
+			index.force(false);
+			segment.close();
+			index.close();
+		} finally {
+			fileLock.unlock();
+		}
+	}
+	
+	/**
+	 * Swaps a full block for a spare and queues it for the writer thread. Called with the lock held.
+	 * @param full
+	 */
+	private final void handOff(final Block full) {
+		Block next = spares.poll();
+		if(next == null){
+			next = new Block(full.channel);	// the writer is behind; only until it catches up
+		}
+		next.channel = full.channel;
+		blocks.put(full.channel, next);
+		writer.execute(new Runnable(){
+			@Override
+			public void run() {
+				fileLock.lock();
+				try {
+					writeBlock(full);
+				} finally {
+					fileLock.unlock();
+				}
+				lock.lock();
+				try {
+					spares.push(full);
+				} finally {
+					lock.unlock();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Called with the lock held.
+	 */
+	private final void handOffPartialBlocks() {
+		List<Block> partial = new ArrayList<Block>();
+		for(Block block : blocks.values()){
+			if(block.count > 0){
+				partial.add(block);
+			}
+		}
+		for(Block block : partial){
+			handOff(block);
+		}
+	}
+	
+	/**
+	 * Writer thread, with fileLock held.
+	 * @param block
+	 */
+	private final void writeBlock(Block block) {
+		int n = block.count;
+		columnData.setLength(0);
+		blockHeader.clear();
+		blockHeader.position(BLOCK_HEADER_SIZE);
+		
+		// timestamps as intervals, so a steady rate is a run of repeats
+		scratch[0] = 0;
+		for(int f = 1; f < n; f++){
+			scratch[f] = block.timestamps[f] - block.timestamps[f - 1];
+		}
+		int start = columnData.length();
+		ColumnCodec.encodeValues(scratch, n, 0, columnData);
+		addDirectoryEntry(0, start);
+		int columns = 1;
+		
+		for(int c = 0; c < PACKETS.length; c++){
+			boolean[] present = block.present[c];
+			int[] values = block.values[c];
+			int have = 0;
+			for(int f = 0; f < n; f++){
+				if(present[f]){
+					scratch[have++] = values[f];
+				}
+			}
+			if(have == 0){
+				continue;
+			}
+			start = columnData.length();
+			writePresence(present, n);
+			ColumnCodec.encodeValues(scratch, have, 0, columnData);
+			addDirectoryEntry(PACKETS[c].getPacketID(), start);
+			columns++;
+			Arrays.fill(present, 0, n, false);
+		}
+		
+		int headerSize = blockHeader.position();
+		blockHeader.putInt(0, BLOCK_MAGIC);
+		blockHeader.putInt(4, block.channel);
+		blockHeader.putInt(8, n);
+		blockHeader.putInt(12, columns);
+		blockHeader.putLong(16, block.timestamps[0]);
+		blockHeader.putLong(24, block.timestamps[n - 1]);
+		for(int i = 0; i < columns; i++){
+			int entry = BLOCK_HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+			blockHeader.putInt(entry + 4, blockHeader.getInt(entry + 4) + headerSize);
+		}
+		blockHeader.flip();
+		block.count = 0;
+		
+		try {
+			long position = segment.position();
+			int length = headerSize + columnData.length();
+			writeFully(segment, blockHeader);
+			writeFully(segment, ByteBuffer.wrap(columnData.array(), 0, columnData.length()));
+			
+			indexEntry.clear();
+			indexEntry.putLong(position);
+			indexEntry.putInt(length);
+			indexEntry.putInt(block.channel);
+			indexEntry.putInt(n);
+			indexEntry.putInt(0);
+			indexEntry.putLong(blockHeader.getLong(16));
+			indexEntry.putLong(blockHeader.getLong(24));
+			indexEntry.flip();
+			writeFully(index, indexEntry);
+			bytesWritten += length + INDEX_ENTRY_SIZE;
+			
+			if(segment.position() >= segmentSize){
+				segment.close();
+				index.close();
+				startSegment();
+			}
+		} catch (IOException e) {
+			System.err.println("TelemetryArchive lost a block of " + n + " frames in " + directory);
+			e.printStackTrace();
+		}
+	}
+	
+	private final void addDirectoryEntry(int packetID, int start) {
+		blockHeader.putInt(packetID);
+		blockHeader.putInt(start);	// made relative to the block once the header size is known
+		blockHeader.putInt(columnData.length() - start);
+	}
+	
+	/**
+	 * Run lengths of frames with and without the packet, starting with a (possibly empty) run with.
+	 */
+	private final void writePresence(boolean[] present, int n) {
+		int runs = 0;
+		for(int f = 0; f < n; f++){
+			if(f == 0 ? !present[0] : present[f] != present[f - 1]){
+				runs++;
+			}
+		}
+		columnData.putVarLong(runs + 1);
+		boolean state = true;
+		int run = 0;
+		for(int f = 0; f < n; f++){
+			if(present[f] != state){
+				columnData.putVarLong(run);
+				state = !state;
+				run = 0;
+			}
+			run++;
+		}
+		columnData.putVarLong(run);
+	}
+	
+	private static final void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+	}
+	
+	private final void startSegment() throws IOException {
+		segmentNumber++;
+		segment = openFile(new File(directory, segmentName(segmentNumber, SEGMENT_SUFFIX)));
+		index = openFile(new File(directory, segmentName(segmentNumber, INDEX_SUFFIX)));
+		bytesWritten += 2 * FILE_HEADER_SIZE;
+		enforceRetention();
+	}
+	
+	private static final FileChannel openFile(File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(System.currentTimeMillis());
+		header.flip();
+		writeFully(channel, header);
+		return channel;
+	}
+	
+	private final void enforceRetention() {
+		long cutoff = System.currentTimeMillis() - retention;
+		File[] segments = listSegments(directory);
+		for(int i = 0; i < segments.length - 1; i++){
+			if(segments[i].lastModified() < cutoff){
+				segments[i].delete();
+				indexFileOf(segments[i]).delete();
+			}
+		}
+	}
+	
+	static final String segmentName(long number, String suffix) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, number, suffix);
+	}
+	
+	static final long segmentNumberOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+	
+	static final File indexFileOf(File segment) {
+		return new File(segment.getParentFile(), segmentName(segmentNumberOf(segment), INDEX_SUFFIX));
+	}
+	
+	/**
+	 * @param directory
+	 * @return the segment files in directory, oldest first
+	 */
+	static final File[] listSegments(File directory) {
+		File[] all = directory.listFiles();
+		if(all == null){
+			return new File[0];
+		}
+		List<File> segments = new ArrayList<File>();
+		for(File f : all){
+			String name = f.getName();
+			if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)){
+				segments.add(f);
+			}
+		}
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted);	// zero-padded numbers sort by name
+		return sorted;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * @return frames appended so far
+	 */
+	public long getFrameCount() {
+		lock.lock();
+		try {
+			return frameCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return bytes of sensor data appended so far, as the Create sent them
+	 */
+	public long getRawBytes() {
+		lock.lock();
+		try {
+			return rawBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return bytes written to segment and index files so far
+	 */
+	public long getBytesWritten() {
+		fileLock.lock();
+		try {
+			return bytesWritten;
+		} finally {
+			fileLock.unlock();
+		}
+	}
+	
+	/**
+	 * Frames of one channel not written yet.
+	 */
+	private static class Block {
+		
+		int channel;	// set when the block is taken for a channel
+		final long[] timestamps = new long[BLOCK_FRAMES];
+		final int[][] values = new int[PACKETS.length][BLOCK_FRAMES];			// by PacketID ordinal
+		final boolean[][] present = new boolean[PACKETS.length][BLOCK_FRAMES];
+		int count = 0;
+		
+		Block(int channel){
+			this.channel = channel;
+		}
+		
+	}
+	
+}
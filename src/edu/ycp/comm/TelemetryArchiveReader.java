@@ -0,0 +1,297 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.ycp.PacketID;
+
+/**
+ * Reads columns back out of a TelemetryArchive directory. The index files are loaded when the
+ * reader is opened; a query then touches only the blocks of its channel whose time range overlaps
+ * the window, and of each of those only the block header, the timestamp column and the one packet
+ * column asked for.
+ *
+ * @author pjmartin
+ *
+ */
+public class TelemetryArchiveReader {
+	
+	private final List<BlockEntry> entries = new ArrayList<BlockEntry>();	// in write order
+	
+	private File openSegment;
+	private FileChannel openChannel;
+	private long bytesRead = 0;
+	
+	/**
+	 * @param directory - as passed to TelemetryArchive
+	 * @throws IOException if there is no archive in directory
+	 */
+	public TelemetryArchiveReader(File directory) throws IOException {
+		File[] segments = TelemetryArchive.listSegments(directory);
+		if(segments.length == 0){
+			throw new IOException("No telemetry archive segments in " + directory);
+		}
+		for(File segment : segments){
+			loadIndex(segment);
+		}
+	}
+	
+	private final void loadIndex(File segment) throws IOException {
+		File indexFile = TelemetryArchive.indexFileOf(segment);
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) raf.length()).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(raf.getChannel(), buf, 0);
+			buf.flip();
+			if(buf.remaining() < TelemetryArchive.FILE_HEADER_SIZE || buf.getInt(0) != TelemetryArchive.MAGIC){
+				throw new IOException(indexFile + " is not a telemetry archive index");
+			}
+			if(buf.getInt(4) != TelemetryArchive.VERSION){
+				throw new IOException(indexFile + " has an unsupported format version");
+			}
+			buf.position(TelemetryArchive.FILE_HEADER_SIZE);
+			while(buf.remaining() >= TelemetryArchive.INDEX_ENTRY_SIZE){
+				BlockEntry e = new BlockEntry();
+				e.segment = segment;
+				e.position = buf.getLong();
+				e.length = buf.getInt();
+				e.channel = buf.getInt();
+				e.frameCount = buf.getInt();
+				buf.getInt();
+				e.firstMillis = buf.getLong();
+				e.lastMillis = buf.getLong();
+				entries.add(e);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * @param channel
+	 * @param packet
+	 * @param fromMillis - start of the window, wall clock ms, inclusive
+	 * @param toMillis - end of the window, exclusive
+	 * @return the packet's values in the window, oldest first
+	 */
+	public final Column readColumn(int channel, PacketID packet, long fromMillis, long toMillis) {
+		return new Column(channel, packet, fromMillis, toMillis);
+	}
+	
+	/**
+	 * @return the earliest and latest timestamp archived for channel (ms), or null if it has none
+	 */
+	public final long[] getTimeRange(int channel) {
+		long[] range = null;
+		for(BlockEntry e : entries){
+			if(e.channel == channel){
+				if(range == null){
+					range = new long[]{e.firstMillis, e.lastMillis};
+				}
+				range[0] = Math.min(range[0], e.firstMillis);
+				range[1] = Math.max(range[1], e.lastMillis);
+			}
+		}
+		return range;
+	}
+	
+	/**
+	 * @return bytes read from segment files so far, the index files not counted
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+	
+	public final void close() throws IOException {
+		if(openChannel != null){
+			openChannel.close();
+			openChannel = null;
+			openSegment = null;
+		}
+	}
+	
+	private final ByteBuffer read(File segment, long position, int length) throws IOException {
+		if(!segment.equals(openSegment)){
+			close();
+			openChannel = new RandomAccessFile(segment, "r").getChannel();
+			openSegment = segment;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(openChannel, buf, position);
+		bytesRead += length;
+		buf.flip();
+		return buf;
+	}
+	
+	private static final void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()){
+			if(channel.read(buf, position + buf.position()) < 0){
+				throw new IOException("Telemetry archive file is truncated");
+			}
+		}
+	}
+	
+	/**
+	 * One packet's values in a time window, a block at a time. next() moves the getters to the
+	 * next value.
+	 */
+	public final class Column {
+		
+		private final int channel;
+		private final PacketID packet;
+		private final long fromMillis;
+		private final long toMillis;
+		
+		private int entryIndex = 0;
+		private final long[] timestamps = new long[TelemetryArchive.BLOCK_FRAMES];
+		private final long[] values = new long[TelemetryArchive.BLOCK_FRAMES];
+		private final int[] frames = new int[TelemetryArchive.BLOCK_FRAMES];	// frame of each value
+		private int valueCount = 0;
+		private int valueIndex = 0;
+		private long timestamp;
+		private long value;
+		
+		private Column(int channel, PacketID packet, long fromMillis, long toMillis){
+			this.channel = channel;
+			this.packet = packet;
+			this.fromMillis = fromMillis;
+			this.toMillis = toMillis;
+		}
+		
+		/**
+		 * Moves to the next value.
+		 * @return false once the window has no more
+		 * @throws IOException
+		 */
+		public final boolean next() throws IOException {
+			while(true){
+				while(valueIndex < valueCount){
+					int i = valueIndex++;
+					long ts = timestamps[frames[i]];
+					if(ts >= fromMillis && ts < toMillis){
+						timestamp = ts;
+						value = values[i];
+						return true;
+					}
+				}
+				if(!loadNextBlock()){
+					return false;
+				}
+			}
+		}
+		
+		private final boolean loadNextBlock() throws IOException {
+			while(entryIndex < entries.size()){
+				BlockEntry e = entries.get(entryIndex++);
+				if(e.channel != channel || e.lastMillis < fromMillis || e.firstMillis >= toMillis){
+					continue;
+				}
+				if(loadBlock(e)){
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		private final boolean loadBlock(BlockEntry e) throws IOException {
+			// the header and column directory first, then only the two columns needed
+			int directorySize = (TelemetryArchive.PACKET_COUNT + 1) * TelemetryArchive.DIRECTORY_ENTRY_SIZE;
+			ByteBuffer header = read(e.segment, e.position,
+					Math.min(e.length, TelemetryArchive.BLOCK_HEADER_SIZE + directorySize));
+			if(header.getInt(0) != TelemetryArchive.BLOCK_MAGIC){
+				throw new IOException(e.segment + " has no block at " + e.position);
+			}
+			int n = header.getInt(8);
+			int columns = header.getInt(12);
+			long first = header.getLong(16);
+			int tsOffset = -1;
+			int tsLength = 0;
+			int offset = -1;
+			int length = 0;
+			for(int c = 0; c < columns; c++){
+				int entry = TelemetryArchive.BLOCK_HEADER_SIZE + c * TelemetryArchive.DIRECTORY_ENTRY_SIZE;
+				int id = header.getInt(entry);
+				if(id == 0){
+					tsOffset = header.getInt(entry + 4);
+					tsLength = header.getInt(entry + 8);
+				}
+				else if(id == packet.getPacketID()){
+					offset = header.getInt(entry + 4);
+					length = header.getInt(entry + 8);
+				}
+			}
+			if(offset < 0){
+				return false;	// the packet was not acquired during this block
+			}
+			
+			ByteBuffer ts = read(e.segment, e.position + tsOffset, tsLength);
+			ColumnCodec.decodeValues(new ColumnCodec.Input(ts.array(), 0), timestamps, n, 0);
+			long t = first;
+			for(int f = 0; f < n; f++){
+				t += timestamps[f];
+				timestamps[f] = t;
+			}
+			
+			ByteBuffer col = read(e.segment, e.position + offset, length);
+			ColumnCodec.Input in = new ColumnCodec.Input(col.array(), 0);
+			int runs = (int) in.getVarLong();
+			int frame = 0;
+			int have = 0;
+			for(int r = 0; r < runs; r++){
+				int run = (int) in.getVarLong();
+				if((r & 1) == 0){
+					for(int k = 0; k < run; k++){
+						frames[have++] = frame + k;
+					}
+				}
+				frame += run;
+			}
+			ColumnCodec.decodeValues(in, values, have, 0);
+			valueCount = have;
+			valueIndex = 0;
+			return true;
+		}
+		
+		/**
+		 * @return wall clock time of the current value, ms
+		 */
+		public final long getTimestamp() {
+			return timestamp;
+		}
+		
+		/**
+		 * @return the packet's bytes as one number, sign extended for signed packets
+		 */
+		public final long getValue() {
+			return value;
+		}
+		
+		public final PacketID getPacket() {
+			return packet;
+		}
+		
+	}
+	
+	private static class BlockEntry {
+		File segment;
+		long position;
+		int length;
+		int channel;
+		int frameCount;
+		long firstMillis;
+		long lastMillis;
+	}
+	
+}
@@ -0,0 +1,158 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drift-free periodic tick source for the hardware loop. Deadlines are absolute Clock.nanoTime()
+ * values spaced exactly one period apart, so sleep overshoot on one tick does not push every later
+ * tick back. When a tick overruns its deadline, CATCH_UP runs the missed ticks back to back while
+ * SKIP drops them and resumes on the next deadline in phase. The actual period and the wakeup
+ * lateness (jitter) of every tick are recorded in histograms.
+ * 
+ * @author pjmartin
+ *
+ */
+public class TickScheduler {
+
+	public static final long MIN_PERIOD = 15; // ms, the OI's fastest update rate
+	
+	public enum OverrunPolicy {
+		CATCH_UP, SKIP;
+	}
+	
+	private final Clock clock;
+	private volatile long periodNanos;
+	private volatile OverrunPolicy overrunPolicy;
+	
+	private long nextDeadline;		// hardware thread only
+	private long lastTickStart;		// hardware thread only
+	private boolean started = false;
+	
+	private final LatencyHistogram periodHistogram = new LatencyHistogram();
+	private final LatencyHistogram jitterHistogram = new LatencyHistogram();
+	private final AtomicLong missedDeadlines = new AtomicLong();
+	private final AtomicLong skippedTicks = new AtomicLong();
+	private final AtomicLong tickCount = new AtomicLong();
+	
+	public TickScheduler(long periodMs, OverrunPolicy policy){
+		this(periodMs, policy, Clock.SYSTEM);
+	}
+	
+	public TickScheduler(long periodMs, OverrunPolicy policy, Clock clock){
+		this.clock = clock;
+		setPeriod(periodMs);
+		overrunPolicy = policy;
+	}
+	
+	/**
+	 * @param periodMs - at least MIN_PERIOD
+	 */
+	public final void setPeriod(long periodMs){
+		if(periodMs < MIN_PERIOD){
+			throw new IllegalArgumentException("Update period must be at least " + MIN_PERIOD + " ms: " + periodMs);
+		}
+		periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+	}
+	
+	public final long getPeriod(){
+		return TimeUnit.NANOSECONDS.toMillis(periodNanos);
+	}
+	
+	public final void setOverrunPolicy(OverrunPolicy policy){
+		overrunPolicy = policy;
+	}
+	
+	public final OverrunPolicy getOverrunPolicy(){
+		return overrunPolicy;
+	}
+	
+	/**
+	 * Blocks until the next deadline. The first call returns immediately and sets the phase.
+	 * @return Clock.nanoTime() at which the tick started
+	 * @throws InterruptedException
+	 */
+	public final long awaitNextTick() throws InterruptedException {
+		long period = periodNanos;
+		long now = clock.nanoTime();
+		
+		if(!started){
+			started = true;
+			nextDeadline = now + period;
+			lastTickStart = now;
+			tickCount.incrementAndGet();
+			return now;
+		}
+		
+		if(now > nextDeadline){
+			// the last tick's work ran past this tick's deadline
+			missedDeadlines.incrementAndGet();
+			if(overrunPolicy == OverrunPolicy.SKIP && now - nextDeadline >= period){
+				long missed = (now - nextDeadline) / period;
+				skippedTicks.addAndGet(missed);
+				nextDeadline += missed * period;
+			}
+		}
+		
+		long deadline = nextDeadline;
+		while(now < deadline){
+			clock.parkUntil(this, deadline);
+			if(Thread.interrupted()){
+				throw new InterruptedException();
+			}
+			now = clock.nanoTime();
+		}
+		
+		jitterHistogram.record(now - deadline);
+		periodHistogram.record(now - lastTickStart);
+		lastTickStart = now;
+		nextDeadline = deadline + period;
+		tickCount.incrementAndGet();
+		return now;
+	}
+	
+	/**
+	 * @return histogram of the time between consecutive tick starts, in ns
+	 */
+	public final LatencyHistogram getPeriodHistogram(){
+		return periodHistogram;
+	}
+	
+	/**
+	 * @return histogram of how late each tick started relative to its deadline, in ns
+	 */
+	public final LatencyHistogram getJitterHistogram(){
+		return jitterHistogram;
+	}
+	
+	/**
+	 * @return number of ticks whose deadline had already passed when the previous tick finished
+	 */
+	public final long getMissedDeadlineCount(){
+		return missedDeadlines.get();
+	}
+	
+	/**
+	 * @return number of ticks dropped by the SKIP policy
+	 */
+	public final long getSkippedTickCount(){
+		return skippedTicks.get();
+	}
+	
+	public final long getTickCount(){
+		return tickCount.get();
+	}
+	
+	@Override
+	public String toString(){
+		return "ticks=" + getTickCount() + " missed=" + getMissedDeadlineCount() + " skipped=" + getSkippedTickCount()
+				+ " period(us)[" + periodHistogram.toString(1000) + "] jitter(us)[" + jitterHistogram.toString(1000) + "]";
+	}
+	
+}
@@ -0,0 +1,218 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.comm;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A clock that only moves when every registered thread is parked on it: time then jumps straight
+ * to the earliest deadline and the threads due at it wake up. A test that registers the robot's
+ * threads, a SimulatedCreate and itself runs as fast as the CPU allows, and a run is repeatable
+ * because nothing depends on how long the host takes.
+ * 
+ * Threads that are not registered (listener executors, for instance) do not hold time back. With
+ * no registered threads time only moves through advance().
+ * 
+ * @author pjmartin
+ *
+ */
+public class VirtualClock extends Clock {
+
+	private static final class Waiter {
+		long deadline;
+		boolean parked;
+		boolean permit;
+	}
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	
+	private volatile long now;
+	private int participants = 0;	// guarded by lock
+	private int parkedCount = 0;	// guarded by lock
+	// weak keys, so threads that have finished drop out; Thread keeps identity equals()
+	private final Map<Thread, Waiter> waiters = new WeakHashMap<Thread, Waiter>();	// guarded by lock
+	private long advanceCount = 0;	// guarded by lock
+	
+	public VirtualClock(){
+		this(0);
+	}
+	
+	/**
+	 * @param startNanos - initial value of nanoTime()
+	 */
+	public VirtualClock(long startNanos){
+		this.now = startNanos;
+	}
+	
+	@Override
+	public long nanoTime() {
+		return now;
+	}
+
+	@Override
+	public void parkUntil(Object blocker, long deadline) {
+		lock.lock();
+		try {
+			Waiter w = waiterFor(Thread.currentThread());
+			if(w.permit){
+				w.permit = false;
+				return;
+			}
+			if(now >= deadline){
+				return;
+			}
+			w.deadline = deadline;
+			w.parked = true;
+			parkedCount++;
+			advanceIfIdle();
+			while(w.parked){
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					release(w);
+				}
+			}
+			w.permit = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void unpark(Thread thread) {
+		lock.lock();
+		try {
+			Waiter w = waiterFor(thread);
+			if(w.parked){
+				release(w);
+				changed.signalAll();
+			}
+			else{
+				w.permit = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void register() {
+		lock.lock();
+		try {
+			participants++;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void deregister() {
+		lock.lock();
+		try {
+			participants--;
+			advanceIfIdle();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves time forward by nanos regardless of who is parked, waking everyone now due.
+	 * @param nanos
+	 */
+	public final void advance(long nanos) {
+		lock.lock();
+		try {
+			now += nanos;
+			releaseDue();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private final Waiter waiterFor(Thread thread){
+		Waiter w = waiters.get(thread);
+		if(w == null){
+			w = new Waiter();
+			waiters.put(thread, w);
+		}
+		return w;
+	}
+	
+	private final void release(Waiter w){
+		if(w.parked){
+			w.parked = false;
+			parkedCount--;
+		}
+	}
+	
+	// everyone registered is parked: jump to the earliest deadline
+	private final void advanceIfIdle(){
+		if(participants <= 0 || parkedCount < participants){
+			return;
+		}
+		long next = Long.MAX_VALUE;
+		for(Waiter w : waiters.values()){
+			if(w.parked && w.deadline < next){
+				next = w.deadline;
+			}
+		}
+		if(next == Long.MAX_VALUE){
+			return;
+		}
+		if(next > now){
+			now = next;
+			advanceCount++;
+		}
+		releaseDue();
+	}
+	
+	private final void releaseDue(){
+		boolean any = false;
+		for(Waiter w : waiters.values()){
+			if(w.parked && w.deadline <= now){
+				release(w);
+				any = true;
+			}
+		}
+		if(any){
+			changed.signalAll();
+		}
+	}
+	
+	/**
+	 * @return number of times time jumped because everyone was idle
+	 */
+	public long getAdvanceCount() {
+		lock.lock();
+		try {
+			return advanceCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getParticipantCount() {
+		lock.lock();
+		try {
+			return participants;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "VirtualClock[" + now + " ns]";
+	}
+	
+}
@@ -0,0 +1,150 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Floor plan for the SimulatedCreate: a walled rectangle, with rectangular obstacles the robot
+ * bumps into and rectangular drop-offs its cliff sensors see. Units are mm, origin in the lower
+ * left corner, x to the right and y up.
+ * 
+ * @author pjmartin
+ *
+ */
+public class Arena {
+
+	/**
+	 * An axis-aligned rectangle.
+	 */
+	public static class Region {
+		
+		private final double x, y, width, height;
+		
+		public Region(double x, double y, double width, double height){
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+		
+		public boolean contains(double px, double py){
+			return px >= x && px <= x + width && py >= y && py <= y + height;
+		}
+		
+		/**
+		 * @param px
+		 * @param py
+		 * @param closest - receives the nearest point of the region, may be null
+		 * @return distance from (px, py) to the region, 0 if inside
+		 */
+		public double distanceTo(double px, double py, double[] closest){
+			double cx = Math.max(x, Math.min(px, x + width));
+			double cy = Math.max(y, Math.min(py, y + height));
+			if(closest != null){
+				closest[0] = cx;
+				closest[1] = cy;
+			}
+			return Math.hypot(px - cx, py - cy);
+		}
+		
+		@Override
+		public String toString() {
+			return "[" + x + ", " + y + ", " + width + " x " + height + "]";
+		}
+	}
+	
+	private final double width;
+	private final double height;
+	private final List<Region> obstacles = new ArrayList<Region>();
+	private final List<Region> cliffs = new ArrayList<Region>();
+	
+	// walls are 10 cm thick, just outside the floor
+	private final double WALL_THICKNESS = 100;
+	
+	/**
+	 * An empty walled room.
+	 * @param width - in mm
+	 * @param height - in mm
+	 */
+	public Arena(double width, double height){
+		this.width = width;
+		this.height = height;
+		obstacles.add(new Region(-WALL_THICKNESS, -WALL_THICKNESS, width + 2*WALL_THICKNESS, WALL_THICKNESS));
+		obstacles.add(new Region(-WALL_THICKNESS, height, width + 2*WALL_THICKNESS, WALL_THICKNESS));
+		obstacles.add(new Region(-WALL_THICKNESS, 0, WALL_THICKNESS, height));
+		obstacles.add(new Region(width, 0, WALL_THICKNESS, height));
+	}
+	
+	public final Arena addObstacle(double x, double y, double w, double h){
+		obstacles.add(new Region(x, y, w, h));
+		return this;
+	}
+	
+	public final Arena addCliff(double x, double y, double w, double h){
+		cliffs.add(new Region(x, y, w, h));
+		return this;
+	}
+	
+	/**
+	 * @param px
+	 * @param py
+	 * @param closest - receives the nearest obstacle point, may be null
+	 * @return distance from (px, py) to the nearest obstacle or wall
+	 */
+	public final double distanceToObstacle(double px, double py, double[] closest){
+		double best = Double.MAX_VALUE;
+		Region nearest = null;
+		for(int i = 0; i < obstacles.size(); i++){
+			double d = obstacles.get(i).distanceTo(px, py, null);
+			if(d < best){
+				best = d;
+				nearest = obstacles.get(i);
+			}
+		}
+		if(closest != null && nearest != null){
+			nearest.distanceTo(px, py, closest);
+		}
+		return best;
+	}
+	
+	/**
+	 * @param px
+	 * @param py
+	 * @return true if there is no floor at (px, py)
+	 */
+	public final boolean isCliff(double px, double py){
+		if(px < 0 || py < 0 || px > width || py > height){
+			return true;
+		}
+		for(int i = 0; i < cliffs.size(); i++){
+			if(cliffs.get(i).contains(px, py)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public double getWidth() {
+		return width;
+	}
+
+	public double getHeight() {
+		return height;
+	}
+	
+	public List<Region> getObstacles() {
+		return Collections.unmodifiableList(obstacles);
+	}
+	
+	public List<Region> getCliffs() {
+		return Collections.unmodifiableList(cliffs);
+	}
+	
+}
@@ -0,0 +1,890 @@
+/*
+ Copyright (c) 2013 - York College of Pennsylvania, Patrick J. Martin
+ The MIT License
+ See license.txt for details. 
+*/
+
+package edu.ycp.sim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.ycp.ActuatorCommand;
+import edu.ycp.BooleanSensor;
+import edu.ycp.CreateRobot;
+import edu.ycp.CreateRobot.AcquisitionMode;
+import edu.ycp.CreateRobot.CreateMode;
+import edu.ycp.InputCommand;
+import edu.ycp.ModePacket.ModeCommand;
+import edu.ycp.PacketID;
+import edu.ycp.SensorEvent;
+import edu.ycp.SensorEvent.Edge;
+import edu.ycp.SensorListener;
+import edu.ycp.StartCommand;
+import edu.ycp.comm.Clock;
+import edu.ycp.comm.LoopbackTransport;
+import edu.ycp.comm.SerialTransport;
+import edu.ycp.comm.VirtualClock;
+
+/**
+ * A Create that lives on the far end of a SerialTransport and speaks the Open Interface byte for
+ * byte: START, SAFE and FULL, DRIVE, DRIVE_DIRECT and LEDS, SENSORS (single packets and groups 0-6),
+ * QUERY_LIST, STREAM and PAUSE_RESUME_STREAM. Motion is a differential-drive model with
+ * CreateRobot.WHEELBASE; bumpers, cliff, wheel drop and wall sensors come from the Arena.
+ * 
+ * Simulated time advances in 15 ms steps, which is also the stream period. run() paces the steps
+ * against its Clock divided by the time scale, so on the wall clock a time scale of 100 drives for
+ * 100 s every second; step() advances it directly instead. On a VirtualClock leave the scale at 1:
+ * the clock itself skips the idle time.
+ * 
+ * @author pjmartin
+ *
+ */
+public class SimulatedCreate implements SerialTransport.DataListener, Runnable {
+
+	public static final double BODY_RADIUS = 165;	// mm; the Create is 33 cm across
+	public static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(15);	// also the OI stream period
+	
+	private static final int MODE_OFF = 0, MODE_PASSIVE = 1, MODE_SAFE = 2, MODE_FULL = 3;
+	
+	// opcode -> argument byte count, built from the same enums jcreate sends with
+	private static final int UNKNOWN = -1, VARIABLE = -2;
+	private static final int[] ARG_COUNT = new int[256];
+	private static final StartCommand[] START_OPS = new StartCommand[256];
+	private static final ModeCommand[] MODE_OPS = new ModeCommand[256];
+	private static final ActuatorCommand[] ACTUATOR_OPS = new ActuatorCommand[256];
+	private static final InputCommand[] INPUT_OPS = new InputCommand[256];
+	
+	// packet ranges of the OI sensor groups 0-6
+	private static final int[] GROUP_FIRST = { 7, 7, 17, 21, 27, 35, 7 };
+	private static final int[] GROUP_LAST = { 26, 16, 20, 26, 34, 42, 42 };
+	
+	static {
+		Arrays.fill(ARG_COUNT, UNKNOWN);
+		for(StartCommand c : StartCommand.values()){
+			START_OPS[c.getOpcodeVal() & 0xFF] = c;
+			ARG_COUNT[c.getOpcodeVal() & 0xFF] = (c == StartCommand.BAUD) ? 1 : 0;
+		}
+		for(ModeCommand c : ModeCommand.values()){
+			MODE_OPS[c.getOpcodeVal() & 0xFF] = c;
+			ARG_COUNT[c.getOpcodeVal() & 0xFF] = 0;
+		}
+		for(ActuatorCommand c : ActuatorCommand.values()){
+			ACTUATOR_OPS[c.getOpcodeVal() & 0xFF] = c;
+			switch(c){
+			case DRIVE:
+			case DRIVE_DIRECT:
+				ARG_COUNT[c.getOpcodeVal() & 0xFF] = 4;
+				break;
+			case LEDS:
+			case PWM_LOWSIDE:
+				ARG_COUNT[c.getOpcodeVal() & 0xFF] = 3;
+				break;
+			default:
+				ARG_COUNT[c.getOpcodeVal() & 0xFF] = 1;
+				break;
+			}
+		}
+		for(InputCommand c : InputCommand.values()){
+			INPUT_OPS[c.getOpcodeVal() & 0xFF] = c;
+			switch(c){
+			case QUERY_LIST:
+			case STREAM:
+				ARG_COUNT[c.getOpcodeVal() & 0xFF] = VARIABLE;
+				break;
+			default:
+				ARG_COUNT[c.getOpcodeVal() & 0xFF] = 1;
+				break;
+			}
+		}
+	}
+	
+	private final Arena arena;
+	private final Clock clock;
+	private SerialTransport transport;
+	
+	// everything below is guarded by lock: commands arrive on the host's write thread, steps on ours
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private int oiMode = MODE_OFF;
+	
+	// pose
+	private double x, y, heading;		// mm, mm, rad (counterclockwise from +x)
+	private double rightVel, leftVel;	// wheel speeds, mm/s
+	private int reqVelocity, reqRadius, reqRightVelocity, reqLeftVelocity;
+	private double distanceAcc, angleAcc;	// since last reported, mm and degrees
+	
+	// sensors
+	private boolean bumpLeft, bumpRight;
+	private boolean wheelDropLeft, wheelDropRight, casterDrop;
+	private final boolean[] cliff = new boolean[4];		// left, front left, front right, right
+	private final int[] cliffSignal = new int[4];
+	private boolean wall;
+	private int wallSignal;
+	private boolean playButton, advanceButton;
+	private byte leds, ledColor, ledIntensity;
+	
+	// battery
+	private double batteryCharge = BATTERY_CAPACITY;	// mAh
+	private int batteryCurrent;	// mA, negative when discharging
+	
+	// streaming
+	private final byte[] streamIds = new byte[255];
+	private int streamCount = 0;
+	private boolean streamActive = false;
+	private long streamClock = 0;
+	
+	private long simTime = 0;	// ns of simulated time
+	
+	// command parser
+	private final byte[] cmd = new byte[2 + 255];
+	private int cmdLen = 0;
+	private int cmdExpected = 0;
+	private final byte[] inBuf = new byte[256];
+	
+	// responses
+	private final byte[] out = new byte[1024];
+	private final ByteBuffer outBB = ByteBuffer.wrap(out);
+	private final ByteBuffer[] outArray = new ByteBuffer[] { outBB };
+	
+	private long commandCount = 0;
+	private long unknownByteCount = 0;
+	private long frameCount = 0;
+	
+	private volatile double timeScale = 1.0;
+	private volatile boolean stopRequested = false;
+	
+	private static final double BATTERY_CAPACITY = 2700;	// mAh
+	private static final double IDLE_CURRENT = 150;			// mA
+	private static final double MOTOR_CURRENT = 0.6;		// mA per mm/s of each wheel
+	private static final double BUMP_MARGIN = 2;			// mm
+	private static final double BUMP_CENTER = Math.toRadians(20);	// both bumpers inside +/- this
+	private static final double[] CLIFF_BEARING = { Math.toRadians(60), Math.toRadians(20), Math.toRadians(-20), Math.toRadians(-60) };
+	private static final double WALL_BEARING = Math.toRadians(-60);	// the wall sensor looks out the right side
+	private static final double WALL_RANGE = 150;	// mm
+	
+	public SimulatedCreate(Arena arena){
+		this(arena, Clock.SYSTEM);
+	}
+	
+	/**
+	 * Registers with clock right away; run() deregisters when it ends, so a simulator that is
+	 * never run holds a VirtualClock still.
+	 * @param arena
+	 * @param clock
+	 */
+	public SimulatedCreate(Arena arena, Clock clock){
+		this.arena = arena;
+		this.clock = clock;
+		clock.register();
+		this.x = arena.getWidth() / 2;
+		this.y = arena.getHeight() / 2;
+		this.heading = 0;
+	}
+	
+	/**
+	 * Opens deviceEnd and starts answering whatever is written to it, e.g. the peer of the
+	 * LoopbackTransport handed to CreateRobot.
+	 * @param deviceEnd
+	 * @throws IOException
+	 */
+	public final void attach(SerialTransport deviceEnd) throws IOException {
+		this.transport = deviceEnd;
+		deviceEnd.setDataListener(this);
+		deviceEnd.open(57600);
+	}
+	
+	/*
+	 * Command side.
+	 */
+	
+	@Override
+	public final void dataAvailable(SerialTransport source) {
+		lock.lock();
+		try {
+			int n;
+			while((n = source.read(inBuf, 0, inBuf.length)) > 0){
+				for(int i = 0; i < n; i++){
+					parseByte(inBuf[i]);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("SimulatedCreate: error reading from " + source.getName());
+			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private final void parseByte(byte b){
+		if(cmdLen == 0){
+			int args = ARG_COUNT[b & 0xFF];
+			if(args == UNKNOWN){
+				unknownByteCount++;
+				return;
+			}
+			cmdExpected = (args == VARIABLE) ? 0 : 1 + args;	// 0 until the count byte arrives
+		}
+		else if(cmdExpected == 0 && cmdLen == 1){
+			cmdExpected = 2 + (b & 0xFF);
+		}
+		cmd[cmdLen++] = b;
+		if(cmdLen == cmdExpected){
+			execute();
+			cmdLen = 0;
+		}
+	}
+	
+	private final void execute(){
+		commandCount++;
+		int op = cmd[0] & 0xFF;
+		
+		if(START_OPS[op] != null){
+			if(START_OPS[op] == StartCommand.START){
+				setMode(MODE_PASSIVE);
+			}
+			return;	// the baud rate of a simulated port does not matter
+		}
+		if(oiMode == MODE_OFF){
+			return;	// nothing but START is heard before START
+		}
+		if(MODE_OPS[op] != null){
+			setMode(MODE_OPS[op] == ModeCommand.FULL ? MODE_FULL : MODE_SAFE);
+			return;
+		}
+		if(ACTUATOR_OPS[op] != null){
+			if(oiMode < MODE_SAFE){
+				return;
+			}
+			switch(ACTUATOR_OPS[op]){
+			case DRIVE:
+				drive(toShort(cmd[1], cmd[2]), toShort(cmd[3], cmd[4]));
+				break;
+			case DRIVE_DIRECT:
+				reqRightVelocity = clampVelocity(toShort(cmd[1], cmd[2]));
+				reqLeftVelocity = clampVelocity(toShort(cmd[3], cmd[4]));
+				rightVel = reqRightVelocity;
+				leftVel = reqLeftVelocity;
+				break;
+			case LEDS:
+				leds = cmd[1];
+				ledColor = cmd[2];
+				ledIntensity = cmd[3];
+				break;
+			default:
+				break;	// digital outputs, low side drivers and IR are not modeled
+			}
+			return;
+		}
+		switch(INPUT_OPS[op]){
+		case SENSORS:
+			sendResponse(encode(cmd[1] & 0xFF, out, 0));
+			break;
+		case QUERY_LIST:
+			int pos = 0;
+			for(int i = 0; i < (cmd[1] & 0xFF); i++){
+				pos = encode(cmd[2 + i] & 0xFF, out, pos);
+			}
+			sendResponse(pos);
+			break;
+		case STREAM:
+			streamCount = cmd[1] & 0xFF;
+			System.arraycopy(cmd, 2, streamIds, 0, streamCount);
+			streamActive = streamCount > 0;
+			streamClock = 0;
+			break;
+		case PAUSE_RESUME_STREAM:
+			streamActive = cmd[1] != 0 && streamCount > 0;
+			break;
+		}
+	}
+	
+	private final void setMode(int mode){
+		if(mode != oiMode && mode == MODE_PASSIVE){
+			stopMotors();
+		}
+		oiMode = mode;
+	}
+	
+	private final void stopMotors(){
+		rightVel = 0;
+		leftVel = 0;
+		reqVelocity = 0;
+		reqRightVelocity = 0;
+		reqLeftVelocity = 0;
+	}
+	
+	/**
+	 * DRIVE semantics from the OI spec, including the special radii.
+	 * @param velocity - mm/s
+	 * @param radius - mm
+	 */
+	private final void drive(int velocity, int radius){
+		velocity = clampVelocity(velocity);
+		reqVelocity = velocity;
+		reqRadius = radius;
+		if(radius == -32768 || radius == 32767 || radius == 0){
+			rightVel = velocity;	// straight; a zero radius (the stop command's) would divide by zero
+			leftVel = velocity;
+		}
+		else if(radius == -1){
+			rightVel = -velocity;	// spin clockwise
+			leftVel = velocity;
+		}
+		else if(radius == 1){
+			rightVel = velocity;	// spin counterclockwise
+			leftVel = -velocity;
+		}
+		else{
+			double half = CreateRobot.WHEELBASE / 2;
+			rightVel = velocity * (radius + half) / radius;
+			leftVel = velocity * (radius - half) / radius;
+		}
+	}
+	
+	private static final int clampVelocity(int v){
+		return Math.max(-500, Math.min(500, v));
+	}
+	
+	private static final int toShort(byte hi, byte lo){
+		return (short) (((hi & 0xFF) << 8) | (lo & 0xFF));
+	}
+	
+	private final void sendResponse(int len){
+		if(len == 0 || transport == null){
+			return;
+		}
+		outBB.clear();
+		outBB.limit(len);
+		try {
+			transport.write(outArray, 0, 1);
+		} catch (IOException e) {
+			System.err.println("SimulatedCreate: error writing to " + transport.getName());
+		}
+	}
+	
+	/*
+	 * Sensor encoding.
+	 */
+	
+	/**
+	 * Encodes packet or group id at dst[pos].
+	 * @param id
+	 * @param dst
+	 * @param pos
+	 * @return position after the encoded bytes
+	 */
+	private final int encode(int id, byte[] dst, int pos){
+		if(id < GROUP_FIRST.length){
+			for(int p = GROUP_FIRST[id]; p <= GROUP_LAST[id]; p++){
+				pos = encodePacket(PacketID.fromPacketID(p), dst, pos);
+			}
+			return pos;
+		}
+		PacketID packet = PacketID.fromPacketID(id);
+		if(packet == null){
+			return pos;	// the real Create ignores IDs it does not know
+		}
+		return encodePacket(packet, dst, pos);
+	}
+	
+	private final int encodePacket(PacketID packet, byte[] dst, int pos){
+		switch(packet){
+		case BUMP_AND_WHEEL:
+			dst[pos] = (byte) ((bumpRight ? 0x01 : 0) | (bumpLeft ? 0x02 : 0) | (wheelDropRight ? 0x04 : 0)
+					| (wheelDropLeft ? 0x08 : 0) | (casterDrop ? 0x10 : 0));
+			return pos + 1;
+		case WALL:
+			dst[pos] = (byte) (wall ? 1 : 0);
+			return pos + 1;
+		case CLIFF_LEFT:
+		case CLIFF_FRONT_LEFT:
+		case CLIFF_FRONT_RIGHT:
+		case CLIFF_RIGHT:
+			dst[pos] = (byte) (cliff[packet.ordinal() - PacketID.CLIFF_LEFT.ordinal()] ? 1 : 0);
+			return pos + 1;
+		case IR_BYTE:
+			dst[pos] = (byte) 255;	// no IR character
+			return pos + 1;
+		case BUTTONS:
+			dst[pos] = (byte) ((playButton ? 0x01 : 0) | (advanceButton ? 0x04 : 0));
+			return pos + 1;
+		case DISTANCE:
+			int mm = (int) distanceAcc;
+			distanceAcc -= mm;
+			return putShort(dst, pos, mm);
+		case ANGLE:
+			int deg = (int) angleAcc;
+			angleAcc -= deg;
+			return putShort(dst, pos, deg);
+		case VOLTAGE:
+			return putShort(dst, pos, (int) (14000 + 2400 * batteryCharge / BATTERY_CAPACITY));
+		case CURRENT:
+			return putShort(dst, pos, batteryCurrent);
+		case BATT_TEMP:
+			dst[pos] = 28;
+			return pos + 1;
+		case BATT_CHARGE:
+			return putShort(dst, pos, (int) batteryCharge);
+		case BATT_CAP:
+			return putShort(dst, pos, (int) BATTERY_CAPACITY);
+		case WALL_SIGNAL:
+			return putShort(dst, pos, wallSignal);
+		case CLIFF_LEFT_SIGNAL:
+		case CLIFF_FRONT_LEFT_SIGNAL:
+		case CLIFF_FRONT_RIGHT_SIGNAL:
+		case CLIFF_RIGHT_SIGNAL:
+			return putShort(dst, pos, cliffSignal[packet.ordinal() - PacketID.CLIFF_LEFT_SIGNAL.ordinal()]);
+		case OI_MODE:
+			dst[pos] = (byte) oiMode;
+			return pos + 1;
+		case NUM_STREAM_PKTS:
+			dst[pos] = (byte) streamCount;
+			return pos + 1;
+		case REQ_VEL:
+			return putShort(dst, pos, reqVelocity);
+		case REQ_RADIUS:
+			return putShort(dst, pos, reqRadius);
+		case REQ_RIGHT_VEL:
+			return putShort(dst, pos, reqRightVelocity);
+		case REQ_LEFT_VEL:
+			return putShort(dst, pos, reqLeftVelocity);
+		default:
+			// charging state, overcurrents, cargo bay, songs and charging sources all read as 0
+			for(int i = 0; i < packet.getSize(); i++){
+				dst[pos + i] = 0;
+			}
+			return pos + packet.getSize();
+		}
+	}
+	
+	private static final int putShort(byte[] dst, int pos, int val){
+		val = Math.max(Short.MIN_VALUE, Math.min(0xFFFF, val));
+		dst[pos] = (byte) (val >> 8);
+		dst[pos + 1] = (byte) val;
+		return pos + 2;
+	}
+	
+	private final void sendStreamFrame(){
+		out[0] = 19;
+		int pos = 2;
+		for(int i = 0; i < streamCount; i++){
+			int id = streamIds[i] & 0xFF;
+			out[pos++] = (byte) id;
+			pos = encode(id, out, pos);
+		}
+		out[1] = (byte) (pos - 2);
+		int sum = 0;
+		for(int i = 0; i < pos; i++){
+			sum += out[i];
+		}
+		out[pos++] = (byte) -sum;	// all bytes including the checksum add up to 0
+		frameCount++;
+		sendResponse(pos);
+	}
+	
+	/*
+	 * Physics.
+	 */
+	
+	/**
+	 * Advances simulated time by nanos, in steps of at most STEP_NANOS, sending a stream frame at
+	 * every stream period that passes.
+	 * @param nanos
+	 */
+	public final void step(long nanos){
+		lock.lock();
+		try {
+			while(nanos > 0){
+				long dt = Math.min(nanos, STEP_NANOS);
+				integrate(dt / 1e9);
+				simTime += dt;
+				nanos -= dt;
+				
+				streamClock += dt;
+				while(streamClock >= STEP_NANOS){
+					streamClock -= STEP_NANOS;
+					if(streamActive){
+						sendStreamFrame();
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private final void integrate(double dt){
+		double v = (rightVel + leftVel) / 2;
+		double w = (rightVel - leftVel) / CreateRobot.WHEELBASE;	// rad/s
+		
+		double mid = heading + w * dt / 2;
+		double dx = v * dt * Math.cos(mid);
+		double dy = v * dt * Math.sin(mid);
+		double travel = 1;
+		if(arena.distanceToObstacle(x + dx, y + dy, null) < BODY_RADIUS){
+			// move up to the point of contact, so the bumper closes
+			double lo = 0, hi = 1;
+			for(int i = 0; i < 8; i++){
+				double f = (lo + hi) / 2;
+				if(arena.distanceToObstacle(x + f * dx, y + f * dy, null) >= BODY_RADIUS){
+					lo = f;
+				}
+				else{
+					hi = f;
+				}
+			}
+			travel = lo;
+		}
+		x += travel * dx;
+		y += travel * dy;
+		distanceAcc += travel * v * dt;
+		// against a wall the wheels slip; the Create still turns in place
+		heading = normalize(heading + w * dt);
+		angleAcc += Math.toDegrees(w * dt);
+		
+		batteryCurrent = (int) -(IDLE_CURRENT + MOTOR_CURRENT * (Math.abs(rightVel) + Math.abs(leftVel)));
+		batteryCharge = Math.max(0, batteryCharge + batteryCurrent * dt / 3600);
+		
+		updateSensors();
+		
+		// SAFE mode drops to PASSIVE on a cliff or wheel drop while moving forward
+		if(oiMode == MODE_SAFE && v > 0 && (cliff[0] || cliff[1] || cliff[2] || cliff[3]
+				|| wheelDropLeft || wheelDropRight || casterDrop)){
+			setMode(MODE_PASSIVE);
+		}
+	}
+	
+	private final double[] contact = new double[2];
+	
+	private final void updateSensors(){
+		double d = arena.distanceToObstacle(x, y, contact);
+		bumpLeft = false;
+		bumpRight = false;
+		if(d < BODY_RADIUS + BUMP_MARGIN){
+			double bearing = normalize(Math.atan2(contact[1] - y, contact[0] - x) - heading);
+			if(Math.abs(bearing) <= Math.PI / 2){
+				bumpLeft = bearing > -BUMP_CENTER;
+				bumpRight = bearing < BUMP_CENTER;
+			}
+		}
+		
+		for(int i = 0; i < cliff.length; i++){
+			double a = heading + CLIFF_BEARING[i];
+			double r = BODY_RADIUS - 15;
+			cliff[i] = arena.isCliff(x + r * Math.cos(a), y + r * Math.sin(a));
+			cliffSignal[i] = cliff[i] ? 20 : 1400;
+		}
+		
+		double half = CreateRobot.WHEELBASE / 2;
+		double left = heading + Math.PI / 2;
+		wheelDropLeft = arena.isCliff(x + half * Math.cos(left), y + half * Math.sin(left));
+		wheelDropRight = arena.isCliff(x - half * Math.cos(left), y - half * Math.sin(left));
+		double caster = BODY_RADIUS * 0.8;
+		casterDrop = arena.isCliff(x + caster * Math.cos(heading), y + caster * Math.sin(heading));
+		
+		double a = heading + WALL_BEARING;
+		double wd = arena.distanceToObstacle(x + BODY_RADIUS * Math.cos(a), y + BODY_RADIUS * Math.sin(a), null);
+		wall = wd < 30;
+		wallSignal = wd < WALL_RANGE ? (int) (4095 * (1 - wd / WALL_RANGE)) : 0;
+	}
+	
+	private static final double normalize(double angle){
+		while(angle > Math.PI){
+			angle -= 2 * Math.PI;
+		}
+		while(angle < -Math.PI){
+			angle += 2 * Math.PI;
+		}
+		return angle;
+	}
+	
+	/**
+	 * Steps simulated time against the wall clock until requestStop() or interruption.
+	 */
+	@Override
+	public void run() {
+		long deadline = clock.nanoTime();
+		try {
+			while(!stopRequested){
+				step(STEP_NANOS);
+				
+				double scale = timeScale;
+				if(Double.isInfinite(scale)){
+					continue;
+				}
+				deadline += (long) (STEP_NANOS / scale);
+				long now = clock.nanoTime();
+				if(now - deadline > TimeUnit.SECONDS.toNanos(1)){
+					deadline = now;	// too far behind to catch up; start over from now
+				}
+				clock.sleepUntil(deadline);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			clock.deregister();
+		}
+		System.out.println("SimulatedCreate stopped at " + getSimTime() / 1e9 + " s simulated.");
+	}
+	
+	public final void requestStop() {
+		stopRequested = true;
+	}
+	
+	/**
+	 * @param scale - simulated seconds per real second in run(); POSITIVE_INFINITY runs flat out
+	 */
+	public final void setTimeScale(double scale) {
+		if(!(scale > 0)){
+			throw new IllegalArgumentException("Time scale must be positive: " + scale);
+		}
+		this.timeScale = scale;
+	}
+	
+	public double getTimeScale() {
+		return timeScale;
+	}
+	
+	/*
+	 * State for tests.
+	 */
+	
+	public final void setPose(double x, double y, double heading) {
+		lock.lock();
+		try {
+			this.x = x;
+			this.y = y;
+			this.heading = normalize(heading);
+			updateSensors();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public final void setButtons(boolean play, boolean advance) {
+		lock.lock();
+		try {
+			this.playButton = play;
+			this.advanceButton = advance;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public double getX() {
+		lock.lock();
+		try {
+			return x;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public double getY() {
+		lock.lock();
+		try {
+			return y;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return heading in radians, counterclockwise from +x
+	 */
+	public double getHeading() {
+		lock.lock();
+		try {
+			return heading;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return OI mode: 0 off, 1 passive, 2 safe, 3 full
+	 */
+	public int getMode() {
+		lock.lock();
+		try {
+			return oiMode;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true while either bumper is pressed
+	 */
+	public boolean isBumped() {
+		lock.lock();
+		try {
+			return bumpLeft || bumpRight;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public byte getLeds() {
+		lock.lock();
+		try {
+			return leds;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return simulated time in ns
+	 */
+	public long getSimTime() {
+		lock.lock();
+		try {
+			return simTime;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getCommandCount() {
+		lock.lock();
+		try {
+			return commandCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return bytes that did not start a known opcode
+	 */
+	public long getUnknownByteCount() {
+		lock.lock();
+		try {
+			return unknownByteCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getStreamFrameCount() {
+		lock.lock();
+		try {
+			return frameCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public Arena getArena() {
+		return arena;
+	}
+	
+	/**
+	 * Bounces a CreateRobot around a room on a VirtualClock for the given number of simulated
+	 * minutes, as fast as the host can run it.
+	 * @param minutes
+	 * @throws Exception
+	 */
+	private static void runVirtual(long minutes) throws Exception {
+		
+		VirtualClock clock = new VirtualClock();
+		Arena arena = new Arena(4000, 3000).addObstacle(1800, 1200, 400, 600);
+		SimulatedCreate sim = new SimulatedCreate(arena, clock);
+		sim.setPose(800, 800, 0.3);
+		
+		// this thread only ever waits through the clock, so it takes part from the start; otherwise
+		// the simulator would run the clock ahead on its own until the robot is up
+		clock.register();
+		
+		LoopbackTransport host = new LoopbackTransport("sim");
+		sim.attach(host.getPeer());
+		Thread simThread = new Thread(sim, "SimulatedCreate");
+		simThread.start();
+		
+		CompletableFuture<CreateRobot> connecting = CreateRobot.connect(host, CreateMode.FULL, AcquisitionMode.POLL, 5000, clock);
+		while(!connecting.isDone()){
+			clock.sleep(1, TimeUnit.MILLISECONDS);
+		}
+		CreateRobot robot = connecting.join();
+		
+		long realStart = System.nanoTime();
+		long end = clock.nanoTime() + TimeUnit.MINUTES.toNanos(minutes);
+		int bumps = 0;
+		while(clock.nanoTime() < end){
+			if(robot.isBumpLeft() || robot.isBumpRight()){
+				bumps++;
+				robot.driveDirect(-200, -200);
+				clock.sleep(300, TimeUnit.MILLISECONDS);
+				robot.driveDirect(200, -200);
+				clock.sleep(600 + 100 * (bumps % 7), TimeUnit.MILLISECONDS);
+			}
+			robot.driveDirect(300, 300);
+			clock.sleep(100, TimeUnit.MILLISECONDS);
+		}
+		clock.deregister();
+		long realMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - realStart);
+		
+		robot.requestStop();
+		sim.requestStop();
+		simThread.join();
+		System.out.println(minutes + " simulated minutes in " + realMs + " ms: " + bumps + " bumps, " 
+				+ sim.getCommandCount() + " commands, battery " + robot.getBatteryCharge() + " mAh.");
+	}
+	
+	/**
+	 * Drives a CreateRobot at a wall through a LoopbackTransport and reports the bump. With
+	 * "virtual [minutes]" bounces it around a room on a VirtualClock instead.
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		
+		if(args.length > 0 && args[0].equals("virtual")){
+			runVirtual(args.length > 1 ? Long.parseLong(args[1]) : 60);
+			return;
+		}
+		
+		Arena arena = new Arena(3000, 3000).addObstacle(2200, 1000, 300, 1000).addCliff(0, 0, 3000, 200);
+		SimulatedCreate sim = new SimulatedCreate(arena);
+		sim.setPose(1000, 1500, 0);
+		sim.setTimeScale(2);	// twice real time: the robot reaches the obstacle in under 2 s
+		
+		LoopbackTransport host = new LoopbackTransport("sim");
+		sim.attach(host.getPeer());
+		Thread simThread = new Thread(sim, "SimulatedCreate");
+		simThread.start();
+		
+		CreateRobot robot = new CreateRobot(host, CreateMode.FULL, AcquisitionMode.STREAM);
+		System.out.println("Robot reports mode " + robot.getCurrCreateMode());
+		
+		robot.addSensorListener(BooleanSensor.BUMP_RIGHT, Edge.RISING, new SensorListener(){
+			@Override
+			public void sensorChanged(SensorEvent event) {
+				System.out.println("Sensor event: " + event);
+			}
+		});
+		
+		// 1035 mm to the obstacle at 300 mm/s of simulated time
+		robot.driveDirect(300, 300);
+		for(int i = 0; i < 12; i++){
+			Thread.sleep(250);
+			System.out.printf("x = %.0f mm, bump = %b, distance = %.0f mm%n", sim.getX(), 
+					robot.isBumpRight(), robot.getDistance());
+		}
+		robot.driveDirect(0, 0);
+		System.out.println(robot.getMetrics());
+		
+		robot.requestStop();
+		sim.requestStop();
+		simThread.join();
+		System.out.println(sim.getStreamFrameCount() + " stream frames, " + sim.getCommandCount() + " commands.");
+		
+	}
+	
+}